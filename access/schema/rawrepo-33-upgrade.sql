@@ -0,0 +1,83 @@
+--
+-- ENSURE ONLY UPGRADING PREVIOUS VERSION
+--
+\set ON_ERROR_STOP
+
+BEGIN TRANSACTION;
+
+DO
+$$
+    DECLARE
+        currentversion INTEGER = 33;
+        brokenversion  INTEGER = 32;
+        OLDversion     INTEGER;
+    BEGIN
+        SELECT MAX(version)
+        INTO OLDversion
+        FROM version;
+        IF (OLDversion <> (currentversion - 1))
+        THEN
+            RAISE EXCEPTION 'Expected schema version % found %', (currentversion - 1), OLDversion;
+        END IF;
+        INSERT INTO version VALUES (currentversion);
+        -- Software before this version reads the base64 content column only
+        DELETE
+        FROM version
+        WHERE version <= brokenversion;
+    END
+$$;
+
+--
+--
+--
+
+ALTER TABLE records ADD COLUMN content_bytes BYTEA;
+ALTER TABLE records ADD COLUMN content_codec VARCHAR(32);
+ALTER TABLE records_archive ADD COLUMN content_bytes BYTEA;
+ALTER TABLE records_archive ADD COLUMN content_codec VARCHAR(32);
+
+ALTER TABLE records ALTER COLUMN content_bytes SET STORAGE EXTERNAL;
+ALTER TABLE records_archive ALTER COLUMN content_bytes SET STORAGE EXTERNAL;
+
+CREATE OR REPLACE FUNCTION update_records_archive() RETURNS trigger
+    LANGUAGE plpgsql
+AS $$ -- V23, V33
+BEGIN
+    INSERT INTO records_archive (bibliographicrecordid, agencyid, deleted, mimetype, content, content_bytes, content_codec, created, modified, trackingId)
+    VALUES (OLD.bibliographicrecordid, OLD.agencyid, OLD.deleted, OLD.mimetype, OLD.content, OLD.content_bytes, OLD.content_codec, OLD.created, OLD.modified,
+            OLD.trackingId);
+    RETURN NEW;
+END;
+$$;
+
+CREATE OR REPLACE FUNCTION delete_records_archive()
+    RETURNS TRIGGER AS $$ -- V23, V33
+BEGIN
+    INSERT INTO records_archive (bibliographicrecordid, agencyid, deleted, mimetype, content, content_bytes, content_codec, created, modified, trackingId)
+    VALUES (OLD.bibliographicrecordid, OLD.agencyid, OLD.deleted, OLD.mimetype, OLD.content, OLD.content_bytes, OLD.content_codec, OLD.created, OLD.modified,
+            OLD.trackingId);
+    RETURN OLD;
+END;
+$$
+    LANGUAGE plpgsql;
+
+CREATE OR REPLACE FUNCTION content_migrated(old_ records, new_ records) RETURNS BOOLEAN
+    LANGUAGE sql
+    IMMUTABLE
+AS $$ -- V33
+SELECT old_.content IS NOT NULL AND old_.content_bytes IS NULL AND
+       new_.content IS NULL AND new_.content_bytes IS NOT NULL AND
+       old_.deleted = new_.deleted AND old_.mimetype = new_.mimetype AND
+       old_.created = new_.created AND old_.modified = new_.modified AND
+       old_.trackingId = new_.trackingId;
+$$;
+
+DROP TRIGGER records_update_trig_archive ON records;
+CREATE TRIGGER records_update_trig_archive
+    AFTER UPDATE
+    ON records
+    FOR EACH ROW
+    WHEN (OLD.* IS DISTINCT FROM NEW.* AND NOT content_migrated(OLD, NEW))
+EXECUTE PROCEDURE update_records_archive();
+
+COMMIT TRANSACTION;
@@ -0,0 +1,45 @@
+--
+-- ENSURE ONLY UPGRADING PREVIOUS VERSION
+--
+\set ON_ERROR_STOP
+
+BEGIN TRANSACTION;
+
+DO
+$$
+    DECLARE
+        currentversion INTEGER = 34;
+        brokenversion  INTEGER = 33;
+        OLDversion     INTEGER;
+    BEGIN
+        SELECT MAX(version)
+        INTO OLDversion
+        FROM version;
+        IF (OLDversion <> (currentversion - 1))
+        THEN
+            RAISE EXCEPTION 'Expected schema version % found %', (currentversion - 1), OLDversion;
+        END IF;
+        INSERT INTO version VALUES (currentversion);
+        -- Software before this version cannot decode dictionary compressed content
+        DELETE
+        FROM version
+        WHERE version <= brokenversion;
+    END
+$$;
+
+--
+--
+--
+
+CREATE TABLE content_dictionaries (
+    id         SERIAL                   NOT NULL PRIMARY KEY,
+    mimetype   VARCHAR(128)             NOT NULL,
+    dictionary BYTEA                    NOT NULL,
+    active     BOOLEAN                  NOT NULL DEFAULT FALSE,
+    created    TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT now()
+);
+
+CREATE UNIQUE INDEX content_dictionaries_active
+    ON content_dictionaries (mimetype) WHERE active;
+
+COMMIT TRANSACTION;
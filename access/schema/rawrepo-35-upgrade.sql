@@ -0,0 +1,77 @@
+--
+-- ENSURE ONLY UPGRADING PREVIOUS VERSION
+--
+\set ON_ERROR_STOP
+
+BEGIN TRANSACTION;
+
+DO
+$$
+    DECLARE
+        currentversion INTEGER = 35;
+        brokenversion  INTEGER = 33;
+        OLDversion     INTEGER;
+    BEGIN
+        SELECT MAX(version)
+        INTO OLDversion
+        FROM version;
+        IF (OLDversion <> (currentversion - 1))
+        THEN
+            RAISE EXCEPTION 'Expected schema version % found %', (currentversion - 1), OLDversion;
+        END IF;
+        INSERT INTO version VALUES (currentversion);
+        DELETE
+        FROM version
+        WHERE version <= brokenversion;
+    END
+$$;
+
+--
+--
+--
+
+CREATE OR REPLACE FUNCTION notify_relations_changed() RETURNS trigger
+    LANGUAGE plpgsql
+AS $$ -- V35
+BEGIN
+    IF TG_OP <> 'INSERT' THEN
+        PERFORM pg_notify('rawrepo_relations', OLD.agencyid || ':' || OLD.bibliographicrecordid);
+        PERFORM pg_notify('rawrepo_relations', OLD.refer_agencyid || ':' || OLD.refer_bibliographicrecordid);
+    END IF;
+    IF TG_OP <> 'DELETE' THEN
+        PERFORM pg_notify('rawrepo_relations', NEW.agencyid || ':' || NEW.bibliographicrecordid);
+        PERFORM pg_notify('rawrepo_relations', NEW.refer_agencyid || ':' || NEW.refer_bibliographicrecordid);
+    END IF;
+    RETURN NULL;
+END;
+$$;
+
+CREATE TRIGGER relations_notify
+    AFTER INSERT OR UPDATE OR DELETE
+    ON relations
+    FOR EACH ROW
+EXECUTE PROCEDURE notify_relations_changed();
+
+CREATE OR REPLACE FUNCTION notify_records_changed() RETURNS trigger
+    LANGUAGE plpgsql
+AS $$ -- V35
+BEGIN
+    PERFORM pg_notify('rawrepo_relations', OLD.agencyid || ':' || OLD.bibliographicrecordid);
+    RETURN NULL;
+END;
+$$;
+
+CREATE TRIGGER records_update_notify
+    AFTER UPDATE
+    ON records
+    FOR EACH ROW
+    WHEN (OLD.mimetype IS DISTINCT FROM NEW.mimetype)
+EXECUTE PROCEDURE notify_records_changed();
+
+CREATE TRIGGER records_delete_notify
+    AFTER DELETE
+    ON records
+    FOR EACH ROW
+EXECUTE PROCEDURE notify_records_changed();
+
+COMMIT TRANSACTION;
@@ -0,0 +1,125 @@
+--
+-- ENSURE ONLY UPGRADING PREVIOUS VERSION
+--
+\set ON_ERROR_STOP
+
+BEGIN TRANSACTION;
+
+DO
+$$
+    DECLARE
+        currentversion INTEGER = 36;
+        brokenversion  INTEGER = 33;
+        OLDversion     INTEGER;
+    BEGIN
+        SELECT MAX(version)
+        INTO OLDversion
+        FROM version;
+        IF (OLDversion <> (currentversion - 1))
+        THEN
+            RAISE EXCEPTION 'Expected schema version % found %', (currentversion - 1), OLDversion;
+        END IF;
+        INSERT INTO version VALUES (currentversion);
+        DELETE
+        FROM version
+        WHERE version <= brokenversion;
+    END
+$$;
+
+--
+-- records_archive becomes partitioned by modified
+--
+-- The existing table is attached as the partition records_archive_legacy,
+-- covering everything up to the start of next month. Attaching validates
+-- the range with one scan of the table, it is not rewritten.
+-- Its primary key index becomes part of the new primary key.
+--
+
+ALTER TABLE records_archive RENAME TO records_archive_legacy;
+ALTER INDEX records_archive_pkey RENAME TO records_archive_legacy_pkey;
+
+-- The primary key covers lookups by id, and modified is the partition key
+DROP INDEX records_archive_id;
+DROP INDEX records_archive_modified;
+
+CREATE TABLE records_archive (-- V2
+                                 bibliographicrecordid VARCHAR(64)              NOT NULL,
+                                 agencyid              NUMERIC(6)               NOT NULL,
+                                 deleted               BOOLEAN                  NOT NULL DEFAULT FALSE, -- V3
+                                 mimetype              VARCHAR(128)             NOT NULL DEFAULT 'text/marcxchange', -- V3
+                                 content               TEXT, -- base64 encoded, legacy (before V33)
+                                 created               TIMESTAMP WITH TIME ZONE NOT NULL,
+                                 modified              TIMESTAMP WITH TIME ZONE NOT NULL,
+                                 trackingId            VARCHAR(256)             NOT NULL DEFAULT '',
+                                 content_bytes         BYTEA, -- V33
+                                 content_codec         VARCHAR(32), -- V33
+                                 CONSTRAINT records_archive_pkey PRIMARY KEY (bibliographicrecordid, agencyid, modified)
+) PARTITION BY RANGE (modified); -- V36
+
+ALTER TABLE records_archive ALTER COLUMN content_bytes SET STORAGE EXTERNAL; -- V33
+
+DO
+$$
+    BEGIN
+        EXECUTE format('ALTER TABLE records_archive ATTACH PARTITION records_archive_legacy FOR VALUES FROM (MINVALUE) TO (%L)',
+                       (date_trunc('month', now() AT TIME ZONE 'UTC') + INTERVAL '1 month') AT TIME ZONE 'UTC');
+    END
+$$;
+
+CREATE TABLE records_archive_default PARTITION OF records_archive DEFAULT; -- V36
+
+--
+-- Add a partition of records_archive, moving rows in its range from the
+-- default partition
+CREATE OR REPLACE FUNCTION records_archive_add_partition(name_ TEXT, from_ TIMESTAMP WITH TIME ZONE, to_ TIMESTAMP WITH TIME ZONE) RETURNS BOOLEAN
+    LANGUAGE plpgsql
+AS $$ -- V36
+BEGIN
+    IF to_regclass(name_) IS NOT NULL THEN
+        RETURN FALSE;
+    END IF;
+    BEGIN
+        IF EXISTS(SELECT 1 FROM records_archive_default WHERE modified >= from_ AND modified < to_) THEN
+            ALTER TABLE records_archive DETACH PARTITION records_archive_default;
+            EXECUTE format('CREATE TABLE %I PARTITION OF records_archive FOR VALUES FROM (%L) TO (%L)', name_, from_, to_);
+            INSERT INTO records_archive SELECT * FROM records_archive_default WHERE modified >= from_ AND modified < to_;
+            DELETE FROM records_archive_default WHERE modified >= from_ AND modified < to_;
+            ALTER TABLE records_archive ATTACH PARTITION records_archive_default DEFAULT;
+        ELSE
+            EXECUTE format('CREATE TABLE %I PARTITION OF records_archive FOR VALUES FROM (%L) TO (%L)', name_, from_, to_);
+        END IF;
+    EXCEPTION
+        -- The range is (partly) covered by another partition, like
+        -- records_archive_legacy in the month of the V36 upgrade
+        WHEN invalid_object_definition THEN
+            RETURN FALSE;
+    END;
+    EXECUTE format('ALTER TABLE %I ALTER COLUMN content_bytes SET STORAGE EXTERNAL', name_);
+    RETURN TRUE;
+END;
+$$;
+
+--
+-- Add the partition records_archive_YYYYMM for the month (UTC) of month_
+CREATE OR REPLACE FUNCTION records_archive_add_month(month_ TIMESTAMP WITH TIME ZONE) RETURNS BOOLEAN
+    LANGUAGE sql
+AS $$ -- V36
+SELECT records_archive_add_partition('records_archive_' || to_char(date_trunc('month', month_ AT TIME ZONE 'UTC'), 'YYYYMM'),
+                                     date_trunc('month', month_ AT TIME ZONE 'UTC') AT TIME ZONE 'UTC',
+                                     (date_trunc('month', month_ AT TIME ZONE 'UTC') + INTERVAL '1 month') AT TIME ZONE 'UTC');
+$$;
+
+SELECT records_archive_add_month(now() + n * INTERVAL '1 month')
+FROM generate_series(1, 3) AS n;
+
+--
+-- How long archived versions are kept, by agency (V36)
+-- A version is removed when it has been replaced for longer than 'keep'.
+-- Agencies not listed use configurations 'records_archive_retention', if set.
+-- Otherwise versions are kept forever
+CREATE TABLE records_archive_retention (-- V36
+                                           agencyid NUMERIC(6) PRIMARY KEY NOT NULL,
+                                           keep     INTERVAL               NOT NULL
+);
+
+COMMIT TRANSACTION;
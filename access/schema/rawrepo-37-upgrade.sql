@@ -0,0 +1,35 @@
+--
+-- ENSURE ONLY UPGRADING PREVIOUS VERSION
+--
+\set ON_ERROR_STOP
+
+BEGIN TRANSACTION;
+
+DO
+$$
+    DECLARE
+        currentversion INTEGER = 37;
+        brokenversion  INTEGER = 36;
+        OLDversion     INTEGER;
+    BEGIN
+        SELECT MAX(version)
+        INTO OLDversion
+        FROM version;
+        IF (OLDversion <> (currentversion - 1))
+        THEN
+            RAISE EXCEPTION 'Expected schema version % found %', (currentversion - 1), OLDversion;
+        END IF;
+        INSERT INTO version VALUES (currentversion);
+        DELETE
+        FROM version
+        WHERE version <= brokenversion;
+    END
+$$;
+
+--
+-- content_codec 'marc-delta' in records_archive: content_bytes is the
+-- difference from the next newer version of the record. Software before V37
+-- cannot read those, archive-maintain --delta makes them
+--
+
+COMMIT TRANSACTION;
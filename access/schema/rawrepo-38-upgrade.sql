@@ -0,0 +1,55 @@
+--
+-- ENSURE ONLY UPGRADING PREVIOUS VERSION
+--
+\set ON_ERROR_STOP
+
+BEGIN TRANSACTION;
+
+DO
+$$
+    DECLARE
+        currentversion INTEGER = 38;
+        brokenversion  INTEGER = 36;
+        OLDversion     INTEGER;
+    BEGIN
+        SELECT MAX(version)
+        INTO OLDversion
+        FROM version;
+        IF (OLDversion <> (currentversion - 1))
+        THEN
+            RAISE EXCEPTION 'Expected schema version % found %', (currentversion - 1), OLDversion;
+        END IF;
+        INSERT INTO version VALUES (currentversion);
+        DELETE
+        FROM version
+        WHERE version <= brokenversion;
+    END
+$$;
+
+--
+-- sha-256 of the content, for skipping saves that change nothing. Existing
+-- rows have none, their first save is always written
+--
+ALTER TABLE records ADD COLUMN content_hash BYTEA;
+
+--
+-- Writers before V38 don't know content_hash, forget it when they change the
+-- content, so an unchanged save is never mistaken for one of theirs
+CREATE OR REPLACE FUNCTION records_content_hash_reset() RETURNS trigger
+    LANGUAGE plpgsql
+AS $$
+BEGIN
+    NEW.content_hash = NULL;
+    RETURN NEW;
+END;
+$$;
+
+CREATE TRIGGER records_content_hash_reset
+    BEFORE UPDATE
+    ON records
+    FOR EACH ROW
+    WHEN (OLD.content_hash IS NOT NULL AND OLD.content_hash IS NOT DISTINCT FROM NEW.content_hash AND
+          (OLD.content_bytes IS DISTINCT FROM NEW.content_bytes OR OLD.content IS DISTINCT FROM NEW.content))
+EXECUTE PROCEDURE records_content_hash_reset();
+
+COMMIT TRANSACTION;
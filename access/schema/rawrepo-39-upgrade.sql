@@ -0,0 +1,40 @@
+--
+-- ENSURE ONLY UPGRADING PREVIOUS VERSION
+--
+\set ON_ERROR_STOP
+
+BEGIN TRANSACTION;
+
+DO
+$$
+    DECLARE
+        currentversion INTEGER = 39;
+        brokenversion  INTEGER = 36;
+        OLDversion     INTEGER;
+    BEGIN
+        SELECT MAX(version)
+        INTO OLDversion
+        FROM version;
+        IF (OLDversion <> (currentversion - 1))
+        THEN
+            RAISE EXCEPTION 'Expected schema version % found %', (currentversion - 1), OLDversion;
+        END IF;
+        INSERT INTO version VALUES (currentversion);
+        DELETE
+        FROM version
+        WHERE version <= brokenversion;
+    END
+$$;
+
+--
+-- Authority caches drop a record, when a new version of it is saved. The
+-- notification is the one relation caches listen for, on the same channel
+--
+CREATE TRIGGER records_authority_notify
+    AFTER UPDATE
+    ON records
+    FOR EACH ROW
+    WHEN (OLD.agencyid = 870979 AND OLD.modified IS DISTINCT FROM NEW.modified)
+EXECUTE PROCEDURE notify_records_changed();
+
+COMMIT TRANSACTION;
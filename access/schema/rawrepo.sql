@@ -3,23 +3,12 @@ CREATE TABLE version (-- V2
                          warning TEXT DEFAULT NULL -- V7
 );
 -- Compatible versions
-INSERT INTO version VALUES (15);
-INSERT INTO version VALUES (16);
-INSERT INTO version VALUES (17);
-INSERT INTO version VALUES (18);
-INSERT INTO version VALUES (19);
-INSERT INTO version VALUES (21);
-INSERT INTO version VALUES (22);
-INSERT INTO version VALUES (23);
-INSERT INTO version VALUES (24);
-INSERT INTO version VALUES (25);
-INSERT INTO version VALUES (26);
-INSERT INTO version VALUES (27);
-INSERT INTO version VALUES (28);
-INSERT INTO version VALUES (29);
-INSERT INTO version VALUES (30);
-INSERT INTO version VALUES (31);
-INSERT INTO version VALUES (32);
+-- V33: versions before 33 cannot read binary content
+-- V34: versions before 34 cannot read dictionary compressed content
+-- V37: versions before 37 cannot read archived content stored as deltas
+INSERT INTO version VALUES (37);
+INSERT INTO version VALUES (38);
+INSERT INTO version VALUES (39);
 
 CREATE TABLE configurations (-- V23
                                 key VARCHAR PRIMARY KEY NOT NULL,
@@ -33,10 +22,13 @@ CREATE TABLE records (-- V2
                          agencyid              NUMERIC(6)               NOT NULL,
                          deleted               BOOLEAN                  NOT NULL DEFAULT FALSE, -- V3
                          mimetype              VARCHAR(128)             NOT NULL DEFAULT 'text/marcxchange', -- V3
-                         content               TEXT, -- base64 encoded
+                         content               TEXT, -- base64 encoded, legacy (before V33)
                          created               TIMESTAMP WITH TIME ZONE NOT NULL,
                          modified              TIMESTAMP WITH TIME ZONE NOT NULL,
                          trackingId            VARCHAR(256)             NOT NULL DEFAULT '',
+                         content_bytes         BYTEA, -- V33
+                         content_codec         VARCHAR(32), -- V33
+                         content_hash          BYTEA, -- V38: sha-256 of the content, set by the dao
                          CONSTRAINT records_pk PRIMARY KEY (bibliographicrecordid, agencyid)
 );
 
@@ -50,27 +42,105 @@ CREATE TABLE records_archive (-- V2
                                  agencyid              NUMERIC(6)               NOT NULL,
                                  deleted               BOOLEAN                  NOT NULL DEFAULT FALSE, -- V3
                                  mimetype              VARCHAR(128)             NOT NULL DEFAULT 'text/marcxchange', -- V3
-                                 content               TEXT, -- base64 encoded
+                                 content               TEXT, -- base64 encoded, legacy (before V33)
                                  created               TIMESTAMP WITH TIME ZONE NOT NULL,
                                  modified              TIMESTAMP WITH TIME ZONE NOT NULL,
                                  trackingId            VARCHAR(256)             NOT NULL DEFAULT '',
+                                 content_bytes         BYTEA, -- V33
+                                 content_codec         VARCHAR(32), -- V33, V37: 'marc-delta' relative to the next newer version
                                  CONSTRAINT records_archive_pkey PRIMARY KEY (bibliographicrecordid, agencyid, modified)
-);
+) PARTITION BY RANGE (modified); -- V36
 -- Primary key is the same as the records table plus 'modified'.
+-- It is also the index for looking up records in archive (V36)
+
+--
+-- records_archive is partitioned by month of 'modified' (V36)
+-- A version is archived with its own 'modified', so updating a record, that
+-- hasn't been changed for years, archives into an old partition.
+-- Partitions are made ahead of time by archive-maintain, versions outside
+-- them end up in the default partition
+CREATE TABLE records_archive_default PARTITION OF records_archive DEFAULT; -- V36
+
+--
+-- Add a partition of records_archive, moving rows in its range from the
+-- default partition
+CREATE OR REPLACE FUNCTION records_archive_add_partition(name_ TEXT, from_ TIMESTAMP WITH TIME ZONE, to_ TIMESTAMP WITH TIME ZONE) RETURNS BOOLEAN
+    LANGUAGE plpgsql
+AS $$ -- V36
+BEGIN
+    IF to_regclass(name_) IS NOT NULL THEN
+        RETURN FALSE;
+    END IF;
+    BEGIN
+        IF EXISTS(SELECT 1 FROM records_archive_default WHERE modified >= from_ AND modified < to_) THEN
+            ALTER TABLE records_archive DETACH PARTITION records_archive_default;
+            EXECUTE format('CREATE TABLE %I PARTITION OF records_archive FOR VALUES FROM (%L) TO (%L)', name_, from_, to_);
+            INSERT INTO records_archive SELECT * FROM records_archive_default WHERE modified >= from_ AND modified < to_;
+            DELETE FROM records_archive_default WHERE modified >= from_ AND modified < to_;
+            ALTER TABLE records_archive ATTACH PARTITION records_archive_default DEFAULT;
+        ELSE
+            EXECUTE format('CREATE TABLE %I PARTITION OF records_archive FOR VALUES FROM (%L) TO (%L)', name_, from_, to_);
+        END IF;
+    EXCEPTION
+        -- The range is (partly) covered by another partition, like
+        -- records_archive_legacy in the month of the V36 upgrade
+        WHEN invalid_object_definition THEN
+            RETURN FALSE;
+    END;
+    EXECUTE format('ALTER TABLE %I ALTER COLUMN content_bytes SET STORAGE EXTERNAL', name_);
+    RETURN TRUE;
+END;
+$$;
+
+--
+-- Add the partition records_archive_YYYYMM for the month (UTC) of month_
+CREATE OR REPLACE FUNCTION records_archive_add_month(month_ TIMESTAMP WITH TIME ZONE) RETURNS BOOLEAN
+    LANGUAGE sql
+AS $$ -- V36
+SELECT records_archive_add_partition('records_archive_' || to_char(date_trunc('month', month_ AT TIME ZONE 'UTC'), 'YYYYMM'),
+                                     date_trunc('month', month_ AT TIME ZONE 'UTC') AT TIME ZONE 'UTC',
+                                     (date_trunc('month', month_ AT TIME ZONE 'UTC') + INTERVAL '1 month') AT TIME ZONE 'UTC');
+$$;
+
+SELECT records_archive_add_month(now() + n * INTERVAL '1 month')
+FROM generate_series(0, 3) AS n; -- V36
 
 --
--- index for looking up records in archive
-CREATE INDEX records_archive_id
-    ON records_archive (bibliographicrecordid, agencyid);
-CREATE INDEX records_archive_modified
-    ON records_archive (modified);
+-- How long archived versions are kept, by agency (V36)
+-- A version is removed when it has been replaced for longer than 'keep'.
+-- Agencies not listed use configurations 'records_archive_retention', if set.
+-- Otherwise versions are kept forever
+CREATE TABLE records_archive_retention (-- V36
+                                           agencyid NUMERIC(6) PRIMARY KEY NOT NULL,
+                                           keep     INTERVAL               NOT NULL
+);
+
+-- content_bytes is compressed by the client (see content_codec), don't let TOAST try again
+ALTER TABLE records ALTER COLUMN content_bytes SET STORAGE EXTERNAL; -- V33
+ALTER TABLE records_archive ALTER COLUMN content_bytes SET STORAGE EXTERNAL; -- V33
+
+--
+-- Preset dictionaries for content compression, trained per mimetype
+-- content_codec 'deflate-dict:<id>' refers to a dictionary here, so
+-- dictionaries must never be deleted or changed
+CREATE TABLE content_dictionaries (-- V34
+                                      id         SERIAL                   NOT NULL PRIMARY KEY,
+                                      mimetype   VARCHAR(128)             NOT NULL,
+                                      dictionary BYTEA                    NOT NULL,
+                                      active     BOOLEAN                  NOT NULL DEFAULT FALSE,
+                                      created    TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT now()
+);
+
+-- Only one dictionary is used for compressing a mimetype
+CREATE UNIQUE INDEX content_dictionaries_active
+    ON content_dictionaries (mimetype) WHERE active; -- V34
 
 CREATE OR REPLACE FUNCTION update_records_archive() RETURNS trigger
     LANGUAGE plpgsql
-AS $$ -- V23
+AS $$ -- V23, V33
 BEGIN
-    INSERT INTO records_archive (bibliographicrecordid, agencyid, deleted, mimetype, content, created, modified, trackingId)
-    VALUES (OLD.bibliographicrecordid, OLD.agencyid, OLD.deleted, OLD.mimetype, OLD.content, OLD.created, OLD.modified,
+    INSERT INTO records_archive (bibliographicrecordid, agencyid, deleted, mimetype, content, content_bytes, content_codec, created, modified, trackingId)
+    VALUES (OLD.bibliographicrecordid, OLD.agencyid, OLD.deleted, OLD.mimetype, OLD.content, OLD.content_bytes, OLD.content_codec, OLD.created, OLD.modified,
             OLD.trackingId);
     RETURN NEW;
 END;
@@ -78,24 +148,59 @@ $$;
 
 
 CREATE OR REPLACE FUNCTION delete_records_archive()
-    RETURNS TRIGGER AS $$ -- V23
+    RETURNS TRIGGER AS $$ -- V23, V33
 BEGIN
-    INSERT INTO records_archive (bibliographicrecordid, agencyid, deleted, mimetype, content, created, modified, trackingId)
-    VALUES (OLD.bibliographicrecordid, OLD.agencyid, OLD.deleted, OLD.mimetype, OLD.content, OLD.created, OLD.modified,
+    INSERT INTO records_archive (bibliographicrecordid, agencyid, deleted, mimetype, content, content_bytes, content_codec, created, modified, trackingId)
+    VALUES (OLD.bibliographicrecordid, OLD.agencyid, OLD.deleted, OLD.mimetype, OLD.content, OLD.content_bytes, OLD.content_codec, OLD.created, OLD.modified,
             OLD.trackingId);
     RETURN OLD;
 END;
 $$
     LANGUAGE plpgsql;
 
+--
+-- Moving content from the legacy base64 column to content_bytes (V33) is not
+-- a new version of the record, and should not be archived
+CREATE OR REPLACE FUNCTION content_migrated(old_ records, new_ records) RETURNS BOOLEAN
+    LANGUAGE sql
+    IMMUTABLE
+AS $$ -- V33
+SELECT old_.content IS NOT NULL AND old_.content_bytes IS NULL AND
+       new_.content IS NULL AND new_.content_bytes IS NOT NULL AND
+       old_.deleted = new_.deleted AND old_.mimetype = new_.mimetype AND
+       old_.created = new_.created AND old_.modified = new_.modified AND
+       old_.trackingId = new_.trackingId;
+$$;
+
 CREATE TRIGGER records_update_trig_archive
-    -- V23
+    -- V23, V33
     AFTER UPDATE
     ON records
     FOR EACH ROW
-    WHEN (OLD.* IS DISTINCT FROM NEW.*)
+    WHEN (OLD.* IS DISTINCT FROM NEW.* AND NOT content_migrated(OLD, NEW))
 EXECUTE PROCEDURE update_records_archive();
 
+--
+-- Writers before V38 don't know content_hash, forget it when they change the
+-- content, so an unchanged save is never mistaken for one of theirs
+CREATE OR REPLACE FUNCTION records_content_hash_reset() RETURNS trigger
+    LANGUAGE plpgsql
+AS $$ -- V38
+BEGIN
+    NEW.content_hash = NULL;
+    RETURN NEW;
+END;
+$$;
+
+CREATE TRIGGER records_content_hash_reset
+    -- V38
+    BEFORE UPDATE
+    ON records
+    FOR EACH ROW
+    WHEN (OLD.content_hash IS NOT NULL AND OLD.content_hash IS NOT DISTINCT FROM NEW.content_hash AND
+          (OLD.content_bytes IS DISTINCT FROM NEW.content_bytes OR OLD.content IS DISTINCT FROM NEW.content))
+EXECUTE PROCEDURE records_content_hash_reset();
+
 CREATE TRIGGER records_delete_trig_archive
     -- V23
     AFTER DELETE
@@ -226,6 +331,67 @@ EXECUTE PROCEDURE relation_immutable_false();
 CREATE INDEX relations_reverse
     ON relations (refer_bibliographicrecordid, refer_agencyid);
 
+--
+-- Notify relation caches about changes, payload is agencyid:bibliographicrecordid
+-- Notifications are sent at commit, and duplicates within a transaction are
+-- sent only once
+CREATE OR REPLACE FUNCTION notify_relations_changed() RETURNS trigger
+    LANGUAGE plpgsql
+AS $$ -- V35
+BEGIN
+    IF TG_OP <> 'INSERT' THEN
+        PERFORM pg_notify('rawrepo_relations', OLD.agencyid || ':' || OLD.bibliographicrecordid);
+        PERFORM pg_notify('rawrepo_relations', OLD.refer_agencyid || ':' || OLD.refer_bibliographicrecordid);
+    END IF;
+    IF TG_OP <> 'DELETE' THEN
+        PERFORM pg_notify('rawrepo_relations', NEW.agencyid || ':' || NEW.bibliographicrecordid);
+        PERFORM pg_notify('rawrepo_relations', NEW.refer_agencyid || ':' || NEW.refer_bibliographicrecordid);
+    END IF;
+    RETURN NULL;
+END;
+$$;
+
+CREATE TRIGGER relations_notify
+    -- V35
+    AFTER INSERT OR UPDATE OR DELETE
+    ON relations
+    FOR EACH ROW
+EXECUTE PROCEDURE notify_relations_changed();
+
+CREATE OR REPLACE FUNCTION notify_records_changed() RETURNS trigger
+    LANGUAGE plpgsql
+AS $$ -- V35
+BEGIN
+    PERFORM pg_notify('rawrepo_relations', OLD.agencyid || ':' || OLD.bibliographicrecordid);
+    RETURN NULL;
+END;
+$$;
+
+-- Only the mimetype is cached, and only for existing records
+CREATE TRIGGER records_update_notify
+    -- V35
+    AFTER UPDATE
+    ON records
+    FOR EACH ROW
+    WHEN (OLD.mimetype IS DISTINCT FROM NEW.mimetype)
+EXECUTE PROCEDURE notify_records_changed();
+
+CREATE TRIGGER records_delete_notify
+    -- V35
+    AFTER DELETE
+    ON records
+    FOR EACH ROW
+EXECUTE PROCEDURE notify_records_changed();
+
+-- Authority caches drop a record, when a new version of it is saved
+CREATE TRIGGER records_authority_notify
+    -- V39
+    AFTER UPDATE
+    ON records
+    FOR EACH ROW
+    WHEN (OLD.agencyid = 870979 AND OLD.modified IS DISTINCT FROM NEW.modified)
+EXECUTE PROCEDURE notify_records_changed();
+
 --
 -- QUEUE complex
 --
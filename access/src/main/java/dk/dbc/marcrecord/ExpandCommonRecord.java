@@ -31,7 +31,7 @@ public class ExpandCommonRecord {
         }
 
         final byte[] content = ExpandCommonMarcRecord.expandRecord(expandableRecord.getContent(), authorityContent, keepAutFields);
-        expandableRecord.setContent(content);
+        expandableRecord.takeContent(content);
     }
 
 
@@ -0,0 +1,129 @@
+/*
+ * dbc-rawrepo-access
+ * Copyright (C) 2015 Dansk Bibliotekscenter a/s, Tempovej 7-11, DK-2750 Ballerup,
+ * Denmark. CVR: 15149043
+ *
+ * This file is part of dbc-rawrepo-access.
+ *
+ * dbc-rawrepo-access is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-rawrepo-access is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dbc-rawrepo-access.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.rawrepo;
+
+import java.util.Arrays;
+
+/**
+ * Set of agency ids, as a sorted int array
+ * <p>
+ * Used by the relation traversal instead of {@code Set<Integer>}, the sets
+ * are small, and there are many of them. Iterate using {@link #size()} and
+ * {@link #get(int)}, in ascending order. Adding while iterating is allowed
+ * as long as the loop reads size() each time, elements may then be visited
+ * twice or not at all.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+final class AgencySet {
+
+    private int[] agencies;
+    private int size;
+
+    AgencySet() {
+        this.agencies = new int[8];
+        this.size = 0;
+    }
+
+    AgencySet(AgencySet other) {
+        this.agencies = Arrays.copyOf(other.agencies, Math.max(other.size, 8));
+        this.size = other.size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return agencies[index];
+    }
+
+    boolean contains(int agencyId) {
+        return Arrays.binarySearch(agencies, 0, size, agencyId) >= 0;
+    }
+
+    /**
+     * Add an agency
+     *
+     * @param agencyId agency
+     * @return if it was added (not already present)
+     */
+    boolean add(int agencyId) {
+        int pos = Arrays.binarySearch(agencies, 0, size, agencyId);
+        if (pos >= 0) {
+            return false;
+        }
+        pos = -pos - 1;
+        if (size == agencies.length) {
+            agencies = Arrays.copyOf(agencies, size * 2);
+        }
+        System.arraycopy(agencies, pos, agencies, pos + 1, size - pos);
+        agencies[pos] = agencyId;
+        size++;
+        return true;
+    }
+
+    /**
+     * Remove the agency at a position
+     *
+     * @param index position in the set
+     */
+    void removeAt(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        System.arraycopy(agencies, index + 1, agencies, index, size - index - 1);
+        size--;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final AgencySet other = (AgencySet) obj;
+        return Arrays.equals(agencies, 0, size, other.agencies, 0, other.size);
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 1;
+        for (int i = 0; i < size; i++) {
+            hash = 31 * hash + agencies[i];
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(Arrays.copyOf(agencies, size));
+    }
+}
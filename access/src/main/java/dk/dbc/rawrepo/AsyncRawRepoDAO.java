@@ -0,0 +1,327 @@
+/*
+ * dbc-rawrepo-access
+ * Copyright (C) 2015 Dansk Bibliotekscenter a/s, Tempovej 7-11, DK-2750 Ballerup,
+ * Denmark. CVR: 15149043
+ *
+ * This file is part of dbc-rawrepo-access.
+ *
+ * dbc-rawrepo-access is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-rawrepo-access is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dbc-rawrepo-access.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.rawrepo;
+
+import dk.dbc.marcxmerge.MarcXMerger;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
+
+/**
+ * Non blocking access to a rawrepo
+ * <p>
+ * Every call runs on its own connection from the data source, with its own
+ * dao, so independent lookups run concurrently. At most maxConcurrency calls
+ * run at a time, the rest wait in line without holding a thread or a
+ * connection.
+ * <p>
+ * Futures complete exceptionally with the exception the dao threw. Calls
+ * that cannot run, because the executor rejects them or this is closed,
+ * complete exceptionally with a {@link RejectedExecutionException}.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class AsyncRawRepoDAO implements AutoCloseable {
+
+    private static final XLogger logger = XLoggerFactory.getXLogger(AsyncRawRepoDAO.class);
+
+    /**
+     * A call to a dao
+     *
+     * @param <T> type of result
+     */
+    @FunctionalInterface
+    public interface DaoCall<T> {
+
+        T call(RawRepoDAO dao) throws Exception;
+    }
+
+    @FunctionalInterface
+    interface DaoFactory {
+
+        RawRepoDAO open(Connection connection) throws RawRepoException;
+    }
+
+    private final DataSource dataSource;
+    private final DaoFactory daoFactory;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final int maxConcurrency;
+
+    private final ArrayDeque<Task<?>> waiting = new ArrayDeque<>();
+    private int running;
+    private boolean closed;
+
+    /**
+     * Run calls on a pool of maxConcurrency threads, owned by this
+     *
+     * @param dataSource     where to get connections
+     * @param maxConcurrency max number of calls (and connections) at a time
+     * @param configure      set relation hints, caches etc. on the builder
+     *                       of each dao
+     */
+    public AsyncRawRepoDAO(DataSource dataSource, int maxConcurrency, UnaryOperator<RawRepoDAO.Builder> configure) {
+        this(dataSource, maxConcurrency, daoFactory(configure), Executors.newFixedThreadPool(maxConcurrency, daemonThreads()), true);
+    }
+
+    /**
+     * Run calls on an executor, like a managed executor service
+     *
+     * @param dataSource     where to get connections
+     * @param maxConcurrency max number of calls (and connections) at a time
+     * @param configure      set relation hints, caches etc. on the builder
+     *                       of each dao
+     * @param executor       where to run calls, it isn't shut down on close
+     */
+    public AsyncRawRepoDAO(DataSource dataSource, int maxConcurrency, UnaryOperator<RawRepoDAO.Builder> configure, ExecutorService executor) {
+        this(dataSource, maxConcurrency, daoFactory(configure), executor, false);
+    }
+
+    AsyncRawRepoDAO(DataSource dataSource, int maxConcurrency, DaoFactory daoFactory, ExecutorService executor, boolean ownsExecutor) {
+        if (maxConcurrency <= 0) {
+            throw new IllegalArgumentException("maxConcurrency should be positive");
+        }
+        this.dataSource = dataSource;
+        this.maxConcurrency = maxConcurrency;
+        this.daoFactory = daoFactory;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+    }
+
+    /**
+     * Fail the calls that are waiting, and stop taking new ones
+     * <p>
+     * Calls that are running aren't interrupted
+     */
+    @Override
+    public void close() {
+        List<Task<?>> failed;
+        synchronized (this) {
+            closed = true;
+            failed = drainWaiting();
+        }
+        fail(failed, new RejectedExecutionException("Async dao is closed"));
+        if (ownsExecutor) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Run a call on a dao of its own
+     *
+     * @param <T>  type of result
+     * @param call what to do
+     * @return future result of the call
+     */
+    public <T> CompletableFuture<T> submit(DaoCall<T> call) {
+        Task<T> task = new Task<>(call);
+        synchronized (this) {
+            if (closed) {
+                task.future.completeExceptionally(new RejectedExecutionException("Async dao is closed"));
+                return task.future;
+            }
+            if (running >= maxConcurrency) {
+                waiting.add(task);
+                return task.future;
+            }
+            running++;
+        }
+        start(task);
+        return task.future;
+    }
+
+    private final class Task<T> implements Runnable {
+
+        private final DaoCall<T> call;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+
+        private Task(DaoCall<T> call) {
+            this.call = call;
+        }
+
+        @Override
+        public void run() {
+            try (Connection connection = dataSource.getConnection();
+                 RawRepoDAO dao = daoFactory.open(connection)) {
+                future.complete(call.call(dao));
+            } catch (Exception ex) {
+                logger.debug("Async dao call failed", ex);
+                future.completeExceptionally(ex);
+            } catch (Error ex) {
+                future.completeExceptionally(ex);
+                throw ex;
+            } finally {
+                next();
+            }
+        }
+    }
+
+    /**
+     * Start the next waiting task, in place of one that has ended
+     */
+    private void next() {
+        Task<?> task;
+        synchronized (this) {
+            task = waiting.poll();
+            if (task == null) {
+                running--;
+                return;
+            }
+        }
+        start(task);
+    }
+
+    /**
+     * Run a task in a slot that is counted as running
+     * <p>
+     * If the executor rejects it, like when it is shut down, the waiting
+     * tasks would be rejected too, so they all fail, and the slot is freed
+     */
+    private void start(Task<?> task) {
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException ex) {
+            logger.error("Cannot run async dao call: {}", ex.getMessage());
+            List<Task<?>> failed;
+            synchronized (this) {
+                running--;
+                failed = drainWaiting();
+            }
+            failed.add(0, task);
+            fail(failed, ex);
+        }
+    }
+
+    private List<Task<?>> drainWaiting() {
+        List<Task<?>> tasks = new ArrayList<>(waiting);
+        waiting.clear();
+        return tasks;
+    }
+
+    private static void fail(List<Task<?>> tasks, Throwable ex) {
+        for (Task<?> task : tasks) {
+            task.future.completeExceptionally(ex);
+        }
+    }
+
+    synchronized int getWaiting() {
+        return waiting.size();
+    }
+
+    public CompletableFuture<Record> fetchRecord(String bibliographicRecordId, int agencyId) {
+        return submit(dao -> dao.fetchRecord(bibliographicRecordId, agencyId));
+    }
+
+    public CompletableFuture<Map<RecordId, Record>> fetchRecords(Collection<RecordId> recordIds) {
+        return submit(dao -> dao.fetchRecords(recordIds));
+    }
+
+    /**
+     * Merge a record, see
+     * {@link RawRepoDAO#fetchMergedRecord(String, int, MarcXMerger, boolean)}
+     *
+     * @param bibliographicRecordId local id
+     * @param originalAgencyId      the requesting agency
+     * @param merger                marc merger, not used by anything else
+     *                              until the future completes
+     * @param fetchDeleted          allow fetching of deleted records
+     * @return future merged record
+     */
+    public CompletableFuture<Record> fetchMergedRecord(String bibliographicRecordId, int originalAgencyId, MarcXMerger merger, boolean fetchDeleted) {
+        return submit(dao -> dao.fetchMergedRecord(bibliographicRecordId, originalAgencyId, merger, fetchDeleted));
+    }
+
+    /**
+     * Merge many records concurrently
+     *
+     * @param recordIds    ids of the records, by the requesting agency
+     * @param mergers      makes a marc merger for each record
+     * @param fetchDeleted allow fetching of deleted records
+     * @return future map of id to merged record, in the order of recordIds,
+     *         fails if any of the records fails
+     */
+    public CompletableFuture<Map<RecordId, Record>> fetchMergedRecords(Collection<RecordId> recordIds, Supplier<MarcXMerger> mergers, boolean fetchDeleted) {
+        Map<RecordId, CompletableFuture<Record>> futures = new LinkedHashMap<>();
+        for (RecordId recordId : recordIds) {
+            futures.computeIfAbsent(recordId, id -> fetchMergedRecord(id.getBibliographicRecordId(), id.getAgencyId(), mergers.get(), fetchDeleted));
+        }
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture<?>[0]))
+                .thenApply(v -> {
+                    Map<RecordId, Record> result = new LinkedHashMap<>();
+                    futures.forEach((id, future) -> result.put(id, future.join()));
+                    return result;
+                });
+    }
+
+    public CompletableFuture<Map<String, Record>> fetchRecordCollectionExpanded(String bibliographicRecordId, int agencyId, MarcXMerger merger) {
+        return submit(dao -> dao.fetchRecordCollectionExpanded(bibliographicRecordId, agencyId, merger));
+    }
+
+    public CompletableFuture<Integer> agencyFor(String bibliographicRecordId, int originalAgencyId, boolean fetchDeleted) {
+        return submit(dao -> dao.agencyFor(bibliographicRecordId, originalAgencyId, fetchDeleted));
+    }
+
+    public CompletableFuture<Set<RecordId>> getRelationsParents(RecordId recordId) {
+        return submit(dao -> dao.getRelationsParents(recordId));
+    }
+
+    public CompletableFuture<Set<RecordId>> getRelationsChildren(RecordId recordId) {
+        return submit(dao -> dao.getRelationsChildren(recordId));
+    }
+
+    public CompletableFuture<Set<RecordId>> getRelationsSiblingsToMe(RecordId recordId) {
+        return submit(dao -> dao.getRelationsSiblingsToMe(recordId));
+    }
+
+    public CompletableFuture<Set<RecordId>> getRelationsSiblingsFromMe(RecordId recordId) {
+        return submit(dao -> dao.getRelationsSiblingsFromMe(recordId));
+    }
+
+    private static DaoFactory daoFactory(UnaryOperator<RawRepoDAO.Builder> configure) {
+        return connection -> configure.apply(RawRepoDAO.builder(connection)).build();
+    }
+
+    private static ThreadFactory daemonThreads() {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "rawrepo-async-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * dbc-rawrepo-access
+ * Copyright (C) 2015 Dansk Bibliotekscenter a/s, Tempovej 7-11, DK-2750 Ballerup,
+ * Denmark. CVR: 15149043
+ *
+ * This file is part of dbc-rawrepo-access.
+ *
+ * dbc-rawrepo-access is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-rawrepo-access is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dbc-rawrepo-access.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.rawrepo;
+
+import javax.sql.DataSource;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Process wide cache of authority (870979) records, for expanding records
+ * <p>
+ * Attach it to daos using {@link RawRepoDAO.Builder#authorityCache(AuthorityCache)}.
+ * A record is keyed by its id and modified time, and a dao looks up the
+ * modified time of the authority records it needs, before asking the cache.
+ * So an entry is never wrong, a modified record just isn't found.
+ * <p>
+ * Entries are evicted least recently used first, when there are more than
+ * maxEntries, or the size of the content exceeds maxBytes. When started with
+ * a data source, the cache listens for the same notifications as
+ * {@link RelationCache} (schema V39 sends them when an authority record is
+ * saved), and drops changed records right away.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class AuthorityCache implements AutoCloseable {
+
+    static final int AUTHORITY_AGENCY = 870979;
+
+    private static final class Entry {
+
+        private final boolean deleted;
+        private final String mimeType;
+        private final byte[] content;
+        private final Instant created;
+        private final Instant modified;
+        private final String trackingId;
+
+        private Entry(Record record) {
+            this.deleted = record.isDeleted();
+            this.mimeType = record.getMimeType();
+            this.content = RecordImpl.sharedContent(record);
+            this.created = record.getCreated();
+            this.modified = record.getModified();
+            this.trackingId = record.getTrackingId();
+        }
+
+        private Record toRecord(String bibliographicRecordId) {
+            return new RecordImpl(bibliographicRecordId, AUTHORITY_AGENCY, deleted, mimeType, content, created, modified, trackingId, false);
+        }
+    }
+
+    private final DataSource dataSource;
+    private final int maxEntries;
+    private final long maxBytes;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long invalidations;
+
+    private ChangeListener listener;
+
+    /**
+     * Create a cache, that doesn't listen for changes
+     *
+     * @param maxEntries max number of authority records
+     * @param maxBytes   max size of the content
+     */
+    public AuthorityCache(int maxEntries, long maxBytes) {
+        this(null, maxEntries, maxBytes);
+    }
+
+    /**
+     * Create a cache, call {@link #start()} to listen for changes
+     *
+     * @param dataSource where to listen for changes
+     * @param maxEntries max number of authority records
+     * @param maxBytes   max size of the content
+     */
+    public AuthorityCache(DataSource dataSource, int maxEntries, long maxBytes) {
+        if (maxEntries <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Cache size should be positive");
+        }
+        this.dataSource = dataSource;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Start listening for changes
+     *
+     * @return self
+     */
+    public synchronized AuthorityCache start() {
+        if (dataSource == null) {
+            throw new IllegalStateException("Authority cache has no data source to listen on");
+        }
+        if (listener != null) {
+            throw new IllegalStateException("Authority cache is already started");
+        }
+        listener = new ChangeListener(dataSource, "rawrepo-authority-cache", new ChangeListener.Handler() {
+            @Override
+            public void connected() {
+            }
+
+            @Override
+            public void disconnected() {
+            }
+
+            @Override
+            public void changed(RecordId recordId) {
+                if (recordId.getAgencyId() == AUTHORITY_AGENCY) {
+                    invalidate(recordId.getBibliographicRecordId());
+                }
+            }
+        });
+        listener.start();
+        return this;
+    }
+
+    /**
+     * Stop listening, and empty the cache
+     */
+    @Override
+    public void close() {
+        ChangeListener changeListener;
+        synchronized (this) {
+            changeListener = listener;
+        }
+        if (changeListener != null) {
+            changeListener.close();
+        }
+        synchronized (this) {
+            entries.clear();
+            bytes = 0;
+        }
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return number of lookups that found the record
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return number of lookups that didn't find the record, or found an
+     *         older version
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return number of records dropped, because they were changed
+     */
+    public synchronized long getInvalidations() {
+        return invalidations;
+    }
+
+    /**
+     * Fetch authority records into the cache ahead of use, like before
+     * dumping records that refer to them
+     *
+     * @param dao                    where to fetch them
+     * @param bibliographicRecordIds ids of the authority records
+     * @return number of records, that exist and have been cached
+     * @throws RawRepoException done at failure
+     */
+    public int prefetch(RawRepoDAO dao, Collection<String> bibliographicRecordIds) throws RawRepoException {
+        List<RecordId> recordIds = new ArrayList<>(bibliographicRecordIds.size());
+        for (String bibliographicRecordId : bibliographicRecordIds) {
+            recordIds.add(new RecordId(bibliographicRecordId, AUTHORITY_AGENCY));
+        }
+        int count = 0;
+        for (Record record : dao.fetchRecords(recordIds).values()) {
+            if (!record.isOriginal()) {
+                put(record);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Lookup an authority record
+     *
+     * @param bibliographicRecordId id of the authority record
+     * @param modified              the current modified time of it
+     * @return new record instance or null if that version isn't cached
+     */
+    Record get(String bibliographicRecordId, Instant modified) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(bibliographicRecordId);
+            if (entry != null && !entry.modified.equals(modified)) {
+                entry = null;
+            }
+            if (entry == null) {
+                misses++;
+            } else {
+                hits++;
+            }
+        }
+        return entry == null ? null : entry.toRecord(bibliographicRecordId);
+    }
+
+    /**
+     * Store an authority record, replacing any other version of it
+     *
+     * @param record an existing authority record
+     */
+    void put(Record record) {
+        Entry entry = new Entry(record);
+        synchronized (this) {
+            Entry old = entries.put(record.getId().getBibliographicRecordId(), entry);
+            if (old != null) {
+                bytes -= old.content.length;
+            }
+            bytes += entry.content.length;
+            Iterator<Entry> iterator = entries.values().iterator();
+            while ((entries.size() > maxEntries || bytes > maxBytes) && iterator.hasNext()) {
+                bytes -= iterator.next().content.length;
+                iterator.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop all versions of an authority record
+     *
+     * @param bibliographicRecordId id of the authority record
+     */
+    synchronized void invalidate(String bibliographicRecordId) {
+        Entry old = entries.remove(bibliographicRecordId);
+        if (old != null) {
+            bytes -= old.content.length;
+            invalidations++;
+        }
+    }
+
+    /**
+     * Get authority records through the cache
+     * <p>
+     * The modified times are looked up in one round-trip, and the records
+     * that aren't cached in that version are fetched in another
+     *
+     * @param dao                    where to fetch them
+     * @param bibliographicRecordIds ids of the authority records
+     * @return map of id to record, records that doesn't exist are empty
+     *         records
+     * @throws RawRepoException done at failure
+     */
+    Map<String, Record> fetch(RawRepoDAO dao, Collection<String> bibliographicRecordIds) throws RawRepoException {
+        Map<String, Record> result = new LinkedHashMap<>();
+        if (bibliographicRecordIds.isEmpty()) {
+            return result;
+        }
+        List<RecordId> recordIds = new ArrayList<>(bibliographicRecordIds.size());
+        for (String bibliographicRecordId : bibliographicRecordIds) {
+            recordIds.add(new RecordId(bibliographicRecordId, AUTHORITY_AGENCY));
+        }
+        Map<RecordId, Instant> modified = dao.getModifiedOfList(recordIds);
+        List<RecordId> missing = new ArrayList<>();
+        for (RecordId recordId : recordIds) {
+            Instant recordModified = modified.get(recordId);
+            Record record = recordModified == null ? null : get(recordId.getBibliographicRecordId(), recordModified);
+            if (record == null) {
+                missing.add(recordId);
+            }
+            result.put(recordId.getBibliographicRecordId(), record);
+        }
+        if (!missing.isEmpty()) {
+            for (Record record : dao.fetchRecords(missing).values()) {
+                if (!record.isOriginal()) {
+                    put(record);
+                }
+                result.put(record.getId().getBibliographicRecordId(), record);
+            }
+        }
+        return result;
+    }
+}
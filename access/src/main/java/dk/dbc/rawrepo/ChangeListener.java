@@ -0,0 +1,156 @@
+/*
+ * dbc-rawrepo-access
+ * Copyright (C) 2015 Dansk Bibliotekscenter a/s, Tempovej 7-11, DK-2750 Ballerup,
+ * Denmark. CVR: 15149043
+ *
+ * This file is part of dbc-rawrepo-access.
+ *
+ * dbc-rawrepo-access is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-rawrepo-access is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dbc-rawrepo-access.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.rawrepo;
+
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Listener thread for the record change notifications on
+ * {@link RelationCache#CHANNEL}
+ * <p>
+ * Holds a connection from the data source while it is running, and
+ * reconnects if the connection fails. Process wide caches use it to drop
+ * entries of changed records.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+final class ChangeListener implements AutoCloseable {
+
+    private static final XLogger logger = XLoggerFactory.getXLogger(ChangeListener.class);
+
+    private static final int POLL_MS = 1000;
+    private static final long RECONNECT_MS = 5000;
+
+    interface Handler {
+
+        /**
+         * Called when listening starts, changes before this are unknown
+         */
+        void connected();
+
+        /**
+         * Called when listening stops, changes after this are unknown
+         */
+        void disconnected();
+
+        /**
+         * Called for every notification
+         *
+         * @param recordId the record that has changed
+         */
+        void changed(RecordId recordId);
+    }
+
+    private final DataSource dataSource;
+    private final String name;
+    private final Handler handler;
+
+    private volatile boolean closed;
+    private Thread thread;
+
+    ChangeListener(DataSource dataSource, String name, Handler handler) {
+        this.dataSource = dataSource;
+        this.name = name;
+        this.handler = handler;
+    }
+
+    synchronized void start() {
+        if (thread != null) {
+            throw new IllegalStateException(name + " is already started");
+        }
+        thread = new Thread(this::listen, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stop listening, waiting a little for the thread to finish
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Thread listener;
+        synchronized (this) {
+            listener = thread;
+        }
+        if (listener != null) {
+            try {
+                listener.join(2L * POLL_MS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void listen() {
+        while (!closed) {
+            try (Connection connection = dataSource.getConnection()) {
+                try (Statement stmt = connection.createStatement()) {
+                    stmt.execute("LISTEN " + RelationCache.CHANNEL);
+                }
+                if (!connection.getAutoCommit()) {
+                    connection.commit();
+                }
+                PGConnection pgConnection = connection.unwrap(PGConnection.class);
+                handler.connected();
+                logger.info("{} is listening", name);
+                while (!closed) {
+                    PGNotification[] notifications = pgConnection.getNotifications(POLL_MS);
+                    if (notifications != null) {
+                        for (PGNotification notification : notifications) {
+                            changed(notification.getParameter());
+                        }
+                    }
+                }
+            } catch (SQLException | RuntimeException ex) {
+                logger.error("{} listener failed: {}", name, ex.getMessage());
+                logger.debug("{} listener failed", name, ex);
+            } finally {
+                handler.disconnected();
+            }
+            if (!closed) {
+                try {
+                    Thread.sleep(RECONNECT_MS);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void changed(String payload) {
+        int colon = payload.indexOf(':');
+        if (colon == -1) {
+            logger.warn("Unexpected {} notification: {}", name, payload);
+            return;
+        }
+        handler.changed(new RecordId(payload.substring(colon + 1), Integer.parseInt(payload.substring(0, colon))));
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * dbc-rawrepo-access
+ * Copyright (C) 2015 Dansk Bibliotekscenter a/s, Tempovej 7-11, DK-2750 Ballerup,
+ * Denmark. CVR: 15149043
+ *
+ * This file is part of dbc-rawrepo-access.
+ *
+ * dbc-rawrepo-access is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-rawrepo-access is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dbc-rawrepo-access.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.rawrepo;
+
+/**
+ * RecordId with a cached hash code, for the ids the dao interns in its
+ * relation caches
+ * <p>
+ * Equal to a {@link RecordId} with the same values, and with the same hash
+ * code, so it can be used to look up plain ids and the other way around.
+ * The bibliographic record id string is interned too, the same ids show up
+ * under many agencies. Instances are never changed after construction.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+final class CompactRecordId extends RecordId {
+
+    private final int hash;
+
+    CompactRecordId(RecordId recordId) {
+        super(recordId.getBibliographicRecordId().intern(), recordId.getAgencyId());
+        this.hash = super.hashCode();
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (obj instanceof CompactRecordId && hash != ((CompactRecordId) obj).hash) {
+            return false;
+        }
+        return super.equals(obj);
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * dbc-rawrepo-access
+ * Copyright (C) 2015 Dansk Bibliotekscenter a/s, Tempovej 7-11, DK-2750 Ballerup,
+ * Denmark. CVR: 15149043
+ *
+ * This file is part of dbc-rawrepo-access.
+ *
+ * dbc-rawrepo-access is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-rawrepo-access is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dbc-rawrepo-access.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.rawrepo;
+
+/**
+ * Encoding of record content in the content_bytes column
+ * <p>
+ * The id of the codec is stored in content_codec alongside the data, so a row
+ * can always be decoded by the codec that encoded it.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public interface ContentCodec {
+
+    /**
+     * Id stored in content_codec
+     *
+     * @return codec id
+     */
+    String getId();
+
+    /**
+     * Encode content
+     *
+     * @param content record content
+     * @return encoded data
+     */
+    byte[] encode(byte[] content);
+
+    /**
+     * Decode data encoded by this codec
+     *
+     * @param data encoded data
+     * @return record content
+     * @throws RawRepoException if data is corrupt
+     */
+    byte[] decode(byte[] data) throws RawRepoException;
+}
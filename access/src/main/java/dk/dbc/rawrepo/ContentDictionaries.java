@@ -0,0 +1,353 @@
+/*
+ * dbc-rawrepo-access
+ * Copyright (C) 2015 Dansk Bibliotekscenter a/s, Tempovej 7-11, DK-2750 Ballerup,
+ * Denmark. CVR: 15149043
+ *
+ * This file is part of dbc-rawrepo-access.
+ *
+ * dbc-rawrepo-access is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-rawrepo-access is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dbc-rawrepo-access.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.rawrepo;
+
+import org.perf4j.StopWatch;
+import org.perf4j.log4j.Log4JStopWatch;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Trained content dictionaries (schema V34)
+ * <p>
+ * Each mimetype can have one active dictionary, which is used when saving
+ * records. Dictionaries are never changed, so a dictionary is cached by id
+ * for the lifetime of the process. The set of active dictionaries is
+ * reloaded every {@value #ACTIVE_REFRESH_MS}ms, so a rotation is picked up
+ * by all running services without restarting them.
+ * <p>
+ * Dictionaries must not be deleted while there are rows encoded with them.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class ContentDictionaries {
+
+    private static final XLogger logger = XLoggerFactory.getXLogger(ContentDictionaries.class);
+    private static final long TIMER_THRESHOLD_MS = 10;
+
+    static final long ACTIVE_REFRESH_MS = 5 * 60 * 1000L;
+
+    private static final String SELECT_DICTIONARY = "SELECT dictionary FROM content_dictionaries WHERE id=?";
+    private static final String SELECT_ACTIVE_DICTIONARIES = "SELECT id, mimetype, dictionary FROM content_dictionaries WHERE active";
+    private static final String SELECT_ALL_DICTIONARIES = "SELECT id, mimetype, length(dictionary), active, created FROM content_dictionaries ORDER BY id";
+    private static final String INSERT_DICTIONARY = "INSERT INTO content_dictionaries(mimetype, dictionary) VALUES(?, ?) RETURNING id";
+    private static final String SELECT_DICTIONARY_MIMETYPE = "SELECT mimetype FROM content_dictionaries WHERE id=?";
+    private static final String DEACTIVATE_DICTIONARIES = "UPDATE content_dictionaries SET active=FALSE WHERE active AND mimetype=?";
+    private static final String ACTIVATE_DICTIONARY = "UPDATE content_dictionaries SET active=TRUE WHERE id=?";
+
+    private static final ConcurrentMap<String, ContentCodec> codecs = new ConcurrentHashMap<>();
+    private static volatile Map<String, ContentCodec> activeCodecs = null;
+    private static volatile long activeLoaded = 0;
+
+    private final Connection connection;
+
+    /**
+     * Description of a stored dictionary
+     */
+    public static class Entry {
+
+        private final int id;
+        private final String mimeType;
+        private final int size;
+        private final boolean active;
+        private final Instant created;
+
+        Entry(int id, String mimeType, int size, boolean active, Instant created) {
+            this.id = id;
+            this.mimeType = mimeType;
+            this.size = size;
+            this.active = active;
+            this.created = created;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        public int getSize() {
+            return size;
+        }
+
+        public boolean isActive() {
+            return active;
+        }
+
+        public Instant getCreated() {
+            return created;
+        }
+
+        @Override
+        public String toString() {
+            return id + ": " + mimeType + " " + size + " bytes, created " + created + (active ? " (active)" : "");
+        }
+    }
+
+    public ContentDictionaries(Connection connection) {
+        this.connection = connection;
+    }
+
+    /**
+     * Codec id stored in content_codec for content encoded with a dictionary
+     *
+     * @param dictionaryId id of dictionary
+     * @return codec id
+     */
+    public static String codecId(int dictionaryId) {
+        return RecordContentCodec.DEFLATE_DICTIONARY_PREFIX + dictionaryId;
+    }
+
+    /**
+     * Encode content using the active dictionary of the mimetype (if any)
+     *
+     * @param content  record content
+     * @param mimeType record mimetype
+     * @return encoded content or null if content is null
+     * @throws RawRepoException if the active dictionaries cannot be loaded
+     */
+    public RecordContentCodec.Encoded encode(byte[] content, String mimeType) throws RawRepoException {
+        ContentCodec codec = activeCodec(mimeType);
+        if (codec == null) {
+            return RecordContentCodec.encode(content);
+        }
+        return RecordContentCodec.encode(content, codec);
+    }
+
+    /**
+     * Decode content from a row, that may or may not have been migrated
+     *
+     * @param base64Content legacy content column
+     * @param data          content_bytes column
+     * @param codecId       content_codec column
+     * @return record content
+     * @throws RawRepoException if the codec is unknown or data is corrupt
+     */
+    public byte[] decode(String base64Content, byte[] data, String codecId) throws RawRepoException {
+        if (data == null) {
+            return RecordContentCodec.decodeLegacy(base64Content);
+        }
+        if (codecId != null && codecId.startsWith(RecordContentCodec.DEFLATE_DICTIONARY_PREFIX)) {
+            return codec(codecId).decode(data);
+        }
+        return RecordContentCodec.decode(codecId, data);
+    }
+
+    /**
+     * Find the active dictionary codec for a mimetype
+     *
+     * @param mimeType record mimetype
+     * @return codec or null if the mimetype has no active dictionary
+     * @throws RawRepoException if the active dictionaries cannot be loaded
+     */
+    public ContentCodec activeCodec(String mimeType) throws RawRepoException {
+        Map<String, ContentCodec> active = activeCodecs;
+        long now = System.currentTimeMillis();
+        if (active == null || now - activeLoaded > ACTIVE_REFRESH_MS) {
+            active = loadActiveCodecs();
+            activeCodecs = active;
+            activeLoaded = now;
+        }
+        return active.get(mimeType);
+    }
+
+    ContentCodec codec(String codecId) throws RawRepoException {
+        ContentCodec codec = codecs.get(codecId);
+        if (codec != null) {
+            return codec;
+        }
+        int dictionaryId;
+        try {
+            dictionaryId = Integer.parseInt(codecId.substring(RecordContentCodec.DEFLATE_DICTIONARY_PREFIX.length()));
+        } catch (NumberFormatException ex) {
+            throw new RawRepoException("Unknown content codec: " + codecId);
+        }
+        final StopWatch watch = new Log4JStopWatch().setTimeThreshold(TIMER_THRESHOLD_MS);
+        try (PreparedStatement stmt = connection.prepareStatement(SELECT_DICTIONARY)) {
+            stmt.setInt(1, dictionaryId);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                if (resultSet.next()) {
+                    codec = new DeflateContentCodec(codecId, resultSet.getBytes(1));
+                    ContentCodec existing = codecs.putIfAbsent(codecId, codec);
+                    return existing == null ? codec : existing;
+                }
+            }
+        } catch (SQLException ex) {
+            logger.error("Error accessing database", ex);
+            throw new RawRepoException("Error fetching content dictionary", ex);
+        } finally {
+            watch.stop(String.format("rawrepo.query.SELECT_DICTIONARY(%s)", dictionaryId));
+        }
+        throw new RawRepoException("Unknown content dictionary: " + codecId);
+    }
+
+    private Map<String, ContentCodec> loadActiveCodecs() throws RawRepoException {
+        final StopWatch watch = new Log4JStopWatch().setTimeThreshold(TIMER_THRESHOLD_MS);
+        try (PreparedStatement stmt = connection.prepareStatement(SELECT_ACTIVE_DICTIONARIES)) {
+            HashMap<String, ContentCodec> active = new HashMap<>();
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                while (resultSet.next()) {
+                    String codecId = codecId(resultSet.getInt(1));
+                    ContentCodec codec = codecs.get(codecId);
+                    if (codec == null) {
+                        codec = new DeflateContentCodec(codecId, resultSet.getBytes(3));
+                        ContentCodec existing = codecs.putIfAbsent(codecId, codec);
+                        if (existing != null) {
+                            codec = existing;
+                        }
+                    }
+                    active.put(resultSet.getString(2), codec);
+                }
+            }
+            return Collections.unmodifiableMap(active);
+        } catch (SQLException ex) {
+            logger.error("Error accessing database", ex);
+            throw new RawRepoException("Error fetching active content dictionaries", ex);
+        } finally {
+            watch.stop("rawrepo.query.SELECT_ACTIVE_DICTIONARIES");
+        }
+    }
+
+    /**
+     * Store a new (inactive) dictionary
+     *
+     * @param mimeType   mimetype the dictionary is trained for
+     * @param dictionary the dictionary
+     * @return id of the dictionary
+     * @throws RawRepoException if the database fails
+     */
+    public int addDictionary(String mimeType, byte[] dictionary) throws RawRepoException {
+        if (dictionary.length > DeflateContentCodec.MAX_DICTIONARY_SIZE) {
+            throw new RawRepoException("Dictionary too large, max " + DeflateContentCodec.MAX_DICTIONARY_SIZE + " bytes");
+        }
+        try (PreparedStatement stmt = connection.prepareStatement(INSERT_DICTIONARY)) {
+            int pos = 1;
+            stmt.setString(pos++, mimeType);
+            stmt.setBytes(pos, dictionary);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                resultSet.next();
+                return resultSet.getInt(1);
+            }
+        } catch (SQLException ex) {
+            logger.error("Error accessing database", ex);
+            throw new RawRepoException("Error storing content dictionary", ex);
+        }
+    }
+
+    /**
+     * Make a dictionary the active one for its mimetype
+     * <p>
+     * Other processes pick up the change within {@value #ACTIVE_REFRESH_MS}ms
+     *
+     * @param dictionaryId id of dictionary
+     * @throws RawRepoException if the dictionary doesn't exist or the
+     *                          database fails
+     */
+    public void activate(int dictionaryId) throws RawRepoException {
+        try {
+            String mimeType;
+            try (PreparedStatement stmt = connection.prepareStatement(SELECT_DICTIONARY_MIMETYPE)) {
+                stmt.setInt(1, dictionaryId);
+                try (ResultSet resultSet = stmt.executeQuery()) {
+                    if (!resultSet.next()) {
+                        throw new RawRepoExceptionRecordNotFound("No such content dictionary: " + dictionaryId);
+                    }
+                    mimeType = resultSet.getString(1);
+                }
+            }
+            deactivateAll(mimeType);
+            try (PreparedStatement stmt = connection.prepareStatement(ACTIVATE_DICTIONARY)) {
+                stmt.setInt(1, dictionaryId);
+                stmt.executeUpdate();
+            }
+        } catch (SQLException ex) {
+            logger.error("Error accessing database", ex);
+            throw new RawRepoException("Error activating content dictionary", ex);
+        }
+    }
+
+    /**
+     * Stop using dictionaries for a mimetype
+     *
+     * @param mimeType mimetype
+     * @throws RawRepoException if the database fails
+     */
+    public void deactivate(String mimeType) throws RawRepoException {
+        try {
+            deactivateAll(mimeType);
+        } catch (SQLException ex) {
+            logger.error("Error accessing database", ex);
+            throw new RawRepoException("Error deactivating content dictionary", ex);
+        }
+    }
+
+    private void deactivateAll(String mimeType) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement(DEACTIVATE_DICTIONARIES)) {
+            stmt.setString(1, mimeType);
+            stmt.executeUpdate();
+        }
+        activeCodecs = null;
+    }
+
+    /**
+     * List all stored dictionaries
+     *
+     * @return list of dictionaries
+     * @throws RawRepoException if the database fails
+     */
+    public List<Entry> list() throws RawRepoException {
+        try (PreparedStatement stmt = connection.prepareStatement(SELECT_ALL_DICTIONARIES);
+             ResultSet resultSet = stmt.executeQuery()) {
+            ArrayList<Entry> ret = new ArrayList<>();
+            while (resultSet.next()) {
+                ret.add(new Entry(resultSet.getInt(1), resultSet.getString(2), resultSet.getInt(3),
+                                  resultSet.getBoolean(4), resultSet.getTimestamp(5).toInstant()));
+            }
+            return ret;
+        } catch (SQLException ex) {
+            logger.error("Error accessing database", ex);
+            throw new RawRepoException("Error listing content dictionaries", ex);
+        }
+    }
+
+    /**
+     * Forget all cached dictionaries (for testing)
+     */
+    static void clearCache() {
+        codecs.clear();
+        activeCodecs = null;
+    }
+}
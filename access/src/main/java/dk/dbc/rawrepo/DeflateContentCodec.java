@@ -0,0 +1,143 @@
+/*
+ * dbc-rawrepo-access
+ * Copyright (C) 2015 Dansk Bibliotekscenter a/s, Tempovej 7-11, DK-2750 Ballerup,
+ * Denmark. CVR: 15149043
+ *
+ * This file is part of dbc-rawrepo-access.
+ *
+ * dbc-rawrepo-access is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-rawrepo-access is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dbc-rawrepo-access.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.rawrepo;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflate (zlib format) content codec, optionally with a preset dictionary
+ * <p>
+ * A preset dictionary primes the compression window with text that is
+ * common to many records (namespaces, tags, attributes), which makes even
+ * small records compress well.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class DeflateContentCodec implements ContentCodec {
+
+    /**
+     * Deflate can only look back this far, a larger dictionary is wasted
+     */
+    public static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+    private final String id;
+    private final byte[] dictionary;
+    private final int level;
+
+    /**
+     * Codec without dictionary
+     *
+     * @param id codec id
+     */
+    public DeflateContentCodec(String id) {
+        this(id, null);
+    }
+
+    /**
+     * Codec with dictionary
+     *
+     * @param id         codec id
+     * @param dictionary preset dictionary (or null)
+     */
+    public DeflateContentCodec(String id, byte[] dictionary) {
+        this(id, dictionary, Deflater.DEFAULT_COMPRESSION);
+    }
+
+    /**
+     * Codec with dictionary and compression level
+     *
+     * @param id         codec id
+     * @param dictionary preset dictionary (or null)
+     * @param level      compression level (see {@link Deflater})
+     */
+    public DeflateContentCodec(String id, byte[] dictionary, int level) {
+        if (dictionary != null && dictionary.length > MAX_DICTIONARY_SIZE) {
+            dictionary = Arrays.copyOfRange(dictionary, dictionary.length - MAX_DICTIONARY_SIZE, dictionary.length);
+        }
+        this.id = id;
+        this.dictionary = dictionary;
+        this.level = level;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    @Override
+    public byte[] encode(byte[] content) {
+        Deflater deflater = new Deflater(level);
+        try {
+            if (dictionary != null) {
+                deflater.setDictionary(dictionary);
+            }
+            deflater.setInput(content);
+            deflater.finish();
+            ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2);
+            byte[] buffer = new byte[8192];
+            while (!deflater.finished()) {
+                int len = deflater.deflate(buffer);
+                out.write(buffer, 0, len);
+            }
+            return out.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public byte[] decode(byte[] data) throws RawRepoException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(data);
+            byte[] content = new byte[Math.max(data.length * 4, 1024)];
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == content.length) {
+                    content = Arrays.copyOf(content, content.length * 2);
+                }
+                int len = inflater.inflate(content, length, content.length - length);
+                if (len == 0) {
+                    if (inflater.needsDictionary() && dictionary != null) {
+                        inflater.setDictionary(dictionary);
+                    } else if (inflater.needsInput() || inflater.needsDictionary()) {
+                        throw new RawRepoException("Truncated or corrupt content");
+                    }
+                }
+                length += len;
+            }
+            return length == content.length ? content : Arrays.copyOf(content, length);
+        } catch (DataFormatException | IllegalArgumentException ex) {
+            throw new RawRepoException("Corrupt content", ex);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DeflateContentCodec{" + "id=" + id + ", dictionary=" + (dictionary == null ? 0 : dictionary.length) + '}';
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * dbc-rawrepo-access
+ * Copyright (C) 2015 Dansk Bibliotekscenter a/s, Tempovej 7-11, DK-2750 Ballerup,
+ * Denmark. CVR: 15149043
+ *
+ * This file is part of dbc-rawrepo-access.
+ *
+ * dbc-rawrepo-access is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-rawrepo-access is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dbc-rawrepo-access.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.rawrepo;
+
+import dk.dbc.vipcore.exception.VipCoreException;
+import dk.dbc.vipcore.libraryrules.VipCoreLibraryRulesConnector;
+import org.slf4j.ext.XLogger;
+import org.slf4j.ext.XLoggerFactory;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Process wide cache of vipcore library rules
+ * <p>
+ * Attach it to relation hints using
+ * {@link RelationHintsVipCore#RelationHintsVipCore(VipCoreLibraryRulesConnector, LibraryRulesCache)}.
+ * A rule is fresh for ttl after it has been fetched. For maxStale after that
+ * it is still used, while one background call refreshes it. Rules older than
+ * that, or never seen, are fetched while the caller waits, and concurrent
+ * callers of the same rule share one call to vipcore.
+ * <p>
+ * When vipcore fails, the last known value of a rule is used, however old it
+ * is. Callers only see the failure if the rule has never been fetched.
+ * <p>
+ * There is an entry per agency and rule in use, which is few enough that
+ * entries are never evicted.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class LibraryRulesCache implements AutoCloseable {
+
+    private static final XLogger logger = XLoggerFactory.getXLogger(LibraryRulesCache.class);
+
+    /**
+     * A call to vipcore
+     */
+    @FunctionalInterface
+    interface Loader {
+
+        boolean load() throws VipCoreException;
+    }
+
+    private static final class Key {
+
+        private final int agencyId;
+        private final VipCoreLibraryRulesConnector.Rule rule;
+
+        private Key(int agencyId, VipCoreLibraryRulesConnector.Rule rule) {
+            this.agencyId = agencyId;
+            this.rule = rule;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return agencyId == other.agencyId && rule == other.rule;
+        }
+
+        @Override
+        public int hashCode() {
+            return agencyId * 31 + rule.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return rule + " of " + agencyId;
+        }
+    }
+
+    private static final class Entry {
+
+        private final boolean value;
+        private final long fetched;
+
+        private Entry(boolean value, long fetched) {
+            this.value = value;
+            this.fetched = fetched;
+        }
+    }
+
+    private final long ttlNanos;
+    private final long maxStaleNanos;
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+    private final LongSupplier nanoTime;
+
+    private final ConcurrentMap<Key, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<Key, CompletableFuture<Entry>> loading = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong staleHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong refreshes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong fallbacks = new AtomicLong();
+
+    /**
+     * Create a cache, that refreshes rules on a thread of its own
+     *
+     * @param ttl      how long a rule is used without asking vipcore
+     * @param maxStale how long after ttl a rule is used, while it is refreshed
+     */
+    public LibraryRulesCache(Duration ttl, Duration maxStale) {
+        this(ttl, maxStale, Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "rawrepo-library-rules-cache");
+            thread.setDaemon(true);
+            return thread;
+        }), System::nanoTime);
+    }
+
+    /**
+     * Create a cache, that refreshes rules on an executor
+     *
+     * @param ttl      how long a rule is used without asking vipcore
+     * @param maxStale how long after ttl a rule is used, while it is refreshed
+     * @param executor where to refresh rules, like a managed executor
+     *                 service, it isn't shut down on close
+     */
+    public LibraryRulesCache(Duration ttl, Duration maxStale, Executor executor) {
+        this(ttl, maxStale, executor, System::nanoTime);
+    }
+
+    LibraryRulesCache(Duration ttl, Duration maxStale, Executor executor, LongSupplier nanoTime) {
+        this(ttl, maxStale, executor, null, nanoTime);
+    }
+
+    private LibraryRulesCache(Duration ttl, Duration maxStale, ExecutorService ownedExecutor, LongSupplier nanoTime) {
+        this(ttl, maxStale, ownedExecutor, ownedExecutor, nanoTime);
+    }
+
+    private LibraryRulesCache(Duration ttl, Duration maxStale, Executor executor, ExecutorService ownedExecutor, LongSupplier nanoTime) {
+        if (ttl.isNegative() || maxStale.isNegative()) {
+            throw new IllegalArgumentException("Durations cannot be negative");
+        }
+        this.ttlNanos = ttl.toNanos();
+        this.maxStaleNanos = maxStale.toNanos();
+        this.executor = executor;
+        this.ownedExecutor = ownedExecutor;
+        this.nanoTime = nanoTime;
+    }
+
+    @Override
+    public void close() {
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
+    }
+
+    public int getSize() {
+        return entries.size();
+    }
+
+    /**
+     * @return number of lookups answered by a fresh rule
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return number of lookups answered by a stale rule, while it is
+     *         refreshed
+     */
+    public long getStaleHits() {
+        return staleHits.get();
+    }
+
+    /**
+     * @return number of lookups that waited for vipcore
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return number of background refreshes started
+     */
+    public long getRefreshes() {
+        return refreshes.get();
+    }
+
+    /**
+     * @return number of failed calls to vipcore
+     */
+    public long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return number of lookups answered by the last known value, because
+     *         vipcore failed
+     */
+    public long getFallbacks() {
+        return fallbacks.get();
+    }
+
+    /**
+     * Lookup a rule
+     *
+     * @param agencyId the agency
+     * @param rule     the rule
+     * @param loader   how to ask vipcore
+     * @return if the agency has the rule
+     * @throws VipCoreException if vipcore fails, and the rule has never been
+     *                          fetched
+     */
+    boolean get(int agencyId, VipCoreLibraryRulesConnector.Rule rule, Loader loader) throws VipCoreException {
+        Key key = new Key(agencyId, rule);
+        Entry entry = entries.get(key);
+        if (entry != null) {
+            long age = nanoTime.getAsLong() - entry.fetched;
+            if (age < ttlNanos) {
+                hits.incrementAndGet();
+                return entry.value;
+            }
+            if (age - ttlNanos < maxStaleNanos) {
+                staleHits.incrementAndGet();
+                refresh(key, loader);
+                return entry.value;
+            }
+        }
+        misses.incrementAndGet();
+        try {
+            return load(key, loader).value;
+        } catch (VipCoreException | RuntimeException ex) {
+            if (entry == null) {
+                throw ex;
+            }
+            fallbacks.incrementAndGet();
+            logger.warn("Using last known {}: {}", key, ex.getMessage());
+            return entry.value;
+        }
+    }
+
+    /**
+     * Fetch a rule, or wait for the call that is already fetching it
+     */
+    private Entry load(Key key, Loader loader) throws VipCoreException {
+        CompletableFuture<Entry> future = new CompletableFuture<>();
+        CompletableFuture<Entry> existing = loading.putIfAbsent(key, future);
+        if (existing != null) {
+            return await(existing);
+        }
+        fetch(key, loader, future);
+        return await(future);
+    }
+
+    /**
+     * Start fetching a rule in the background, unless it is being fetched
+     */
+    private void refresh(Key key, Loader loader) {
+        CompletableFuture<Entry> future = new CompletableFuture<>();
+        if (loading.putIfAbsent(key, future) != null) {
+            return;
+        }
+        refreshes.incrementAndGet();
+        try {
+            executor.execute(() -> fetch(key, loader, future));
+        } catch (RejectedExecutionException ex) {
+            logger.warn("Cannot refresh {}: {}", key, ex.getMessage());
+            loading.remove(key, future);
+            future.completeExceptionally(ex);
+        }
+    }
+
+    private void fetch(Key key, Loader loader, CompletableFuture<Entry> future) {
+        try {
+            Entry entry = new Entry(loader.load(), nanoTime.getAsLong());
+            entries.put(key, entry);
+            future.complete(entry);
+        } catch (VipCoreException | RuntimeException ex) {
+            failures.incrementAndGet();
+            logger.debug("Cannot fetch {}", key, ex);
+            future.completeExceptionally(ex);
+        } finally {
+            loading.remove(key, future);
+        }
+    }
+
+    private static Entry await(CompletableFuture<Entry> future) throws VipCoreException {
+        try {
+            return future.join();
+        } catch (CompletionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof VipCoreException) {
+                throw (VipCoreException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw ex;
+        }
+    }
+}
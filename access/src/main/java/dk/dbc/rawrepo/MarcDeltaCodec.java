@@ -0,0 +1,236 @@
+/*
+ * dbc-rawrepo-access
+ * Copyright (C) 2015 Dansk Bibliotekscenter a/s, Tempovej 7-11, DK-2750 Ballerup,
+ * Denmark. CVR: 15149043
+ *
+ * This file is part of dbc-rawrepo-access.
+ *
+ * dbc-rawrepo-access is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-rawrepo-access is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dbc-rawrepo-access.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.rawrepo;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * Archived content as the difference from the next newer version (schema V37)
+ * <p>
+ * Content is split into fields, at the start of every leader, controlfield
+ * and datafield element (with any namespace prefix). The delta is a list of
+ * runs of fields copied from the newer version and literal bytes, so an edit
+ * of a field costs about the size of that field. Splitting is on bytes, not
+ * parsed xml, so content is reproduced byte for byte, and content that isn't
+ * marc becomes one literal (which is not worth storing as a delta).
+ * <p>
+ * The data is a header that isn't compressed (format, modified of the newer
+ * version, length and crc of the content) followed by the deflated list of
+ * operations. content_codec is {@link RecordContentCodec#MARC_DELTA}.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public final class MarcDeltaCodec {
+
+    private static final byte FORMAT = 1;
+    private static final int HEADER_SIZE = 1 + 8 + 4 + 4;
+    private static final byte COPY = 'C';
+    private static final byte LITERAL = 'L';
+
+    private static final Pattern FIELD = Pattern.compile("<(?:[A-Za-z_][\\w.-]*:)?(?:leader|controlfield|datafield)[\\s/>]");
+    private static final DeflateContentCodec DEFLATE_CODEC = new DeflateContentCodec(RecordContentCodec.MARC_DELTA);
+
+    private MarcDeltaCodec() {
+    }
+
+    /**
+     * Make a delta
+     *
+     * @param content      content of the version to encode
+     * @param base         content of the next newer version
+     * @param baseModified modified of the next newer version
+     * @return delta data
+     */
+    public static byte[] encode(byte[] content, byte[] base, Instant baseModified) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream ops = new DataOutputStream(bytes);
+            List<int[]> baseFields = fields(base);
+            Map<ByteBuffer, List<Integer>> index = new HashMap<>();
+            for (int i = 0; i < baseFields.size(); i++) {
+                index.computeIfAbsent(field(base, baseFields.get(i)), k -> new ArrayList<>()).add(i);
+            }
+            List<int[]> fields = fields(content);
+            int literalStart = -1;
+            int next = -1;
+            for (int i = 0; i < fields.size();) {
+                List<Integer> candidates = index.get(field(content, fields.get(i)));
+                if (candidates == null) {
+                    if (literalStart < 0) {
+                        literalStart = fields.get(i)[0];
+                    }
+                    i++;
+                    continue;
+                }
+                if (literalStart >= 0) {
+                    writeLiteral(ops, content, literalStart, fields.get(i)[0]);
+                    literalStart = -1;
+                }
+                int start = candidates.contains(next) ? next : candidates.get(0);
+                int count = 1;
+                while (i + count < fields.size() && start + count < baseFields.size() &&
+                       field(content, fields.get(i + count)).equals(field(base, baseFields.get(start + count)))) {
+                    count++;
+                }
+                ops.writeByte(COPY);
+                ops.writeInt(start);
+                ops.writeInt(count);
+                i += count;
+                next = start + count;
+            }
+            if (literalStart >= 0) {
+                writeLiteral(ops, content, literalStart, content.length);
+            }
+            ops.flush();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE)
+                    .put(FORMAT)
+                    .putLong(ChronoUnit.MICROS.between(Instant.EPOCH, baseModified))
+                    .putInt(content.length)
+                    .putInt(crc(content));
+            byte[] body = DEFLATE_CODEC.encode(bytes.toByteArray());
+            byte[] data = new byte[HEADER_SIZE + body.length];
+            System.arraycopy(header.array(), 0, data, 0, HEADER_SIZE);
+            System.arraycopy(body, 0, data, HEADER_SIZE, body.length);
+            return data;
+        } catch (IOException ex) {
+            throw new IllegalStateException("Cannot write to memory", ex);
+        }
+    }
+
+    /**
+     * The version a delta is relative to
+     *
+     * @param data delta data
+     * @return modified of the next newer version
+     * @throws RawRepoException if data is corrupt
+     */
+    public static Instant baseModified(byte[] data) throws RawRepoException {
+        ByteBuffer header = header(data);
+        return Instant.EPOCH.plus(header.getLong(1), ChronoUnit.MICROS);
+    }
+
+    /**
+     * Apply a delta
+     *
+     * @param data delta data
+     * @param base content of the version the delta is relative to
+     * @return the content
+     * @throws RawRepoException if data is corrupt or base is not the version
+     *                          the delta was made from
+     */
+    public static byte[] decode(byte[] data, byte[] base) throws RawRepoException {
+        ByteBuffer header = header(data);
+        int length = header.getInt(9);
+        byte[] body = DEFLATE_CODEC.decode(Arrays.copyOfRange(data, HEADER_SIZE, data.length));
+        List<int[]> baseFields = fields(base);
+        byte[] content = new byte[length];
+        int pos = 0;
+        try {
+            DataInputStream ops = new DataInputStream(new ByteArrayInputStream(body));
+            while (ops.available() > 0) {
+                byte op = ops.readByte();
+                if (op == COPY) {
+                    int start = ops.readInt();
+                    int count = ops.readInt();
+                    int from = baseFields.get(start)[0];
+                    int to = baseFields.get(start + count - 1)[1];
+                    System.arraycopy(base, from, content, pos, to - from);
+                    pos += to - from;
+                } else if (op == LITERAL) {
+                    int size = ops.readInt();
+                    ops.readFully(content, pos, size);
+                    pos += size;
+                } else {
+                    throw new RawRepoException("Corrupt content delta");
+                }
+            }
+        } catch (IOException | IndexOutOfBoundsException ex) {
+            throw new RawRepoException("Corrupt content delta, or wrong base version", ex);
+        }
+        if (pos != length || crc(content) != header.getInt(13)) {
+            throw new RawRepoException("Content delta applied to wrong base version");
+        }
+        return content;
+    }
+
+    /**
+     * Split content into fields
+     *
+     * @param content content
+     * @return start (inclusive) and end (exclusive) of each field, the first
+     *         is whatever comes before the first field
+     */
+    static List<int[]> fields(byte[] content) {
+        List<int[]> fields = new ArrayList<>();
+        // ISO-8859-1 maps bytes to chars one to one, so offsets are byte offsets
+        Matcher matcher = FIELD.matcher(new String(content, StandardCharsets.ISO_8859_1));
+        int start = 0;
+        while (matcher.find()) {
+            if (matcher.start() > start) {
+                fields.add(new int[] {start, matcher.start()});
+            }
+            start = matcher.start();
+        }
+        if (content.length > start || fields.isEmpty()) {
+            fields.add(new int[] {start, content.length});
+        }
+        return fields;
+    }
+
+    private static ByteBuffer field(byte[] content, int[] field) {
+        return ByteBuffer.wrap(content, field[0], field[1] - field[0]);
+    }
+
+    private static void writeLiteral(DataOutputStream ops, byte[] content, int from, int to) throws IOException {
+        ops.writeByte(LITERAL);
+        ops.writeInt(to - from);
+        ops.write(content, from, to - from);
+    }
+
+    private static ByteBuffer header(byte[] data) throws RawRepoException {
+        if (data == null || data.length < HEADER_SIZE || data[0] != FORMAT) {
+            throw new RawRepoException("Corrupt content delta");
+        }
+        return ByteBuffer.wrap(data, 0, HEADER_SIZE);
+    }
+
+    private static int crc(byte[] content) {
+        CRC32 crc = new CRC32();
+        crc.update(content);
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * dbc-rawrepo-access
+ * Copyright (C) 2015 Dansk Bibliotekscenter a/s, Tempovej 7-11, DK-2750 Ballerup,
+ * Denmark. CVR: 15149043
+ *
+ * This file is part of dbc-rawrepo-access.
+ *
+ * dbc-rawrepo-access is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-rawrepo-access is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dbc-rawrepo-access.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.rawrepo;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Process wide cache of merged records
+ * <p>
+ * Attach it to daos using {@link RawRepoDAO.Builder#mergedRecordCache(MergedRecordCache)}.
+ * A merged record is keyed by the merger name, the requesting agency and the
+ * id and modified time of every record in the enrichment chain. So an entry
+ * is never wrong, it just stops being found when a record in the chain is
+ * modified, and is eventually evicted.
+ * <p>
+ * Entries are evicted least recently used first, when there are more than
+ * maxEntries, or the size of the content exceeds maxBytes.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class MergedRecordCache {
+
+    static final class Key {
+
+        private final String mergerName;
+        private final int originalAgencyId;
+        private final List<RecordId> recordIds;
+        private final List<Instant> modified;
+        private final int hashCode;
+
+        Key(String mergerName, int originalAgencyId, List<RecordId> recordIds, List<Instant> modified) {
+            this.mergerName = mergerName;
+            this.originalAgencyId = originalAgencyId;
+            this.recordIds = new ArrayList<>(recordIds);
+            this.modified = new ArrayList<>(modified);
+            this.hashCode = Objects.hash(mergerName, originalAgencyId, recordIds, modified);
+        }
+
+        static Key of(String mergerName, int originalAgencyId, List<Record> records) {
+            List<RecordId> recordIds = new ArrayList<>(records.size());
+            List<Instant> modified = new ArrayList<>(records.size());
+            for (Record record : records) {
+                recordIds.add(record.getId());
+                modified.add(record.getModified());
+            }
+            return new Key(mergerName, originalAgencyId, recordIds, modified);
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return hashCode == other.hashCode &&
+                   originalAgencyId == other.originalAgencyId &&
+                   mergerName.equals(other.mergerName) &&
+                   recordIds.equals(other.recordIds) &&
+                   modified.equals(other.modified);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+
+    private static final class Entry {
+
+        private final RecordId id;
+        private final String mimeType;
+        private final byte[] content;
+        private final Instant created;
+        private final Instant modified;
+        private final String trackingId;
+        private final String enrichmentTrail;
+
+        private Entry(Record record) {
+            this.id = record.getId();
+            this.mimeType = record.getMimeType();
+            this.content = RecordImpl.sharedContent(record);
+            this.created = record.getCreated();
+            this.modified = record.getModified();
+            this.trackingId = record.getTrackingId();
+            this.enrichmentTrail = record.getEnrichmentTrail();
+        }
+
+        private Record toRecord() {
+            return RecordImpl.enriched(id.getBibliographicRecordId(), id.getAgencyId(), mimeType, content,
+                                       created, modified, trackingId, enrichmentTrail);
+        }
+    }
+
+    private final int maxEntries;
+    private final long maxBytes;
+
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+
+    /**
+     * Create a cache
+     *
+     * @param maxEntries max number of merged records
+     * @param maxBytes   max size of the merged content
+     */
+    public MergedRecordCache(int maxEntries, long maxBytes) {
+        if (maxEntries <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Cache size should be positive");
+        }
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    public synchronized int getSize() {
+        return entries.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Lookup a merged record
+     *
+     * @param key merger and enrichment chain
+     * @return new record instance or null if not cached
+     */
+    Record get(Key key) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        return entry == null ? null : entry.toRecord();
+    }
+
+    /**
+     * Store a merged record
+     *
+     * @param key    merger and enrichment chain, made from the records that
+     *               were merged
+     * @param record the merged record
+     */
+    void put(Key key, Record record) {
+        Entry entry = new Entry(record);
+        synchronized (this) {
+            Entry old = entries.put(key, entry);
+            if (old != null) {
+                bytes -= old.content.length;
+            }
+            bytes += entry.content.length;
+            Iterator<Entry> iterator = entries.values().iterator();
+            while ((entries.size() > maxEntries || bytes > maxBytes) && iterator.hasNext()) {
+                bytes -= iterator.next().content.length;
+                iterator.remove();
+            }
+        }
+    }
+}
@@ -13,26 +13,40 @@ import org.slf4j.ext.XLoggerFactory;
 
 import java.sql.Connection;
 import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
 
 /**
  * @author DBC {@literal <dbc.dk>}
  */
-public abstract class RawRepoDAO {
+public abstract class RawRepoDAO implements AutoCloseable {
 
     private static final XLogger logger = XLoggerFactory.getXLogger(RawRepoDAO.class);
 
     RelationHintsVipCore relationHints;
+    RelationCache relationCache;
+    MergedRecordCache mergedRecordCache;
+    AuthorityCache authorityCache;
+    RawRepoMetrics metrics = RawRepoMetrics.NONE;
+    // Set when this dao has modified records/relations, shared caches cannot see uncommitted changes
+    boolean bypassSharedCaches;
 
     private Map<RecordId, String> mimetypeCache;
     private Map<RecordId, Boolean> recordExistsCache;
@@ -41,6 +55,58 @@ public abstract class RawRepoDAO {
     private Map<RecordId, Set<RecordId>> getRelationsChildrenCache;
     private Map<RecordId, Set<RecordId>> getRelationsSiblingsToMeCache;
     private Map<RecordId, Set<RecordId>> getRelationsSiblingsFromMeCache;
+    // One instance of each RecordId in the caches above
+    private Map<RecordId, RecordId> internedRecordIds;
+    // Records whose relations to them are loaded in one go, when one of them is needed
+    private Set<RecordId> nextLevel;
+
+    /**
+     * How prepareCache loaded relations
+     */
+    public enum PrepareCacheCounter {
+        /**
+         * Nothing points to the records, no relations were loaded
+         */
+        LEAF,
+        /**
+         * Relations are loaded a level at a time
+         */
+        LAZY,
+        /**
+         * All relations below the records were loaded in one go
+         */
+        EAGER,
+        /**
+         * A level of relations was loaded
+         */
+        LEVEL_LOADED
+    }
+
+    // Above this many relations to the records, the entire tree below them is loaded
+    static final int EAGER_RELATIONS_TO_ME = 100;
+
+    private static final Map<PrepareCacheCounter, AtomicLong> PREPARE_CACHE_COUNTERS = new EnumMap<>(PrepareCacheCounter.class);
+
+    static {
+        for (PrepareCacheCounter counter : PrepareCacheCounter.values()) {
+            PREPARE_CACHE_COUNTERS.put(counter, new AtomicLong());
+        }
+    }
+
+    /**
+     * Number of times (process wide) relations were loaded in a given way, for
+     * changedRecord
+     *
+     * @param counter which way
+     * @return count since start
+     */
+    public static long getPrepareCacheCount(PrepareCacheCounter counter) {
+        return PREPARE_CACHE_COUNTERS.get(counter).get();
+    }
+
+    private static void countPrepareCache(PrepareCacheCounter counter) {
+        PREPARE_CACHE_COUNTERS.get(counter).incrementAndGet();
+    }
 
     /**
      * Builder Pattern from RawRepoDAO
@@ -49,10 +115,18 @@ public abstract class RawRepoDAO {
 
         private final Connection connection;
         private RelationHintsVipCore builderRelationHints;
+        private RelationCache builderRelationCache;
+        private MergedRecordCache builderMergedRecordCache;
+        private AuthorityCache builderAuthorityCache;
+        private RawRepoMetrics builderMetrics;
 
         private Builder(Connection connection) {
             this.connection = connection;
             this.builderRelationHints = null;
+            this.builderRelationCache = null;
+            this.builderMergedRecordCache = null;
+            this.builderAuthorityCache = null;
+            this.builderMetrics = null;
         }
 
         /**
@@ -70,6 +144,73 @@ public abstract class RawRepoDAO {
             return this;
         }
 
+        /**
+         * Use a process wide cache for relations, shared between daos
+         * <p>
+         * The cache isn't used after the dao has modified records or
+         * relations, since the cache cannot see uncommitted changes
+         *
+         * @param newRelationCache started relation cache
+         * @return self
+         */
+        public Builder relationCache(RelationCache newRelationCache) {
+            if (this.builderRelationCache != null) {
+                throw new IllegalStateException("Cannot set relationCache again");
+            }
+            this.builderRelationCache = newRelationCache;
+            return this;
+        }
+
+        /**
+         * Use a process wide cache for merged records, shared between daos
+         * <p>
+         * Merged records are identified by {@link MarcXMerger#getName()}, so
+         * mergers with different rules must have different names
+         *
+         * @param newMergedRecordCache merged record cache
+         * @return self
+         */
+        public Builder mergedRecordCache(MergedRecordCache newMergedRecordCache) {
+            if (this.builderMergedRecordCache != null) {
+                throw new IllegalStateException("Cannot set mergedRecordCache again");
+            }
+            this.builderMergedRecordCache = newMergedRecordCache;
+            return this;
+        }
+
+        /**
+         * Use a process wide cache for authority records, shared between daos
+         * <p>
+         * The cache is used when expanding records, and isn't used after the
+         * dao has modified records or relations
+         *
+         * @param newAuthorityCache authority record cache
+         * @return self
+         */
+        public Builder authorityCache(AuthorityCache newAuthorityCache) {
+            if (this.builderAuthorityCache != null) {
+                throw new IllegalStateException("Cannot set authorityCache again");
+            }
+            this.builderAuthorityCache = newAuthorityCache;
+            return this;
+        }
+
+        /**
+         * Report query timings, row counts and errors
+         * <p>
+         * Without this nothing is recorded, only slow queries are logged
+         *
+         * @param newMetrics where to report, typically shared between daos
+         * @return self
+         */
+        public Builder metrics(RawRepoMetrics newMetrics) {
+            if (this.builderMetrics != null) {
+                throw new IllegalStateException("Cannot set metrics again");
+            }
+            this.builderMetrics = newMetrics;
+            return this;
+        }
+
         /**
          * Construct a dao from the builder
          *
@@ -86,6 +227,12 @@ public abstract class RawRepoDAO {
                     builderRelationHints = new RelationHintsVipCore(null);
                 }
                 dao.relationHints = builderRelationHints;
+                dao.relationCache = builderRelationCache;
+                dao.mergedRecordCache = builderMergedRecordCache;
+                dao.authorityCache = builderAuthorityCache;
+                if (builderMetrics != null) {
+                    dao.metrics = builderMetrics;
+                }
 
                 return dao;
             } catch (RawRepoException | SecurityException | IllegalArgumentException ex) {
@@ -108,6 +255,15 @@ public abstract class RawRepoDAO {
     protected void validateConnection() throws RawRepoException {
     }
 
+    /**
+     * Release resources held by the dao, like prepared statements
+     * <p>
+     * The connection is not closed, and closing it releases them too
+     */
+    @Override
+    public void close() {
+    }
+
     /**
      * Fetch a record from the database
      * <p>
@@ -123,6 +279,18 @@ public abstract class RawRepoDAO {
      */
     public abstract Record fetchRecord(String bibliographicRecordId, int agencyId) throws RawRepoException;
 
+    /**
+     * Fetch a number of records from the database
+     * <p>
+     * Records that doesn't exist in the database are returned as new records,
+     * just like {@link #fetchRecord(java.lang.String, int)} does
+     *
+     * @param recordIds ids of the records to fetch
+     * @return map of id to fetched / new Record, in the order of recordIds
+     * @throws RawRepoException done at failure
+     */
+    public abstract Map<RecordId, Record> fetchRecords(Collection<RecordId> recordIds) throws RawRepoException;
+
     /**
      * Find the mimetype of a record
      *
@@ -142,6 +310,15 @@ public abstract class RawRepoDAO {
      */
     protected abstract Map<RecordId, String> getMimeTypeOfList(Set<RecordId> recordIds) throws RawRepoException;
 
+    /**
+     * Find the modified time of a (small) number of records
+     *
+     * @param recordIds records to be examined
+     * @return map of id to modified, records that doesn't exist are absent
+     * @throws RawRepoException done at failure
+     */
+    protected abstract Map<RecordId, Instant> getModifiedOfList(Collection<RecordId> recordIds) throws RawRepoException;
+
     public String getMimeTypeOfSafe(String bibliographicRecordId, int agencyId) throws RawRepoException {
         if (recordExistsMaybeDeleted(bibliographicRecordId, agencyId)) {
             return getMimeTypeOf(bibliographicRecordId, agencyId);
@@ -233,7 +410,9 @@ public abstract class RawRepoDAO {
     public Map<String, Record> fetchRecordCollection(String bibliographicRecordId, int agencyId, MarcXMerger merger) throws RawRepoException, MarcXMergerException, VipCoreException {
         logger.info("fetchRecordCollection 1 for {}:{}", bibliographicRecordId, agencyId);
         HashMap<String, Record> ret = new HashMap<>();
-        fetchRecordCollection(ret, bibliographicRecordId, agencyId, merger, true);
+        for (CollectionLevel level : collectionLevels(bibliographicRecordId, agencyId, true)) {
+            collectRecordsMerged(ret, level, agencyId, merger);
+        }
         return ret;
     }
 
@@ -252,7 +431,9 @@ public abstract class RawRepoDAO {
     public Map<String, Record> fetchRecordCollectionExpanded(String bibliographicRecordId, int agencyId, MarcXMerger merger, boolean includeAutRecords, boolean keepAutFields) throws RawRepoException, MarcXMergerException, MarcReaderException, MarcRecordExpandException, VipCoreException {
         logger.info("fetchRecordCollectionExpanded for {}:{}", bibliographicRecordId, agencyId);
         HashMap<String, Record> collection = new HashMap<>();
-        fetchRecordCollectionExpanded(collection, bibliographicRecordId, agencyId, merger, includeAutRecords, keepAutFields);
+        for (CollectionLevel level : collectionLevels(bibliographicRecordId, agencyId, includeAutRecords)) {
+            collectRecordsExpanded(collection, level, agencyId, merger, keepAutFields);
+        }
 
         return collection;
     }
@@ -272,64 +453,121 @@ public abstract class RawRepoDAO {
     public Map<String, Record> fetchRecordCollectionExpanded(String bibliographicRecordId, int agencyId, MarcXMerger merger) throws RawRepoException, MarcXMergerException, MarcReaderException, MarcRecordExpandException, VipCoreException {
         logger.info("fetchRecordCollectionExpanded for {}:{}", bibliographicRecordId, agencyId);
         HashMap<String, Record> collection = new HashMap<>();
-        fetchRecordCollectionExpanded(collection, bibliographicRecordId, agencyId, merger, false, false);
+        for (CollectionLevel level : collectionLevels(bibliographicRecordId, agencyId, false)) {
+            collectRecordsExpanded(collection, level, agencyId, merger, false);
+        }
 
         return collection;
     }
 
-    private void fetchRecordCollectionExpanded(Map<String, Record> collection, String bibliographicRecordId, int agencyId, MarcXMerger merger, boolean includeAutRecords, boolean keepAutFields) throws
-            RawRepoException, MarcXMergerException, MarcReaderException, MarcRecordExpandException, VipCoreException {
-        if (!collection.containsKey(bibliographicRecordId)) {
-            Record record = fetchRecord(bibliographicRecordId, agencyId);
-            if (record == null) {
-                record = fetchMergedRecord(bibliographicRecordId, agencyId, merger, false);
+    /**
+     * Records of a collection, that are the same number of parent relations
+     * from the start, and the agencies that have them
+     */
+    private static class CollectionLevel {
 
-                expandRecord(record, keepAutFields);
-            }
+        private final Set<String> bibliographicRecordIds;
+        private final Map<String, Map<Integer, Boolean>> agencies;
 
-            collection.put(bibliographicRecordId, record);
+        private CollectionLevel(Set<String> bibliographicRecordIds, Map<String, Map<Integer, Boolean>> agencies) {
+            this.bibliographicRecordIds = bibliographicRecordIds;
+            this.agencies = agencies;
+        }
 
-            int mostCommonAgency = findParentRelationAgency(bibliographicRecordId, agencyId);
-            Set<RecordId> parents = getRelationsParents(new RecordId(bibliographicRecordId, mostCommonAgency));
-            for (RecordId parent : parents) {
-                // If this parent is an authority record and includeAut is false then skip parent
-                if (870979 == parent.agencyId && !includeAutRecords) {
-                    continue;
-                }
-                fetchRecordCollectionExpanded(collection, parent.getBibliographicRecordId(), agencyId, merger, includeAutRecords, keepAutFields);
-            }
+        private Map<Integer, Boolean> agencies(String bibliographicRecordId) {
+            return agencies.getOrDefault(bibliographicRecordId, Collections.emptyMap());
         }
     }
 
     /**
-     * Traverse references and fill into collection
+     * Traverse parent relations, to find the records of a collection
      * <p>
-     * Can exclude authority records from the result set
+     * The parent graph is walked breadth first. Each level is resolved with
+     * one batched lookup of agencies and one of parent relations, instead of
+     * a couple of queries per record. Every record reachable from the start
+     * is visited once, so the collection is the same as a depth first walk
+     * gives.
      *
-     * @param collection            A map to collect additional records in
      * @param bibliographicRecordId String with record id
      * @param agencyId              library number
-     * @param merger                marc merger function
-     * @param includeAut            true = include authority record in the collection, false = don't include authority records
-     * @throws RawRepoException     done at failure
-     * @throws MarcXMergerException done at failure
+     * @param includeAut            if authority parents are followed
+     * @return levels, starting with the record itself
+     * @throws RawRepoException if a record has no agency to make a parent
+     *                          relation from, or on database failure
      */
-    private void fetchRecordCollection(Map<String, Record> collection, String bibliographicRecordId, int agencyId, MarcXMerger merger, boolean includeAut) throws
-            RawRepoException, MarcXMergerException, VipCoreException {
-        if (!collection.containsKey(bibliographicRecordId)) {
-            Record record = fetchMergedRecord(bibliographicRecordId, agencyId, merger, false);
-            collection.put(bibliographicRecordId, record);
-
-            int mostCommonAgency = findParentRelationAgency(bibliographicRecordId, agencyId);
-            Set<RecordId> parents = getRelationsParents(new RecordId(bibliographicRecordId, mostCommonAgency));
-            for (RecordId parent : parents) {
-                // If this parent is an authority record and includeAut is false then skip parent
-                if (870979 == parent.agencyId && !includeAut) {
-                    continue;
+    private List<CollectionLevel> collectionLevels(String bibliographicRecordId, int agencyId, boolean includeAut) throws RawRepoException, VipCoreException {
+        final List<CollectionLevel> levels = new ArrayList<>();
+        final Set<String> seen = new HashSet<>();
+        Set<String> ids = Collections.singleton(bibliographicRecordId);
+        seen.add(bibliographicRecordId);
+        while (!ids.isEmpty()) {
+            final CollectionLevel level = new CollectionLevel(ids, allAgenciesForBibliographicRecordIdsWithDeleted(ids));
+            levels.add(level);
+
+            final List<RecordId> mostCommon = new ArrayList<>(ids.size());
+            for (String id : ids) {
+                mostCommon.add(new RecordId(id, findParentRelationAgency(id, agencyId, level.agencies(id))));
+            }
+            final Map<RecordId, Set<RecordId>> parents = getRelationsParentsOfList(mostCommon);
+            ids = new LinkedHashSet<>();
+            for (RecordId recordId : mostCommon) {
+                for (RecordId parent : parents.getOrDefault(recordId, Collections.emptySet())) {
+                    // If this parent is an authority record and includeAut is false then skip parent
+                    if (870979 == parent.getAgencyId() && !includeAut) {
+                        continue;
+                    }
+                    if (seen.add(parent.getBibliographicRecordId())) {
+                        ids.add(parent.getBibliographicRecordId());
+                    }
                 }
-                fetchRecordCollection(collection, parent.getBibliographicRecordId(), agencyId, merger, includeAut);
             }
         }
+        return levels;
+    }
+
+    /**
+     * Fetch the merged records of a level, one round-trip for all their
+     * enrichment chains
+     * <p>
+     * With the merged record cache, the cache is checked for the whole level
+     * first, and only the chains of the misses are fetched.
+     */
+    private void collectRecordsMerged(Map<String, Record> collection, CollectionLevel level, int agencyId, MarcXMerger merger) throws
+            RawRepoException, MarcXMergerException, VipCoreException {
+        final List<RecordId> recordIds = new ArrayList<>(level.bibliographicRecordIds.size());
+        for (String id : level.bibliographicRecordIds) {
+            recordIds.add(new RecordId(id, agencyFor(id, agencyId, false, level.agencies(id))));
+        }
+        if (mergedRecordCache != null && merger.getName() != null && !bypassSharedCaches) {
+            final Map<RecordId, Record> records = fetchMergedRecordsCached(recordIds, agencyId, merger);
+            for (RecordId recordId : recordIds) {
+                collection.put(recordId.getBibliographicRecordId(), records.get(recordId));
+            }
+            return;
+        }
+        final Map<RecordId, List<Record>> chains = fetchEnrichmentChains(recordIds);
+        for (RecordId recordId : recordIds) {
+            collection.put(recordId.getBibliographicRecordId(),
+                           mergeRecords(recordId.getBibliographicRecordId(), agencyId, merger, chains.get(recordId)));
+        }
+    }
+
+    /**
+     * Fetch the records of a level as the agency has them, in one round-trip
+     */
+    private void collectRecordsExpanded(Map<String, Record> collection, CollectionLevel level, int agencyId, MarcXMerger merger, boolean keepAutFields) throws
+            RawRepoException, MarcXMergerException, MarcReaderException, MarcRecordExpandException, VipCoreException {
+        final List<RecordId> recordIds = level.bibliographicRecordIds.stream().map(id -> new RecordId(id, agencyId)).collect(Collectors.toList());
+        final Map<RecordId, Record> records = fetchRecords(recordIds);
+        for (RecordId recordId : recordIds) {
+            Record record = records.get(recordId);
+            if (record == null) {
+                record = fetchMergedRecord(recordId.getBibliographicRecordId(), agencyId, merger, false);
+
+                expandRecord(record, keepAutFields);
+            }
+            collection.put(recordId.getBibliographicRecordId(), record);
+        }
     }
 
     /**
@@ -343,18 +581,17 @@ public abstract class RawRepoDAO {
      * @throws RawRepoException if no agency could be found
      */
     public int agencyFor(String bibliographicRecordId, int originalAgencyId, boolean fetchDeleted) throws RawRepoException, VipCoreException {
-        Set<Integer> allAgenciesWithRecord = allAgenciesForBibliographicRecordId(bibliographicRecordId);
-        logger.debug("agencyFor record {}:{} has record for the following agencies: {}", bibliographicRecordId, originalAgencyId, allAgenciesWithRecord);
+        return agencyFor(bibliographicRecordId, originalAgencyId, fetchDeleted, allAgenciesForBibliographicRecordIdWithDeleted(bibliographicRecordId));
+    }
+
+    private int agencyFor(String bibliographicRecordId, int originalAgencyId, boolean fetchDeleted, Map<Integer, Boolean> agencies) throws RawRepoException, VipCoreException {
+        logger.debug("agencyFor record {}:{} has record for the following agencies: {}", bibliographicRecordId, originalAgencyId, agencies.keySet());
 
         List<Integer> agencyPriorityList = relationHints.getAgencyPriority(originalAgencyId);
 
         for (Integer agencyId : agencyPriorityList) {
-            if (!allAgenciesWithRecord.contains(agencyId)) {
-                continue;
-            }
-            if (fetchDeleted ?
-                    recordExistsMaybeDeleted(bibliographicRecordId, agencyId) :
-                    recordExists(bibliographicRecordId, agencyId)) {
+            Boolean deleted = agencies.get(agencyId);
+            if (deleted != null && (fetchDeleted || !deleted)) {
                 return agencyId;
             }
         }
@@ -374,8 +611,9 @@ public abstract class RawRepoDAO {
         if (!relationHints.usesCommonAgency(originalAgencyId)) {
             throw new RawRepoException("agency " + originalAgencyId + " does not use enrichments (Common agency)");
         } else {
+            Map<Integer, Boolean> agencies = allAgenciesForBibliographicRecordIdWithDeleted(bibliographicRecordId);
             for (Integer agencyId : relationHints.get(originalAgencyId)) {
-                if (recordExists(bibliographicRecordId, agencyId)) {
+                if (Boolean.FALSE.equals(agencies.get(agencyId))) {
                     return agencyId;
                 }
             }
@@ -392,17 +630,18 @@ public abstract class RawRepoDAO {
      * @throws RawRepoException if no agency could be found for record
      */
     public int findParentRelationAgency(String bibliographicRecordId, int originalAgencyId) throws RawRepoException, VipCoreException {
+        return findParentRelationAgency(bibliographicRecordId, originalAgencyId, allAgenciesForBibliographicRecordIdWithDeleted(bibliographicRecordId));
+    }
+
+    private int findParentRelationAgency(String bibliographicRecordId, int originalAgencyId, Map<Integer, Boolean> agencies) throws RawRepoException, VipCoreException {
         if (relationHints.usesCommonAgency(originalAgencyId)) {
-            List<Integer> list = relationHints.get(originalAgencyId);
-            if (!list.isEmpty()) {
-                for (Integer agencyId : list) {
-                    if (recordExists(bibliographicRecordId, agencyId)) {
-                        return agencyId;
-                    }
+            for (Integer agencyId : relationHints.get(originalAgencyId)) {
+                if (Boolean.FALSE.equals(agencies.get(agencyId))) {
+                    return agencyId;
                 }
             }
         }
-        if (recordExists(bibliographicRecordId, originalAgencyId)) {
+        if (Boolean.FALSE.equals(agencies.get(originalAgencyId))) {
             return originalAgencyId;
         }
         throw new RawRepoExceptionRecordNotFound("Could not find (parent) relation agency for " + bibliographicRecordId + " from " + originalAgencyId);
@@ -428,7 +667,7 @@ public abstract class RawRepoDAO {
             // Only these agencies can have authority parents
             final List<Integer> expandableAgencies = Arrays.asList(190002, 190004, 870970, 870971, 870974, 870979);
 
-            if (expandableAgencies.contains(recordId.agencyId)) {
+            if (expandableAgencies.contains(recordId.getAgencyId())) {
                 expandableRecordId = recordId;
             } else {
                 Set<RecordId> relationsSiblings = getRelationsSiblingsFromMe(recordId);
@@ -448,10 +687,18 @@ public abstract class RawRepoDAO {
                 logger.info("Found {} parents to the expandable record", autParents.size());
 
                 final Map<String, Record> autRecords = new HashMap<>();
+                final List<String> autIds = new ArrayList<>();
                 for (RecordId parentId : autParents) {
-                    if ("870979".equals(Integer.toString(parentId.getAgencyId()))) {
+                    if (parentId.getAgencyId() == AuthorityCache.AUTHORITY_AGENCY) {
                         logger.info("Found parent authority record: {}", parentId.toString());
-                        autRecords.put(parentId.getBibliographicRecordId(), fetchRecord(parentId.getBibliographicRecordId(), parentId.getAgencyId()));
+                        autIds.add(parentId.getBibliographicRecordId());
+                    }
+                }
+                if (authorityCache != null && !bypassSharedCaches) {
+                    autRecords.putAll(authorityCache.fetch(this, autIds));
+                } else {
+                    for (String autId : autIds) {
+                        autRecords.put(autId, fetchRecord(autId, AuthorityCache.AUTHORITY_AGENCY));
                     }
                 }
                 ExpandCommonRecord.expandRecord(record, autRecords, keepAutField);
@@ -497,6 +744,28 @@ public abstract class RawRepoDAO {
     public Record fetchMergedRecord(String bibliographicRecordId, int originalAgencyId, MarcXMerger merger, boolean fetchDeleted)
             throws RawRepoException, MarcXMergerException, VipCoreException {
         int agencyId = agencyFor(bibliographicRecordId, originalAgencyId, fetchDeleted);
+        if (mergedRecordCache != null && merger.getName() != null && !bypassSharedCaches) {
+            RecordId recordId = new RecordId(bibliographicRecordId, agencyId);
+            return fetchMergedRecordsCached(Collections.singletonList(recordId), originalAgencyId, merger).get(recordId);
+        }
+        List<Record> records = fetchEnrichmentChain(bibliographicRecordId, agencyId);
+        return mergeRecords(bibliographicRecordId, originalAgencyId, merger, records);
+    }
+
+    /**
+     * Fetch a record, and the records it is an enrichment of
+     * <p>
+     * Follows the sibling relations from the record, one record at a time.
+     * Implementations that can fetch the chain in one round-trip override
+     * this.
+     *
+     * @param bibliographicRecordId local id
+     * @param agencyId              the agency of the least common record
+     * @return records most to least common, a record that doesn't exist is
+     *         an empty record
+     * @throws RawRepoException done at failure
+     */
+    public List<Record> fetchEnrichmentChain(String bibliographicRecordId, int agencyId) throws RawRepoException {
         LinkedList<Record> records = new LinkedList<>();
         for (; ; ) {
             Record record = fetchRecord(bibliographicRecordId, agencyId);
@@ -507,10 +776,147 @@ public abstract class RawRepoDAO {
             }
             agencyId = siblings.iterator().next().getAgencyId();
         }
+        return records;
+    }
+
+    /**
+     * Fetch the enrichment chains of a number of records
+     * <p>
+     * Implementations that can, do this in one round-trip
+     *
+     * @param recordIds ids of the least common records
+     * @return map of id to chain, most to least common
+     * @throws RawRepoException done at failure
+     * @see #fetchEnrichmentChain(String, int)
+     */
+    protected Map<RecordId, List<Record>> fetchEnrichmentChains(Collection<RecordId> recordIds) throws RawRepoException {
+        Map<RecordId, List<Record>> result = new HashMap<>();
+        for (RecordId recordId : recordIds) {
+            result.put(recordId, fetchEnrichmentChain(recordId.getBibliographicRecordId(), recordId.getAgencyId()));
+        }
+        return result;
+    }
+
+    /**
+     * The ids of an enrichment chain and the modified time of the records in
+     * it, most to least common
+     */
+    static final class ChainVersions {
+
+        final List<RecordId> recordIds = new ArrayList<>();
+        // null for records that doesn't exist
+        final List<Instant> modified = new ArrayList<>();
+
+        void add(RecordId recordId, Instant recordModified) {
+            recordIds.add(recordId);
+            modified.add(recordModified);
+        }
+    }
+
+    /**
+     * Find the enrichment chains of a number of records, and the modified
+     * time of the records in them, without fetching the content
+     * <p>
+     * Follows the sibling relations one record at a time, and looks up the
+     * modified times. Implementations that can do it in one round-trip
+     * override this.
+     *
+     * @param recordIds ids of the least common records
+     * @return map of id to chain
+     * @throws RawRepoException done at failure
+     */
+    Map<RecordId, ChainVersions> fetchEnrichmentChainVersions(Collection<RecordId> recordIds) throws RawRepoException {
+        Map<RecordId, LinkedList<RecordId>> chains = new HashMap<>();
+        Set<RecordId> all = new HashSet<>();
+        for (RecordId recordId : recordIds) {
+            LinkedList<RecordId> chain = new LinkedList<>();
+            RecordId link = recordId;
+            for (; ; ) {
+                chain.addFirst(link);
+                Set<RecordId> siblings = getRelationsSiblingsFromMe(link);
+                if (siblings.isEmpty()) {
+                    break;
+                }
+                link = new RecordId(link.getBibliographicRecordId(), siblings.iterator().next().getAgencyId());
+            }
+            chains.put(recordId, chain);
+            all.addAll(chain);
+        }
+        Map<RecordId, Instant> modified = getModifiedOfList(all);
+        Map<RecordId, ChainVersions> result = new HashMap<>();
+        for (Map.Entry<RecordId, LinkedList<RecordId>> entry : chains.entrySet()) {
+            ChainVersions versions = new ChainVersions();
+            for (RecordId link : entry.getValue()) {
+                versions.add(link, modified.get(link));
+            }
+            result.put(entry.getKey(), versions);
+        }
+        return result;
+    }
+
+    /**
+     * Fetch merged records, using the merged record cache
+     * <p>
+     * The enrichment chains and the modified time of the records in them
+     * are looked up without the content. If a merge of exactly those
+     * versions is cached, it is used. The chains of the rest are fetched and
+     * merged.
+     *
+     * @param recordIds        ids of the least common records
+     * @param originalAgencyId the requesting agency
+     * @param merger           marc merger function
+     * @return map of id to merged record
+     * @throws RawRepoException     if there's a data error
+     * @throws MarcXMergerException if we can't merge record
+     */
+    private Map<RecordId, Record> fetchMergedRecordsCached(List<RecordId> recordIds, int originalAgencyId, MarcXMerger merger)
+            throws RawRepoException, MarcXMergerException {
+        Map<RecordId, Record> result = new HashMap<>();
+        Map<RecordId, ChainVersions> versions = fetchEnrichmentChainVersions(recordIds);
+        List<RecordId> misses = new ArrayList<>();
+        for (RecordId recordId : recordIds) {
+            ChainVersions chain = versions.get(recordId);
+            Record record = null;
+            if (chain.recordIds.size() > 1 && !chain.modified.contains(null)) {
+                record = mergedRecordCache.get(new MergedRecordCache.Key(merger.getName(), originalAgencyId, chain.recordIds, chain.modified));
+            }
+            if (record == null) {
+                misses.add(recordId);
+            } else {
+                result.put(recordId, record);
+            }
+        }
+        if (!misses.isEmpty()) {
+            Map<RecordId, List<Record>> chains = fetchEnrichmentChains(misses);
+            for (RecordId recordId : misses) {
+                List<Record> records = chains.get(recordId);
+                Record record = mergeRecords(recordId.getBibliographicRecordId(), originalAgencyId, merger, records);
+                if (records.size() > 1) {
+                    // Keyed by what has actually been merged, it might have changed since the lookup
+                    mergedRecordCache.put(MergedRecordCache.Key.of(merger.getName(), originalAgencyId, records), record);
+                }
+                result.put(recordId, record);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Merge an enrichment chain
+     *
+     * @param bibliographicRecordId local id
+     * @param originalAgencyId      the requesting agency
+     * @param merger                marc merger function
+     * @param records               most to least common
+     * @return the record if there's only one, otherwise the merged record
+     * @throws MarcXMergerException if we can't merge record
+     */
+    private Record mergeRecords(String bibliographicRecordId, int originalAgencyId, MarcXMerger merger, List<Record> records)
+            throws MarcXMergerException {
         Iterator<Record> iterator = records.iterator();
         Record record = iterator.next();
         if (iterator.hasNext()) { // Record will be merged
-            byte[] content = record.getContent();
+            byte[] content = RecordImpl.sharedContent(record);
             StringBuilder enrichmentTrail = new StringBuilder(record.getEnrichmentTrail());
 
             while (iterator.hasNext()) {
@@ -520,7 +926,7 @@ public abstract class RawRepoDAO {
                     throw new MarcXMergerException("Cannot merge enrichment");
                 }
 
-                content = merger.merge(content, next.getContent(), next.getId().getAgencyId() == originalAgencyId);
+                content = merger.merge(content, RecordImpl.sharedContent(next), next.getId().getAgencyId() == originalAgencyId);
                 enrichmentTrail.append(',').append(next.getId().getAgencyId());
 
                 record = RecordImpl.enriched(bibliographicRecordId, next.getId().getAgencyId(),
@@ -567,16 +973,130 @@ public abstract class RawRepoDAO {
      */
     public abstract Record getHistoricRecord(RecordMetaDataHistory recordMetaData) throws RawRepoException;
 
+    /**
+     * A page of the versions of a record, newest first
+     * <p>
+     * To get the next page, call again with asOf set to just before the
+     * oldest version of this page. Or use
+     * {@link #visitRecordHistory(String, int, Instant, int, HistoryVisitor)}
+     *
+     * @param bibliographicRecordId local id
+     * @param agencyId              the agency
+     * @param asOf                  only versions modified at or before this,
+     *                              null for the newest
+     * @param limit                 max number of versions
+     * @return versions, newest first
+     * @throws RawRepoException done at failure
+     */
+    public abstract List<RecordMetaDataHistory> getRecordHistory(String bibliographicRecordId, int agencyId, Instant asOf, int limit) throws RawRepoException;
+
+    /**
+     * Fetch a window of versions of records in one go
+     *
+     * @param recordMetaData data identifying the records, typically a page
+     *                       from
+     *                       {@link #getRecordHistory(String, int, Instant, int)}
+     * @return the records, in the same order
+     * @throws RawRepoException done at failure, or if a version doesn't
+     *                          exist
+     */
+    public abstract List<Record> getHistoricRecords(List<RecordMetaDataHistory> recordMetaData) throws RawRepoException;
+
+    /**
+     * Receiver of versions of a record
+     */
+    @FunctionalInterface
+    public interface HistoryVisitor {
+
+        /**
+         * @param version a version of the record
+         * @return if more versions are wanted
+         * @throws RawRepoException if the visit fails, stops the traversal
+         */
+        boolean visit(RecordMetaDataHistory version) throws RawRepoException;
+    }
+
+    /**
+     * Visit the versions of a record, newest first, until the visitor has
+     * had enough
+     * <p>
+     * Versions are fetched a page at a time, so only a page is in memory
+     *
+     * @param bibliographicRecordId local id
+     * @param agencyId              the agency
+     * @param asOf                  start at the newest version modified at or
+     *                              before this, null for the newest
+     * @param pageSize              number of versions to fetch at a time
+     * @param visitor               receiver of the versions
+     * @throws RawRepoException done at failure
+     */
+    public void visitRecordHistory(String bibliographicRecordId, int agencyId, Instant asOf, int pageSize, HistoryVisitor visitor) throws RawRepoException {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize should be positive");
+        }
+        for (;;) {
+            List<RecordMetaDataHistory> page = getRecordHistory(bibliographicRecordId, agencyId, asOf, pageSize);
+            for (RecordMetaDataHistory version : page) {
+                if (!visitor.visit(version)) {
+                    return;
+                }
+            }
+            if (page.size() < pageSize) {
+                return;
+            }
+            // The database has microsecond precision
+            asOf = page.get(page.size() - 1).getModified().minus(1, ChronoUnit.MICROS);
+        }
+    }
+
     /**
      * Save a record to database after it has been modified
      * <p>
-     * Will try to update, otherwise insert
+     * Will insert, or update if it exists
      *
      * @param record record to be saved
      * @throws RawRepoException done at failure
      */
     public abstract void saveRecord(Record record) throws RawRepoException;
 
+    /**
+     * Save many records to database after they have been modified
+     * <p>
+     * The records are written in batches, which is a lot faster than saving
+     * them one at a time
+     *
+     * @param records records to be saved
+     * @throws RawRepoException done at failure
+     */
+    public abstract void saveRecords(Collection<Record> records) throws RawRepoException;
+
+    /**
+     * Save a record, unless it is unchanged
+     * <p>
+     * A record is unchanged when content, deleted and mimetype are the same
+     * as in the database. Then nothing is written: modified and trackingId
+     * keep their values in the database, no version is archived, and the
+     * caller can leave out enqueueing. Records last saved by software before
+     * schema V38 are always written.
+     *
+     * @param record record to be saved
+     * @return if the record was written
+     * @throws RawRepoException done at failure
+     */
+    public abstract boolean saveRecordIfChanged(Record record) throws RawRepoException;
+
+    /**
+     * Save many records, leaving out those that are unchanged
+     * <p>
+     * See {@link #saveRecordIfChanged(Record)}, the records are written in
+     * batches like {@link #saveRecords(Collection)}
+     *
+     * @param records records to be saved
+     * @return ids of the records that were written
+     * @throws RawRepoException done at failure
+     */
+    public abstract Set<RecordId> saveRecordsIfChanged(Collection<Record> records) throws RawRepoException;
+
     /**
      * Get a collection of my "dependencies".
      *
@@ -603,6 +1123,17 @@ public abstract class RawRepoDAO {
      */
     public abstract void setRelationsFrom(RecordId recordId, Set<RecordId> refers) throws RawRepoException;
 
+    /**
+     * Clear all existing relations and set the new ones, for many records in
+     * one go
+     * <p>
+     * If any of the relations are invalid nothing is changed
+     *
+     * @param relations map of recordid to the record ids it depends on
+     * @throws RawRepoException done at failure
+     */
+    public abstract void setRelationsFrom(Map<RecordId, Set<RecordId>> relations) throws RawRepoException;
+
     /**
      * Get all record relations from me with a different localid
      * <p>
@@ -614,6 +1145,23 @@ public abstract class RawRepoDAO {
      */
     public abstract Set<RecordId> getRelationsParents(RecordId recordId) throws RawRepoException;
 
+    /**
+     * Get the parent relations of a number of records
+     * <p>
+     * Implementations that can, do this in one round-trip
+     *
+     * @param recordIds ids of the records
+     * @return map of id to parents, records without parents may be absent
+     * @throws RawRepoException done at failure
+     */
+    protected Map<RecordId, Set<RecordId>> getRelationsParentsOfList(Collection<RecordId> recordIds) throws RawRepoException {
+        Map<RecordId, Set<RecordId>> result = new HashMap<>();
+        for (RecordId recordId : recordIds) {
+            result.put(recordId, getRelationsParents(recordId));
+        }
+        return result;
+    }
+
     private Set<RecordId> getRelationsParentsWithCache(RecordId recordId) throws RawRepoException {
         Set<RecordId> result = getRelationsParentsCache.getOrDefault(recordId, null);
 
@@ -638,6 +1186,10 @@ public abstract class RawRepoDAO {
     private Set<RecordId> getRelationsChildrenWithCache(RecordId recordId) throws RawRepoException {
         Set<RecordId> result = getRelationsChildrenCache.getOrDefault(recordId, null);
 
+        if (result == null && nextLevel != null) {
+            loadNextLevel(recordId);
+            result = getRelationsChildrenCache.getOrDefault(recordId, null);
+        }
         if (result == null) {
             result = getRelationsChildren(recordId);
             getRelationsChildrenCache.put(recordId, result);
@@ -660,6 +1212,10 @@ public abstract class RawRepoDAO {
     private Set<RecordId> getRelationsSiblingsToMeWithCache(RecordId recordId) throws RawRepoException {
         Set<RecordId> result = getRelationsSiblingsToMeCache.getOrDefault(recordId, null);
 
+        if (result == null && nextLevel != null) {
+            loadNextLevel(recordId);
+            result = getRelationsSiblingsToMeCache.getOrDefault(recordId, null);
+        }
         if (result == null) {
             result = getRelationsSiblingsToMe(recordId);
             getRelationsSiblingsToMeCache.put(recordId, result);
@@ -700,6 +1256,38 @@ public abstract class RawRepoDAO {
 
     public abstract Set<Integer> allAgenciesForBibliographicRecordIdSkipDeleted(String bibliographicRecordId) throws RawRepoException;
 
+    /**
+     * Get all libraries that have id, and if their record is deleted
+     * <p>
+     * One query, that answers existence of the id for any agency.
+     *
+     * @param bibliographicRecordId local id
+     * @return map of agencyid to deleted
+     * @throws RawRepoException done at failure
+     */
+    public abstract Map<Integer, Boolean> allAgenciesForBibliographicRecordIdWithDeleted(String bibliographicRecordId) throws RawRepoException;
+
+    /**
+     * Get all libraries that have ids, and if their records are deleted
+     * <p>
+     * Implementations that can, do this in one round-trip
+     *
+     * @param bibliographicRecordIds local ids
+     * @return map of id to map of agencyid to deleted, ids no library
+     *         has are absent
+     * @throws RawRepoException done at failure
+     */
+    protected Map<String, Map<Integer, Boolean>> allAgenciesForBibliographicRecordIdsWithDeleted(Collection<String> bibliographicRecordIds) throws RawRepoException {
+        Map<String, Map<Integer, Boolean>> result = new HashMap<>();
+        for (String bibliographicRecordId : bibliographicRecordIds) {
+            Map<Integer, Boolean> agencies = allAgenciesForBibliographicRecordIdWithDeleted(bibliographicRecordId);
+            if (!agencies.isEmpty()) {
+                result.put(bibliographicRecordId, agencies);
+            }
+        }
+        return result;
+    }
+
     /**
      * Put job(s) on the queue (in the database)
      *
@@ -769,38 +1357,161 @@ public abstract class RawRepoDAO {
     public abstract void queueFailWithSavepoint(QueueJob queueJob, String error) throws RawRepoException;
 
     /**
-     * Gets a list of child relation pairs matching the content in the relations table for the given RecordId
+     * Gets a list of child relation pairs matching the content in the relations table for the given RecordIds
+     * <p>
+     * If the pairs carry the record state ({@link RelationsPair#isRecordStateKnown()}),
+     * it is used instead of looking up deleted flags and mimetypes separately
      *
-     * @param recordId The top most RecordId for which to find children
+     * @param recordIds The top most RecordIds for which to find children
      * @return A list of relation pairs
      * @throws RawRepoException done at failure
      */
-    protected abstract Set<RelationsPair> getAllChildRelations(RecordId recordId) throws RawRepoException;
+    protected abstract Set<RelationsPair> getAllChildRelations(Collection<RecordId> recordIds) throws RawRepoException;
 
     /**
-     * Given a RecordId this function finds all children under that record and loads data relevant for changedRecord
+     * Gets the child relation pairs directly below the given RecordIds, with
+     * the record state
      *
-     * @param recordId The RecordId of the top most record
+     * @param recordIds The RecordIds for which to find children
+     * @return A list of relation pairs
      * @throws RawRepoException done at failure
      */
-    private void prepareCache(RecordId recordId) throws RawRepoException {
-        final Set<RelationsPair> relationsPairs = getAllChildRelations(recordId);
+    protected abstract Set<RelationsPair> getChildRelations(Collection<RecordId> recordIds) throws RawRepoException;
 
-        // Extract all RecordIds from the set of pairs
-        final Set<RecordId> allRecordIds = new HashSet<>();
-        for (RelationsPair pair : relationsPairs) {
-            allRecordIds.add(pair.getChild());
-            allRecordIds.add(pair.getParent());
-        }
+    /**
+     * Look up the state of some records, and whether anything points to them
+     *
+     * @param recordIds        The RecordIds to probe
+     * @param maxRelationsToMe Stop counting relations to a record at this
+     * @return Map of RecordIds to probe, records that doesn't exist are absent
+     * @throws RawRepoException done at failure
+     */
+    protected abstract Map<RecordId, RecordProbe> probeRecords(Collection<RecordId> recordIds, int maxRelationsToMe) throws RawRepoException;
 
-        final Map<RecordId, Boolean> isRecordDeletedMap = isRecordDeletedList(allRecordIds);
-        this.mimetypeCache = getMimeTypeOfList(allRecordIds);
+    /**
+     * Given some RecordIds this function loads data relevant for changedRecord
+     * <p>
+     * The records are probed first. If nothing points to them (leaves without
+     * siblings) nothing more is loaded. If a lot points to them, all relations
+     * below them are loaded in one go. Otherwise the relations are loaded a
+     * level at a time, when the traversal gets to them.
+     *
+     * @param recordIds The RecordIds of the top most records
+     * @throws RawRepoException done at failure
+     */
+    private void prepareCache(Collection<RecordId> recordIds) throws RawRepoException {
+        this.mimetypeCache = new HashMap<>();
         this.recordExistsCache = new HashMap<>();
         this.recordExistsMaybeDeletedCache = new HashMap<>();
         this.getRelationsParentsCache = new HashMap<>();
         this.getRelationsChildrenCache = new HashMap<>();
         this.getRelationsSiblingsFromMeCache = new HashMap<>();
         this.getRelationsSiblingsToMeCache = new HashMap<>();
+        this.internedRecordIds = new HashMap<>();
+        this.nextLevel = new HashSet<>();
+
+        final Map<RecordId, RecordProbe> probes = probeRecords(recordIds, EAGER_RELATIONS_TO_ME);
+        final List<RecordId> notLeaves = new ArrayList<>();
+        int relationsToMe = 0;
+        for (RecordId recordId : recordIds) {
+            final RecordProbe probe = probes.get(recordId);
+            if (probe == null) {
+                // Doesn't exist (or cannot be probed), no assumptions are made
+                notLeaves.add(recordId);
+                continue;
+            }
+            this.recordExistsCache.put(recordId, !probe.isDeleted());
+            this.recordExistsMaybeDeletedCache.put(recordId, true);
+            this.mimetypeCache.put(recordId, probe.getMimeType());
+            if (probe.getRelationsToMe() == 0) {
+                this.getRelationsChildrenCache.put(recordId, new HashSet<>());
+                this.getRelationsSiblingsToMeCache.put(recordId, new HashSet<>());
+            } else {
+                notLeaves.add(recordId);
+                relationsToMe += probe.getRelationsToMe();
+            }
+        }
+
+        if (notLeaves.isEmpty()) {
+            countPrepareCache(PrepareCacheCounter.LEAF);
+        } else if (relationsToMe >= EAGER_RELATIONS_TO_ME) {
+            countPrepareCache(PrepareCacheCounter.EAGER);
+            final Set<RelationsPair> relationsPairs = getAllChildRelations(notLeaves);
+            addRelationsPairs(relationsPairs, true);
+            // Records at the bottom of the tree, if they are traversed the level below them is loaded in one go
+            for (RelationsPair pair : relationsPairs) {
+                if (!this.getRelationsChildrenCache.containsKey(pair.getChild()) &&
+                    !this.getRelationsSiblingsToMeCache.containsKey(pair.getChild())) {
+                    this.nextLevel.add(pair.getChild());
+                }
+            }
+        } else {
+            countPrepareCache(PrepareCacheCounter.LAZY);
+            this.nextLevel.addAll(notLeaves);
+        }
+    }
+
+    /**
+     * Load the relations to a record, along with the rest of the records known
+     * to be at the next level of the traversal
+     *
+     * @param recordId The record that is missing from the cache
+     * @throws RawRepoException done at failure
+     */
+    private void loadNextLevel(RecordId recordId) throws RawRepoException {
+        final Set<RecordId> level = this.nextLevel;
+        level.add(recordId);
+        this.nextLevel = new HashSet<>();
+        countPrepareCache(PrepareCacheCounter.LEVEL_LOADED);
+
+        final Set<RelationsPair> relationsPairs = getChildRelations(level);
+        for (RecordId levelRecordId : level) {
+            this.getRelationsChildrenCache.putIfAbsent(levelRecordId, new HashSet<>());
+            this.getRelationsSiblingsToMeCache.putIfAbsent(levelRecordId, new HashSet<>());
+        }
+        // Only what points to the level is complete, not what the children point to
+        addRelationsPairs(relationsPairs, false);
+        for (RelationsPair pair : relationsPairs) {
+            if (!this.getRelationsChildrenCache.containsKey(pair.getChild())) {
+                this.nextLevel.add(pair.getChild());
+            }
+        }
+    }
+
+    /**
+     * Add relations and record state to the caches
+     *
+     * @param relationsPairs relations loaded
+     * @param outbound       if the relations from the children are complete
+     *                       too
+     * @throws RawRepoException done at failure
+     */
+    private void addRelationsPairs(Set<RelationsPair> relationsPairs, boolean outbound) throws RawRepoException {
+        // Extract all RecordIds from the set of pairs
+        final Set<RecordId> allRecordIds = new HashSet<>();
+        for (RelationsPair pair : relationsPairs) {
+            allRecordIds.add(intern(pair.getChild()));
+            allRecordIds.add(intern(pair.getParent()));
+        }
+
+        final Map<RecordId, Boolean> isRecordDeletedMap;
+        if (relationsPairs.stream().allMatch(RelationsPair::isRecordStateKnown)) {
+            // The state came along with the relations, no need to ask again
+            isRecordDeletedMap = new HashMap<>();
+            for (RelationsPair pair : relationsPairs) {
+                if (pair.getChildDeleted() != null) {
+                    isRecordDeletedMap.put(pair.getChild(), pair.getChildDeleted());
+                    this.mimetypeCache.put(intern(pair.getChild()), pair.getChildMimeType());
+                }
+                if (pair.getParentDeleted() != null) {
+                    isRecordDeletedMap.put(pair.getParent(), pair.getParentDeleted());
+                    this.mimetypeCache.put(intern(pair.getParent()), pair.getParentMimeType());
+                }
+            }
+        } else {
+            isRecordDeletedMap = isRecordDeletedList(allRecordIds);
+            this.mimetypeCache.putAll(getMimeTypeOfList(allRecordIds));
+        }
 
         // Generate list of existing records by checking if a record is deleted or not, or if not present at all
         for (RecordId foundRecordId : allRecordIds) {
@@ -815,11 +1526,11 @@ public abstract class RawRepoDAO {
         }
 
         for (RelationsPair pair : relationsPairs) {
-            RecordId parent = pair.getParent();
-            RecordId child = pair.getChild();
+            RecordId parent = intern(pair.getParent());
+            RecordId child = intern(pair.getChild());
 
             // parent relations (parent with different bibliographicRecordId
-            if (!parent.getBibliographicRecordId().equals(child.getBibliographicRecordId())) {
+            if (outbound && !parent.getBibliographicRecordId().equals(child.getBibliographicRecordId())) {
                 if (!getRelationsParentsCache.containsKey(child)) {
                     getRelationsParentsCache.put(child, new HashSet<>());
                 }
@@ -843,7 +1554,7 @@ public abstract class RawRepoDAO {
             }
 
             // siblings from me (parents with same bibliographicRecordId
-            if (parent.getBibliographicRecordId().equals(child.getBibliographicRecordId())) {
+            if (outbound && parent.getBibliographicRecordId().equals(child.getBibliographicRecordId())) {
                 if (!getRelationsSiblingsFromMeCache.containsKey(child)) {
                     getRelationsSiblingsFromMeCache.put(child, new HashSet<>());
                 }
@@ -852,6 +1563,26 @@ public abstract class RawRepoDAO {
         }
     }
 
+    /**
+     * The instance of a RecordId used in the caches
+     * <p>
+     * Relations of large records list the same records many times, this keeps
+     * one {@link CompactRecordId} of each, and makes lookups of them hit the
+     * identity check
+     *
+     * @param recordId record id
+     * @return the compact record id made when the first equal record id was
+     * seen since the cache was prepared
+     */
+    private RecordId intern(RecordId recordId) {
+        RecordId interned = internedRecordIds.get(recordId);
+        if (interned == null) {
+            interned = new CompactRecordId(recordId);
+            internedRecordIds.put(interned, interned);
+        }
+        return interned;
+    }
+
     /**
      * Traverse relations calling enqueue(...) to trigger manipulation of change
      * Uses default priority
@@ -861,12 +1592,7 @@ public abstract class RawRepoDAO {
      * @throws RawRepoException done at failure
      */
     public void changedRecord(String provider, RecordId recordId) throws RawRepoException, VipCoreException {
-        prepareCache(recordId);
-
-        final List<EnqueueJob> jobs = new ArrayList<>();
-        changedRecord(jobs, provider, recordId, recordId.getAgencyId(), true, 1000);
-
-        enqueueBulk(jobs);
+        traverseAndEnqueue(provider, Collections.singletonList(recordId), 1000);
     }
 
     /**
@@ -880,12 +1606,80 @@ public abstract class RawRepoDAO {
      *                          Default value is 1000
      */
     public void changedRecord(String provider, RecordId recordId, int priority) throws RawRepoException, VipCoreException {
-        prepareCache(recordId);
+        traverseAndEnqueue(provider, Collections.singletonList(recordId), priority);
+    }
+
+    /**
+     * Traverse relations for a number of changed records, and enqueue the
+     * result in one go
+     * Uses default priority
+     *
+     * @param provider  parameter to pass to enqueue(...)
+     * @param recordIds the records that have been changed
+     * @throws RawRepoException done at failure
+     * @see #changedRecords(String, Collection, int)
+     */
+    public void changedRecords(String provider, Collection<RecordId> recordIds) throws RawRepoException, VipCoreException {
+        traverseAndEnqueue(provider, recordIds, 1000);
+    }
+
+    /**
+     * Traverse relations for a number of changed records, and enqueue the
+     * result in one go
+     * <p>
+     * The relations below all the records are loaded at once, and a job that
+     * is produced by more than one of the records is only enqueued once (with
+     * the fastest priority). If a record cannot be traversed, nothing is
+     * enqueued.
+     *
+     * @param provider  parameter to pass to enqueue(...)
+     * @param recordIds the records that have been changed
+     * @param priority  the priority of how fast the records should be
+     *                  dequeued - lower number = fast dequeue.
+     * @throws RawRepoException done at failure
+     */
+    public void changedRecords(String provider, Collection<RecordId> recordIds, int priority) throws RawRepoException, VipCoreException {
+        traverseAndEnqueue(provider, recordIds, priority);
+    }
+
+    private void traverseAndEnqueue(String provider, Collection<RecordId> recordIds, int priority) throws RawRepoException, VipCoreException {
+        if (recordIds.isEmpty()) {
+            return;
+        }
+        prepareCache(recordIds);
 
         final List<EnqueueJob> jobs = new ArrayList<>();
-        changedRecord(jobs, provider, recordId, recordId.getAgencyId(), true, priority);
+        for (RecordId recordId : recordIds) {
+            changedRecord(jobs, provider, recordId, recordId.getAgencyId(), true, priority);
+        }
 
-        enqueueBulk(jobs);
+        enqueueBulk(uniqueJobs(jobs));
+    }
+
+    /**
+     * Remove duplicate jobs
+     * <p>
+     * The workers a job is queued for are given by the queue rules of
+     * provider, changed and leaf, so jobs that agree on those and the record
+     * end up in the same queue entries.
+     *
+     * @param jobs jobs in the order they were made
+     * @return first occurrence of each job, with the lowest priority number
+     */
+    static List<EnqueueJob> uniqueJobs(List<EnqueueJob> jobs) {
+        final Map<List<Object>, EnqueueJob> unique = new LinkedHashMap<>();
+        for (EnqueueJob job : jobs) {
+            final List<Object> key = Arrays.asList(job.getJob().getBibliographicRecordId(), job.getJob().getAgencyId(),
+                                                   job.getProvider(), job.isChanged(), job.isLeaf());
+            final EnqueueJob existing = unique.putIfAbsent(key, job);
+            if (existing != null && existing.getPriority() > job.getPriority()) {
+                existing.withPriority(job.getPriority());
+            }
+        }
+        if (unique.size() == jobs.size()) {
+            return jobs;
+        }
+        return new ArrayList<>(unique.values());
     }
 
     private void changedRecord(List<EnqueueJob> jobs, String provider, RecordId recordId, int originalAgencyId, boolean changed, int priority) throws RawRepoException, VipCoreException {
@@ -893,7 +1687,7 @@ public abstract class RawRepoDAO {
         int agencyId = recordId.getAgencyId();
         if (recordExistsMaybeDeletedWithCache(bibliographicRecordId, agencyId)) {
             if (recordExistsWithCache(bibliographicRecordId, agencyId)) {
-                HashSet<Integer> agencyIds = findParentsSiblingsFilter(bibliographicRecordId, agencyId);
+                AgencySet agencyIds = findParentsSiblingsFilter(bibliographicRecordId, agencyId);
                 changedRecord(jobs, provider, bibliographicRecordId, agencyIds, originalAgencyId, changed, priority);
             } else {
                 jobs.add(new EnqueueJob()
@@ -916,14 +1710,15 @@ public abstract class RawRepoDAO {
         }
     }
 
-    private void changedRecord(List<EnqueueJob> jobs, String provider, String bibliographicRecordId, Set<Integer> agencyIds, int originalAgencyId, boolean changed, int priority)
+    private void changedRecord(List<EnqueueJob> jobs, String provider, String bibliographicRecordId, AgencySet agencyIds, int originalAgencyId, boolean changed, int priority)
             throws RawRepoException, VipCoreException {
-        Set<Integer> agencies = new HashSet<>();
-        for (Integer agencyId : agencyIds) {
-            findMinorSiblingsAdd(agencies, bibliographicRecordId, agencyId, true);
+        AgencySet agencies = new AgencySet();
+        for (int i = 0; i < agencyIds.size(); i++) {
+            findMinorSiblingsAdd(agencies, bibliographicRecordId, agencyIds.get(i), true);
         }
-        Set<Integer> searchChildrenAgencies = new HashSet<>(agencies);
-        for (Integer agency : agencies) {
+        AgencySet searchChildrenAgencies = new AgencySet(agencies);
+        for (int i = 0; i < agencies.size(); i++) {
+            int agency = agencies.get(i);
             if (recordExistsWithCache(bibliographicRecordId, agency)) {
                 findMajorSiblings(searchChildrenAgencies, bibliographicRecordId, agency);
             } else {
@@ -941,15 +1736,16 @@ public abstract class RawRepoDAO {
         Set<RecordId> foreignChildren = new HashSet<>(); // Children with different agencyid
         Set<RecordId> minorChildren = new HashSet<>(); // Children that aren't
 
-        for (Integer searchAgency : searchChildrenAgencies) {
+        for (int i = 0; i < searchChildrenAgencies.size(); i++) {
+            int searchAgency = searchChildrenAgencies.get(i);
             if (recordExistsWithCache(bibliographicRecordId, searchAgency)) {
                 for (RecordId recordId : getRelationsChildrenWithCache(new RecordId(bibliographicRecordId, searchAgency))) {
                     if (recordId.getAgencyId() == searchAgency) {
                         if (agencies.contains(searchAgency)) {
                             children.add(recordId);
                         } else {
-                            for (Integer agency : agencies) {
-                                minorChildren.add(new RecordId(recordId.getBibliographicRecordId(), agency));
+                            for (int j = 0; j < agencies.size(); j++) {
+                                minorChildren.add(new RecordId(recordId.getBibliographicRecordId(), agencies.get(j)));
                             }
                         }
                     } else {
@@ -960,14 +1756,21 @@ public abstract class RawRepoDAO {
         }
         // Find all children only by major sibling search
         // Filter out those by direct reference... there should be none?
-        Set<Integer> directChildAgencies = new HashSet<>();
-        children.stream().map(RecordId::getAgencyId).forEach(directChildAgencies::add);
-        foreignChildren.stream().map(RecordId::getAgencyId).forEach(directChildAgencies::add);
-        minorChildren.stream()
-                .filter(r -> !directChildAgencies.contains(r.getAgencyId()))
-                .forEach(children::add);
-
-        for (Integer agency : agencies) {
+        AgencySet directChildAgencies = new AgencySet();
+        for (RecordId child : children) {
+            directChildAgencies.add(child.getAgencyId());
+        }
+        for (RecordId child : foreignChildren) {
+            directChildAgencies.add(child.getAgencyId());
+        }
+        for (RecordId child : minorChildren) {
+            if (!directChildAgencies.contains(child.getAgencyId())) {
+                children.add(child);
+            }
+        }
+
+        for (int i = 0; i < agencies.size(); i++) {
+            int agency = agencies.get(i);
             RecordId recordId = new RecordId(bibliographicRecordId, agency);
 
             jobs.add(new EnqueueJob()
@@ -997,12 +1800,11 @@ public abstract class RawRepoDAO {
      * @param agencyId              start agency
      * @throws RawRepoException iv record doesn't exist or relations has errors
      */
-    private void findMajorSiblings(Set<Integer> agencies, String bibliographicRecordId, int agencyId) throws RawRepoException {
+    private void findMajorSiblings(AgencySet agencies, String bibliographicRecordId, int agencyId) throws RawRepoException {
         final Set<RecordId> siblings = getRelationsSiblingsFromMeWithCache(new RecordId(bibliographicRecordId, agencyId));
         for (RecordId sibling : siblings) {
             int siblingAgencyId = sibling.getAgencyId();
-            if (!agencies.contains(siblingAgencyId)) {
-                agencies.add(siblingAgencyId);
+            if (agencies.add(siblingAgencyId)) {
                 findMajorSiblings(agencies, bibliographicRecordId, siblingAgencyId);
             }
         }
@@ -1020,7 +1822,7 @@ public abstract class RawRepoDAO {
      * @param add                   whether to add this
      * @throws RawRepoException if unable to find relations
      */
-    private void findMinorSiblingsAdd(Set<Integer> agencies, String bibliographicRecordId, int agencyId, boolean add) throws RawRepoException {
+    private void findMinorSiblingsAdd(AgencySet agencies, String bibliographicRecordId, int agencyId, boolean add) throws RawRepoException {
         if (add) {
             agencies.add(agencyId);
         } else if (agencies.contains(agencyId)) {
@@ -1044,11 +1846,11 @@ public abstract class RawRepoDAO {
      * @param agencyId              agency to start from
      * @throws RawRepoException if a loop occurs
      */
-    private void findMajorSiblings(HashSet<Integer> agencies, String bibliographicRecordId, int agencyId) throws RawRepoException {
+    private void collectMajorSiblings(AgencySet agencies, String bibliographicRecordId, int agencyId) throws RawRepoException {
         final Set<RecordId> siblings = getRelationsSiblingsFromMeWithCache(new RecordId(bibliographicRecordId, agencyId));
         for (RecordId sibling : siblings) {
             agencies.add(sibling.getAgencyId());
-            findMajorSiblings(agencies, bibliographicRecordId, sibling.getAgencyId());
+            collectMajorSiblings(agencies, bibliographicRecordId, sibling.getAgencyId());
         }
     }
 
@@ -1061,14 +1863,14 @@ public abstract class RawRepoDAO {
      * @param add                   add minor siblings?
      * @throws RawRepoException if a loop occurs
      */
-    private void findParentsSiblingsTraverse(HashSet<Integer> agencies, String bibliographicRecordId, int agencyId, boolean add) throws RawRepoException {
+    private void findParentsSiblingsTraverse(AgencySet agencies, String bibliographicRecordId, int agencyId, boolean add) throws RawRepoException {
         RecordId recordId = new RecordId(bibliographicRecordId, agencyId);
         findMinorSiblingsAdd(agencies, bibliographicRecordId, agencyId, add);
 
-        final HashSet<Integer> major = new HashSet<>();
-        findMajorSiblings(major, bibliographicRecordId, agencyId);
-        for (Integer m : major) {
-            findParentsSiblingsTraverse(agencies, bibliographicRecordId, m, false);
+        final AgencySet major = new AgencySet();
+        collectMajorSiblings(major, bibliographicRecordId, agencyId);
+        for (int i = 0; i < major.size(); i++) {
+            findParentsSiblingsTraverse(agencies, bibliographicRecordId, major.get(i), false);
         }
         final String mimetypeOfRecordId = getMimeTypeOf(bibliographicRecordId, agencyId);
         for (RecordId parent : getRelationsParentsWithCache(recordId)) {
@@ -1080,17 +1882,19 @@ public abstract class RawRepoDAO {
         }
     }
 
-    private HashSet<Integer> findParentsSiblingsFilter(String bibliographicRecordId, int agencyId) throws RawRepoException {
-        HashSet<Integer> agencies = new HashSet<>();
+    private AgencySet findParentsSiblingsFilter(String bibliographicRecordId, int agencyId) throws RawRepoException {
+        AgencySet agencies = new AgencySet();
         findParentsSiblingsTraverse(agencies, bibliographicRecordId, agencyId, true);
-        agencies.removeIf(a -> {
+        for (int i = agencies.size() - 1; i >= 0; i--) {
+            int a = agencies.get(i);
             try {
-                return a != agencyId && recordExistsMaybeDeletedWithCache(bibliographicRecordId, a);
+                if (a != agencyId && recordExistsMaybeDeletedWithCache(bibliographicRecordId, a)) {
+                    agencies.removeAt(i);
+                }
             } catch (RawRepoException ex) {
                 logger.warn("Some SQLException converted to RawRepoException has been caught - why, oh why ? " + ex);
             }
-            return false;
-        });
+        }
         return agencies;
 
     }
@@ -20,27 +20,27 @@
  */
 package dk.dbc.rawrepo;
 
-import org.perf4j.StopWatch;
-import org.perf4j.log4j.Log4JStopWatch;
 import org.slf4j.ext.XLogger;
 import org.slf4j.ext.XLoggerFactory;
 
-import javax.xml.bind.DatatypeConverter;
 import java.sql.CallableStatement;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.sql.Timestamp;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author DBC {@literal <dbc.dk>}
@@ -50,23 +50,82 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
     private static final XLogger logger = XLoggerFactory.getXLogger(RawRepoDAOPostgreSQLImpl.class);
 
     private final Connection connection;
-    private static final long TIMER_THRESHOLD_MS = 10;
+    private final ContentDictionaries contentDictionaries;
+    // Prepared statements of this connection, by sql
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private static final long TIMER_THRESHOLD_NS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int RECORD_IDS_CHUNK_SIZE = 1000;
+    private static final int MAX_RELATION_DEPTH = 50;
 
-    private static final int SCHEMA_VERSION = 28;
-    private static final int SCHEMA_VERSION_COMPATIBLE = 26;
+    private static final int SCHEMA_VERSION = 39;
+    private static final int SCHEMA_VERSION_COMPATIBLE = 38;
 
     private static final String VALIDATE_SCHEMA = "SELECT warning FROM version WHERE version=?";
-    private static final String SELECT_RECORD = "SELECT deleted, mimetype, content, created, modified, trackingId FROM records WHERE bibliographicrecordid=? AND agencyid=?";
-    private static final String INSERT_RECORD = "INSERT INTO records(bibliographicrecordid, agencyid, deleted, mimetype, content, created, modified, trackingId) VALUES(?, ?, ?, ?, ?, ?, ?, ?)";
-    private static final String UPDATE_RECORD = "UPDATE records SET deleted=?, mimetype=?, content=?, modified=?, trackingId=? WHERE bibliographicrecordid=? AND agencyid=?";
+    private static final String SELECT_RECORD = "SELECT deleted, mimetype, content, content_bytes, content_codec, created, modified, trackingId FROM records WHERE bibliographicrecordid=? AND agencyid=?";
+    private static final String SELECT_RECORDS = "SELECT bibliographicrecordid, agencyid, deleted, mimetype, content, content_bytes, content_codec, created, modified, trackingId" +
+            " FROM records JOIN unnest(?::VARCHAR[], ?::NUMERIC[]) AS ids(bibliographicrecordid, agencyid) USING (bibliographicrecordid, agencyid)";
+    private static final int ENRICHMENT_CHAIN_MAX_DEPTH = 16;
+    private static final String ENRICHMENT_CHAINS = "WITH RECURSIVE chain(bibliographicrecordid, start_agencyid, agencyid, depth) AS (" +
+            " SELECT ids.bibliographicrecordid, ids.agencyid, ids.agencyid, 0 FROM unnest(?::VARCHAR[], ?::NUMERIC[]) AS ids(bibliographicrecordid, agencyid)" +
+            " UNION ALL" +
+            " SELECT chain.bibliographicrecordid, chain.start_agencyid, relations.refer_agencyid, chain.depth + 1" +
+            " FROM chain JOIN relations USING (bibliographicrecordid, agencyid)" +
+            " WHERE relations.refer_bibliographicrecordid = relations.bibliographicrecordid AND chain.depth < " + ENRICHMENT_CHAIN_MAX_DEPTH +
+            ")";
+    private static final String SELECT_ENRICHMENT_CHAINS = ENRICHMENT_CHAINS +
+            " SELECT chain.bibliographicrecordid, chain.agencyid, chain.start_agencyid, chain.depth, deleted, mimetype, content, content_bytes, content_codec, created, modified, trackingId" +
+            " FROM chain LEFT JOIN records USING (bibliographicrecordid, agencyid) ORDER BY chain.bibliographicrecordid, chain.start_agencyid, chain.depth DESC";
+    private static final String SELECT_ENRICHMENT_CHAINS_MODIFIED = ENRICHMENT_CHAINS +
+            " SELECT chain.bibliographicrecordid, chain.agencyid, chain.start_agencyid, chain.depth, modified" +
+            " FROM chain LEFT JOIN records USING (bibliographicrecordid, agencyid) ORDER BY chain.bibliographicrecordid, chain.start_agencyid, chain.depth DESC";
+    private static final String SELECT_ALL_AGENCIES_FOR_IDS_WITH_DELETED = "SELECT bibliographicrecordid, agencyid, deleted FROM records WHERE bibliographicrecordid = ANY(?::VARCHAR[])";
+    private static final String SELECT_RELATIONS_PARENTS_LIST = "SELECT bibliographicrecordid, agencyid, refer_bibliographicrecordid, refer_agencyid" +
+            " FROM relations JOIN unnest(?::VARCHAR[], ?::NUMERIC[]) AS ids(bibliographicrecordid, agencyid) USING (bibliographicrecordid, agencyid)" +
+            " WHERE refer_bibliographicrecordid <> bibliographicrecordid";
+    private static final String SELECT_MODIFIED_LIST = "SELECT bibliographicrecordid, agencyid, modified" +
+            " FROM records JOIN unnest(?::VARCHAR[], ?::NUMERIC[]) AS ids(bibliographicrecordid, agencyid) USING (bibliographicrecordid, agencyid)";
+    private static final String SELECT_PROBE_LIST = "SELECT bibliographicrecordid, agencyid, deleted, mimetype," +
+            " (SELECT COUNT(*) FROM (SELECT 1 FROM relations r WHERE r.refer_bibliographicrecordid = records.bibliographicrecordid AND r.refer_agencyid = records.agencyid LIMIT ?) AS l)" +
+            " FROM records JOIN unnest(?::VARCHAR[], ?::NUMERIC[]) AS ids(bibliographicrecordid, agencyid) USING (bibliographicrecordid, agencyid)";
+    private static final String SELECT_MIMETYPE_LIST = "SELECT bibliographicrecordid, agencyid, mimetype" +
+            " FROM records JOIN unnest(?::VARCHAR[], ?::NUMERIC[]) AS ids(bibliographicrecordid, agencyid) USING (bibliographicrecordid, agencyid)";
+    private static final String SELECT_DELETED_LIST = "SELECT bibliographicrecordid, agencyid, deleted" +
+            " FROM records JOIN unnest(?::VARCHAR[], ?::NUMERIC[]) AS ids(bibliographicrecordid, agencyid) USING (bibliographicrecordid, agencyid)";
+    // created is only set when the record is new, updating a record fires the archive trigger
+    private static final String UPSERT_RECORD = "INSERT INTO records(bibliographicrecordid, agencyid, deleted, mimetype, content_bytes, content_codec, created, modified, trackingId, content_hash)" +
+            " VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)" +
+            " ON CONFLICT (bibliographicrecordid, agencyid) DO UPDATE SET deleted=EXCLUDED.deleted, mimetype=EXCLUDED.mimetype, content=NULL," +
+            " content_bytes=EXCLUDED.content_bytes, content_codec=EXCLUDED.content_codec, modified=EXCLUDED.modified, trackingId=EXCLUDED.trackingId," +
+            " content_hash=EXCLUDED.content_hash";
+    // Updates nothing (0 rows) if content, deleted and mimetype are unchanged, a NULL content_hash is never unchanged
+    private static final String UPSERT_RECORD_IF_CHANGED = UPSERT_RECORD +
+            " WHERE records.content_hash IS DISTINCT FROM EXCLUDED.content_hash OR records.content_hash IS NULL" +
+            " OR records.deleted <> EXCLUDED.deleted OR records.mimetype <> EXCLUDED.mimetype";
+    // The update counts of a batch cannot tell which records were written, with reWriteBatchedInserts they are SUCCESS_NO_INFO
+    private static final String UPSERT_RECORDS_IF_CHANGED = UPSERT_RECORD_IF_CHANGED +
+            " RETURNING bibliographicrecordid, agencyid";
     private static final String SELECT_DELETED = "SELECT deleted FROM records WHERE bibliographicrecordid=? AND agencyid=?";
     private static final String SELECT_MIMETYPE = "SELECT mimetype FROM records WHERE bibliographicrecordid=? AND agencyid=?";
 
     private static final String HISTORIC_METADATA = "SELECT created, modified, deleted, mimetype, trackingId FROM records WHERE agencyid=? AND bibliographicrecordid=?" +
             " UNION SELECT created, modified, deleted, mimetype, trackingId FROM records_archive WHERE agencyid=? AND bibliographicrecordid=?" +
             " ORDER BY modified DESC";
-    private static final String HISTORIC_CONTENT = "SELECT content FROM records WHERE agencyid=? AND bibliographicrecordid=? AND modified=?" +
-            " UNION SELECT content FROM records_archive WHERE agencyid=? AND bibliographicrecordid=? AND modified=?";
+    private static final String HISTORIC_CONTENT = "SELECT content, content_bytes, content_codec FROM records WHERE agencyid=? AND bibliographicrecordid=? AND modified=?" +
+            " UNION SELECT content, content_bytes, content_codec FROM records_archive WHERE agencyid=? AND bibliographicrecordid=? AND modified=?";
+
+    // A page of history, seeks on the (bibliographicrecordid, agencyid, modified) keys of both tables
+    private static final String HISTORIC_METADATA_PAGE = "(SELECT created, modified, deleted, mimetype, trackingId FROM records" +
+            " WHERE agencyid=? AND bibliographicrecordid=? AND modified <= COALESCE(?::TIMESTAMP WITH TIME ZONE, 'infinity'))" +
+            " UNION (SELECT created, modified, deleted, mimetype, trackingId FROM records_archive" +
+            " WHERE agencyid=? AND bibliographicrecordid=? AND modified <= COALESCE(?::TIMESTAMP WITH TIME ZONE, 'infinity')" +
+            " ORDER BY modified DESC LIMIT ?)" +
+            " ORDER BY modified DESC LIMIT ?";
+    private static final String HISTORIC_CONTENT_LIST = "SELECT bibliographicrecordid, agencyid, modified, content, content_bytes, content_codec" +
+            " FROM records JOIN unnest(?::VARCHAR[], ?::NUMERIC[], ?::TIMESTAMP WITH TIME ZONE[]) AS v(bibliographicrecordid, agencyid, modified)" +
+            " USING (bibliographicrecordid, agencyid, modified)" +
+            " UNION ALL SELECT bibliographicrecordid, agencyid, modified, content, content_bytes, content_codec" +
+            " FROM records_archive JOIN unnest(?::VARCHAR[], ?::NUMERIC[], ?::TIMESTAMP WITH TIME ZONE[]) AS v(bibliographicrecordid, agencyid, modified)" +
+            " USING (bibliographicrecordid, agencyid, modified)";
 
     private static final String TRACKING_IDS_SINCE = "SELECT trackingid, modified FROM records" +
             " WHERE agencyid=? AND bibliographicrecordid = ? AND modified >= ?" +
@@ -79,10 +138,38 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
     private static final String SELECT_RELATIONS_CHILDREN = "SELECT bibliographicrecordid, agencyid FROM relations WHERE refer_bibliographicrecordid=? AND refer_agencyid=? AND refer_bibliographicrecordid <> bibliographicrecordid";
     private static final String SELECT_RELATIONS_SIBLINGS_TO_ME = "SELECT bibliographicrecordid, agencyid FROM relations WHERE refer_bibliographicrecordid=? AND refer_agencyid=? AND refer_bibliographicrecordid = bibliographicrecordid";
     private static final String SELECT_RELATIONS_SIBLINGS_FROM_ME = "SELECT refer_bibliographicrecordid, refer_agencyid FROM relations WHERE bibliographicrecordid=? AND agencyid=? AND refer_bibliographicrecordid = bibliographicrecordid";
+    // All relations below some records, with the state of the records at both ends.
+    // A relation is only followed if the child isn't already on the path, and
+    // no deeper than the given depth
+    private static final String SELECT_ALL_CHILD_RELATIONS = "WITH RECURSIVE tree(bibliographicrecordid, agencyid, refer_bibliographicrecordid, refer_agencyid, depth, path) AS (" +
+            " SELECT bibliographicrecordid, agencyid, refer_bibliographicrecordid, refer_agencyid, 1," +
+            " ARRAY[refer_agencyid || ':' || refer_bibliographicrecordid, agencyid || ':' || bibliographicrecordid]" +
+            " FROM relations JOIN unnest(?::VARCHAR[], ?::NUMERIC[]) AS roots(refer_bibliographicrecordid, refer_agencyid) USING (refer_bibliographicrecordid, refer_agencyid)" +
+            " UNION ALL" +
+            " SELECT r.bibliographicrecordid, r.agencyid, r.refer_bibliographicrecordid, r.refer_agencyid, t.depth + 1," +
+            " t.path || (r.agencyid || ':' || r.bibliographicrecordid)" +
+            " FROM relations r JOIN tree t ON r.refer_bibliographicrecordid = t.bibliographicrecordid AND r.refer_agencyid = t.agencyid" +
+            " WHERE t.depth < ? AND r.agencyid || ':' || r.bibliographicrecordid <> ALL(t.path)" +
+            " ), pairs AS (" +
+            " SELECT bibliographicrecordid, agencyid, refer_bibliographicrecordid, refer_agencyid, MAX(depth) AS depth FROM tree" +
+            " GROUP BY bibliographicrecordid, agencyid, refer_bibliographicrecordid, refer_agencyid" +
+            " )" +
+            " SELECT p.bibliographicrecordid, p.agencyid, c.deleted, c.mimetype, p.refer_bibliographicrecordid, p.refer_agencyid, r.deleted, r.mimetype, p.depth" +
+            " FROM pairs p" +
+            " LEFT JOIN records c ON c.bibliographicrecordid = p.bibliographicrecordid AND c.agencyid = p.agencyid" +
+            " LEFT JOIN records r ON r.bibliographicrecordid = p.refer_bibliographicrecordid AND r.agencyid = p.refer_agencyid";
     private static final String SELECT_ALL_AGENCIES_FOR_ID = "SELECT agencyid FROM records WHERE bibliographicrecordid=?";
     private static final String SELECT_ALL_AGENCIES_FOR_ID_SKIP_DELETED = "SELECT agencyid FROM records WHERE bibliographicrecordid=? AND deleted='f'";
+    private static final String SELECT_ALL_AGENCIES_FOR_ID_WITH_DELETED = "SELECT agencyid, deleted FROM records WHERE bibliographicrecordid=?";
     private static final String DELETE_RELATIONS = "DELETE FROM relations WHERE bibliographicrecordid=? AND agencyid=?";
-    private static final String INSERT_RELATION = "INSERT INTO relations (bibliographicrecordid, agencyid, refer_bibliographicrecordid, refer_agencyid) VALUES(?, ?, ?, ?)";
+    private static final String SELECT_RELATIONS_LIST = "SELECT bibliographicrecordid, agencyid, refer_bibliographicrecordid, refer_agencyid" +
+            " FROM relations JOIN unnest(?::VARCHAR[], ?::NUMERIC[]) AS ids(bibliographicrecordid, agencyid) USING (bibliographicrecordid, agencyid)";
+    private static final String DELETE_RELATIONS_LIST = "DELETE FROM relations" +
+            " USING unnest(?::VARCHAR[], ?::NUMERIC[], ?::VARCHAR[], ?::NUMERIC[]) AS ids(bibliographicrecordid, agencyid, refer_bibliographicrecordid, refer_agencyid)" +
+            " WHERE relations.bibliographicrecordid = ids.bibliographicrecordid AND relations.agencyid = ids.agencyid" +
+            " AND relations.refer_bibliographicrecordid = ids.refer_bibliographicrecordid AND relations.refer_agencyid = ids.refer_agencyid";
+    private static final String INSERT_RELATIONS_LIST = "INSERT INTO relations (bibliographicrecordid, agencyid, refer_bibliographicrecordid, refer_agencyid)" +
+            " SELECT * FROM unnest(?::VARCHAR[], ?::NUMERIC[], ?::VARCHAR[], ?::NUMERIC[])";
 
     private static final String CALL_ENQUEUE = "SELECT * FROM enqueue(?, ?, ?, ?, ?, ?)";
     private static final String CALL_ENQUEUE_BULK = "SELECT * FROM enqueue_bulk(?, ?, ?, ?, ?, ?)";
@@ -100,6 +187,70 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
      */
     public RawRepoDAOPostgreSQLImpl(Connection connection) {
         this.connection = connection;
+        this.contentDictionaries = new ContentDictionaries(connection);
+    }
+
+    /**
+     * A prepared statement, that is reused for the lifetime of the dao
+     * <p>
+     * Only use this with the sql constants, and don't close the statement.
+     * Statements are prepared when first used, and closed when the dao or
+     * connection is closed. If the connection is from a pool, closing the
+     * (logical) connection closes them too, so a dao should not outlive
+     * its connection.
+     *
+     * @param sql the statement
+     * @return prepared statement with no parameters set
+     * @throws SQLException if the statement cannot be prepared
+     */
+    private PreparedStatement statement(String sql) throws SQLException {
+        PreparedStatement stmt = statements.get(sql);
+        if (stmt == null || stmt.isClosed()) {
+            stmt = connection.prepareStatement(sql);
+            statements.put(sql, stmt);
+        } else {
+            stmt.clearParameters();
+        }
+        return stmt;
+    }
+
+    /**
+     * A prepared statement with a RETURNING clause, that is reused for the
+     * lifetime of the dao
+     * <p>
+     * Like {@link #statement(String)}, but the returned rows of a batch can
+     * be read with {@link PreparedStatement#getGeneratedKeys()}
+     *
+     * @param sql the statement, ending with RETURNING
+     * @return prepared statement with no parameters set
+     * @throws SQLException if the statement cannot be prepared
+     */
+    private PreparedStatement returningStatement(String sql) throws SQLException {
+        PreparedStatement stmt = statements.get(sql);
+        if (stmt == null || stmt.isClosed()) {
+            stmt = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+            statements.put(sql, stmt);
+        } else {
+            stmt.clearParameters();
+        }
+        return stmt;
+    }
+
+    /**
+     * Close the prepared statements of the dao
+     * <p>
+     * The connection is not closed
+     */
+    @Override
+    public void close() {
+        for (PreparedStatement stmt : statements.values()) {
+            try {
+                stmt.close();
+            } catch (SQLException ex) {
+                logger.debug("Error closing statement: {}", ex.getMessage());
+            }
+        }
+        statements.clear();
     }
 
     @Override
@@ -154,36 +305,276 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
      */
     @Override
     public Record fetchRecord(String bibliographicRecordId, int agencyId) throws RawRepoException {
-        final StopWatch watch = new Log4JStopWatch().setTimeThreshold(TIMER_THRESHOLD_MS);
-        try (PreparedStatement stmt = connection.prepareStatement(SELECT_RECORD)) {
+        final long start = System.nanoTime();
+        try {
+            PreparedStatement stmt = statement(SELECT_RECORD);
             stmt.setString(1, bibliographicRecordId);
             stmt.setInt(2, agencyId);
 
             try (ResultSet resultSet = stmt.executeQuery()) {
                 if (resultSet.next()) {
-                    final boolean deleted = resultSet.getBoolean("DELETED");
-                    final String mimeType = resultSet.getString("MIMETYPE");
-                    final String base64Content = resultSet.getString("CONTENT");
-                    byte[] content = base64Content == null ? null : DatatypeConverter.parseBase64Binary(base64Content);
-                    Instant created = resultSet.getTimestamp("CREATED").toInstant();
-                    Instant modified = resultSet.getTimestamp("MODIFIED").toInstant();
-                    String trackingId = resultSet.getString("TRACKINGID");
-                    Record record = new RecordImpl(bibliographicRecordId, agencyId, deleted, mimeType, content, created, modified, trackingId, false);
-
-                    resultSet.close();
-                    stmt.close();
-                    return record;
+                    return recordFromResultSet(resultSet, bibliographicRecordId, agencyId);
                 }
             }
         } catch (SQLException ex) {
+            failed("SELECT_RECORD");
             logger.error(LOG_DATABASE_ERROR, ex);
             throw new RawRepoException("Error fetching record", ex);
         } finally {
-            watch.stop(String.format("rawrepo.query.SELECT_RECORD(%s, %s)", bibliographicRecordId, agencyId));
+            timed("SELECT_RECORD", start, -1);
         }
         return new RecordImpl(new RecordId(bibliographicRecordId, agencyId));
     }
 
+    /**
+     * Fetch a number of records from the database
+     * <p>
+     * The ids are sent as two arrays, in chunks, so each chunk is one
+     * round-trip with a fixed statement text
+     *
+     * @param recordIds ids of the records to fetch
+     * @return map of id to fetched / new Record, in the order of recordIds
+     * @throws RawRepoException when something goes wrong
+     */
+    @Override
+    public Map<RecordId, Record> fetchRecords(Collection<RecordId> recordIds) throws RawRepoException {
+        final Map<RecordId, Record> result = new LinkedHashMap<>();
+        for (RecordId recordId : recordIds) {
+            result.put(recordId, null);
+        }
+        result.putAll(selectByRecordIds(SELECT_RECORDS, "SELECT_RECORDS", "records", result.keySet(),
+                                        resultSet -> recordFromResultSet(resultSet, resultSet.getString("BIBLIOGRAPHICRECORDID"), resultSet.getInt("AGENCYID"))));
+        for (Map.Entry<RecordId, Record> entry : result.entrySet()) {
+            if (entry.getValue() == null) {
+                entry.setValue(new RecordImpl(entry.getKey()));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Fetch a record, and the records it is an enrichment of, in one
+     * round-trip
+     *
+     * @param bibliographicRecordId local id
+     * @param agencyId              the agency of the least common record
+     * @return records most to least common, a record that doesn't exist is
+     *         an empty record
+     * @throws RawRepoException when something goes wrong
+     * @see #fetchEnrichmentChains(Collection)
+     */
+    @Override
+    public List<Record> fetchEnrichmentChain(String bibliographicRecordId, int agencyId) throws RawRepoException {
+        RecordId recordId = new RecordId(bibliographicRecordId, agencyId);
+        return fetchEnrichmentChains(Collections.singletonList(recordId)).get(recordId);
+    }
+
+    /**
+     * Fetch the enrichment chains of a number of records, one round-trip per
+     * chunk of records
+     * <p>
+     * The sibling relations are followed by a recursive query. If a chain
+     * isn't a simple chain, which the relation rules shouldn't allow, the
+     * records of it are fetched one at a time like
+     * {@link RawRepoDAO#fetchEnrichmentChain(String, int)}
+     *
+     * @param recordIds ids of the least common records
+     * @return map of id to chain, most to least common
+     * @throws RawRepoException when something goes wrong, or if the sibling
+     *                          relations loop
+     */
+    @Override
+    protected Map<RecordId, List<Record>> fetchEnrichmentChains(Collection<RecordId> recordIds) throws RawRepoException {
+        final Map<RecordId, List<Record>> result = new HashMap<>();
+        final Set<RecordId> notSimple = selectEnrichmentChains(SELECT_ENRICHMENT_CHAINS, "SELECT_ENRICHMENT_CHAINS", "enrichment chains", recordIds,
+                                                               (startId, recordId, resultSet) -> {
+            Record record;
+            if (resultSet.getObject("DELETED") == null) {
+                record = new RecordImpl(recordId);
+            } else {
+                record = recordFromResultSet(resultSet, recordId.getBibliographicRecordId(), recordId.getAgencyId());
+            }
+            result.computeIfAbsent(startId, r -> new ArrayList<>()).add(record);
+        });
+        for (RecordId recordId : notSimple) {
+            logger.warn("Enrichment chain of {} isn't simple, fetching one record at a time", recordId);
+            result.put(recordId, super.fetchEnrichmentChain(recordId.getBibliographicRecordId(), recordId.getAgencyId()));
+        }
+        return result;
+    }
+
+    /**
+     * Find the enrichment chains of a number of records, and the modified
+     * time of the records in them, one round-trip per chunk of records
+     * <p>
+     * Like {@link #fetchEnrichmentChains(Collection)} without the content.
+     *
+     * @param recordIds ids of the least common records
+     * @return map of id to chain
+     * @throws RawRepoException when something goes wrong, or if the sibling
+     *                          relations loop
+     */
+    @Override
+    Map<RecordId, ChainVersions> fetchEnrichmentChainVersions(Collection<RecordId> recordIds) throws RawRepoException {
+        final Map<RecordId, ChainVersions> result = new HashMap<>();
+        final Set<RecordId> notSimple = selectEnrichmentChains(SELECT_ENRICHMENT_CHAINS_MODIFIED, "SELECT_ENRICHMENT_CHAINS_MODIFIED", "enrichment chain versions", recordIds,
+                                                               (startId, recordId, resultSet) -> {
+            Timestamp modified = resultSet.getTimestamp("MODIFIED");
+            result.computeIfAbsent(startId, r -> new ChainVersions()).add(recordId, modified == null ? null : modified.toInstant());
+        });
+        if (!notSimple.isEmpty()) {
+            logger.warn("Enrichment chains of {} aren't simple, following them one record at a time", notSimple);
+            result.putAll(super.fetchEnrichmentChainVersions(notSimple));
+        }
+        return result;
+    }
+
+    @FunctionalInterface
+    private interface ChainRowHandler {
+
+        void handle(RecordId startId, RecordId recordId, ResultSet resultSet) throws SQLException, RawRepoException;
+    }
+
+    /**
+     * Run a recursive enrichment chain statement for a number of records
+     * <p>
+     * The rows of a chain are ordered most to least common. If a chain isn't
+     * a simple chain, which the relation rules shouldn't allow, the rows of
+     * it from there on are skipped, and it is reported back.
+     *
+     * @param query     the statement
+     * @param name      for timing
+     * @param what      for error messages
+     * @param recordIds ids of the least common records
+     * @param handler   what to do with a row of a simple chain
+     * @return ids of the chains that aren't simple
+     * @throws RawRepoException when something goes wrong, or if the sibling
+     *                          relations loop
+     */
+    private Set<RecordId> selectEnrichmentChains(String query, String name, String what, Collection<RecordId> recordIds, ChainRowHandler handler) throws RawRepoException {
+        final Set<RecordId> notSimple = new HashSet<>();
+        final List<RecordId> list = new ArrayList<>(recordIds);
+        for (int index = 0; index < list.size(); index += RECORD_IDS_CHUNK_SIZE) {
+            final List<RecordId> chunk = list.subList(index, Math.min(index + RECORD_IDS_CHUNK_SIZE, list.size()));
+            final long start = System.nanoTime();
+            int rows = 0;
+            try {
+                PreparedStatement stmt = statement(query);
+                setRecordIds(stmt, 1, chunk);
+                try (ResultSet resultSet = stmt.executeQuery()) {
+                    RecordId chainId = null;
+                    int expectedDepth = -1;
+                    while (resultSet.next()) {
+                        rows++;
+                        String id = resultSet.getString("BIBLIOGRAPHICRECORDID");
+                        int depth = resultSet.getInt("DEPTH");
+                        RecordId startId = new RecordId(id, resultSet.getInt("START_AGENCYID"));
+                        if (!startId.equals(chainId)) {
+                            chainId = startId;
+                            expectedDepth = depth;
+                        }
+                        if (depth == ENRICHMENT_CHAIN_MAX_DEPTH) {
+                            throw new RawRepoException("Enrichment chain of " + startId + " is too long, sibling relations loop");
+                        }
+                        if (depth != expectedDepth--) {
+                            notSimple.add(startId);
+                            continue;
+                        }
+                        handler.handle(startId, new RecordId(id, resultSet.getInt("AGENCYID")), resultSet);
+                    }
+                }
+            } catch (SQLException ex) {
+                failed(name);
+                logger.error(LOG_DATABASE_ERROR, ex);
+                throw new RawRepoException("Error fetching " + what, ex);
+            } finally {
+                timed(name, start, rows);
+            }
+        }
+        return notSimple;
+    }
+
+    @FunctionalInterface
+    private interface RowMapper<T> {
+
+        T map(ResultSet resultSet) throws SQLException, RawRepoException;
+    }
+
+    /**
+     * Run a lookup statement for a number of records
+     * <p>
+     * The statement takes the ids as two arrays, joined with
+     * {@code unnest(?::VARCHAR[], ?::NUMERIC[])}, and returns
+     * bibliographicrecordid and agencyid as the first two columns. This way
+     * the statement text is the same regardless of the number of ids, so the
+     * driver can keep it prepared on the server.
+     *
+     * @param <T>       type of value
+     * @param query     the statement
+     * @param name      for timing
+     * @param what      for error messages
+     * @param recordIds ids to lookup
+     * @param mapper    how to make a value of a row
+     * @return map of id to value, records that doesn't exist are absent
+     * @throws RawRepoException when something goes wrong
+     */
+    private <T> Map<RecordId, T> selectByRecordIds(String query, String name, String what, Collection<RecordId> recordIds, RowMapper<T> mapper) throws RawRepoException {
+        final Map<RecordId, T> result = new HashMap<>();
+        final List<RecordId> list = new ArrayList<>(recordIds);
+        for (int index = 0; index < list.size(); index += RECORD_IDS_CHUNK_SIZE) {
+            final List<RecordId> chunk = list.subList(index, Math.min(index + RECORD_IDS_CHUNK_SIZE, list.size()));
+            final long start = System.nanoTime();
+            final int before = result.size();
+            try {
+                PreparedStatement stmt = statement(query);
+                setRecordIds(stmt, 1, chunk);
+                try (ResultSet resultSet = stmt.executeQuery()) {
+                    while (resultSet.next()) {
+                        result.put(new RecordId(resultSet.getString(1), resultSet.getInt(2)), mapper.map(resultSet));
+                    }
+                }
+            } catch (SQLException ex) {
+                failed(name);
+                logger.error(LOG_DATABASE_ERROR, ex);
+                throw new RawRepoException("Error fetching " + what, ex);
+            } finally {
+                timed(name, start, result.size() - before);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Bind record ids as a varchar[] and an int[] parameter
+     *
+     * @param stmt      statement
+     * @param pos       position of the varchar[]
+     * @param recordIds ids
+     * @return position after the parameters
+     * @throws SQLException if the arrays cannot be made
+     */
+    private int setRecordIds(PreparedStatement stmt, int pos, List<RecordId> recordIds) throws SQLException {
+        final String[] bibliographicRecordIds = new String[recordIds.size()];
+        final Integer[] agencyIds = new Integer[recordIds.size()];
+        for (int i = 0; i < recordIds.size(); i++) {
+            bibliographicRecordIds[i] = recordIds.get(i).getBibliographicRecordId();
+            agencyIds[i] = recordIds.get(i).getAgencyId();
+        }
+        stmt.setArray(pos++, connection.createArrayOf("varchar", bibliographicRecordIds));
+        stmt.setArray(pos++, connection.createArrayOf("int4", agencyIds));
+        return pos;
+    }
+
+    private Record recordFromResultSet(ResultSet resultSet, String bibliographicRecordId, int agencyId) throws SQLException, RawRepoException {
+        final boolean deleted = resultSet.getBoolean("DELETED");
+        final String mimeType = resultSet.getString("MIMETYPE");
+        byte[] content = contentDictionaries.decode(resultSet.getString("CONTENT"), resultSet.getBytes("CONTENT_BYTES"), resultSet.getString("CONTENT_CODEC"));
+        Instant created = resultSet.getTimestamp("CREATED").toInstant();
+        Instant modified = resultSet.getTimestamp("MODIFIED").toInstant();
+        String trackingId = resultSet.getString("TRACKINGID");
+        return new RecordImpl(bibliographicRecordId, agencyId, deleted, mimeType, content, created, modified, trackingId, false);
+    }
+
 
     /**
      * Check for existence of a record
@@ -215,7 +606,7 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
 
     @Override
     public List<RecordMetaDataHistory> getRecordHistory(String bibliographicRecordId, int agencyId) throws RawRepoException {
-        final StopWatch watch = new Log4JStopWatch().setTimeThreshold(TIMER_THRESHOLD_MS);
+        final long start = System.nanoTime();
         try {
             ArrayList<RecordMetaDataHistory> ret = new ArrayList<>();
             try (PreparedStatement stmt = connection.prepareStatement(HISTORIC_METADATA)) {
@@ -243,15 +634,16 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
 
             return ret;
         } catch (SQLException ex) {
+            failed("HISTORIC_METADATA");
             throw new RawRepoException("Error getting record history", ex);
         } finally {
-            watch.stop(String.format("rawrepo.query.HISTORIC_METADATA(%s, %s)", bibliographicRecordId, agencyId));
+            timed("HISTORIC_METADATA", start, -1);
         }
     }
 
     @Override
     public Record getHistoricRecord(RecordMetaDataHistory recordMetaData) throws RawRepoException {
-        final StopWatch watch = new Log4JStopWatch().setTimeThreshold(TIMER_THRESHOLD_MS);
+        final long start = System.nanoTime();
         try {
             int agencyId = recordMetaData.getId().getAgencyId();
             String bibliographicRecordId = recordMetaData.getId().getBibliographicRecordId();
@@ -266,8 +658,10 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
                 stmt.setTimestamp(pos, timestamp);
                 try (ResultSet resultSet = stmt.executeQuery()) {
                     if (resultSet.next()) {
-                        final String base64Content = resultSet.getString(1);
-                        byte[] content = base64Content == null ? null : DatatypeConverter.parseBase64Binary(base64Content);
+                        String codec = resultSet.getString(3);
+                        byte[] content = RecordContentCodec.MARC_DELTA.equals(codec) ?
+                                         applyDelta(bibliographicRecordId, agencyId, recordMetaData.getModified(), resultSet.getBytes(2), new HashMap<>()) :
+                                         contentDictionaries.decode(resultSet.getString(1), resultSet.getBytes(2), codec);
                         return new RecordImpl(bibliographicRecordId, agencyId, recordMetaData.isDeleted(),
                                 recordMetaData.getMimeType(), content,
                                 recordMetaData.getCreated(), recordMetaData.getModified(), recordMetaData.getTrackingId(), false);
@@ -276,16 +670,192 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
             }
             throw new RawRepoExceptionRecordNotFound("Error getting record history");
         } catch (SQLException | RawRepoExceptionRecordNotFound ex) {
+            failed("HISTORIC_CONTENT");
             throw new RawRepoException("Error getting record history", ex);
         } finally {
-            watch.stop(String.format("rawrepo.query.HISTORIC_CONTENT(%s)", recordMetaData));
+            timed("HISTORIC_CONTENT", start, -1);
         }
 
     }
 
+    @Override
+    public List<RecordMetaDataHistory> getRecordHistory(String bibliographicRecordId, int agencyId, Instant asOf, int limit) throws RawRepoException {
+        final long start = System.nanoTime();
+        ArrayList<RecordMetaDataHistory> ret = new ArrayList<>();
+        try {
+            PreparedStatement stmt = statement(HISTORIC_METADATA_PAGE);
+            RecordId recordId = new RecordId(bibliographicRecordId, agencyId);
+            Timestamp timestamp = asOf == null ? null : Timestamp.from(asOf);
+            int pos = 1;
+            stmt.setInt(pos++, agencyId);
+            stmt.setString(pos++, bibliographicRecordId);
+            stmt.setTimestamp(pos++, timestamp);
+            stmt.setInt(pos++, agencyId);
+            stmt.setString(pos++, bibliographicRecordId);
+            stmt.setTimestamp(pos++, timestamp);
+            stmt.setInt(pos++, limit);
+            stmt.setInt(pos, limit);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                while (resultSet.next()) {
+                    pos = 1;
+                    Instant created = resultSet.getTimestamp(pos++).toInstant();
+                    Instant modified = resultSet.getTimestamp(pos++).toInstant();
+                    boolean deleted = resultSet.getBoolean(pos++);
+                    String mimeType = resultSet.getString(pos++);
+                    String trackingId = resultSet.getString(pos);
+                    ret.add(new RecordMetaDataHistory(recordId, deleted, mimeType, created, modified, trackingId));
+                }
+            }
+            return ret;
+        } catch (SQLException ex) {
+            failed("HISTORIC_METADATA_PAGE");
+            logger.error(LOG_DATABASE_ERROR, ex);
+            throw new RawRepoException("Error getting record history", ex);
+        } finally {
+            timed("HISTORIC_METADATA_PAGE", start, ret.size());
+        }
+    }
+
+    @Override
+    public List<Record> getHistoricRecords(List<RecordMetaDataHistory> recordMetaData) throws RawRepoException {
+        if (recordMetaData.isEmpty()) {
+            return new ArrayList<>();
+        }
+        final long start = System.nanoTime();
+        final Map<RecordId, Map<Instant, byte[]>> contents = new HashMap<>();
+        int rows = 0;
+        try {
+            final String[] bibliographicRecordIds = new String[recordMetaData.size()];
+            final Integer[] agencyIds = new Integer[recordMetaData.size()];
+            final Timestamp[] timestamps = new Timestamp[recordMetaData.size()];
+            for (int i = 0; i < recordMetaData.size(); i++) {
+                RecordMetaDataHistory version = recordMetaData.get(i);
+                bibliographicRecordIds[i] = version.getId().getBibliographicRecordId();
+                agencyIds[i] = version.getId().getAgencyId();
+                timestamps[i] = Timestamp.from(version.getModified());
+            }
+            PreparedStatement stmt = statement(HISTORIC_CONTENT_LIST);
+            int pos = 1;
+            for (int i = 0; i < 2; i++) {
+                stmt.setArray(pos++, connection.createArrayOf("varchar", bibliographicRecordIds));
+                stmt.setArray(pos++, connection.createArrayOf("int4", agencyIds));
+                stmt.setArray(pos++, connection.createArrayOf("timestamptz", timestamps));
+            }
+            final List<Delta> deltas = new ArrayList<>();
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                while (resultSet.next()) {
+                    rows++;
+                    RecordId recordId = new RecordId(resultSet.getString(1), resultSet.getInt(2));
+                    Instant modified = resultSet.getTimestamp(3).toInstant();
+                    String codec = resultSet.getString(6);
+                    if (RecordContentCodec.MARC_DELTA.equals(codec)) {
+                        deltas.add(new Delta(recordId, modified, resultSet.getBytes(5)));
+                        continue;
+                    }
+                    byte[] content = contentDictionaries.decode(resultSet.getString(4), resultSet.getBytes(5), codec);
+                    contents.computeIfAbsent(recordId, id -> new HashMap<>())
+                            .putIfAbsent(modified, content);
+                }
+            }
+            // Newest first, a delta may be relative to another version in the window
+            deltas.sort((l, r) -> r.modified.compareTo(l.modified));
+            for (Delta delta : deltas) {
+                Map<Instant, byte[]> versions = contents.computeIfAbsent(delta.recordId, id -> new HashMap<>());
+                if (!versions.containsKey(delta.modified)) {
+                    versions.put(delta.modified, applyDelta(delta.recordId.getBibliographicRecordId(), delta.recordId.getAgencyId(),
+                                                            delta.modified, delta.data, versions));
+                }
+            }
+        } catch (SQLException ex) {
+            failed("HISTORIC_CONTENT_LIST");
+            logger.error(LOG_DATABASE_ERROR, ex);
+            throw new RawRepoException("Error getting record history", ex);
+        } finally {
+            timed("HISTORIC_CONTENT_LIST", start, rows);
+        }
+        ArrayList<Record> ret = new ArrayList<>(recordMetaData.size());
+        for (RecordMetaDataHistory version : recordMetaData) {
+            byte[] content = contents.getOrDefault(version.getId(), Collections.emptyMap()).get(version.getModified());
+            if (content == null) {
+                throw new RawRepoExceptionRecordNotFound("No version of " + version.getId() + " modified at " + version.getModified());
+            }
+            ret.add(new RecordImpl(version.getId().getBibliographicRecordId(), version.getId().getAgencyId(), version.isDeleted(),
+                                   version.getMimeType(), content,
+                                   version.getCreated(), version.getModified(), version.getTrackingId(), false));
+        }
+        return ret;
+    }
+
+    /**
+     * An archived version stored as a delta, see {@link MarcDeltaCodec}
+     */
+    private static final class Delta {
+
+        private final RecordId recordId;
+        private final Instant modified;
+        private final byte[] data;
+
+        private Delta(RecordId recordId, Instant modified, byte[] data) {
+            this.recordId = recordId;
+            this.modified = modified;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Reconstruct a version stored as a delta (schema V37)
+     * <p>
+     * The delta is relative to the next newer version, which may be a delta
+     * too. Versions are looked up in the map, before the database, and
+     * added to it.
+     *
+     * @param bibliographicRecordId local id
+     * @param agencyId              the agency
+     * @param modified              modified of the version
+     * @param data                  the delta
+     * @param versions              known content by modified
+     * @return content of the version
+     * @throws SQLException     if the database fails
+     * @throws RawRepoException if a version is missing or corrupt
+     */
+    private byte[] applyDelta(String bibliographicRecordId, int agencyId, Instant modified, byte[] data, Map<Instant, byte[]> versions) throws SQLException, RawRepoException {
+        Instant baseModified = MarcDeltaCodec.baseModified(data);
+        if (!baseModified.isAfter(modified)) {
+            throw new RawRepoException("Content delta of " + agencyId + ":" + bibliographicRecordId + " at " + modified + " is not relative to a newer version");
+        }
+        byte[] base = versions.get(baseModified);
+        if (base == null) {
+            String base64Content;
+            byte[] baseData;
+            String codec;
+            Timestamp timestamp = Timestamp.from(baseModified);
+            PreparedStatement stmt = statement(HISTORIC_CONTENT);
+            int pos = 1;
+            stmt.setInt(pos++, agencyId);
+            stmt.setString(pos++, bibliographicRecordId);
+            stmt.setTimestamp(pos++, timestamp);
+            stmt.setInt(pos++, agencyId);
+            stmt.setString(pos++, bibliographicRecordId);
+            stmt.setTimestamp(pos, timestamp);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                if (!resultSet.next()) {
+                    throw new RawRepoExceptionRecordNotFound("Version " + baseModified + " of " + agencyId + ":" + bibliographicRecordId + " is missing, a content delta is relative to it");
+                }
+                base64Content = resultSet.getString(1);
+                baseData = resultSet.getBytes(2);
+                codec = resultSet.getString(3);
+            }
+            base = RecordContentCodec.MARC_DELTA.equals(codec) ?
+                   applyDelta(bibliographicRecordId, agencyId, baseModified, baseData, versions) :
+                   contentDictionaries.decode(base64Content, baseData, codec);
+            versions.put(baseModified, base);
+        }
+        return MarcDeltaCodec.decode(data, base);
+    }
+
     @Override
     public List<String> getTrackingIdsSince(String bibliographicRecordId, int agencyId, Timestamp timestamp) throws RawRepoException {
-        final StopWatch watch = new Log4JStopWatch().setTimeThreshold(TIMER_THRESHOLD_MS);
+        final long start = System.nanoTime();
         ArrayList<String> list = new ArrayList<>();
         try {
             try (PreparedStatement stmt = connection.prepareStatement(TRACKING_IDS_SINCE)) {
@@ -304,75 +874,193 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
                 }
             }
         } catch (SQLException ex) {
+            failed("TRACKING_IDS_SINCE");
             throw new RawRepoException("Error getting record history", ex);
         } finally {
-            watch.stop(String.format("rawrepo.query.TRACKING_IDS_SINCE(%s, %s, %s)", bibliographicRecordId, agencyId, timestamp));
+            timed("TRACKING_IDS_SINCE", start, list.size());
         }
     }
 
     private static final String LOG_DATABASE_ERROR = "Error accessing database";
 
+    /**
+     * Report a statement to the metrics, and log it if it was slow
+     *
+     * @param statement name of the statement, not including any arguments
+     * @param start     {@link System#nanoTime()} before the statement was run
+     * @param rows      number of rows read or written, or -1 if not
+     *                  meaningful for the statement
+     */
+    private void timed(String statement, long start, long rows) {
+        final long nanos = System.nanoTime() - start;
+        metrics.timed(statement, nanos, rows);
+        if (nanos >= TIMER_THRESHOLD_NS) {
+            logger.info("rawrepo.query.{} took {} ms", statement, TimeUnit.NANOSECONDS.toMillis(nanos));
+        }
+    }
+
+    private void failed(String statement) {
+        metrics.failed(statement);
+    }
+
     /**
      * Save a record to database after it has been modified
      * <p>
-     * Will try to update, otherwise insert
+     * Will insert, or update if it exists (keeping created)
      *
      * @param record record to be saved
      * @throws RawRepoException when something goes wrong
      */
     @Override
     public void saveRecord(Record record) throws RawRepoException {
+        upsertRecord("UPSERT_RECORD", UPSERT_RECORD, record);
+    }
+
+    @Override
+    public boolean saveRecordIfChanged(Record record) throws RawRepoException {
+        boolean written = upsertRecord("UPSERT_RECORD_IF_CHANGED", UPSERT_RECORD_IF_CHANGED, record);
+        if (!written) {
+            metrics.skipped("UPSERT_RECORD_IF_CHANGED", 1);
+        }
+        return written;
+    }
+
+    private boolean upsertRecord(String name, String sql, Record record) throws RawRepoException {
         if (record.getMimeType().isEmpty()) {
             throw new RawRepoException("Record has unset mimetype, cannot save");
         }
-        StopWatch watch = new Log4JStopWatch().setTimeThreshold(TIMER_THRESHOLD_MS);
-        try (PreparedStatement stmt = connection.prepareStatement(UPDATE_RECORD)) {
-            int pos = 1;
-            stmt.setBoolean(pos++, record.isDeleted());
-            stmt.setString(pos++, record.getMimeType());
-            stmt.setString(pos++, DatatypeConverter.printBase64Binary(record.getContent()));
-            stmt.setTimestamp(pos++, Timestamp.from(record.getModified()));
-            stmt.setString(pos++, record.getTrackingId());
-            stmt.setString(pos++, record.getId().getBibliographicRecordId());
-            stmt.setInt(pos, record.getId().getAgencyId());
-            if (stmt.executeUpdate() > 0) {
-                stmt.close();
-                return;
-            }
-        } catch (SQLException ex) {
-            logger.error(LOG_DATABASE_ERROR, ex);
-            throw new RawRepoException("Error updating record", ex);
-        } finally {
-            watch.stop(String.format("rawrepo.query.UPDATE_RECORD(%s:%s)",
-                    record.getId().getBibliographicRecordId(), record.getId().getAgencyId()));
-        }
-        try (PreparedStatement stmt = connection.prepareStatement(INSERT_RECORD)) {
-            int pos = 1;
-            stmt.setString(pos++, record.getId().getBibliographicRecordId());
-            stmt.setInt(pos++, record.getId().getAgencyId());
-            stmt.setBoolean(pos++, record.isDeleted());
-            stmt.setString(pos++, record.getMimeType());
-            stmt.setString(pos++, DatatypeConverter.printBase64Binary(record.getContent()));
-            stmt.setTimestamp(pos++, Timestamp.from(record.getCreated()));
-            stmt.setTimestamp(pos++, Timestamp.from(record.getModified()));
-            stmt.setString(pos, record.getTrackingId());
-            stmt.execute();
+        bypassSharedCaches = true;
+        final long start = System.nanoTime();
+        int rows = 0;
+        try {
+            PreparedStatement stmt = statement(sql);
+            setRecord(stmt, record);
+            rows = stmt.executeUpdate();
         } catch (SQLException ex) {
+            failed(name);
             logger.error(LOG_DATABASE_ERROR, ex);
             throw new RawRepoException("Error saving record", ex);
         } finally {
-            watch.stop(String.format("rawrepo.query.INSERT_RECORD(%s:%s)",
-                    record.getId().getBibliographicRecordId(), record.getId().getAgencyId()));
+            timed(name, start, rows);
         }
         if (record instanceof RecordImpl) {
             ((RecordImpl) record).original = false;
         }
+        return rows > 0;
+    }
+
+    /**
+     * Save records to database after they have been modified
+     * <p>
+     * Will insert, or update if they exist (keeping created). The records are
+     * sent to the database in JDBC batches.
+     *
+     * @param records records to be saved
+     * @throws RawRepoException when something goes wrong
+     */
+    @Override
+    public void saveRecords(Collection<Record> records) throws RawRepoException {
+        upsertRecords("UPSERT_RECORD", UPSERT_RECORD, records, false);
+    }
+
+    @Override
+    public Set<RecordId> saveRecordsIfChanged(Collection<Record> records) throws RawRepoException {
+        Set<RecordId> written = upsertRecords("UPSERT_RECORDS_IF_CHANGED", UPSERT_RECORDS_IF_CHANGED, records, true);
+        if (written.size() < records.size()) {
+            metrics.skipped("UPSERT_RECORDS_IF_CHANGED", records.size() - written.size());
+        }
+        return written;
+    }
+
+    /**
+     * Batched upsert of records
+     *
+     * @param name      for timing
+     * @param sql       the statement
+     * @param returning if the statement returns the ids of the records it
+     *                  has written
+     * @param records   records to be saved
+     * @return ids of the records written, if returning, otherwise empty
+     * @throws RawRepoException when something goes wrong
+     */
+    private Set<RecordId> upsertRecords(String name, String sql, Collection<Record> records, boolean returning) throws RawRepoException {
+        for (Record record : records) {
+            if (record.getMimeType().isEmpty()) {
+                throw new RawRepoException("Record " + record.getId() + " has unset mimetype, cannot save");
+            }
+        }
+        final Set<RecordId> written = new HashSet<>();
+        if (records.isEmpty()) {
+            return written;
+        }
+        bypassSharedCaches = true;
+        final List<Record> list = new ArrayList<>(records);
+        for (int index = 0; index < list.size(); index += RECORD_IDS_CHUNK_SIZE) {
+            final List<Record> chunk = list.subList(index, Math.min(index + RECORD_IDS_CHUNK_SIZE, list.size()));
+            final long start = System.nanoTime();
+            long rows = 0;
+            try {
+                PreparedStatement stmt = returning ? returningStatement(sql) : statement(sql);
+                stmt.clearBatch();
+                for (Record record : chunk) {
+                    setRecord(stmt, record);
+                    stmt.addBatch();
+                }
+                stmt.executeBatch();
+                if (returning) {
+                    try (ResultSet resultSet = stmt.getGeneratedKeys()) {
+                        while (resultSet.next()) {
+                            written.add(new RecordId(resultSet.getString(1), resultSet.getInt(2)));
+                            rows++;
+                        }
+                    }
+                } else {
+                    rows += chunk.size();
+                }
+            } catch (SQLException ex) {
+                failed(name);
+                logger.error(LOG_DATABASE_ERROR, ex);
+                throw new RawRepoException("Error saving records", ex);
+            } finally {
+                timed(name, start, rows);
+            }
+        }
+        for (Record record : records) {
+            if (record instanceof RecordImpl) {
+                ((RecordImpl) record).original = false;
+            }
+        }
+        return written;
+    }
+
+    private void setRecord(PreparedStatement stmt, Record record) throws SQLException, RawRepoException {
+        final RecordContentCodec.Encoded content = contentDictionaries.encode(RecordImpl.sharedContent(record), record.getMimeType());
+        int pos = 1;
+        stmt.setString(pos++, record.getId().getBibliographicRecordId());
+        stmt.setInt(pos++, record.getId().getAgencyId());
+        stmt.setBoolean(pos++, record.isDeleted());
+        stmt.setString(pos++, record.getMimeType());
+        stmt.setBytes(pos++, content.getData());
+        stmt.setString(pos++, content.getCodec());
+        stmt.setTimestamp(pos++, Timestamp.from(record.getCreated()));
+        stmt.setTimestamp(pos++, Timestamp.from(record.getModified()));
+        stmt.setString(pos++, record.getTrackingId());
+        stmt.setBytes(pos, RecordContentCodec.hash(RecordImpl.sharedContent(record)));
     }
 
     @Override
     public String getMimeTypeOf(String bibliographicRecordId, int agencyId) throws RawRepoException {
-        final StopWatch watch = new Log4JStopWatch().setTimeThreshold(TIMER_THRESHOLD_MS);
-        try (PreparedStatement stmt = connection.prepareStatement(SELECT_MIMETYPE)) {
+        if (relationCache == null || bypassSharedCaches) {
+            return selectMimeTypeOf(bibliographicRecordId, agencyId);
+        }
+        return relationCache.get(RelationCache.Kind.MIMETYPE, new RecordId(bibliographicRecordId, agencyId),
+                                 recordId -> selectMimeTypeOf(recordId.getBibliographicRecordId(), recordId.getAgencyId()));
+    }
+
+    private String selectMimeTypeOf(String bibliographicRecordId, int agencyId) throws RawRepoException {
+        final long start = System.nanoTime();
+        try {
+            PreparedStatement stmt = statement(SELECT_MIMETYPE);
             int pos = 1;
             stmt.setString(pos++, bibliographicRecordId);
             stmt.setInt(pos, agencyId);
@@ -383,72 +1071,55 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
             }
             throw new RawRepoExceptionRecordNotFound("Failed to find mimetype for recordId " + bibliographicRecordId + ", agencyId " + agencyId);
         } catch (SQLException ex) {
+            failed("SELECT_MIMETYPE");
             logger.error(LOG_DATABASE_ERROR, ex);
             throw new RawRepoException("Error fetching mimetype", ex);
         } finally {
-            watch.stop(String.format("rawrepo.query.SELECT_MIMETYPE(%s, %s)", bibliographicRecordId, agencyId));
+            timed("SELECT_MIMETYPE", start, -1);
         }
     }
 
     @Override
-    protected Map<RecordId, String> getMimeTypeOfList(Set<RecordId> originalRecordIds) throws RawRepoException {
-        final StopWatch watch = new Log4JStopWatch().setTimeThreshold(TIMER_THRESHOLD_MS);
-        final Map<RecordId, String> result = new HashMap<>();
-
-        // If input is empty then return empty result
-        if (originalRecordIds.isEmpty()) {
-            return result;
-        }
-
-        final int sliceSize = 1000;
-        int index = 0;
-        while (index < originalRecordIds.size()) {
-            final Set<RecordId> recordIds = originalRecordIds.stream()
-                    .skip(index)
-                    .limit(sliceSize)
-                    .collect(Collectors.toSet());
-            index += sliceSize;
-
-            final StringBuilder query = new StringBuilder();
-            query.append("SELECT bibliographicrecordid, agencyid, mimetype FROM records WHERE (bibliographicrecordid, agencyid) IN (");
-            final List<String> placeHolders = new ArrayList<>();
-            for (int i = 0; i < recordIds.size(); i++) {
-                placeHolders.add("(?, ?)");
-            }
-            query.append(String.join(",", placeHolders));
-            query.append(")");
-
-            try (PreparedStatement stmt = connection.prepareStatement(query.toString())) {
-                int pos = 1;
-                for (RecordId recordId : recordIds) {
-                    stmt.setString(pos++, recordId.getBibliographicRecordId());
-                    stmt.setInt(pos++, recordId.getAgencyId());
-                }
-                try (ResultSet resultSet = stmt.executeQuery()) {
-                    while (resultSet.next()) {
-                        final String bibliographicRecordId = resultSet.getString(1);
-                        final int agencyId = resultSet.getInt(2);
-                        final String mimetype = resultSet.getString(3);
-
-                        result.put(new RecordId(bibliographicRecordId, agencyId), mimetype);
-                    }
+    protected Map<RecordId, RecordProbe> probeRecords(Collection<RecordId> recordIds, int maxRelationsToMe) throws RawRepoException {
+        final long start = System.nanoTime();
+        final Map<RecordId, RecordProbe> result = new HashMap<>();
+        try {
+            PreparedStatement stmt = statement(SELECT_PROBE_LIST);
+            stmt.setInt(1, maxRelationsToMe);
+            setRecordIds(stmt, 2, new ArrayList<>(recordIds));
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                while (resultSet.next()) {
+                    result.put(new RecordId(resultSet.getString(1), resultSet.getInt(2)),
+                               new RecordProbe(resultSet.getBoolean(3), resultSet.getString(4), resultSet.getInt(5)));
                 }
-
-
-            } catch (SQLException ex) {
-                logger.error(LOG_DATABASE_ERROR, ex);
-                throw new RawRepoException("Error fetching mimetype", ex);
-            } finally {
-                watch.stop(String.format("rawrepo.query.SELECT_MIMETYPE_LIST for %s RecordIds", originalRecordIds.size()));
             }
+        } catch (SQLException ex) {
+            failed("SELECT_PROBE_LIST");
+            logger.error(LOG_DATABASE_ERROR, ex);
+            throw new RawRepoException("Error probing records", ex);
+        } finally {
+            timed("SELECT_PROBE_LIST", start, result.size());
         }
         return result;
     }
 
+    @Override
+    protected Map<RecordId, String> getMimeTypeOfList(Set<RecordId> recordIds) throws RawRepoException {
+        return selectByRecordIds(SELECT_MIMETYPE_LIST, "SELECT_MIMETYPE_LIST", "mimetype", recordIds,
+                                 resultSet -> resultSet.getString(3));
+    }
+
+    @Override
+    protected Map<RecordId, Instant> getModifiedOfList(Collection<RecordId> recordIds) throws RawRepoException {
+        return selectByRecordIds(SELECT_MODIFIED_LIST, "SELECT_MODIFIED_LIST", "modified", recordIds,
+                                 resultSet -> resultSet.getTimestamp(3).toInstant());
+    }
+
     @Override
     protected Boolean isRecordDeleted(String bibliographicRecordId, int agencyId) throws RawRepoException {
-        final StopWatch watch = new Log4JStopWatch().setTimeThreshold(TIMER_THRESHOLD_MS);
-        try (PreparedStatement stmt = connection.prepareStatement(SELECT_DELETED)) {
+        final long start = System.nanoTime();
+        try {
+            PreparedStatement stmt = statement(SELECT_DELETED);
             int pos = 1;
             stmt.setString(pos++, bibliographicRecordId);
             stmt.setInt(pos, agencyId);
@@ -459,67 +1130,20 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
             }
             return null;
         } catch (SQLException ex) {
+            failed("SELECT_DELETED");
             logger.error(LOG_DATABASE_ERROR, ex);
             throw new RawRepoException("Error fetching deleted state", ex);
         } finally {
-            watch.stop(String.format("rawrepo.query.SELECT_DELETED(%s, %s)", bibliographicRecordId, agencyId));
+            timed("SELECT_DELETED", start, -1);
         }
     }
 
     @Override
-    protected HashMap<RecordId, Boolean> isRecordDeletedList(Set<RecordId> originalRecordIds) throws RawRepoException {
-        final StopWatch watch = new Log4JStopWatch().setTimeThreshold(TIMER_THRESHOLD_MS);
-        final HashMap<RecordId, Boolean> result = new HashMap<>();
-
-        if (originalRecordIds.isEmpty()) {
-            return result;
-        }
-
-        final int sliceSize = 1000;
-        int index = 0;
-        while (index < originalRecordIds.size()) {
-            final Set<RecordId> recordIds = originalRecordIds.stream()
-                    .skip(index)
-                    .limit(sliceSize)
-                    .collect(Collectors.toSet());
-            index += sliceSize;
-
-            final StringBuilder query = new StringBuilder();
-            query.append("SELECT bibliographicrecordid, agencyid, deleted FROM records where (bibliographicrecordid, agencyid) in (");
-            final List<String> placeHolders = new ArrayList<>();
-            for (int i = 0; i < recordIds.size(); i++) {
-                placeHolders.add("(?, ?)");
-            }
-            query.append(String.join(",", placeHolders));
-            query.append(")");
-
-            try (PreparedStatement stmt = connection.prepareStatement(query.toString())) {
-                int pos = 1;
-                for (RecordId recordId : recordIds) {
-                    stmt.setString(pos++, recordId.getBibliographicRecordId());
-                    stmt.setInt(pos++, recordId.getAgencyId());
-                }
-                try (ResultSet resultSet = stmt.executeQuery()) {
-                    while (resultSet.next()) {
-                        final String bibliographicRecordId = resultSet.getString(1);
-                        final int agencyId = resultSet.getInt(2);
-                        final boolean deleted = resultSet.getBoolean(3);
-
-                        final RecordId recordId = new RecordId(bibliographicRecordId, agencyId);
-                        result.put(recordId, deleted);
-                    }
-                }
-            } catch (SQLException ex) {
-                logger.error(LOG_DATABASE_ERROR, ex);
-                throw new RawRepoException("Error fetching deleted state", ex);
-            } finally {
-                watch.stop(String.format("rawrepo.query.SELECT_DELETED_BULK for %s RecordIds", originalRecordIds.size()));
-            }
-        }
-        return result;
+    protected Map<RecordId, Boolean> isRecordDeletedList(Set<RecordId> recordIds) throws RawRepoException {
+        return selectByRecordIds(SELECT_DELETED_LIST, "SELECT_DELETED_LIST", "deleted state", recordIds,
+                                 resultSet -> resultSet.getBoolean(3));
     }
 
-
     /**
      * Get a collection of my "dependencies". All relations that
      * bibliographicRecordId have
@@ -530,9 +1154,14 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
      */
     @Override
     public Set<RecordId> getRelationsFrom(RecordId recordId) throws RawRepoException {
+        return cachedRelations(RelationCache.Kind.RELATIONS_FROM, recordId, this::selectRelationsFrom);
+    }
+
+    private Set<RecordId> selectRelationsFrom(RecordId recordId) throws RawRepoException {
         Set<RecordId> collection = new HashSet<>();
-        final StopWatch watch = new Log4JStopWatch().setTimeThreshold(TIMER_THRESHOLD_MS);
-        try (PreparedStatement stmt = connection.prepareStatement(SELECT_RELATIONS)) {
+        final long start = System.nanoTime();
+        try {
+            PreparedStatement stmt = statement(SELECT_RELATIONS);
             int pos = 1;
             stmt.setString(pos++, recordId.getBibliographicRecordId());
             stmt.setInt(pos, recordId.getAgencyId());
@@ -542,10 +1171,11 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
                 }
             }
         } catch (SQLException ex) {
+            failed("SELECT_RELATIONS");
             logger.error(LOG_DATABASE_ERROR, ex);
             throw new RawRepoException("Error fetching getRelationsFrom relations", ex);
         } finally {
-            watch.stop(String.format("rawrepo.query.SELECT_RELATIONS(%s)", recordId.toString()));
+            timed("SELECT_RELATIONS", start, collection.size());
         }
         return collection;
     }
@@ -558,22 +1188,27 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
      */
     @Override
     public void deleteRelationsFrom(RecordId recordId) throws RawRepoException {
-        final StopWatch watch = new Log4JStopWatch().setTimeThreshold(TIMER_THRESHOLD_MS);
-        try (PreparedStatement stmt = connection.prepareStatement(DELETE_RELATIONS)) {
+        bypassSharedCaches = true;
+        final long start = System.nanoTime();
+        try {
+            PreparedStatement stmt = statement(DELETE_RELATIONS);
             int pos = 1;
             stmt.setString(pos++, recordId.getBibliographicRecordId());
             stmt.setInt(pos, recordId.getAgencyId());
             stmt.execute();
         } catch (SQLException ex) {
+            failed("DELETE_RELATIONS");
             logger.error(LOG_DATABASE_ERROR, ex);
             throw new RawRepoException("Error deleting relations", ex);
         } finally {
-            watch.stop(String.format("rawrepo.query.DELETE_RELATIONS(%s)", recordId));
+            timed("DELETE_RELATIONS", start, -1);
         }
     }
 
     /**
      * Clear all existing relations and set the new ones
+     * <p>
+     * Only relations that are removed or added are touched
      *
      * @param recordId recordid to update
      * @param refers   collection of record ids bibliographicRecordId depends on
@@ -581,25 +1216,111 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
      */
     @Override
     public void setRelationsFrom(RecordId recordId, Set<RecordId> refers) throws RawRepoException {
-        ValidateRelations.validate(this, recordId, refers);
+        setRelationsFrom(Collections.singletonMap(recordId, refers));
+    }
 
-        deleteRelationsFrom(recordId);
-        final StopWatch watch = new Log4JStopWatch().setTimeThreshold(TIMER_THRESHOLD_MS);
-        try (PreparedStatement stmt = connection.prepareStatement(INSERT_RELATION)) {
-            int pos = 1;
-            stmt.setString(pos++, recordId.getBibliographicRecordId());
-            stmt.setInt(pos++, recordId.getAgencyId());
+    /**
+     * Clear all existing relations and set the new ones, for many records
+     * <p>
+     * All relations are validated before anything is changed. Then the
+     * existing relations are read, and only relations that are removed or
+     * added are touched, using one statement for each
+     *
+     * @param relations map of recordid to the record ids it depends on
+     * @throws RawRepoException when something goes wrong
+     */
+    @Override
+    public void setRelationsFrom(Map<RecordId, Set<RecordId>> relations) throws RawRepoException {
+        if (relations.isEmpty()) {
+            return;
+        }
+        for (Map.Entry<RecordId, Set<RecordId>> entry : relations.entrySet()) {
+            ValidateRelations.validate(this, entry.getKey(), entry.getValue());
+        }
+
+        final Map<RecordId, Set<RecordId>> existing = selectRelationsFromList(relations.keySet());
+        final List<RecordId> deleteFrom = new ArrayList<>();
+        final List<RecordId> deleteRefers = new ArrayList<>();
+        final List<RecordId> insertFrom = new ArrayList<>();
+        final List<RecordId> insertRefers = new ArrayList<>();
+        for (Map.Entry<RecordId, Set<RecordId>> entry : relations.entrySet()) {
+            final RecordId recordId = entry.getKey();
+            final Set<RecordId> refers = entry.getValue();
+            final Set<RecordId> current = existing.getOrDefault(recordId, Collections.emptySet());
+            for (RecordId refer : current) {
+                if (!refers.contains(refer)) {
+                    deleteFrom.add(recordId);
+                    deleteRefers.add(refer);
+                }
+            }
             for (RecordId refer : refers) {
-                int p = pos;
-                stmt.setString(p++, refer.getBibliographicRecordId());
-                stmt.setInt(p, refer.getAgencyId());
-                stmt.execute();
+                if (!current.contains(refer)) {
+                    insertFrom.add(recordId);
+                    insertRefers.add(refer);
+                }
+            }
+        }
+        if (!deleteFrom.isEmpty() || !insertFrom.isEmpty()) {
+            bypassSharedCaches = true;
+        }
+        modifyRelations(DELETE_RELATIONS_LIST, "DELETE_RELATIONS_LIST", "deleting", deleteFrom, deleteRefers);
+        modifyRelations(INSERT_RELATIONS_LIST, "INSERT_RELATIONS_LIST", "setting", insertFrom, insertRefers);
+    }
+
+    private Map<RecordId, Set<RecordId>> selectRelationsFromList(Collection<RecordId> recordIds) throws RawRepoException {
+        final Map<RecordId, Set<RecordId>> result = new HashMap<>();
+        final List<RecordId> list = new ArrayList<>(recordIds);
+        for (int index = 0; index < list.size(); index += RECORD_IDS_CHUNK_SIZE) {
+            final List<RecordId> chunk = list.subList(index, Math.min(index + RECORD_IDS_CHUNK_SIZE, list.size()));
+            final long start = System.nanoTime();
+            int rows = 0;
+            try {
+                PreparedStatement stmt = statement(SELECT_RELATIONS_LIST);
+                setRecordIds(stmt, 1, chunk);
+                try (ResultSet resultSet = stmt.executeQuery()) {
+                    while (resultSet.next()) {
+                        rows++;
+                        result.computeIfAbsent(new RecordId(resultSet.getString(1), resultSet.getInt(2)), k -> new HashSet<>())
+                                .add(new RecordId(resultSet.getString(3), resultSet.getInt(4)));
+                    }
+                }
+            } catch (SQLException ex) {
+                failed("SELECT_RELATIONS_LIST");
+                logger.error(LOG_DATABASE_ERROR, ex);
+                throw new RawRepoException("Error fetching getRelationsFrom relations", ex);
+            } finally {
+                timed("SELECT_RELATIONS_LIST", start, rows);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Delete or insert relations, in chunks
+     *
+     * @param query  the statement, taking from and refer as arrays
+     * @param name   for timing
+     * @param what   for error messages
+     * @param from   the records that refers
+     * @param refers the records that are referred to, same size as from
+     * @throws RawRepoException when something goes wrong
+     */
+    private void modifyRelations(String query, String name, String what, List<RecordId> from, List<RecordId> refers) throws RawRepoException {
+        for (int index = 0; index < from.size(); index += RECORD_IDS_CHUNK_SIZE) {
+            final int end = Math.min(index + RECORD_IDS_CHUNK_SIZE, from.size());
+            final long start = System.nanoTime();
+            try {
+                PreparedStatement stmt = statement(query);
+                int pos = setRecordIds(stmt, 1, from.subList(index, end));
+                setRecordIds(stmt, pos, refers.subList(index, end));
+                stmt.executeUpdate();
+            } catch (SQLException ex) {
+                failed(name);
+                logger.error(LOG_DATABASE_ERROR, ex);
+                throw new RawRepoException("Error " + what + " relations", ex);
+            } finally {
+                timed(name, start, end - index);
             }
-        } catch (SQLException ex) {
-            logger.error(LOG_DATABASE_ERROR, ex);
-            throw new RawRepoException("Error setting relations", ex);
-        } finally {
-            watch.stop("rawrepo.query.INSERT_RELATION");
         }
     }
 
@@ -614,9 +1335,14 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
      */
     @Override
     public Set<RecordId> getRelationsChildren(RecordId recordId) throws RawRepoException {
+        return cachedRelations(RelationCache.Kind.CHILDREN, recordId, this::selectRelationsChildren);
+    }
+
+    private Set<RecordId> selectRelationsChildren(RecordId recordId) throws RawRepoException {
         Set<RecordId> collection = new HashSet<>();
-        final StopWatch watch = new Log4JStopWatch().setTimeThreshold(TIMER_THRESHOLD_MS);
-        try (PreparedStatement stmt = connection.prepareStatement(SELECT_RELATIONS_CHILDREN)) {
+        final long start = System.nanoTime();
+        try {
+            PreparedStatement stmt = statement(SELECT_RELATIONS_CHILDREN);
             int pos = 1;
             stmt.setString(pos++, recordId.getBibliographicRecordId());
             stmt.setInt(pos, recordId.getAgencyId());
@@ -626,10 +1352,11 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
                 }
             }
         } catch (SQLException ex) {
+            failed("SELECT_RELATIONS_CHILDREN");
             logger.error(LOG_DATABASE_ERROR, ex);
             throw new RawRepoException("Error fetching getRelationsChildren relations", ex);
         } finally {
-            watch.stop(String.format("rawrepo.query.SELECT_RELATIONS_CHILDREN(%s)", recordId.toString()));
+            timed("SELECT_RELATIONS_CHILDREN", start, collection.size());
         }
         return collection;
     }
@@ -644,9 +1371,56 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
      */
     @Override
     public Set<RecordId> getRelationsParents(RecordId recordId) throws RawRepoException {
+        return cachedRelations(RelationCache.Kind.PARENTS, recordId, this::selectRelationsParents);
+    }
+
+    /**
+     * Get the parent relations of a number of records, one round-trip per
+     * chunk of records
+     * <p>
+     * When the relation cache is in use, it is asked for each record instead
+     *
+     * @param recordIds ids of the records
+     * @return map of id to parents, records without parents are absent
+     * @throws RawRepoException when something goes wrong
+     */
+    @Override
+    protected Map<RecordId, Set<RecordId>> getRelationsParentsOfList(Collection<RecordId> recordIds) throws RawRepoException {
+        if (relationCache != null && !bypassSharedCaches) {
+            return super.getRelationsParentsOfList(recordIds);
+        }
+        final Map<RecordId, Set<RecordId>> result = new HashMap<>();
+        final List<RecordId> list = new ArrayList<>(recordIds);
+        for (int index = 0; index < list.size(); index += RECORD_IDS_CHUNK_SIZE) {
+            final List<RecordId> chunk = list.subList(index, Math.min(index + RECORD_IDS_CHUNK_SIZE, list.size()));
+            final long start = System.nanoTime();
+            int rows = 0;
+            try {
+                PreparedStatement stmt = statement(SELECT_RELATIONS_PARENTS_LIST);
+                setRecordIds(stmt, 1, chunk);
+                try (ResultSet resultSet = stmt.executeQuery()) {
+                    while (resultSet.next()) {
+                        rows++;
+                        result.computeIfAbsent(new RecordId(resultSet.getString(1), resultSet.getInt(2)), r -> new HashSet<>())
+                                .add(new RecordId(resultSet.getString(3), resultSet.getInt(4)));
+                    }
+                }
+            } catch (SQLException ex) {
+                failed("SELECT_RELATIONS_PARENTS_LIST");
+                logger.error(LOG_DATABASE_ERROR, ex);
+                throw new RawRepoException("Error fetching getRelationsParentsOfList relations", ex);
+            } finally {
+                timed("SELECT_RELATIONS_PARENTS_LIST", start, rows);
+            }
+        }
+        return result;
+    }
+
+    private Set<RecordId> selectRelationsParents(RecordId recordId) throws RawRepoException {
         Set<RecordId> collection = new HashSet<>();
-        final StopWatch watch = new Log4JStopWatch().setTimeThreshold(TIMER_THRESHOLD_MS);
-        try (PreparedStatement stmt = connection.prepareStatement(SELECT_RELATIONS_PARENTS)) {
+        final long start = System.nanoTime();
+        try {
+            PreparedStatement stmt = statement(SELECT_RELATIONS_PARENTS);
             int pos = 1;
             stmt.setString(pos++, recordId.getBibliographicRecordId());
             stmt.setInt(pos, recordId.getAgencyId());
@@ -656,85 +1430,59 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
                 }
             }
         } catch (SQLException ex) {
+            failed("SELECT_RELATIONS_PARENTS");
             logger.error(LOG_DATABASE_ERROR, ex);
             throw new RawRepoException("Error fetching getRelationsParents relations", ex);
         } finally {
-            watch.stop(String.format("rawrepo.query.SELECT_RELATIONS_PARENTS(%s)", recordId.toString()));
+            timed("SELECT_RELATIONS_PARENTS", start, collection.size());
         }
         return collection;
     }
 
     @Override
-    protected Set<RelationsPair> getAllChildRelations(RecordId recordId) throws RawRepoException {
-        final Set<RelationsPair> result = getAllChildRelations(new HashSet<>(Collections.singletonList(recordId)));
-
-        Set<RecordId> children = result.stream().map(RelationsPair::getChild).collect(Collectors.toSet());
-        while (!children.isEmpty()) {
-            Set<RelationsPair> tmp = getAllChildRelations(children);
-            result.addAll(tmp);
-            children = tmp.stream().map(RelationsPair::getChild).collect(Collectors.toSet());
-        }
+    protected Set<RelationsPair> getAllChildRelations(Collection<RecordId> recordIds) throws RawRepoException {
+        return selectChildRelations(recordIds, MAX_RELATION_DEPTH);
+    }
 
-        return result;
+    @Override
+    protected Set<RelationsPair> getChildRelations(Collection<RecordId> recordIds) throws RawRepoException {
+        return selectChildRelations(recordIds, 1);
     }
 
-    private Set<RelationsPair> getAllChildRelations(Set<RecordId> originalRecordIds) throws RawRepoException {
-        final StopWatch watch = new Log4JStopWatch().setTimeThreshold(TIMER_THRESHOLD_MS);
+    private Set<RelationsPair> selectChildRelations(Collection<RecordId> recordIds, int maxDepth) throws RawRepoException {
+        final long start = System.nanoTime();
         final Set<RelationsPair> result = new HashSet<>();
-
-        // If input is empty then return empty result
-        if (originalRecordIds.isEmpty()) {
-            return result;
-        }
-
-        final int sliceSize = 1000;
-        int index = 0;
-        while (index < originalRecordIds.size()) {
-            final Set<RecordId> recordIds = originalRecordIds.stream()
-                    .skip(index)
-                    .limit(sliceSize)
-                    .collect(Collectors.toSet());
-            index += sliceSize;
-            final StringBuilder query = new StringBuilder();
-            query.append("SELECT bibliographicrecordid, agencyid, refer_bibliographicrecordid, refer_agencyid FROM relations WHERE (refer_bibliographicrecordid, refer_agencyid) IN (");
-            final List<String> placeHolders = new ArrayList<>();
-            for (int i = 0; i < recordIds.size(); i++) {
-                placeHolders.add("(?, ?)");
-            }
-            query.append(String.join(",", placeHolders));
-            query.append(")");
-
-            try (PreparedStatement stmt = connection.prepareStatement(query.toString())) {
-                int pos = 1;
-                for (RecordId recordId : recordIds) {
-                    stmt.setString(pos++, recordId.getBibliographicRecordId());
-                    stmt.setInt(pos++, recordId.getAgencyId());
-                }
-                try (ResultSet resultSet = stmt.executeQuery()) {
-                    while (resultSet.next()) {
-                        final String bibliographicRecordId = resultSet.getString(1);
-                        final int agencyId = resultSet.getInt(2);
-                        final String referBibliographicRecordId = resultSet.getString(3);
-                        final int referAgencyId = resultSet.getInt(4);
-
-                        final RecordId recordId = new RecordId(bibliographicRecordId, agencyId);
-                        final RecordId referRecordId = new RecordId(referBibliographicRecordId, referAgencyId);
-
-                        result.add(new RelationsPair(recordId, referRecordId));
-                    }
+        boolean truncated = false;
+        try {
+            PreparedStatement stmt = statement(SELECT_ALL_CHILD_RELATIONS);
+            int pos = setRecordIds(stmt, 1, new ArrayList<>(recordIds));
+            stmt.setInt(pos, maxDepth);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                while (resultSet.next()) {
+                    final RecordId child = new RecordId(resultSet.getString(1), resultSet.getInt(2));
+                    final Boolean childDeleted = (Boolean) resultSet.getObject(3);
+                    final String childMimeType = resultSet.getString(4);
+                    final RecordId parent = new RecordId(resultSet.getString(5), resultSet.getInt(6));
+                    final Boolean parentDeleted = (Boolean) resultSet.getObject(7);
+                    final String parentMimeType = resultSet.getString(8);
+                    truncated = truncated || resultSet.getInt(9) >= maxDepth;
+
+                    result.add(new RelationsPair(child, childDeleted, childMimeType, parent, parentDeleted, parentMimeType));
                 }
-            } catch (SQLException ex) {
-                logger.error(LOG_DATABASE_ERROR, ex);
-                throw new RawRepoException("Error fetching mimetype", ex);
-            } finally {
-                watch.stop(String.format("rawrepo.query.SELECT_RELATIONS_CHILDREN_LIST for %s RecordIds",
-                        originalRecordIds.size()));
             }
+        } catch (SQLException ex) {
+            failed("SELECT_ALL_CHILD_RELATIONS");
+            logger.error(LOG_DATABASE_ERROR, ex);
+            throw new RawRepoException("Error fetching child relations", ex);
+        } finally {
+            timed("SELECT_ALL_CHILD_RELATIONS", start, result.size());
+        }
+        if (truncated && maxDepth > 1) {
+            logger.warn("Child relations of {} has been cut off at depth {}", recordIds, MAX_RELATION_DEPTH);
         }
         return result;
     }
 
-
     /**
      * @param recordId complex key for a record
      * @return siblings collection
@@ -742,9 +1490,14 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
      */
     @Override
     public Set<RecordId> getRelationsSiblingsToMe(RecordId recordId) throws RawRepoException {
+        return cachedRelations(RelationCache.Kind.SIBLINGS_TO_ME, recordId, this::selectRelationsSiblingsToMe);
+    }
+
+    private Set<RecordId> selectRelationsSiblingsToMe(RecordId recordId) throws RawRepoException {
         Set<RecordId> collection = new HashSet<>();
-        final StopWatch watch = new Log4JStopWatch().setTimeThreshold(TIMER_THRESHOLD_MS);
-        try (PreparedStatement stmt = connection.prepareStatement(SELECT_RELATIONS_SIBLINGS_TO_ME)) {
+        final long start = System.nanoTime();
+        try {
+            PreparedStatement stmt = statement(SELECT_RELATIONS_SIBLINGS_TO_ME);
             int pos = 1;
             stmt.setString(pos++, recordId.getBibliographicRecordId());
             stmt.setInt(pos, recordId.getAgencyId());
@@ -754,10 +1507,11 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
                 }
             }
         } catch (SQLException ex) {
+            failed("SELECT_RELATIONS_SIBLINGS_TO_ME");
             logger.error(LOG_DATABASE_ERROR, ex);
             throw new RawRepoException("Error fetching getRelationsSiblingsToMe relations", ex);
         } finally {
-            watch.stop(String.format("rawrepo.query.SELECT_RELATIONS_SIBLINGS_TO_ME(%s)", recordId.toString()));
+            timed("SELECT_RELATIONS_SIBLINGS_TO_ME", start, collection.size());
         }
         return collection;
     }
@@ -769,9 +1523,14 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
      */
     @Override
     public Set<RecordId> getRelationsSiblingsFromMe(RecordId recordId) throws RawRepoException {
+        return cachedRelations(RelationCache.Kind.SIBLINGS_FROM_ME, recordId, this::selectRelationsSiblingsFromMe);
+    }
+
+    private Set<RecordId> selectRelationsSiblingsFromMe(RecordId recordId) throws RawRepoException {
         Set<RecordId> collection = new HashSet<>();
-        final StopWatch watch = new Log4JStopWatch().setTimeThreshold(TIMER_THRESHOLD_MS);
-        try (PreparedStatement stmt = connection.prepareStatement(SELECT_RELATIONS_SIBLINGS_FROM_ME)) {
+        final long start = System.nanoTime();
+        try {
+            PreparedStatement stmt = statement(SELECT_RELATIONS_SIBLINGS_FROM_ME);
             int pos = 1;
             stmt.setString(pos++, recordId.getBibliographicRecordId());
             stmt.setInt(pos, recordId.getAgencyId());
@@ -781,14 +1540,22 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
                 }
             }
         } catch (SQLException ex) {
+            failed("SELECT_RELATIONS_SIBLINGS_FROM_ME");
             logger.error(LOG_DATABASE_ERROR, ex);
             throw new RawRepoException("Error fetching getRelationsSiblingsFromMe relations", ex);
         } finally {
-            watch.stop(String.format("rawrepo.query.SELECT_RELATIONS_SIBLINGS_FROM_ME(%s)", recordId.toString()));
+            timed("SELECT_RELATIONS_SIBLINGS_FROM_ME", start, collection.size());
         }
         return collection;
     }
 
+    private Set<RecordId> cachedRelations(RelationCache.Kind kind, RecordId recordId, RelationCache.Loader<Set<RecordId>> loader) throws RawRepoException {
+        if (relationCache == null || bypassSharedCaches) {
+            return loader.load(recordId);
+        }
+        return new HashSet<>(relationCache.get(kind, recordId, loader));
+    }
+
     /**
      * Get all libraries that has local data to bibliographicRecordId
      *
@@ -799,8 +1566,9 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
     @Override
     public Set<Integer> allAgenciesForBibliographicRecordId(String bibliographicRecordId) throws RawRepoException {
         Set<Integer> collection = new HashSet<>();
-        final StopWatch watch = new Log4JStopWatch().setTimeThreshold(TIMER_THRESHOLD_MS);
-        try (PreparedStatement stmt = connection.prepareStatement(SELECT_ALL_AGENCIES_FOR_ID)) {
+        final long start = System.nanoTime();
+        try {
+            PreparedStatement stmt = statement(SELECT_ALL_AGENCIES_FOR_ID);
             stmt.setString(1, bibliographicRecordId);
             try (ResultSet resultSet = stmt.executeQuery()) {
                 while (resultSet.next()) {
@@ -808,10 +1576,11 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
                 }
             }
         } catch (SQLException ex) {
+            failed("SELECT_ALL_AGENCIES_FOR_ID");
             logger.error(LOG_DATABASE_ERROR, ex);
             throw new RawRepoException("Error fetching allAgenciesForBibliographicRecordId relations", ex);
         } finally {
-            watch.stop(String.format("rawrepo.query.SELECT_ALL_AGENCIES_FOR_ID(%s)", bibliographicRecordId));
+            timed("SELECT_ALL_AGENCIES_FOR_ID", start, collection.size());
         }
         return collection;
     }
@@ -826,8 +1595,9 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
     @Override
     public Set<Integer> allAgenciesForBibliographicRecordIdSkipDeleted(String bibliographicRecordId) throws RawRepoException {
         Set<Integer> collection = new HashSet<>();
-        final StopWatch watch = new Log4JStopWatch().setTimeThreshold(TIMER_THRESHOLD_MS);
-        try (PreparedStatement stmt = connection.prepareStatement(SELECT_ALL_AGENCIES_FOR_ID_SKIP_DELETED)) {
+        final long start = System.nanoTime();
+        try {
+            PreparedStatement stmt = statement(SELECT_ALL_AGENCIES_FOR_ID_SKIP_DELETED);
             stmt.setString(1, bibliographicRecordId);
             try (ResultSet resultSet = stmt.executeQuery()) {
                 while (resultSet.next()) {
@@ -835,14 +1605,69 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
                 }
             }
         } catch (SQLException ex) {
+            failed("SELECT_ALL_AGENCIES_FOR_ID_SKIP_DELETED");
             logger.error(LOG_DATABASE_ERROR, ex);
             throw new RawRepoException("Error fetching allAgenciesForBibliographicRecordIdSkipDeleted relations", ex);
         } finally {
-            watch.stop(String.format("rawrepo.query.SELECT_ALL_AGENCIES_FOR_ID_SKIP_DELETED(%s)", bibliographicRecordId));
+            timed("SELECT_ALL_AGENCIES_FOR_ID_SKIP_DELETED", start, collection.size());
         }
         return collection;
     }
 
+    /**
+     * Get all libraries that has bibliographicRecordId, and if it is deleted
+     *
+     * @param bibliographicRecordId record bibliographicRecordId
+     * @return map of agencyid to deleted
+     * @throws RawRepoException when something goes wrong
+     */
+    @Override
+    public Map<Integer, Boolean> allAgenciesForBibliographicRecordIdWithDeleted(String bibliographicRecordId) throws RawRepoException {
+        Map<Integer, Boolean> agencies = new HashMap<>();
+        final long start = System.nanoTime();
+        try {
+            PreparedStatement stmt = statement(SELECT_ALL_AGENCIES_FOR_ID_WITH_DELETED);
+            stmt.setString(1, bibliographicRecordId);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                while (resultSet.next()) {
+                    agencies.put(resultSet.getInt(1), resultSet.getBoolean(2));
+                }
+            }
+        } catch (SQLException ex) {
+            failed("SELECT_ALL_AGENCIES_FOR_ID_WITH_DELETED");
+            logger.error(LOG_DATABASE_ERROR, ex);
+            throw new RawRepoException("Error fetching allAgenciesForBibliographicRecordIdWithDeleted", ex);
+        } finally {
+            timed("SELECT_ALL_AGENCIES_FOR_ID_WITH_DELETED", start, agencies.size());
+        }
+        return agencies;
+    }
+
+    @Override
+    protected Map<String, Map<Integer, Boolean>> allAgenciesForBibliographicRecordIdsWithDeleted(Collection<String> bibliographicRecordIds) throws RawRepoException {
+        final Map<String, Map<Integer, Boolean>> result = new HashMap<>();
+        final long start = System.nanoTime();
+        int rows = 0;
+        try {
+            PreparedStatement stmt = statement(SELECT_ALL_AGENCIES_FOR_IDS_WITH_DELETED);
+            stmt.setArray(1, connection.createArrayOf("varchar", bibliographicRecordIds.toArray()));
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                while (resultSet.next()) {
+                    rows++;
+                    result.computeIfAbsent(resultSet.getString(1), id -> new HashMap<>())
+                            .put(resultSet.getInt(2), resultSet.getBoolean(3));
+                }
+            }
+        } catch (SQLException ex) {
+            failed("SELECT_ALL_AGENCIES_FOR_IDS_WITH_DELETED");
+            logger.error(LOG_DATABASE_ERROR, ex);
+            throw new RawRepoException("Error fetching allAgenciesForBibliographicRecordIdsWithDeleted", ex);
+        } finally {
+            timed("SELECT_ALL_AGENCIES_FOR_IDS_WITH_DELETED", start, rows);
+        }
+        return result;
+    }
+
 
     /**
      * Put job(s) on the queue (in the database)
@@ -860,8 +1685,9 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
 
     @Override
     public void enqueue(RecordId job, String provider, boolean changed, boolean leaf, int priority) throws RawRepoException {
-        StopWatch watch = new Log4JStopWatch().setTimeThreshold(TIMER_THRESHOLD_MS);
-        try (PreparedStatement stmt = connection.prepareStatement(CALL_ENQUEUE)) {
+        final long start = System.nanoTime();
+        try {
+            PreparedStatement stmt = statement(CALL_ENQUEUE);
             int pos = 1;
             stmt.setString(pos++, job.getBibliographicRecordId());
             stmt.setInt(pos++, job.getAgencyId());
@@ -879,11 +1705,11 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
                 }
             }
         } catch (SQLException ex) {
+            failed("CALL_ENQUEUE");
             logger.error(LOG_DATABASE_ERROR, ex);
             throw new RawRepoException("Error queueing job", ex);
         } finally {
-            watch.stop(String.format("rawrepo.query.CALL_ENQUEUE(%s:%s, %s, %s, %s, %s)",
-                    job.getBibliographicRecordId(), job.getAgencyId(), provider, changed, leaf, priority));
+            timed("CALL_ENQUEUE", start, -1);
         }
     }
 
@@ -896,7 +1722,7 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
         List<String> leafList = new ArrayList<>();
         List<Integer> priorityList = new ArrayList<>();
 
-        StopWatch watch = new Log4JStopWatch().setTimeThreshold(TIMER_THRESHOLD_MS);
+        final long start = System.nanoTime();
         for (EnqueueJob job : jobs) {
             bibliographicRecordIdList.add(job.getJob().getBibliographicRecordId());
             agencyList.add(job.getJob().getAgencyId());
@@ -916,10 +1742,11 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
 
             stmt.executeQuery();
         } catch (SQLException ex) {
+            failed("CALL_ENQUEUE_BULK");
             logger.error(LOG_DATABASE_ERROR, ex);
             throw new RawRepoException("Error during enqueue_bulk", ex);
         } finally {
-            watch.stop(String.format("rawrepo.query.CALL_ENQUEUE_BULK for %s EnqueueJobs", jobs.size()));
+            timed("CALL_ENQUEUE_BULK", start, jobs.size());
         }
 
     }
@@ -928,7 +1755,7 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
         logger.info("Check provider: {}", provider);
 
         int count = 0;
-        final StopWatch watch = new Log4JStopWatch().setTimeThreshold(TIMER_THRESHOLD_MS);
+        final long start = System.nanoTime();
         try (CallableStatement stmt = connection.prepareCall(CHECK_PROVIDER)) {
             stmt.setString(1, provider);
             try (ResultSet resultSet = stmt.executeQuery()) {
@@ -939,10 +1766,11 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
 
             return count > 0;
         } catch (SQLException ex) {
+            failed("CHECK_PROVIDER");
             logger.error(LOG_DATABASE_ERROR, ex);
             throw new RawRepoException("Error checking provider", ex);
         } finally {
-            watch.stop(String.format("rawrepo.query.CHECK_PROVIDER(%s)", provider));
+            timed("CHECK_PROVIDER", start, -1);
         }
     }
 
@@ -956,7 +1784,7 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
     @Override
     public List<QueueJob> dequeue(String worker, int wanted) throws RawRepoException {
         List<QueueJob> result = new ArrayList<>();
-        final StopWatch watch = new Log4JStopWatch().setTimeThreshold(TIMER_THRESHOLD_MS);
+        final long start = System.nanoTime();
         try (CallableStatement stmt = connection.prepareCall(CALL_DEQUEUE_MULTI)) {
             int pos = 1;
             stmt.setString(pos++, worker);
@@ -974,10 +1802,11 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
                 return result;
             }
         } catch (SQLException ex) {
+            failed("CALL_DEQUEUE_MULTI");
             logger.error(LOG_DATABASE_ERROR, ex);
             throw new RawRepoException("Error dequeueing jobs", ex);
         } finally {
-            watch.stop(String.format("rawrepo.query.CALL_DEQUEUE_MULTI(%s, %s)", worker, wanted));
+            timed("CALL_DEQUEUE_MULTI", start, result.size());
         }
     }
 
@@ -990,7 +1819,7 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
      */
     @Override
     public QueueJob dequeue(String worker) throws RawRepoException {
-        final StopWatch watch = new Log4JStopWatch().setTimeThreshold(TIMER_THRESHOLD_MS);
+        final long start = System.nanoTime();
         try (CallableStatement stmt = connection.prepareCall(CALL_DEQUEUE)) {
             stmt.setString(1, worker);
             try (ResultSet resultSet = stmt.executeQuery()) {
@@ -1006,10 +1835,11 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
                 return null;
             }
         } catch (SQLException ex) {
+            failed("CALL_DEQUEUE");
             logger.error(LOG_DATABASE_ERROR, ex);
             throw new RawRepoException("Error dequeueing job", ex);
         } finally {
-            watch.stop(String.format("rawrepo.query.CALL_DEQUEUE(%s)", worker));
+            timed("CALL_DEQUEUE", start, -1);
         }
     }
 
@@ -1025,20 +1855,22 @@ public class RawRepoDAOPostgreSQLImpl extends RawRepoDAO {
         if (error == null || error.equals("")) {
             throw new RawRepoException("Error cannot be empty in queueFail");
         }
-        final StopWatch watch = new Log4JStopWatch().setTimeThreshold(TIMER_THRESHOLD_MS);
-        try (PreparedStatement stmt = connection.prepareStatement(QUEUE_ERROR)) {
+        final long start = System.nanoTime();
+        try {
+            PreparedStatement stmt = statement(QUEUE_ERROR);
             int pos = 1;
-            stmt.setString(pos++, queueJob.job.bibliographicRecordId);
-            stmt.setInt(pos++, queueJob.job.agencyId);
+            stmt.setString(pos++, queueJob.job.getBibliographicRecordId());
+            stmt.setInt(pos++, queueJob.job.getAgencyId());
             stmt.setString(pos++, queueJob.worker);
             stmt.setString(pos++, error);
             stmt.setTimestamp(pos, queueJob.queued);
             stmt.executeUpdate();
         } catch (SQLException ex) {
+            failed("QUEUE_ERROR");
             logger.error(LOG_DATABASE_ERROR, ex);
             throw new RawRepoException("Error reporting job status", ex);
         } finally {
-            watch.stop("rawrepo.query.QUEUE_ERROR");
+            timed("QUEUE_ERROR", start, 1);
         }
     }
 
@@ -0,0 +1,72 @@
+/*
+ * dbc-rawrepo-access
+ * Copyright (C) 2015 Dansk Bibliotekscenter a/s, Tempovej 7-11, DK-2750 Ballerup,
+ * Denmark. CVR: 15149043
+ *
+ * This file is part of dbc-rawrepo-access.
+ *
+ * dbc-rawrepo-access is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-rawrepo-access is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dbc-rawrepo-access.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.rawrepo;
+
+/**
+ * Where a dao reports the statements it runs
+ * <p>
+ * Attach it to daos using {@link RawRepoDAO.Builder#metrics(RawRepoMetrics)}.
+ * Statements are named by the constant in the dao, like {@code SELECT_RECORD}
+ * or {@code CALL_DEQUEUE}, never by their arguments, so the number of names
+ * is small and fixed.
+ * <p>
+ * Implementations are called on every statement, from any number of threads,
+ * and should be cheap and thread safe. See {@link dk.dbc.rawrepo.metrics} for
+ * Dropwizard and Micrometer adapters.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public interface RawRepoMetrics {
+
+    /**
+     * Reports nothing, the default
+     */
+    RawRepoMetrics NONE = new RawRepoMetrics() {
+    };
+
+    /**
+     * A statement has completed (successfully or not)
+     *
+     * @param statement name of the statement
+     * @param nanos     time spent
+     * @param rows      number of rows read or written, or -1 if not
+     *                  meaningful for the statement
+     */
+    default void timed(String statement, long nanos, long rows) {
+    }
+
+    /**
+     * A statement has failed, it is timed too
+     *
+     * @param statement name of the statement
+     */
+    default void failed(String statement) {
+    }
+
+    /**
+     * Rows a statement has left alone, like saves of unchanged records
+     *
+     * @param statement name of the statement
+     * @param rows      number of rows skipped
+     */
+    default void skipped(String statement, long rows) {
+    }
+}
@@ -20,16 +20,60 @@
  */
 package dk.dbc.rawrepo;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
 /**
  *
  * @author DBC {@literal <dbc.dk>}
  */
 public interface Record extends RecordMetaData {
 
+    /**
+     * Get a copy of the content
+     *
+     * @return content, that the caller may modify
+     */
     byte[] getContent();
 
+    /**
+     * Set the content to a copy of the argument
+     *
+     * @param content content, that the caller may modify afterwards
+     */
     void setContent(byte[] content);
 
+    /**
+     * Get a read only view of the content, without copying it
+     *
+     * @return read only buffer positioned at the start of the content
+     */
+    default ByteBuffer getContentBuffer() {
+        return ByteBuffer.wrap(getContent()).asReadOnlyBuffer();
+    }
+
+    /**
+     * Read the content, without copying it
+     *
+     * @return stream of the content
+     */
+    default InputStream getContentStream() {
+        return new ByteArrayInputStream(getContent());
+    }
+
+    /**
+     * Set the content, without copying it
+     * <p>
+     * The record takes ownership of the array, the caller must not modify it
+     * afterwards
+     *
+     * @param content content
+     */
+    default void takeContent(byte[] content) {
+        setContent(content);
+    }
+
     boolean isOriginal();
 
     boolean isEnriched();
@@ -0,0 +1,195 @@
+/*
+ * dbc-rawrepo-access
+ * Copyright (C) 2015 Dansk Bibliotekscenter a/s, Tempovej 7-11, DK-2750 Ballerup,
+ * Denmark. CVR: 15149043
+ *
+ * This file is part of dbc-rawrepo-access.
+ *
+ * dbc-rawrepo-access is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-rawrepo-access is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dbc-rawrepo-access.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.rawrepo;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+
+/**
+ * Binary representation of record content (schema V33)
+ * <p>
+ * Content is stored in content_bytes, and the id of the {@link ContentCodec}
+ * used is stored in content_codec. Rows that haven't been migrated yet have
+ * base64 encoded content in the legacy content column, and content_bytes
+ * NULL.
+ * <p>
+ * Codecs with a trained dictionary (schema V34) need the dictionary from the
+ * database, see {@link ContentDictionaries}.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public final class RecordContentCodec {
+
+    /**
+     * content_bytes is the raw content
+     */
+    public static final String NONE = "none";
+
+    /**
+     * content_bytes is the content deflated (zlib format)
+     */
+    public static final String DEFLATE = "deflate";
+
+    /**
+     * content_bytes is the content deflated with a preset dictionary, the
+     * dictionary id (content_dictionaries.id) follows the prefix
+     */
+    public static final String DEFLATE_DICTIONARY_PREFIX = "deflate-dict:";
+
+    /**
+     * content_bytes is the difference from the next newer version of the
+     * record, only in records_archive, see {@link MarcDeltaCodec}
+     */
+    public static final String MARC_DELTA = "marc-delta";
+
+    /**
+     * Content smaller than this isn't worth compressing
+     */
+    static final int COMPRESS_THRESHOLD = 256;
+
+    private static final ContentCodec DEFLATE_CODEC = new DeflateContentCodec(DEFLATE);
+
+    private RecordContentCodec() {
+    }
+
+    /**
+     * Encoded content and the id of the codec that produced it
+     */
+    public static final class Encoded {
+
+        private final String codec;
+        private final byte[] data;
+
+        Encoded(String codec, byte[] data) {
+            this.codec = codec;
+            this.data = data;
+        }
+
+        public String getCodec() {
+            return codec;
+        }
+
+        public byte[] getData() {
+            return data;
+        }
+    }
+
+    /**
+     * Encode content for the content_bytes column
+     * <p>
+     * Content is deflated if it is above the threshold and deflating makes it
+     * smaller, otherwise it is stored as is
+     *
+     * @param content record content
+     * @return encoded content or null if content is null
+     */
+    public static Encoded encode(byte[] content) {
+        return encode(content, DEFLATE_CODEC);
+    }
+
+    /**
+     * Encode content for the content_bytes column
+     * <p>
+     * Content is encoded with the codec if it is above the threshold and
+     * encoding makes it smaller, otherwise it is stored as is
+     *
+     * @param content record content
+     * @param codec   codec to compress with
+     * @return encoded content or null if content is null
+     */
+    public static Encoded encode(byte[] content, ContentCodec codec) {
+        if (content == null) {
+            return null;
+        }
+        if (content.length >= COMPRESS_THRESHOLD) {
+            byte[] encoded = codec.encode(content);
+            if (encoded.length < content.length) {
+                return new Encoded(codec.getId(), encoded);
+            }
+        }
+        return new Encoded(NONE, content);
+    }
+
+    /**
+     * Decode content from the content_bytes column
+     *
+     * @param codec codec id from content_codec
+     * @param data  content_bytes
+     * @return record content
+     * @throws RawRepoException if the codec is unknown or data is corrupt
+     */
+    public static byte[] decode(String codec, byte[] data) throws RawRepoException {
+        if (data == null) {
+            return null;
+        }
+        if (codec == null || NONE.equals(codec)) {
+            return data;
+        }
+        if (DEFLATE.equals(codec)) {
+            return DEFLATE_CODEC.decode(data);
+        }
+        if (MARC_DELTA.equals(codec)) {
+            throw new RawRepoException("Content delta cannot be decoded without the version it is relative to");
+        }
+        throw new RawRepoException("Unknown content codec: " + codec);
+    }
+
+    /**
+     * Decode content from a row, that may or may not have been migrated
+     *
+     * @param base64Content legacy content column
+     * @param data          content_bytes column
+     * @param codec         content_codec column
+     * @return record content
+     * @throws RawRepoException if the codec is unknown or data is corrupt
+     */
+    public static byte[] decode(String base64Content, byte[] data, String codec) throws RawRepoException {
+        if (data != null) {
+            return decode(codec, data);
+        }
+        return decodeLegacy(base64Content);
+    }
+
+    /**
+     * Hash of content for the content_hash column (schema V38)
+     * <p>
+     * The hash is of the content, not of how it is encoded, so it doesn't
+     * change with the codec
+     *
+     * @param content record content
+     * @return sha-256 of the content or null if content is null
+     */
+    public static byte[] hash(byte[] content) {
+        if (content == null) {
+            return null;
+        }
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(content);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("SHA-256 is required of every java platform", ex);
+        }
+    }
+
+    static byte[] decodeLegacy(String base64Content) {
+        return base64Content == null ? null : Base64.getMimeDecoder().decode(base64Content);
+    }
+}
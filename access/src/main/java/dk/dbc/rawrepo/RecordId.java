@@ -60,10 +60,13 @@ public class RecordId {
 
     @Override
     public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
         if (obj == null) {
             return false;
         }
-        if (getClass() != obj.getClass()) {
+        if (kind(this) != kind(obj)) {
             return false;
         }
         final RecordId other = (RecordId) obj;
@@ -76,6 +79,13 @@ public class RecordId {
         return true;
     }
 
+    /**
+     * A {@link CompactRecordId} is just another instance of a RecordId
+     */
+    private static Class<?> kind(Object obj) {
+        return obj instanceof CompactRecordId ? RecordId.class : obj.getClass();
+    }
+
     @Override
     public String toString() {
         return "RecordId{" + "bibliographicRecordId=" + bibliographicRecordId + ", agencyId=" + agencyId + '}';
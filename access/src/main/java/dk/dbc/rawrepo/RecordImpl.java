@@ -20,6 +20,9 @@
  */
 package dk.dbc.rawrepo;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.time.Instant;
 import java.util.Arrays;
 
@@ -135,8 +138,39 @@ class RecordImpl implements Record {
 
     @Override
     public void setContent(byte[] content) {
+        takeContent(Arrays.copyOf(content, content.length));
+    }
+
+    @Override
+    public ByteBuffer getContentBuffer() {
+        return ByteBuffer.wrap(content).asReadOnlyBuffer();
+    }
+
+    @Override
+    public InputStream getContentStream() {
+        return new ByteArrayInputStream(content);
+    }
+
+    @Override
+    public void takeContent(byte[] content) {
         this.modified = Instant.now();
-        this.content = Arrays.copyOf(content, content.length);
+        this.content = content;
+    }
+
+    /**
+     * The content of a record, shared if possible
+     * <p>
+     * Content arrays are never modified in place, so within this package the
+     * array of a record can be shared as long as it isn't modified
+     *
+     * @param record any record
+     * @return the content array of the record, or a copy
+     */
+    static byte[] sharedContent(Record record) {
+        if (record instanceof RecordImpl) {
+            return ((RecordImpl) record).content;
+        }
+        return record.getContent();
     }
 
     @Override
@@ -0,0 +1,45 @@
+package dk.dbc.rawrepo;
+
+/**
+ * What is needed to decide how to prepare for a relation traversal from a
+ * record
+ */
+public class RecordProbe {
+
+    private final boolean deleted;
+    private final String mimeType;
+    private final int relationsToMe;
+
+    /**
+     * @param deleted       deleted flag of the record
+     * @param mimeType      mimetype of the record
+     * @param relationsToMe number of records that point to this (children
+     *                      and siblings), may be capped
+     */
+    public RecordProbe(boolean deleted, String mimeType, int relationsToMe) {
+        this.deleted = deleted;
+        this.mimeType = mimeType;
+        this.relationsToMe = relationsToMe;
+    }
+
+    public boolean isDeleted() {
+        return deleted;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public int getRelationsToMe() {
+        return relationsToMe;
+    }
+
+    @Override
+    public String toString() {
+        return "RecordProbe{" +
+                "deleted=" + deleted +
+                ", mimeType=" + mimeType +
+                ", relationsToMe=" + relationsToMe +
+                '}';
+    }
+}
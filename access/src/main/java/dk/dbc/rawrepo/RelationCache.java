@@ -0,0 +1,243 @@
+/*
+ * dbc-rawrepo-access
+ * Copyright (C) 2015 Dansk Bibliotekscenter a/s, Tempovej 7-11, DK-2750 Ballerup,
+ * Denmark. CVR: 15149043
+ *
+ * This file is part of dbc-rawrepo-access.
+ *
+ * dbc-rawrepo-access is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-rawrepo-access is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dbc-rawrepo-access.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.rawrepo;
+
+import javax.sql.DataSource;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Process wide cache of relations and mimetypes (schema V35)
+ * <p>
+ * Attach it to daos using {@link RawRepoDAO.Builder#relationCache(RelationCache)}.
+ * Entries are evicted least recently used first, when there are more than
+ * maxEntries record ids, or the estimated size exceeds maxBytes.
+ * <p>
+ * Triggers on relations and records send the ids of changed rows on
+ * {@link #CHANNEL}, and a listener thread removes them from the cache. The
+ * cache is only used while the listener is connected, so a change is never
+ * hidden for longer than the notification lag.
+ * <p>
+ * The listener holds a connection from the data source for as long as the
+ * cache is running.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class RelationCache implements AutoCloseable {
+
+    /**
+     * NOTIFY channel, payload is agencyid:bibliographicrecordid
+     */
+    public static final String CHANNEL = "rawrepo_relations";
+
+    enum Kind {
+        RELATIONS_FROM,
+        PARENTS,
+        CHILDREN,
+        SIBLINGS_TO_ME,
+        SIBLINGS_FROM_ME,
+        MIMETYPE
+    }
+
+    @FunctionalInterface
+    interface Loader<T> {
+
+        T load(RecordId recordId) throws RawRepoException;
+    }
+
+    private static class Node {
+
+        private final Map<Kind, Object> values = new EnumMap<>(Kind.class);
+        private long bytes;
+    }
+
+    private final DataSource dataSource;
+    private final int maxEntries;
+    private final long maxBytes;
+
+    private final LinkedHashMap<RecordId, Node> nodes = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes;
+    // Bumped on every invalidation, values loaded before that are not cached
+    private long generation;
+    private boolean listening;
+
+    private ChangeListener listener;
+
+    /**
+     * Create a cache, call {@link #start()} to begin using it
+     *
+     * @param dataSource where to listen for changes
+     * @param maxEntries max number of record ids to keep relations for
+     * @param maxBytes   max (estimated) memory usage
+     */
+    public RelationCache(DataSource dataSource, int maxEntries, long maxBytes) {
+        if (maxEntries <= 0 || maxBytes <= 0) {
+            throw new IllegalArgumentException("Cache size should be positive");
+        }
+        this.dataSource = dataSource;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Start listening for changes
+     *
+     * @return self
+     */
+    public synchronized RelationCache start() {
+        if (listener != null) {
+            throw new IllegalStateException("Relation cache is already started");
+        }
+        listener = new ChangeListener(dataSource, "rawrepo-relation-cache", new ChangeListener.Handler() {
+            @Override
+            public void connected() {
+                enable();
+            }
+
+            @Override
+            public void disconnected() {
+                disable();
+            }
+
+            @Override
+            public void changed(RecordId recordId) {
+                invalidate(recordId);
+            }
+        });
+        listener.start();
+        return this;
+    }
+
+    /**
+     * Stop listening, and empty the cache
+     */
+    @Override
+    public void close() {
+        ChangeListener changeListener;
+        synchronized (this) {
+            changeListener = listener;
+        }
+        if (changeListener != null) {
+            changeListener.close();
+        }
+        disable();
+    }
+
+    public synchronized int getSize() {
+        return nodes.size();
+    }
+
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * Lookup a value, loading it if it isn't cached
+     * <p>
+     * The returned value is shared, and must not be modified
+     *
+     * @param <T>      type of value
+     * @param kind     what to lookup
+     * @param recordId whom to lookup
+     * @param loader   how to get the value from the database
+     * @return cached or loaded value
+     * @throws RawRepoException if the loader fails
+     */
+    @SuppressWarnings("unchecked")
+    <T> T get(Kind kind, RecordId recordId, Loader<T> loader) throws RawRepoException {
+        long loadGeneration;
+        synchronized (this) {
+            if (listening) {
+                Node node = nodes.get(recordId);
+                if (node != null) {
+                    Object value = node.values.get(kind);
+                    if (value != null) {
+                        return (T) value;
+                    }
+                }
+            }
+            loadGeneration = generation;
+        }
+        T value = loader.load(recordId);
+        put(kind, recordId, value, loadGeneration);
+        return value;
+    }
+
+    private synchronized void put(Kind kind, RecordId recordId, Object value, long loadGeneration) {
+        if (!listening || value == null || loadGeneration != generation) {
+            return;
+        }
+        Node node = nodes.computeIfAbsent(recordId, k -> new Node());
+        bytes -= node.bytes;
+        node.values.put(kind, value);
+        node.bytes = estimate(recordId, node);
+        bytes += node.bytes;
+        Iterator<Node> iterator = nodes.values().iterator();
+        while ((nodes.size() > maxEntries || bytes > maxBytes) && iterator.hasNext()) {
+            bytes -= iterator.next().bytes;
+            iterator.remove();
+        }
+    }
+
+    synchronized void invalidate(RecordId recordId) {
+        generation++;
+        Node node = nodes.remove(recordId);
+        if (node != null) {
+            bytes -= node.bytes;
+        }
+    }
+
+    synchronized void enable() {
+        generation++;
+        nodes.clear();
+        bytes = 0;
+        listening = true;
+    }
+
+    synchronized void disable() {
+        listening = false;
+        generation++;
+        nodes.clear();
+        bytes = 0;
+    }
+
+    private static long estimate(RecordId recordId, Node node) {
+        long size = 128 + estimate(recordId);
+        for (Object value : node.values.values()) {
+            if (value instanceof Set) {
+                size += 64;
+                for (Object element : (Set<?>) value) {
+                    size += 32 + estimate((RecordId) element);
+                }
+            } else {
+                size += 48 + 2L * value.toString().length();
+            }
+        }
+        return size;
+    }
+
+    private static long estimate(RecordId recordId) {
+        return 64 + 2L * recordId.getBibliographicRecordId().length();
+    }
+}
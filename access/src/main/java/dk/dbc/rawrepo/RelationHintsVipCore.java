@@ -14,13 +14,30 @@ import java.util.List;
  */
 public class RelationHintsVipCore {
     private final VipCoreLibraryRulesConnector vipCoreLibraryRulesConnector;
+    private final LibraryRulesCache libraryRulesCache;
 
     public RelationHintsVipCore(VipCoreLibraryRulesConnector vipCoreLibraryRulesConnector) {
+        this(vipCoreLibraryRulesConnector, null);
+    }
+
+    /**
+     * Relation hints that look up library rules through a cache
+     *
+     * @param vipCoreLibraryRulesConnector connector to vipcore
+     * @param libraryRulesCache            process wide cache of rules, or null
+     *                                     to ask vipcore every time
+     */
+    public RelationHintsVipCore(VipCoreLibraryRulesConnector vipCoreLibraryRulesConnector, LibraryRulesCache libraryRulesCache) {
         this.vipCoreLibraryRulesConnector = vipCoreLibraryRulesConnector;
+        this.libraryRulesCache = libraryRulesCache;
     }
 
     public boolean usesCommonAgency(int agencyId) throws RawRepoException, VipCoreException {
         try {
+            if (libraryRulesCache != null) {
+                return libraryRulesCache.get(agencyId, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS,
+                                             () -> vipCoreLibraryRulesConnector.hasFeature(agencyId, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS));
+            }
             return vipCoreLibraryRulesConnector.hasFeature(agencyId, VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS);
         } catch (VipCoreException ex) {
             if (ex.getMessage().equals(ErrorType.SERVICE_UNAVAILABLE.value())) {
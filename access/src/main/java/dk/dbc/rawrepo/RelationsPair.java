@@ -7,9 +7,37 @@ public class RelationsPair {
     private RecordId child;
     private RecordId parent;
 
+    // State of the records, when resolved along with the relation
+    private final boolean recordStateKnown;
+    private Boolean childDeleted;
+    private String childMimeType;
+    private Boolean parentDeleted;
+    private String parentMimeType;
+
     public RelationsPair(RecordId child, RecordId parent) {
         this.child = child;
         this.parent = parent;
+        this.recordStateKnown = false;
+    }
+
+    /**
+     * Relation with the state of the records at both ends
+     *
+     * @param child          the record that refers
+     * @param childDeleted   deleted flag of child, null if it doesn't exist
+     * @param childMimeType  mimetype of child, null if it doesn't exist
+     * @param parent         the record that is referred to
+     * @param parentDeleted  deleted flag of parent, null if it doesn't exist
+     * @param parentMimeType mimetype of parent, null if it doesn't exist
+     */
+    public RelationsPair(RecordId child, Boolean childDeleted, String childMimeType, RecordId parent, Boolean parentDeleted, String parentMimeType) {
+        this.child = child;
+        this.parent = parent;
+        this.recordStateKnown = true;
+        this.childDeleted = childDeleted;
+        this.childMimeType = childMimeType;
+        this.parentDeleted = parentDeleted;
+        this.parentMimeType = parentMimeType;
     }
 
     public RecordId getParent() {
@@ -20,6 +48,26 @@ public class RelationsPair {
         return child;
     }
 
+    public boolean isRecordStateKnown() {
+        return recordStateKnown;
+    }
+
+    public Boolean getChildDeleted() {
+        return childDeleted;
+    }
+
+    public String getChildMimeType() {
+        return childMimeType;
+    }
+
+    public Boolean getParentDeleted() {
+        return parentDeleted;
+    }
+
+    public String getParentMimeType() {
+        return parentMimeType;
+    }
+
     @Override
     public String toString() {
         return "RelationsPair{" +
@@ -125,7 +125,7 @@ public class ValidateRelations {
         return (dao, recordId, refers) -> {
             if (!refers.isEmpty()) {
                 for (RecordId refer : refers) {
-                    String type = dao.getMimeTypeOf(refer.getBibliographicRecordId(), refer.agencyId);
+                    String type = dao.getMimeTypeOf(refer.getBibliographicRecordId(), refer.getAgencyId());
                     if(!MarcXChangeMimeType.AUTHORITY.equals(type)) {
                         logger.error("Validate constraint: " + recordId + " -> " + refers);
                         throw new RawRepoException("AUTHORITY records can only have outbound relations to other AUTHORITY records");
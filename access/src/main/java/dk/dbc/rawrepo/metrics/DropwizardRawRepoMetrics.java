@@ -0,0 +1,98 @@
+/*
+ * dbc-rawrepo-access
+ * Copyright (C) 2015 Dansk Bibliotekscenter a/s, Tempovej 7-11, DK-2750 Ballerup,
+ * Denmark. CVR: 15149043
+ *
+ * This file is part of dbc-rawrepo-access.
+ *
+ * dbc-rawrepo-access is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-rawrepo-access is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dbc-rawrepo-access.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.rawrepo.metrics;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import dk.dbc.rawrepo.RawRepoMetrics;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Report dao statements to a Dropwizard {@link MetricRegistry}
+ * <p>
+ * For each statement there is a timer {@code prefix.STATEMENT}, a histogram
+ * {@code prefix.STATEMENT.rows} and counters {@code prefix.STATEMENT.errors}
+ * and {@code prefix.STATEMENT.skipped}.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class DropwizardRawRepoMetrics implements RawRepoMetrics {
+
+    private static final class Meters {
+
+        private final Timer timer;
+        private final Histogram rows;
+        private final Counter errors;
+        private final Counter skipped;
+
+        private Meters(MetricRegistry registry, String name) {
+            this.timer = registry.timer(name);
+            this.rows = registry.histogram(MetricRegistry.name(name, "rows"));
+            this.errors = registry.counter(MetricRegistry.name(name, "errors"));
+            this.skipped = registry.counter(MetricRegistry.name(name, "skipped"));
+        }
+    }
+
+    private final MetricRegistry registry;
+    private final String prefix;
+    private final ConcurrentMap<String, Meters> meters = new ConcurrentHashMap<>();
+
+    /**
+     * @param registry where to register the metrics
+     * @param prefix   prefix of metric names, like "rawrepo.query"
+     */
+    public DropwizardRawRepoMetrics(MetricRegistry registry, String prefix) {
+        this.registry = registry;
+        this.prefix = prefix;
+    }
+
+    @Override
+    public void timed(String statement, long nanos, long rows) {
+        Meters m = meters(statement);
+        m.timer.update(nanos, TimeUnit.NANOSECONDS);
+        if (rows >= 0) {
+            m.rows.update(rows);
+        }
+    }
+
+    @Override
+    public void failed(String statement) {
+        meters(statement).errors.inc();
+    }
+
+    @Override
+    public void skipped(String statement, long rows) {
+        meters(statement).skipped.inc(rows);
+    }
+
+    private Meters meters(String statement) {
+        Meters m = meters.get(statement);
+        if (m == null) {
+            m = meters.computeIfAbsent(statement, s -> new Meters(registry, MetricRegistry.name(prefix, s)));
+        }
+        return m;
+    }
+}
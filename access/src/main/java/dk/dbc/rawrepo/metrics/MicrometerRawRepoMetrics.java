@@ -0,0 +1,105 @@
+/*
+ * dbc-rawrepo-access
+ * Copyright (C) 2015 Dansk Bibliotekscenter a/s, Tempovej 7-11, DK-2750 Ballerup,
+ * Denmark. CVR: 15149043
+ *
+ * This file is part of dbc-rawrepo-access.
+ *
+ * dbc-rawrepo-access is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-rawrepo-access is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dbc-rawrepo-access.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.rawrepo.metrics;
+
+import dk.dbc.rawrepo.RawRepoMetrics;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Report dao statements to a Micrometer {@link MeterRegistry}
+ * <p>
+ * All statements share the meters {@code rawrepo.query} (timer, with a
+ * percentile histogram), {@code rawrepo.query.rows},
+ * {@code rawrepo.query.errors} and {@code rawrepo.query.skipped}, tagged
+ * with {@code statement}.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class MicrometerRawRepoMetrics implements RawRepoMetrics {
+
+    public static final String NAME = "rawrepo.query";
+    public static final String TAG = "statement";
+
+    private static final class Meters {
+
+        private final Timer timer;
+        private final DistributionSummary rows;
+        private final Counter errors;
+        private final Counter skipped;
+
+        private Meters(MeterRegistry registry, String statement) {
+            this.timer = Timer.builder(NAME)
+                    .tag(TAG, statement)
+                    .publishPercentileHistogram()
+                    .register(registry);
+            this.rows = DistributionSummary.builder(NAME + ".rows")
+                    .tag(TAG, statement)
+                    .register(registry);
+            this.errors = Counter.builder(NAME + ".errors")
+                    .tag(TAG, statement)
+                    .register(registry);
+            this.skipped = Counter.builder(NAME + ".skipped")
+                    .tag(TAG, statement)
+                    .register(registry);
+        }
+    }
+
+    private final MeterRegistry registry;
+    private final ConcurrentMap<String, Meters> meters = new ConcurrentHashMap<>();
+
+    public MicrometerRawRepoMetrics(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    @Override
+    public void timed(String statement, long nanos, long rows) {
+        Meters m = meters(statement);
+        m.timer.record(nanos, TimeUnit.NANOSECONDS);
+        if (rows >= 0) {
+            m.rows.record(rows);
+        }
+    }
+
+    @Override
+    public void failed(String statement) {
+        meters(statement).errors.increment();
+    }
+
+    @Override
+    public void skipped(String statement, long rows) {
+        meters(statement).skipped.increment(rows);
+    }
+
+    private Meters meters(String statement) {
+        Meters m = meters.get(statement);
+        if (m == null) {
+            m = meters.computeIfAbsent(statement, s -> new Meters(registry, s));
+        }
+        return m;
+    }
+}
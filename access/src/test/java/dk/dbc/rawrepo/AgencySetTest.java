@@ -0,0 +1,45 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class AgencySetTest {
+
+    @Test
+    public void testAddContainsRemove() throws Exception {
+        AgencySet set = new AgencySet();
+        for (int agencyId : new int[] {870970, 191919, 700000, 191919, 1, 870971, 870979, 300000, 723000, 400000}) {
+            set.add(agencyId);
+        }
+        assertThat(set.size(), is(9));
+        assertThat(set.toString(), is("[1, 191919, 300000, 400000, 700000, 723000, 870970, 870971, 870979]"));
+        assertThat(set.add(870970), is(false));
+        assertThat(set.contains(700000), is(true));
+        assertThat(set.contains(700001), is(false));
+
+        set.removeAt(0);
+        assertThat(set.contains(1), is(false));
+        assertThat(set.get(0), is(191919));
+    }
+
+    @Test
+    public void testCopyIsIndependent() throws Exception {
+        AgencySet set = new AgencySet();
+        set.add(870970);
+        AgencySet copy = new AgencySet(set);
+        copy.add(191919);
+        assertThat(set.size(), is(1));
+        assertThat(copy.size(), is(2));
+        assertThat(copy.equals(set), is(false));
+        set.add(191919);
+        assertThat(copy.equals(set), is(true));
+        assertThat(copy.hashCode(), is(set.hashCode()));
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo;
+
+import org.junit.jupiter.api.Test;
+
+import javax.sql.DataSource;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.instanceOf;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class AsyncRawRepoDAOTest {
+
+    private static AsyncRawRepoDAO async(int maxConcurrency, ExecutorService executor) throws Exception {
+        DataSource dataSource = mock(DataSource.class);
+        when(dataSource.getConnection()).thenAnswer(i -> mock(Connection.class));
+        return new AsyncRawRepoDAO(dataSource, maxConcurrency, connection -> mock(RawRepoDAO.class), executor, true);
+    }
+
+    @Test
+    public void testConcurrencyIsBounded() throws Exception {
+        try (AsyncRawRepoDAO async = async(2, Executors.newCachedThreadPool())) {
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger maxRunning = new AtomicInteger();
+            CountDownLatch release = new CountDownLatch(1);
+            List<CompletableFuture<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                int n = i;
+                futures.add(async.submit(dao -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    release.await();
+                    running.decrementAndGet();
+                    return n;
+                }));
+            }
+            assertThat(async.getWaiting(), is(8));
+            release.countDown();
+            for (int i = 0; i < 10; i++) {
+                assertThat(futures.get(i).get(10, TimeUnit.SECONDS), is(i));
+            }
+            assertThat(maxRunning.get(), is(2));
+        }
+    }
+
+    @Test
+    public void testFailureCompletesExceptionally() throws Exception {
+        try (AsyncRawRepoDAO async = async(1, Executors.newSingleThreadExecutor())) {
+            CompletableFuture<Object> failed = async.submit(dao -> {
+                throw new RawRepoExceptionRecordNotFound("not found");
+            });
+            CompletableFuture<String> next = async.submit(dao -> "next");
+            ExecutionException ex = assertThrows(ExecutionException.class, () -> failed.get(10, TimeUnit.SECONDS));
+            assertThat(ex.getCause(), instanceOf(RawRepoExceptionRecordNotFound.class));
+            assertThat("a failure frees its slot", next.get(10, TimeUnit.SECONDS), is("next"));
+        }
+    }
+
+    @Test
+    public void testRejectedFailsWaiting() throws Exception {
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (AsyncRawRepoDAO async = async(1, executor)) {
+            CountDownLatch release = new CountDownLatch(1);
+            CompletableFuture<String> first = async.submit(dao -> {
+                release.await();
+                return "first";
+            });
+            List<CompletableFuture<Integer>> futures = new ArrayList<>();
+            for (int i = 0; i < 100000; i++) {
+                int n = i;
+                futures.add(async.submit(dao -> n));
+            }
+            executor.shutdown();
+            release.countDown();
+            assertThat(first.get(10, TimeUnit.SECONDS), is("first"));
+            for (CompletableFuture<Integer> future : futures) {
+                ExecutionException ex = assertThrows(ExecutionException.class, () -> future.get(10, TimeUnit.SECONDS));
+                assertThat(ex.getCause(), instanceOf(RejectedExecutionException.class));
+            }
+            assertThat(async.getWaiting(), is(0));
+        }
+    }
+
+    @Test
+    public void testCloseFailsWaiting() throws Exception {
+        AsyncRawRepoDAO async = async(1, Executors.newSingleThreadExecutor());
+        CountDownLatch release = new CountDownLatch(1);
+        CompletableFuture<String> running = async.submit(dao -> {
+            release.await();
+            return "running";
+        });
+        CompletableFuture<String> waiting = async.submit(dao -> "waiting");
+        async.close();
+        ExecutionException ex = assertThrows(ExecutionException.class, () -> waiting.get(10, TimeUnit.SECONDS));
+        assertThat(ex.getCause(), instanceOf(RejectedExecutionException.class));
+        ex = assertThrows(ExecutionException.class, () -> async.submit(dao -> "late").get(10, TimeUnit.SECONDS));
+        assertThat(ex.getCause(), instanceOf(RejectedExecutionException.class));
+        release.countDown();
+        assertThat("running calls aren't interrupted", running.get(10, TimeUnit.SECONDS), is("running"));
+    }
+}
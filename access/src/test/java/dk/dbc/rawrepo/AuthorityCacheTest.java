@@ -0,0 +1,111 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class AuthorityCacheTest {
+
+    private static final Instant T1 = Instant.parse("2020-01-01T00:00:00Z");
+    private static final Instant T2 = Instant.parse("2020-01-02T00:00:00Z");
+
+    private static Record authority(String id, Instant modified, int size) {
+        return new RecordImpl(id, 870979, false, "text/marcxchange", new byte[size], T1, modified, "track", false);
+    }
+
+    @Test
+    public void testModified() throws Exception {
+        AuthorityCache cache = new AuthorityCache(10, 10000);
+        cache.put(authority("a", T1, 10));
+        Record record = cache.get("a", T1);
+        assertThat(record, notNullValue());
+        assertThat(record.getId(), is(new RecordId("a", 870979)));
+        assertThat(record.getModified(), is(T1));
+        assertThat(record.getContent().length, is(10));
+        assertThat("modified record", cache.get("a", T2), nullValue());
+        assertThat("other record", cache.get("b", T1), nullValue());
+        assertThat(cache.getHits(), is(1L));
+        assertThat(cache.getMisses(), is(2L));
+
+        cache.put(authority("a", T2, 20));
+        assertThat(cache.getSize(), is(1));
+        assertThat(cache.getBytes(), is(20L));
+        assertThat(cache.get("a", T2), notNullValue());
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        AuthorityCache cache = new AuthorityCache(2, 100);
+        cache.put(authority("a", T1, 10));
+        cache.put(authority("b", T1, 10));
+        cache.get("a", T1);
+        cache.put(authority("c", T1, 10));
+        assertThat(cache.getSize(), is(2));
+        assertThat("least recently used is evicted", cache.get("b", T1), nullValue());
+        assertThat(cache.get("a", T1), notNullValue());
+
+        cache.put(authority("d", T1, 95));
+        assertThat(cache.getSize(), is(1));
+        assertThat(cache.getBytes(), is(95L));
+    }
+
+    @Test
+    public void testInvalidate() throws Exception {
+        AuthorityCache cache = new AuthorityCache(10, 10000);
+        cache.put(authority("a", T1, 10));
+        cache.invalidate("a");
+        cache.invalidate("b");
+        assertThat(cache.get("a", T1), nullValue());
+        assertThat(cache.getInvalidations(), is(1L));
+        assertThat(cache.getBytes(), is(0L));
+    }
+
+    @Test
+    public void testFetch() throws Exception {
+        AuthorityCache cache = new AuthorityCache(10, 10000);
+        cache.put(authority("a", T1, 10));
+        cache.put(authority("b", T1, 10));
+
+        RawRepoDAO dao = mock(RawRepoDAO.class);
+        Map<RecordId, Instant> modified = new HashMap<>();
+        modified.put(new RecordId("a", 870979), T1);
+        modified.put(new RecordId("b", 870979), T2);
+        when(dao.getModifiedOfList(anyCollection())).thenReturn(modified);
+        when(dao.fetchRecords(anyCollection())).thenAnswer(invocation -> {
+            Map<RecordId, Record> records = new HashMap<>();
+            for (RecordId recordId : invocation.<Collection<RecordId>>getArgument(0)) {
+                records.put(recordId, recordId.getBibliographicRecordId().equals("b") ?
+                                      authority("b", T2, 20) :
+                                      new RecordImpl(recordId));
+            }
+            return records;
+        });
+
+        Map<String, Record> records = cache.fetch(dao, Arrays.asList("a", "b", "c"));
+        assertThat(records.get("a").getModified(), is(T1));
+        assertThat(records.get("b").getModified(), is(T2));
+        assertThat(records.get("c").isOriginal(), is(true));
+        verify(dao, times(1)).fetchRecords(Arrays.asList(new RecordId("b", 870979), new RecordId("c", 870979)));
+        assertThat("missing records aren't cached", cache.getSize(), is(2));
+        assertThat(cache.get("b", T2).getContent().length, is(20));
+    }
+}
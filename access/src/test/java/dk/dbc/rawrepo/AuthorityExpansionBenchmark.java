@@ -0,0 +1,129 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Fetching the authority records of a record to expand, with and without the
+ * {@link AuthorityCache}
+ * <p>
+ * The dao is simulated, every call to it is a round-trip of latency
+ * microseconds. Not a test, run it with:
+ * <pre>
+ * mvn -pl access test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=dk.dbc.rawrepo.AuthorityExpansionBenchmark
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class AuthorityExpansionBenchmark {
+
+    private static final Instant MODIFIED = Instant.parse("2020-01-01T00:00:00Z");
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    @Param({"3", "10"})
+    public int parents;
+
+    @Param({"200"})
+    public int latency;
+
+    private RawRepoDAO dao;
+    private AuthorityCache authorityCache;
+    private List<String> ids;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        dao = mock(RawRepoDAO.class);
+        when(dao.fetchRecord(anyString(), anyInt())).thenAnswer(invocation -> {
+            roundTrip();
+            return authority(invocation.getArgument(0));
+        });
+        when(dao.fetchRecords(anyCollection())).thenAnswer(invocation -> {
+            roundTrip();
+            Map<RecordId, Record> records = new HashMap<>();
+            for (RecordId recordId : invocation.<Collection<RecordId>>getArgument(0)) {
+                records.put(recordId, authority(recordId.getBibliographicRecordId()));
+            }
+            return records;
+        });
+        when(dao.getModifiedOfList(anyCollection())).thenAnswer(invocation -> {
+            roundTrip();
+            Map<RecordId, Instant> modified = new HashMap<>();
+            for (RecordId recordId : invocation.<Collection<RecordId>>getArgument(0)) {
+                modified.put(recordId, MODIFIED);
+            }
+            return modified;
+        });
+        authorityCache = new AuthorityCache(10000, 64L * 1024 * 1024);
+        ids = new ArrayList<>();
+        for (int i = 0; i < parents; i++) {
+            ids.add("aut" + i);
+        }
+    }
+
+    @Benchmark
+    public void fetchAuthorities(Blackhole blackhole) throws RawRepoException {
+        if (cached) {
+            blackhole.consume(authorityCache.fetch(dao, ids));
+        } else {
+            Map<String, Record> records = new HashMap<>();
+            for (String id : ids) {
+                records.put(id, dao.fetchRecord(id, AuthorityCache.AUTHORITY_AGENCY));
+            }
+            blackhole.consume(records);
+        }
+    }
+
+    private void roundTrip() {
+        LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(latency));
+    }
+
+    private static Record authority(String id) {
+        return new RecordImpl(id, AuthorityCache.AUTHORITY_AGENCY, false, "text/marcxchange", new byte[2000], MODIFIED, MODIFIED, "", false);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(AuthorityExpansionBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
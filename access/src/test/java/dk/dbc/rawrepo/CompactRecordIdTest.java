@@ -0,0 +1,37 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class CompactRecordIdTest {
+
+    @Test
+    public void testEqualsRecordId() throws Exception {
+        RecordId recordId = new RecordId("a", 870970);
+        RecordId compact = new CompactRecordId(new RecordId(new String("a"), 870970));
+        assertThat(compact.hashCode(), is(recordId.hashCode()));
+        assertThat(compact.equals(recordId), is(true));
+        assertThat(recordId.equals(compact), is(true));
+        assertThat(compact.equals(new CompactRecordId(recordId)), is(true));
+        assertThat(compact.equals(new CompactRecordId(new RecordId("a", 191919))), is(false));
+        assertThat(compact.equals(new RecordId("b", 870970)), is(false));
+        assertThat(compact.getBibliographicRecordId() == "a", is(true));
+
+        Set<RecordId> set = new HashSet<>();
+        set.add(compact);
+        assertThat(set.contains(recordId), is(true));
+        set.clear();
+        set.add(recordId);
+        assertThat(set.contains(compact), is(true));
+    }
+}
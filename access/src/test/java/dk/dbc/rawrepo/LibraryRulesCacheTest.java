@@ -0,0 +1,143 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo;
+
+import dk.dbc.vipcore.exception.VipCoreException;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static dk.dbc.vipcore.libraryrules.VipCoreLibraryRulesConnector.Rule.USE_ENRICHMENTS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class LibraryRulesCacheTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    private final AtomicLong now = new AtomicLong();
+    private final Queue<Runnable> refreshes = new ArrayDeque<>();
+    private final LibraryRulesCache cache = new LibraryRulesCache(Duration.ofSeconds(10), Duration.ofSeconds(20), refreshes::add, now::get);
+
+    @Test
+    public void testFreshAndStale() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        LibraryRulesCache.Loader loader = () -> calls.incrementAndGet() > 1;
+
+        assertThat(cache.get(870970, USE_ENRICHMENTS, loader), is(false));
+        now.addAndGet(9 * SECOND);
+        assertThat(cache.get(870970, USE_ENRICHMENTS, loader), is(false));
+        assertThat(calls.get(), is(1));
+        assertThat(cache.getMisses(), is(1L));
+        assertThat(cache.getHits(), is(1L));
+
+        now.addAndGet(2 * SECOND);
+        assertThat(cache.get(870970, USE_ENRICHMENTS, loader), is(false));
+        assertThat(cache.get(870970, USE_ENRICHMENTS, loader), is(false));
+        assertThat(cache.getStaleHits(), is(2L));
+        assertThat(cache.getRefreshes(), is(1L));
+        assertThat(refreshes.size(), is(1));
+        assertThat(calls.get(), is(1));
+
+        refreshes.poll().run();
+        assertThat(calls.get(), is(2));
+        assertThat(cache.get(870970, USE_ENRICHMENTS, loader), is(true));
+        assertThat(cache.getHits(), is(2L));
+    }
+
+    @Test
+    public void testExpired() throws Exception {
+        AtomicInteger calls = new AtomicInteger();
+        LibraryRulesCache.Loader loader = () -> calls.incrementAndGet() > 1;
+
+        assertThat(cache.get(870970, USE_ENRICHMENTS, loader), is(false));
+        now.addAndGet(30 * SECOND);
+        assertThat(cache.get(870970, USE_ENRICHMENTS, loader), is(true));
+        assertThat(cache.getMisses(), is(2L));
+        assertThat(refreshes.isEmpty(), is(true));
+    }
+
+    @Test
+    public void testKeys() throws Exception {
+        assertThat(cache.get(870970, USE_ENRICHMENTS, () -> true), is(true));
+        assertThat(cache.get(710100, USE_ENRICHMENTS, () -> false), is(false));
+        assertThat(cache.get(870970, USE_ENRICHMENTS, () -> false), is(true));
+        assertThat(cache.getSize(), is(2));
+    }
+
+    @Test
+    public void testFallback() throws Exception {
+        assertThat(cache.get(870970, USE_ENRICHMENTS, () -> true), is(true));
+        now.addAndGet(60 * SECOND);
+        assertThat(cache.get(870970, USE_ENRICHMENTS, () -> {
+                   throw new VipCoreException("down");
+               }), is(true));
+        assertThat(cache.getFailures(), is(1L));
+        assertThat(cache.getFallbacks(), is(1L));
+
+        now.addAndGet(-45 * SECOND);
+        assertThat(cache.get(870970, USE_ENRICHMENTS, () -> {
+                   throw new VipCoreException("down");
+               }), is(true));
+        refreshes.poll().run();
+        assertThat(cache.getFailures(), is(2L));
+        assertThat(cache.get(870970, USE_ENRICHMENTS, () -> false), is(true));
+    }
+
+    @Test
+    public void testNeverFetched() throws Exception {
+        assertThrows(VipCoreException.class, () -> cache.get(870970, USE_ENRICHMENTS, () -> {
+                 throw new VipCoreException("down");
+             }));
+        assertThat(cache.getSize(), is(0));
+        assertThat(cache.get(870970, USE_ENRICHMENTS, () -> true), is(true));
+    }
+
+    @Test
+    public void testCoalesce() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        LibraryRulesCache.Loader loader = () -> {
+            calls.incrementAndGet();
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                throw new IllegalStateException(ex);
+            }
+            return true;
+        };
+
+        CompletableFuture<Boolean> first = CompletableFuture.supplyAsync(() -> get(loader));
+        started.await();
+        CompletableFuture<Boolean> second = CompletableFuture.supplyAsync(() -> get(loader));
+        while (cache.getMisses() < 2) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+        release.countDown();
+        assertThat(first.get(), is(true));
+        assertThat(second.get(), is(true));
+        assertThat(calls.get(), is(1));
+    }
+
+    private boolean get(LibraryRulesCache.Loader loader) {
+        try {
+            return cache.get(870970, USE_ENRICHMENTS, loader);
+        } catch (VipCoreException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
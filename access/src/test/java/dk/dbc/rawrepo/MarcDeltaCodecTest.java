@@ -0,0 +1,71 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class MarcDeltaCodecTest {
+
+    private static final Instant MODIFIED = Instant.parse("2016-05-01T12:00:00.123456Z");
+
+    private static byte[] marcx(String... values) {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><marcx:record xmlns:marcx=\"info:lc/xmlns/marcxchange-v1\"><marcx:leader>00000n    2200000   4500</marcx:leader>");
+        for (int i = 0; i < values.length; i++) {
+            sb.append("<marcx:datafield ind1=\"0\" ind2=\"0\" tag=\"").append(100 + i).append("\"><marcx:subfield code=\"a\">").append(values[i]).append("</marcx:subfield></marcx:datafield>");
+        }
+        return sb.append("</marcx:record>").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testFields() throws Exception {
+        byte[] content = marcx("a", "b");
+        assertThat(MarcDeltaCodec.fields(content).size(), is(4));
+        assertThat(MarcDeltaCodec.fields(new byte[0]).size(), is(1));
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] base = marcx("one", "two", "three", "four", "five", "six", "seven", "eight", "nine", "ten");
+        byte[] content = marcx("one", "two", "3", "four", "five", "six", "seven", "eight", "nine", "ten", "eleven");
+        byte[] delta = MarcDeltaCodec.encode(content, base, MODIFIED);
+        assertThat(delta.length, lessThan(content.length / 2));
+        assertThat(MarcDeltaCodec.baseModified(delta), is(MODIFIED));
+        assertThat(MarcDeltaCodec.decode(delta, base), is(content));
+    }
+
+    @Test
+    public void testReorderedAndRemovedFields() throws Exception {
+        byte[] base = marcx("one", "two", "three", "four");
+        byte[] content = marcx("four", "one", "three");
+        assertThat(MarcDeltaCodec.decode(MarcDeltaCodec.encode(content, base, MODIFIED), base), is(content));
+    }
+
+    @Test
+    public void testNotMarc() throws Exception {
+        byte[] base = "Version 2".getBytes(StandardCharsets.UTF_8);
+        byte[] content = "Version 1".getBytes(StandardCharsets.UTF_8);
+        assertThat(MarcDeltaCodec.decode(MarcDeltaCodec.encode(content, base, MODIFIED), base), is(content));
+        assertThat(MarcDeltaCodec.decode(MarcDeltaCodec.encode(new byte[0], base, MODIFIED), base), is(new byte[0]));
+    }
+
+    @Test
+    public void testWrongBase() throws Exception {
+        byte[] base = marcx("one", "two", "three");
+        byte[] content = marcx("one", "2", "three");
+        byte[] delta = MarcDeltaCodec.encode(content, base, MODIFIED);
+        assertThrows(RawRepoException.class, () -> MarcDeltaCodec.decode(delta, marcx("1", "two", "three")));
+        assertThrows(RawRepoException.class, () -> MarcDeltaCodec.decode(delta, marcx("one")));
+        assertThrows(RawRepoException.class, () -> MarcDeltaCodec.decode(new byte[] {1, 2, 3}, base));
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+
+public class MergedRecordCacheTest {
+
+    private static final RecordId COMMON = new RecordId("a", 870970);
+    private static final RecordId LOCAL = new RecordId("a", 710100);
+    private static final Instant T1 = Instant.parse("2020-01-01T00:00:00Z");
+    private static final Instant T2 = Instant.parse("2020-01-02T00:00:00Z");
+
+    private static MergedRecordCache.Key key(String merger, Instant commonModified, Instant localModified) {
+        return new MergedRecordCache.Key(merger, 710100, Arrays.asList(COMMON, LOCAL), Arrays.asList(commonModified, localModified));
+    }
+
+    private static Record merged(int size) {
+        return RecordImpl.enriched("a", 710100, "text/marcxchange", new byte[size], T1, T2, "track", "870970,710100");
+    }
+
+    @Test
+    public void testKey() throws Exception {
+        MergedRecordCache cache = new MergedRecordCache(10, 10000);
+        cache.put(key("default", T1, T2), merged(10));
+        Record record = cache.get(key("default", T1, T2));
+        assertThat(record, notNullValue());
+        assertThat(record.getEnrichmentTrail(), is("870970,710100"));
+        assertThat(record.getContent().length, is(10));
+        assertThat("other merger", cache.get(key("other", T1, T2)), nullValue());
+        assertThat("modified record", cache.get(key("default", T1, T1)), nullValue());
+        assertThat("other chain", cache.get(new MergedRecordCache.Key("default", 710100, Collections.singletonList(LOCAL), Collections.singletonList(T2))), nullValue());
+    }
+
+    @Test
+    public void testBounded() throws Exception {
+        MergedRecordCache cache = new MergedRecordCache(2, 100);
+        cache.put(key("a", T1, T2), merged(10));
+        cache.put(key("b", T1, T2), merged(10));
+        cache.get(key("a", T1, T2));
+        cache.put(key("c", T1, T2), merged(10));
+        assertThat(cache.getSize(), is(2));
+        assertThat("least recently used is evicted", cache.get(key("b", T1, T2)), nullValue());
+        assertThat(cache.get(key("a", T1, T2)), notNullValue());
+
+        cache.put(key("d", T1, T2), merged(95));
+        assertThat(cache.getSize(), is(1));
+        assertThat(cache.getBytes(), is(95L));
+    }
+}
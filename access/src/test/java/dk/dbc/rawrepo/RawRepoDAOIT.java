@@ -8,14 +8,19 @@ import dk.dbc.vipcore.exception.VipCoreException;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.postgresql.PGConnection;
+import org.postgresql.PGNotification;
 import org.slf4j.ext.XLogger;
 import org.slf4j.ext.XLoggerFactory;
 
+import java.nio.charset.StandardCharsets;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
@@ -24,6 +29,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.CoreMatchers.notNullValue;
@@ -126,6 +133,62 @@ public class RawRepoDAOIT {
         assertTrue(recordExists);
     }
 
+    @Test
+    public void testSaveRecords() throws SQLException, RawRepoException {
+        setupData(100000, "A:870970");
+        RawRepoDAO dao = RawRepoDAO.builder(connection).relationHints(new MyRelationHints()).build();
+        connection.setAutoCommit(false);
+
+        Record existing = dao.fetchRecord("A", 870970);
+        Instant created = existing.getCreated();
+        existing.setContent("Updated".getBytes());
+        existing.setModified(Instant.now());
+        Record b = dao.fetchRecord("B", 870970);
+        b.setContent("New B".getBytes());
+        b.setMimeType(MarcXChangeMimeType.MARCXCHANGE);
+        Record c = dao.fetchRecord("C", 870970);
+        c.setContent("New C".getBytes());
+        c.setMimeType(MarcXChangeMimeType.MARCXCHANGE);
+        dao.saveRecords(Arrays.asList(existing, b, c));
+        connection.commit();
+
+        assertFalse(b.isOriginal());
+        assertFalse(c.isOriginal());
+        Record a = dao.fetchRecord("A", 870970);
+        assertEquals("Updated", new String(a.getContent()));
+        assertEquals(created, a.getCreated(), "created is kept on update");
+        assertEquals("New B", new String(dao.fetchRecord("B", 870970).getContent()));
+        assertEquals("New C", new String(dao.fetchRecord("C", 870970).getContent()));
+        assertEquals(2, dao.getRecordHistory("A", 870970).size(), "Previous version is archived");
+        assertEquals(1, dao.getRecordHistory("B", 870970).size());
+    }
+
+    @Test
+    public void testMetrics() throws SQLException, RawRepoException {
+        setupData(100000, "A:870970", "B:870970");
+        Map<String, Long> rows = new HashMap<>();
+        Set<String> failed = new HashSet<>();
+        RawRepoDAO dao = RawRepoDAO.builder(connection).relationHints(new MyRelationHints())
+                .metrics(new RawRepoMetrics() {
+                    @Override
+                    public void timed(String statement, long nanos, long count) {
+                        rows.put(statement, count);
+                    }
+
+                    @Override
+                    public void failed(String statement) {
+                        failed.add(statement);
+                    }
+                })
+                .build();
+
+        dao.fetchRecord("A", 870970);
+        assertThat(rows.get("SELECT_RECORD"), is(-1L));
+        dao.fetchRecords(Arrays.asList(new RecordId("A", 870970), new RecordId("B", 870970), new RecordId("C", 870970)));
+        assertThat("rows found", rows.get("SELECT_RECORDS"), is(2L));
+        assertTrue(failed.isEmpty());
+    }
+
     @Test
     public void testHistoricRecord() throws SQLException, RawRepoException {
         RawRepoDAO dao = RawRepoDAO.builder(connection).relationHints(new MyRelationHints()).build();
@@ -170,6 +233,228 @@ public class RawRepoDAOIT {
         assertThat("oldest content", dao.getHistoricRecord(recordHistory.get(2)).getContent(), is("Version 1".getBytes()));
     }
 
+    @Test
+    public void testRecordHistoryPages() throws SQLException, RawRepoException {
+        RawRepoDAO dao = RawRepoDAO.builder(connection).relationHints(new MyRelationHints()).build();
+        for (int i = 1; i <= 5; i++) {
+            connection.setAutoCommit(false);
+            Record record = dao.fetchRecord("a bcd efg h", 100000);
+            record.setContent(("Version " + i).getBytes());
+            record.setMimeType("text/plain");
+            record.setDeleted(false);
+            dao.saveRecord(record);
+            connection.commit();
+        }
+        List<RecordMetaDataHistory> all = dao.getRecordHistory("a bcd efg h", 100000);
+        assertEquals(5, all.size());
+
+        assertThat("newest page", modified(dao.getRecordHistory("a bcd efg h", 100000, null, 2)), is(modified(all.subList(0, 2))));
+        assertThat("page as of version 3", modified(dao.getRecordHistory("a bcd efg h", 100000, all.get(2).getModified(), 2)), is(modified(all.subList(2, 4))));
+        assertTrue(dao.getRecordHistory("a bcd efg h", 100000, all.get(4).getModified().minusSeconds(1), 2).isEmpty());
+
+        List<RecordMetaDataHistory> visited = new ArrayList<>();
+        dao.visitRecordHistory("a bcd efg h", 100000, null, 2, visited::add);
+        assertThat("all pages", modified(visited), is(modified(all)));
+        visited.clear();
+        dao.visitRecordHistory("a bcd efg h", 100000, null, 2, version -> visited.add(version) && visited.size() < 3);
+        assertThat("stopped by visitor", modified(visited), is(modified(all.subList(0, 3))));
+
+        List<Record> records = dao.getHistoricRecords(Arrays.asList(all.get(3), all.get(0), all.get(4)));
+        assertThat(records.get(0).getContent(), is("Version 2".getBytes()));
+        assertThat(records.get(1).getContent(), is("Version 5".getBytes()));
+        assertThat(records.get(2).getContent(), is("Version 1".getBytes()));
+        assertThat(records.get(0).getModified(), is(all.get(3).getModified()));
+    }
+
+    @Test
+    public void testArchivePartitions() throws SQLException, RawRepoException {
+        RawRepoDAO dao = RawRepoDAO.builder(connection).relationHints(new MyRelationHints()).build();
+        for (int i = 1; i <= 2; i++) {
+            connection.setAutoCommit(false);
+            Record record = dao.fetchRecord("a bcd efg h", 100000);
+            record.setContent(("Version " + i).getBytes());
+            record.setMimeType("text/plain");
+            record.setModified(Instant.parse("2016-05-0" + i + "T12:00:00Z"));
+            dao.saveRecord(record);
+            connection.commit();
+        }
+        assertThat("archived in default partition", countRows("records_archive_default"), is(1));
+
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT records_archive_add_month(?)")) {
+            stmt.setTimestamp(1, Timestamp.from(Instant.parse("2016-05-15T00:00:00Z")));
+            stmt.executeQuery().close();
+        }
+        connection.commit();
+        assertThat("moved from default partition", countRows("records_archive_default"), is(0));
+        assertThat("moved to month partition", countRows("records_archive_201605"), is(1));
+
+        List<RecordMetaDataHistory> history = dao.getRecordHistory("a bcd efg h", 100000);
+        assertEquals(2, history.size());
+        assertThat(dao.getHistoricRecord(history.get(1)).getContent(), is("Version 1".getBytes()));
+    }
+
+    @Test
+    public void testSaveRecordIfChanged() throws SQLException, RawRepoException {
+        AtomicInteger skipped = new AtomicInteger();
+        RawRepoDAO dao = RawRepoDAO.builder(connection).relationHints(new MyRelationHints())
+                .metrics(new RawRepoMetrics() {
+                    @Override
+                    public void skipped(String statement, long rows) {
+                        skipped.addAndGet((int) rows);
+                    }
+                }).build();
+        connection.setAutoCommit(false);
+        Record record = dao.fetchRecord("A", 870970);
+        record.setContent("Version 1".getBytes());
+        record.setMimeType(MarcXChangeMimeType.MARCXCHANGE);
+        assertTrue(dao.saveRecordIfChanged(record), "new record");
+        connection.commit();
+        Instant modified = dao.fetchRecord("A", 870970).getModified();
+
+        record = dao.fetchRecord("A", 870970);
+        record.setContent("Version 1".getBytes());
+        record.setModified(modified.plusSeconds(60));
+        assertFalse(dao.saveRecordIfChanged(record), "same content");
+        connection.commit();
+        assertEquals(modified, dao.fetchRecord("A", 870970).getModified());
+        assertEquals(1, dao.getRecordHistory("A", 870970).size(), "nothing archived");
+        assertEquals(1, skipped.get());
+
+        record.setDeleted(true);
+        assertTrue(dao.saveRecordIfChanged(record), "deleted changed");
+        record.setDeleted(false);
+        record.setMimeType(MarcXChangeMimeType.ENRICHMENT);
+        record.setModified(modified.plusSeconds(120));
+        assertTrue(dao.saveRecordIfChanged(record), "mimetype changed");
+        connection.commit();
+        assertEquals(3, dao.getRecordHistory("A", 870970).size());
+
+        // Written without a hash, like software before V38 does
+        try (PreparedStatement stmt = connection.prepareStatement("UPDATE records SET content_bytes = ?, content_codec = 'none', modified = modified + INTERVAL '1 minute'" +
+                                                                  " WHERE bibliographicrecordid = 'A'")) {
+            stmt.setBytes(1, "Version 2".getBytes());
+            stmt.executeUpdate();
+        }
+        connection.commit();
+        record = dao.fetchRecord("A", 870970);
+        assertEquals("Version 2", new String(record.getContent()));
+        record.setContent("Version 1".getBytes());
+        record.setModified(modified.plusSeconds(240));
+        assertTrue(dao.saveRecordIfChanged(record), "hash was forgotten");
+
+        Record b = dao.fetchRecord("B", 870970);
+        b.setContent("B".getBytes());
+        b.setMimeType(MarcXChangeMimeType.MARCXCHANGE);
+        Record c = dao.fetchRecord("C", 870970);
+        c.setContent("C".getBytes());
+        c.setMimeType(MarcXChangeMimeType.MARCXCHANGE);
+        assertThat(dao.saveRecordsIfChanged(Arrays.asList(record, b, c)), is(new HashSet<>(Arrays.asList(b.getId(), c.getId()))));
+        assertEquals(2, skipped.get());
+        c.setModified(c.getModified().plusSeconds(60));
+        assertThat("the batch reports the records written, not the update counts",
+                   dao.saveRecordsIfChanged(Arrays.asList(b, c)).isEmpty(), is(true));
+        assertEquals(4, skipped.get());
+        connection.commit();
+    }
+
+    /**
+     * Stores the archived versions of a frequently edited record as deltas,
+     * with a full version every 10 versions, and reports the space saved and
+     * the cost of reconstructing a version
+     */
+    @Test
+    public void testArchiveDeltas() throws SQLException, RawRepoException {
+        RawRepoDAO dao = RawRepoDAO.builder(connection).relationHints(new MyRelationHints()).build();
+        int versions = 50;
+        List<byte[]> contents = new ArrayList<>();
+        for (int i = 0; i < versions; i++) {
+            connection.setAutoCommit(false);
+            Record record = dao.fetchRecord("a bcd efg h", 870970);
+            contents.add(marcx(60, i));
+            record.setContent(contents.get(i));
+            record.setModified(Instant.parse("2016-05-01T12:00:00Z").plusSeconds(i));
+            dao.saveRecord(record);
+            connection.commit();
+        }
+        List<RecordMetaDataHistory> history = dao.getRecordHistory("a bcd efg h", 870970);
+        assertEquals(versions, history.size());
+
+        long full = archiveSize();
+        try (PreparedStatement stmt = connection.prepareStatement("UPDATE records_archive SET content = NULL, content_bytes = ?, content_codec = ?" +
+                                                                  " WHERE bibliographicrecordid = ? AND agencyid = ? AND modified = ?")) {
+            // history is newest first, the first is the current version
+            for (int i = 1; i < versions; i++) {
+                if (i % 10 == 0) {
+                    continue;
+                }
+                int version = versions - 1 - i;
+                stmt.setBytes(1, MarcDeltaCodec.encode(contents.get(version), contents.get(version + 1), history.get(i - 1).getModified()));
+                stmt.setString(2, RecordContentCodec.MARC_DELTA);
+                stmt.setString(3, "a bcd efg h");
+                stmt.setInt(4, 870970);
+                stmt.setTimestamp(5, Timestamp.from(history.get(i).getModified()));
+                assertEquals(1, stmt.executeUpdate());
+            }
+        }
+        connection.commit();
+        long delta = archiveSize();
+        assertThat("deltas are smaller", full, greaterThan(delta * 2));
+
+        long start = System.nanoTime();
+        for (int i = 1; i < versions; i++) {
+            assertThat(dao.getHistoricRecord(history.get(i)).getContent(), is(contents.get(versions - 1 - i)));
+        }
+        long single = System.nanoTime() - start;
+        start = System.nanoTime();
+        List<Record> records = dao.getHistoricRecords(history);
+        long batched = System.nanoTime() - start;
+        for (int i = 0; i < versions; i++) {
+            assertThat(records.get(i).getContent(), is(contents.get(versions - 1 - i)));
+        }
+        logger.info("Archive of {} versions: {} bytes full, {} bytes as deltas; reconstruction {}us per version one at a time, {}us per version batched",
+                    versions - 1, full, delta, single / 1000 / (versions - 1), batched / 1000 / versions);
+    }
+
+    private long archiveSize() throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT SUM(COALESCE(OCTET_LENGTH(content), 0) + COALESCE(OCTET_LENGTH(content_bytes), 0)) FROM records_archive");
+             ResultSet resultSet = stmt.executeQuery()) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+
+    /**
+     * A marcxchange record where the version changes a couple of fields
+     */
+    private static byte[] marcx(int fields, int version) {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<record xmlns=\"info:lc/xmlns/marcxchange-v1\">\n<leader>00000n    2200000   4500</leader>\n");
+        sb.append("<controlfield tag=\"001\">a bcd efg h</controlfield>\n");
+        for (int i = 0; i < fields; i++) {
+            int revision = i == version % fields ? version : i == 0 ? version : 0;
+            sb.append("<datafield ind1=\"0\" ind2=\"0\" tag=\"").append(100 + i * 7).append("\">")
+                    .append("<subfield code=\"a\">Field ").append(i).append(" revision ").append(revision).append("</subfield>")
+                    .append("<subfield code=\"b\">Lorem ipsum dolor sit amet, consectetur adipiscing elit ").append(i).append("</subfield>")
+                    .append("</datafield>\n");
+        }
+        return sb.append("</record>\n").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private int countRows(String table) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT COUNT(*) FROM " + table);
+             ResultSet resultSet = stmt.executeQuery()) {
+            resultSet.next();
+            return resultSet.getInt(1);
+        }
+    }
+
+    private static List<Instant> modified(List<RecordMetaDataHistory> history) {
+        List<Instant> modified = new ArrayList<>();
+        for (RecordMetaDataHistory version : history) {
+            modified.add(version.getModified());
+        }
+        return modified;
+    }
+
     @Test
     public void testFetchRecordSchoolLibrary() throws Exception {
         setupData(0, "A:300041", "A:300000", "A:870970");
@@ -596,6 +881,56 @@ public class RawRepoDAOIT {
         assertThat("Queue job priority", queueJob.priority, is(500));
     }
 
+    @Test
+    public void testQueueMultiple() throws SQLException, RawRepoException, VipCoreException {
+        setupData(100000, "B:870970", // HEAD
+                "C:870970", "C:1", // SECTION
+                "D:870970", // BIND
+                "E:870970", "E:2", // BIND
+                "F:870970", "F:2", // SECTION
+                "G:870970", "G:1", // BIND
+                "H:870970");// BIND
+        RawRepoDAO dao = RawRepoDAO.builder(connection).relationHints(new MyRelationHints()).build();
+        List<RecordId> recordIds = Arrays.asList(recordIdFromString("C:870970"), recordIdFromString("D:870970"),
+                                                 recordIdFromString("G:1"), recordIdFromString("F:870970"));
+        connection.setAutoCommit(false);
+        for (RecordId recordId : recordIds) {
+            dao.changedRecord("test", recordId);
+        }
+        Collection<String> expected = getQueue();
+        connection.rollback();
+
+        dao.changedRecords("test", recordIds);
+        collectionIs(getQueue(), expected.toArray(new String[0]));
+        connection.commit();
+    }
+
+    @Test
+    public void testQueuePrepareCache() throws SQLException, RawRepoException, VipCoreException {
+        setupData(100000, "B:870970", // HEAD
+                "C:870970", // SECTION
+                "D:870970"); // BIND
+        RawRepoDAO dao = RawRepoDAO.builder(connection).relationHints(new MyRelationHints()).build();
+        connection.setAutoCommit(false);
+
+        long leaf = RawRepoDAO.getPrepareCacheCount(RawRepoDAO.PrepareCacheCounter.LEAF);
+        dao.changedRecord("test", recordIdFromString("D:870970"));
+        assertThat(RawRepoDAO.getPrepareCacheCount(RawRepoDAO.PrepareCacheCounter.LEAF), is(leaf + 1));
+        collectionIs(getQueue(),
+                "D:870970:changed",
+                "D:870970:leaf");
+        connection.rollback();
+
+        long lazy = RawRepoDAO.getPrepareCacheCount(RawRepoDAO.PrepareCacheCounter.LAZY);
+        dao.changedRecord("test", recordIdFromString("B:870970"));
+        assertThat(RawRepoDAO.getPrepareCacheCount(RawRepoDAO.PrepareCacheCounter.LAZY), is(lazy + 1));
+        collectionIs(getQueue(),
+                "B:870970:changed", "B:870970:node",
+                "C:870970:node",
+                "D:870970:leaf");
+        connection.commit();
+    }
+
     @Test
     public void testCheckProvider() throws RawRepoException {
         RawRepoDAO dao = RawRepoDAO.builder(connection).relationHints(new MyRelationHints()).build();
@@ -777,6 +1112,250 @@ public class RawRepoDAOIT {
     }
 
 
+    @Test
+    public void testContentDictionary() throws SQLException, RawRepoException {
+        RawRepoDAO dao = RawRepoDAO.builder(connection).relationHints(new MyRelationHints()).build();
+        connection.setAutoCommit(false);
+        StringBuilder sb = new StringBuilder("<record>");
+        for (int i = 0; i < 100; i++) {
+            sb.append("<datafield tag=\"").append(i).append("\"><subfield code=\"a\">").append(i).append("</subfield></datafield>");
+        }
+        byte[] content = sb.append("</record>").toString().getBytes();
+
+        ContentDictionaries contentDictionaries = new ContentDictionaries(connection);
+        int dictionaryId = contentDictionaries.addDictionary(MarcXChangeMimeType.MARCXCHANGE, "<datafield tag=\"\"><subfield code=\"a\"></subfield></datafield>".getBytes());
+        contentDictionaries.activate(dictionaryId);
+        connection.commit();
+
+        Record record = dao.fetchRecord("A", 870970);
+        record.setContent(content);
+        record.setMimeType(MarcXChangeMimeType.MARCXCHANGE);
+        dao.saveRecord(record);
+        connection.commit();
+
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT content, content_codec FROM records WHERE bibliographicrecordid='A' AND agencyid=870970");
+             ResultSet resultSet = stmt.executeQuery()) {
+            assertTrue(resultSet.next());
+            assertEquals(null, resultSet.getString(1));
+            assertEquals(ContentDictionaries.codecId(dictionaryId), resultSet.getString(2));
+        }
+        ContentDictionaries.clearCache();
+        assertEquals(new String(content), new String(dao.fetchRecord("A", 870970).getContent()));
+    }
+
+    @Test
+    public void testLegacyContent() throws SQLException, RawRepoException {
+        RawRepoDAO dao = RawRepoDAO.builder(connection).relationHints(new MyRelationHints()).build();
+        connection.setAutoCommit(false);
+        try (PreparedStatement stmt = connection.prepareStatement("INSERT INTO records(bibliographicrecordid, agencyid, content, created, modified)" +
+                                                                  " VALUES('A', 870970, encode('<record/>', 'base64'), now(), now())")) {
+            stmt.execute();
+        }
+        Record record = dao.fetchRecord("A", 870970);
+        assertEquals("<record/>", new String(record.getContent()));
+    }
+
+    @Test
+    public void testFetchRecords() throws Exception {
+        setupData(100000, "A:870970,101-deleted", "B:870970");
+        RawRepoDAO dao = RawRepoDAO.builder(connection).relationHints(new MyRelationHints()).build();
+        connection.setAutoCommit(false);
+
+        RecordId a870970 = new RecordId("A", 870970);
+        RecordId a101 = new RecordId("A", 101);
+        RecordId b870970 = new RecordId("B", 870970);
+        RecordId c870970 = new RecordId("C", 870970);
+        Map<RecordId, Record> records = dao.fetchRecords(Arrays.asList(b870970, a870970, c870970, a101, b870970));
+
+        assertThat("one per unique id, in order", new ArrayList<>(records.keySet()), is(Arrays.asList(b870970, a870970, c870970, a101)));
+        assertEquals("A:870970,101-deleted", new String(records.get(a870970).getContent()));
+        assertFalse(records.get(a870970).isOriginal());
+        assertTrue(records.get(a101).isDeleted());
+        assertEquals(MarcXChangeMimeType.ENRICHMENT, records.get(a101).getMimeType());
+        assertTrue(records.get(c870970).isOriginal());
+        assertEquals(c870970, records.get(c870970).getId());
+        assertTrue(dao.fetchRecords(Collections.emptyList()).isEmpty());
+    }
+
+    @Test
+    public void testRelationsNotify() throws Exception {
+        setupData(100000, "A:870970,191919", "B:870970");
+        RawRepoDAO dao = RawRepoDAO.builder(connection).relationHints(new MyRelationHints()).build();
+        try (PreparedStatement stmt = connection.prepareStatement("LISTEN " + RelationCache.CHANNEL)) {
+            stmt.execute();
+        }
+        connection.commit();
+        PGConnection pgConnection = connection.unwrap(PGConnection.class);
+        pgConnection.getNotifications();
+
+        dao.setRelationsFrom(new RecordId("A", 191919), new HashSet<>(Collections.singletonList(new RecordId("A", 870970))));
+        assertEquals(0, notifications(pgConnection).size(), "Notified before commit");
+        connection.commit();
+        assertThat(notifications(pgConnection), containsInAnyOrder("191919:A", "870970:A"));
+    }
+
+    @Test
+    public void testSetRelationsFromOnlyTouchesChanges() throws Exception {
+        setupData(100000, "A:870970,191919", "B:870970,191919");
+        RawRepoDAO dao = RawRepoDAO.builder(connection).relationHints(new MyRelationHints()).build();
+        RecordId a191919 = new RecordId("A", 191919);
+        RecordId b191919 = new RecordId("B", 191919);
+        Set<RecordId> a870970 = new HashSet<>(Collections.singletonList(new RecordId("A", 870970)));
+        Set<RecordId> b870970 = new HashSet<>(Collections.singletonList(new RecordId("B", 870970)));
+        dao.setRelationsFrom(a191919, a870970);
+        dao.setRelationsFrom(b191919, b870970);
+        try (PreparedStatement stmt = connection.prepareStatement("LISTEN " + RelationCache.CHANNEL)) {
+            stmt.execute();
+        }
+        connection.commit();
+        PGConnection pgConnection = connection.unwrap(PGConnection.class);
+        pgConnection.getNotifications();
+
+        dao.setRelationsFrom(a191919, a870970);
+        connection.commit();
+        assertEquals(0, notifications(pgConnection).size(), "Unchanged relations are untouched");
+
+        Map<RecordId, Set<RecordId>> relations = new HashMap<>();
+        relations.put(a191919, a870970);
+        relations.put(b191919, Collections.emptySet());
+        dao.setRelationsFrom(relations);
+        connection.commit();
+        assertThat(notifications(pgConnection), containsInAnyOrder("191919:B", "870970:B"));
+        assertEquals(a870970, dao.getRelationsFrom(a191919));
+        assertTrue(dao.getRelationsFrom(b191919).isEmpty());
+
+        relations.put(b191919, b870970);
+        relations.put(new RecordId("B", 870970), new HashSet<>(Collections.singletonList(b191919)));
+        try {
+            dao.setRelationsFrom(relations);
+            fail("Sibling relation from a common record should be invalid");
+        } catch (RawRepoException ex) {
+            assertTrue(dao.getRelationsFrom(b191919).isEmpty(), "Nothing is changed when a relation is invalid");
+        }
+    }
+
+    @Test
+    public void testFetchEnrichmentChain() throws Exception {
+        setupData(100000, "A:870970,191919", "B:870970");
+        RawRepoDAO dao = RawRepoDAO.builder(connection).relationHints(new MyRelationHints()).build();
+        dao.setRelationsFrom(new RecordId("A", 191919), new HashSet<>(Collections.singletonList(new RecordId("A", 870970))));
+        connection.commit();
+
+        List<Record> chain = dao.fetchEnrichmentChain("A", 191919);
+        assertEquals(Arrays.asList(new RecordId("A", 870970), new RecordId("A", 191919)),
+                     chain.stream().map(Record::getId).collect(Collectors.toList()));
+        assertEquals("A:870970,191919", new String(chain.get(1).getContent(), StandardCharsets.UTF_8));
+        assertEquals(dao.fetchRecord("A", 870970).getModified(), chain.get(0).getModified());
+
+        chain = dao.fetchEnrichmentChain("B", 870970);
+        assertEquals(1, chain.size());
+        assertFalse(chain.get(0).isOriginal());
+
+        chain = dao.fetchEnrichmentChain("C", 870970);
+        assertEquals(1, chain.size());
+        assertTrue(chain.get(0).isOriginal(), "A record that doesn't exist is new");
+
+        Record merged = dao.fetchMergedRecord("A", 191919, new MarcXMerger() {
+            @Override
+            public byte[] merge(byte[] common, byte[] local, boolean isFinal) {
+                return local;
+            }
+        }, false);
+        assertEquals("870970,191919", merged.getEnrichmentTrail());
+    }
+
+    @Test
+    public void testFetchEnrichmentChainVersions() throws Exception {
+        setupData(100000, "A:870970,191919", "B:870970");
+        RawRepoDAO dao = RawRepoDAO.builder(connection).relationHints(new MyRelationHints()).build();
+        dao.setRelationsFrom(new RecordId("A", 191919), new HashSet<>(Collections.singletonList(new RecordId("A", 870970))));
+        connection.commit();
+
+        RecordId a = new RecordId("A", 191919);
+        RecordId b = new RecordId("B", 870970);
+        RecordId c = new RecordId("C", 870970);
+        Map<RecordId, RawRepoDAO.ChainVersions> chains = dao.fetchEnrichmentChainVersions(Arrays.asList(a, b, c));
+        assertEquals(Arrays.asList(new RecordId("A", 870970), a), chains.get(a).recordIds);
+        assertEquals(Arrays.asList(dao.fetchRecord("A", 870970).getModified(), dao.fetchRecord("A", 191919).getModified()), chains.get(a).modified);
+        assertEquals(Collections.singletonList(b), chains.get(b).recordIds);
+        assertEquals(Collections.singletonList(null), chains.get(c).modified, "A record that doesn't exist has no modified");
+    }
+
+    private static List<String> notifications(PGConnection pgConnection) throws SQLException {
+        List<String> payloads = new ArrayList<>();
+        PGNotification[] notifications = pgConnection.getNotifications(100);
+        if (notifications != null) {
+            for (PGNotification notification : notifications) {
+                payloads.add(notification.getParameter());
+            }
+        }
+        return payloads;
+    }
+
+    @Test
+    public void testMergedRecordCache() throws Exception {
+        setupData(100000, "A:870970,1");
+        MergedRecordCache cache = new MergedRecordCache(10, 100000);
+        RawRepoDAO dao = RawRepoDAO.builder(connection).relationHints(new MyRelationHints()).mergedRecordCache(cache).build();
+        connection.setAutoCommit(false);
+        AtomicInteger merges = new AtomicInteger();
+        MarcXMerger countingMerger = new MarcXMerger() {
+            @Override
+            public byte[] merge(byte[] common, byte[] local, boolean isFinal) {
+                merges.incrementAndGet();
+                return local;
+            }
+        };
+
+        Record merged = dao.fetchMergedRecord("A", 1, countingMerger, false);
+        assertEquals("870970,1", merged.getEnrichmentTrail());
+        Record cached = dao.fetchMergedRecord("A", 1, countingMerger, false);
+        assertEquals(1, merges.get());
+        assertEquals(1, cache.getSize());
+        assertEquals("870970,1", cached.getEnrichmentTrail());
+        assertEquals(merged.getModified(), cached.getModified());
+        assertEquals(new String(merged.getContent()), new String(cached.getContent()));
+
+        // A dao that has written doesn't use the cache
+        RawRepoDAO writer = RawRepoDAO.builder(connection).relationHints(new MyRelationHints()).build();
+        Record enrichment = writer.fetchRecord("A", 1);
+        enrichment.setContent("changed".getBytes());
+        writer.saveRecord(enrichment);
+        connection.commit();
+
+        assertEquals("changed", new String(dao.fetchMergedRecord("A", 1, countingMerger, false).getContent()));
+        assertEquals(2, merges.get());
+        assertEquals(2, cache.getSize());
+    }
+
+    @Test
+    public void testMergedRecordCacheCollection() throws Exception {
+        setupData(100000, "A:870970,1", "B:870970,1");
+        setupRelations("A:870970,B:870970");
+        MergedRecordCache cache = new MergedRecordCache(10, 100000);
+        RawRepoDAO dao = RawRepoDAO.builder(connection).relationHints(new MyRelationHints()).mergedRecordCache(cache).build();
+        AtomicInteger merges = new AtomicInteger();
+        MarcXMerger countingMerger = new MarcXMerger() {
+            @Override
+            public byte[] merge(byte[] common, byte[] local, boolean isFinal) {
+                merges.incrementAndGet();
+                return local;
+            }
+        };
+
+        dao.fetchMergedRecord("B", 1, countingMerger, false);
+        assertEquals(1, merges.get());
+
+        Map<String, Record> collection = dao.fetchRecordCollection("A", 1, countingMerger);
+        collectionIs(idsFromCollection(collection), "A:1", "B:1");
+        assertEquals(2, merges.get(), "Only the record that wasn't cached is merged");
+        assertEquals(2, cache.getSize());
+        assertEquals("870970,1", collection.get("B").getEnrichmentTrail());
+
+        dao.fetchRecordCollection("A", 1, countingMerger);
+        assertEquals(2, merges.get());
+    }
+
     @Test
     public void testGetAllAgencies() throws Exception {
         setupData(100000, "A:870970,101-deleted,102", "B:870970-deleted,200");
@@ -787,6 +1366,11 @@ public class RawRepoDAOIT {
         assertThat("lookup B", dao.allAgenciesForBibliographicRecordId("B"), containsInAnyOrder(870970, 200));
         assertThat("lookup A skip Deleted", dao.allAgenciesForBibliographicRecordIdSkipDeleted("A"), containsInAnyOrder(870970, 102));
         assertThat("lookup B skip Deleted", dao.allAgenciesForBibliographicRecordIdSkipDeleted("B"), containsInAnyOrder(200));
+        Map<Integer, Boolean> agencies = dao.allAgenciesForBibliographicRecordIdWithDeleted("A");
+        assertThat("lookup A with deleted", agencies.keySet(), containsInAnyOrder(870970, 101, 102));
+        assertThat("870970 not deleted", agencies.get(870970), is(false));
+        assertThat("101 deleted", agencies.get(101), is(true));
+        assertThat("lookup C with deleted", dao.allAgenciesForBibliographicRecordIdWithDeleted("C").isEmpty(), is(true));
     }
 
     @Test
@@ -811,6 +1395,36 @@ public class RawRepoDAOIT {
         }
     }
 
+    @Test
+    public void testGetAllChildRelations() throws Exception {
+        setupData(100000, "B:870970", // HEAD
+                "C:870970,1", // SECTION
+                "D:870970", // BIND
+                "E:870970,2"); // BIND
+        RawRepoDAO dao = RawRepoDAO.builder(connection).build();
+        connection.setAutoCommit(false);
+
+        Set<RelationsPair> relations = dao.getAllChildRelations(Collections.singletonList(recordIdFromString("B:870970")));
+        assertThat(relations, containsInAnyOrder(
+                new RelationsPair(recordIdFromString("C:870970"), recordIdFromString("B:870970")),
+                new RelationsPair(recordIdFromString("C:1"), recordIdFromString("C:870970")),
+                new RelationsPair(recordIdFromString("D:870970"), recordIdFromString("C:870970")),
+                new RelationsPair(recordIdFromString("E:870970"), recordIdFromString("C:870970")),
+                new RelationsPair(recordIdFromString("E:2"), recordIdFromString("E:870970"))));
+        for (RelationsPair pair : relations) {
+            assertTrue(pair.isRecordStateKnown());
+            assertEquals(false, pair.getChildDeleted());
+            assertEquals(false, pair.getParentDeleted());
+            if (pair.getChild().getAgencyId() == 870970) {
+                assertEquals(MarcXChangeMimeType.MARCXCHANGE, pair.getChildMimeType());
+            } else {
+                assertEquals(MarcXChangeMimeType.ENRICHMENT, pair.getChildMimeType());
+            }
+            assertEquals(MarcXChangeMimeType.MARCXCHANGE, pair.getParentMimeType());
+        }
+        assertTrue(dao.getAllChildRelations(Collections.singletonList(recordIdFromString("D:870970"))).isEmpty());
+    }
+
     //  _   _      _                   _____                 _   _
     // | | | | ___| |_ __   ___ _ __  |  ___|   _ _ __   ___| |_(_) ___  _ __  ___
     // | |_| |/ _ \ | '_ \ / _ \ '__| | |_ | | | | '_ \ / __| __| |/ _ \| '_ \/ __|
@@ -818,7 +1432,8 @@ public class RawRepoDAOIT {
     // |_| |_|\___|_| .__/ \___|_|    |_|   \__,_|_| |_|\___|\__|_|\___/|_| |_|___/
     //              |_|
     private void resetDatabase() throws SQLException {
-        postgres.clearTables("relations", "records", "records_archive", "queue", "queuerules", "queueworkers", "jobdiag");
+        postgres.clearTables("relations", "records", "records_archive", "queue", "queuerules", "queueworkers", "jobdiag", "content_dictionaries");
+        ContentDictionaries.clearCache();
 
         PreparedStatement stmt = connection.prepareStatement("INSERT INTO queueworkers(worker) VALUES(?)");
         stmt.setString(1, "changed");
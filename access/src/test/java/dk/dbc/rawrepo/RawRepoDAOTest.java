@@ -44,6 +44,7 @@ import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.jupiter.api.Assertions.fail;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyCollection;
 import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.doAnswer;
@@ -76,6 +77,7 @@ public class RawRepoDAOTest {
             RawRepoDAO access = mock(RawRepoDAO.class);
             access.relationHints = new RelationHintsVipCore(getVipCoreConnector());
             doCallRealMethod().when(access).fetchMergedRecord(anyString(), anyInt(), any(MarcXMerger.class), anyBoolean());
+            doCallRealMethod().when(access).fetchEnrichmentChain(anyString(), anyInt());
             doCallRealMethod().when(access).agencyFor(anyString(), anyInt(), anyBoolean());
             fillMockRelations(access,
                     "B:870970", // HEAD
@@ -111,7 +113,11 @@ public class RawRepoDAOTest {
             doCallRealMethod().when(access).fetchRecordCollection(anyString(), anyInt(), any(MarcXMerger.class));
             doCallRealMethod().when(access).agencyFor(anyString(), anyInt(), anyBoolean());
             doCallRealMethod().when(access).fetchMergedRecord(anyString(), anyInt(), any(MarcXMerger.class), anyBoolean());
+            doCallRealMethod().when(access).fetchEnrichmentChain(anyString(), anyInt());
             doCallRealMethod().when(access).findParentRelationAgency(anyString(), anyInt());
+            doCallRealMethod().when(access).allAgenciesForBibliographicRecordIdsWithDeleted(anyCollection());
+            doCallRealMethod().when(access).getRelationsParentsOfList(anyCollection());
+            doCallRealMethod().when(access).fetchEnrichmentChains(anyCollection());
             fillMockRelations(access,
                     "A:870970", "A:1", "A:2",
                     "B:870970", // HEAD
@@ -152,11 +158,9 @@ public class RawRepoDAOTest {
         when(mock.relationHints.get(123456)).thenReturn(Arrays.asList(300000, 870970));
         when(mock.relationHints.usesCommonAgency(123456)).thenReturn(Boolean.TRUE);
         when(mock.relationHints.usesCommonAgency(654321)).thenReturn(Boolean.FALSE);
-        when(mock.recordExists(anyString(), anyInt())).thenReturn(Boolean.FALSE);
-        when(mock.recordExists("PRIVATE", 123456)).thenReturn(Boolean.TRUE);
-        when(mock.recordExists("PRIVATE", 654321)).thenReturn(Boolean.TRUE);
-        when(mock.recordExists("COMMON", 870970)).thenReturn(Boolean.TRUE);
-        when(mock.recordExists("COMMON", 654321)).thenReturn(Boolean.TRUE);
+        when(mock.allAgenciesForBibliographicRecordIdWithDeleted(anyString())).thenReturn(Collections.emptyMap());
+        when(mock.allAgenciesForBibliographicRecordIdWithDeleted("PRIVATE")).thenReturn(agencies(123456, false, 654321, false));
+        when(mock.allAgenciesForBibliographicRecordIdWithDeleted("COMMON")).thenReturn(agencies(870970, false, 654321, false, 123456, true));
         int parentRelationAgency;
         parentRelationAgency = mock.findParentRelationAgency("PRIVATE", 123456);
         assertThat(parentRelationAgency, is(123456));
@@ -181,9 +185,10 @@ public class RawRepoDAOTest {
         doCallRealMethod().when(mock).findSiblingRelationAgency(anyString(), anyInt());
         when(mock.relationHints.get(123456)).thenReturn(Arrays.asList(300000, 870970));
         when(mock.relationHints.usesCommonAgency(123456)).thenReturn(Boolean.TRUE);
-        when(mock.recordExists(anyString(), anyInt())).thenReturn(Boolean.FALSE);
-        when(mock.recordExists("COMMON", 870970)).thenReturn(Boolean.TRUE);
-        when(mock.recordExists("INTERM", 300000)).thenReturn(Boolean.TRUE);
+        when(mock.allAgenciesForBibliographicRecordIdWithDeleted(anyString())).thenReturn(Collections.emptyMap());
+        when(mock.allAgenciesForBibliographicRecordIdWithDeleted("COMMON")).thenReturn(agencies(870970, false));
+        when(mock.allAgenciesForBibliographicRecordIdWithDeleted("INTERM")).thenReturn(agencies(300000, false, 870970, true));
+        when(mock.allAgenciesForBibliographicRecordIdWithDeleted("PRIVATE")).thenReturn(agencies(123456, false));
         int siblingRelationAgency;
         siblingRelationAgency = mock.findSiblingRelationAgency("COMMON", 123456);
         System.out.println("parentRelationAgency = " + siblingRelationAgency);
@@ -258,6 +263,9 @@ public class RawRepoDAOTest {
         }
         for (String key : allAgenciesFor.keySet()) {
             when(access.allAgenciesForBibliographicRecordId(key)).thenReturn(allAgenciesFor.get(key));
+            Map<Integer, Boolean> withDeleted = new HashMap<>();
+            allAgenciesFor.get(key).forEach(agencyId -> withDeleted.put(agencyId, false));
+            when(access.allAgenciesForBibliographicRecordIdWithDeleted(key)).thenReturn(withDeleted);
         }
 
         doAnswer((Answer<Record>) invocation -> {
@@ -270,6 +278,14 @@ public class RawRepoDAOTest {
         }).when(access).fetchRecord(anyString(), anyInt());
     }
 
+    private static Map<Integer, Boolean> agencies(Object... agencyAndDeleted) {
+        Map<Integer, Boolean> map = new HashMap<>();
+        for (int i = 0; i < agencyAndDeleted.length; i += 2) {
+            map.put((Integer) agencyAndDeleted[i], (Boolean) agencyAndDeleted[i + 1]);
+        }
+        return map;
+    }
+
     private static int trackingIdCounter = 0;
 
     private static Record recordFromContent(final String content) {
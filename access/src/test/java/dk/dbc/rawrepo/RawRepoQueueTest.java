@@ -10,6 +10,7 @@ import org.mockito.stubbing.Answer;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -488,6 +489,21 @@ public class RawRepoQueueTest {
                 "191919:126341873:CL");
     }
 
+    @Test
+    public void testUniqueJobs() throws Exception {
+        List<EnqueueJob> jobs = Arrays.asList(
+                new EnqueueJob().withRecordId(recordFromString("870970:a")).withProvider("PRO").withChanged(true).withLeaf(true).withPriority(1000),
+                new EnqueueJob().withRecordId(recordFromString("870970:b")).withProvider("PRO").withChanged(false).withLeaf(true).withPriority(1000),
+                new EnqueueJob().withRecordId(recordFromString("870970:a")).withProvider("PRO").withChanged(true).withLeaf(true).withPriority(500),
+                new EnqueueJob().withRecordId(recordFromString("870970:a")).withProvider("PRO").withChanged(false).withLeaf(true).withPriority(1000),
+                new EnqueueJob().withRecordId(recordFromString("870970:b")).withProvider("PRO").withChanged(false).withLeaf(true).withPriority(1000));
+
+        List<String> unique = RawRepoDAO.uniqueJobs(jobs).stream()
+                .map(job -> job.getJob() + ":" + (job.isChanged() ? 'C' : '-') + (job.isLeaf() ? 'L' : '-') + ":" + job.getPriority())
+                .collect(toList());
+        assertThat(unique, is(Arrays.asList("870970:a:CL:500", "870970:b:-L:1000", "870970:a:-L:1000")));
+    }
+
     /*
      *     ______          __
      *    /_  __/__  _____/ /_
@@ -681,6 +697,28 @@ class RawRepoMock {
                 .collect(toSet());
     }
 
+    private Set<RelationsPair> getChildRelationsWithState(InvocationOnMock invocation) {
+        final Collection<RecordId> input = invocation.getArgument(0);
+        final Set<RelationsPair> result = new HashSet<>();
+        for (RecordId parent : input) {
+            String parentId = parent.getAgencyId() + ":" + parent.getBibliographicRecordId();
+            for (String childId : inboundRelation.getOrDefault(parentId, Collections.emptySet())) {
+                String[] parts = childId.split(":");
+                RecordId child = new RecordId(parts[1], Integer.parseInt(parts[0]));
+                result.add(new RelationsPair(child, isDeleted(childId), mimetype.get(childId),
+                                             parent, isDeleted(parentId), mimetype.get(parentId)));
+            }
+        }
+        return result;
+    }
+
+    private Boolean isDeleted(String id) {
+        if (recordExists.contains(id)) {
+            return false;
+        }
+        return recordExistsMaybeDeleted.contains(id) ? true : null;
+    }
+
     RawRepoDAO build() throws RawRepoException, VipCoreException {
         RawRepoDAO rawrepo = mock(RawRepoDAO.class);
         when(rawrepo.recordExists(anyString(), anyInt())).then((Answer<Boolean>) invocation -> {
@@ -698,6 +736,7 @@ class RawRepoMock {
         when(rawrepo.getRelationsParents(any(RecordId.class))).then((Answer<Set<RecordId>>) invocation -> getRecordsWithoutBibrecidMatch(invocation, outboundRelation));
         when(rawrepo.getRelationsSiblingsFromMe(any(RecordId.class))).then((Answer<Set<RecordId>>) invocation -> getRecordsWithBibrecidMatch(invocation, outboundRelation));
         when(rawrepo.getRelationsSiblingsToMe(any(RecordId.class))).then((Answer<Set<RecordId>>) invocation -> getRecordsWithBibrecidMatch(invocation, inboundRelation));
+        when(rawrepo.getChildRelations(any(Collection.class))).then((Answer<Set<RelationsPair>>) this::getChildRelationsWithState);
         when(rawrepo.getMimeTypeOfList(any(Set.class))).then((Answer<Map<RecordId, String>>) invocation -> getMimeTypeOfListWithRecidMatch(invocation, inboundRelation));
         when(rawrepo.getMimeTypeOf(anyString(), anyInt())).then((Answer<String>) invocation -> {
             String bibliographicRecordId = (String) invocation.getArguments()[0];
@@ -716,6 +755,23 @@ class RawRepoMock {
             }
             return set;
         });
+        when(rawrepo.allAgenciesForBibliographicRecordIdWithDeleted(anyString())).then((Answer<Map<Integer, Boolean>>) invocation -> {
+            String bibliographicRecordId = (String) invocation.getArguments()[0];
+            Map<Integer, Boolean> map = new HashMap<>();
+            for (String id : recordExistsMaybeDeleted) {
+                String[] parts = id.split(":", 2);
+                if (parts[1].equals(bibliographicRecordId)) {
+                    map.put(Integer.parseInt(parts[0]), true);
+                }
+            }
+            for (String id : recordExists) {
+                String[] parts = id.split(":", 2);
+                if (parts[1].equals(bibliographicRecordId)) {
+                    map.put(Integer.parseInt(parts[0]), false);
+                }
+            }
+            return map;
+        });
 
         doAnswer((Answer<Void>) this::enqueue).when(rawrepo).enqueue(any(RecordId.class), anyString(), anyBoolean(), anyBoolean());
         doAnswer((Answer<Void>) this::enqueue).when(rawrepo).enqueue(any(RecordId.class), anyString(), anyBoolean(), anyBoolean(), anyInt());
@@ -0,0 +1,83 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class RecordContentCodecTest {
+
+    private static byte[] marcx(int fields) {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?><record xmlns=\"info:lc/xmlns/marcxchange-v1\">");
+        for (int i = 0; i < fields; i++) {
+            sb.append("<datafield ind1=\"0\" ind2=\"0\" tag=\"").append(100 + i).append("\"><subfield code=\"a\">value ").append(i).append("</subfield></datafield>");
+        }
+        return sb.append("</record>").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testSmallContentIsStoredAsIs() throws Exception {
+        byte[] content = "<record/>".getBytes(StandardCharsets.UTF_8);
+        RecordContentCodec.Encoded encoded = RecordContentCodec.encode(content);
+        assertThat(encoded.getCodec(), is(RecordContentCodec.NONE));
+        assertThat(RecordContentCodec.decode(encoded.getCodec(), encoded.getData()), is(content));
+    }
+
+    @Test
+    public void testLargeContentIsDeflated() throws Exception {
+        byte[] content = marcx(500);
+        RecordContentCodec.Encoded encoded = RecordContentCodec.encode(content);
+        assertThat(encoded.getCodec(), is(RecordContentCodec.DEFLATE));
+        assertThat(encoded.getData().length, lessThan(content.length));
+        assertThat(RecordContentCodec.decode(encoded.getCodec(), encoded.getData()), is(content));
+    }
+
+    @Test
+    public void testLegacyContent() throws Exception {
+        byte[] content = marcx(10);
+        String base64 = Base64.getEncoder().encodeToString(content);
+        assertThat(RecordContentCodec.decode(base64, null, null), is(content));
+        assertThat(RecordContentCodec.decode(null, null, null), nullValue());
+    }
+
+    @Test
+    public void testBytesPreferredOverLegacy() throws Exception {
+        byte[] content = marcx(10);
+        RecordContentCodec.Encoded encoded = RecordContentCodec.encode(content);
+        assertThat(RecordContentCodec.decode("garbage", encoded.getData(), encoded.getCodec()), is(content));
+    }
+
+    @Test
+    public void testDictionaryCodec() throws Exception {
+        byte[] dictionary = "<datafield ind1=\"0\" ind2=\"0\" tag=\"\"><subfield code=\"a\">value </subfield></datafield>".getBytes(StandardCharsets.UTF_8);
+        ContentCodec codec = new DeflateContentCodec("deflate-dict:1", dictionary);
+        byte[] content = marcx(20);
+        RecordContentCodec.Encoded encoded = RecordContentCodec.encode(content, codec);
+        assertThat(encoded.getCodec(), is("deflate-dict:1"));
+        assertThat(encoded.getData().length, lessThan(RecordContentCodec.encode(content).getData().length));
+        assertThat(codec.decode(encoded.getData()), is(content));
+        assertThrows(RawRepoException.class, () -> new DeflateContentCodec("deflate").decode(encoded.getData()));
+        assertThrows(RawRepoException.class, () -> new DeflateContentCodec("deflate-dict:2", "other".getBytes(StandardCharsets.UTF_8)).decode(encoded.getData()));
+    }
+
+    @Test
+    public void testUnknownCodec() {
+        assertThrows(RawRepoException.class, () -> RecordContentCodec.decode("unknown", new byte[1]));
+    }
+
+    @Test
+    public void testCorruptContent() {
+        assertThrows(RawRepoException.class, () -> RecordContentCodec.decode(RecordContentCodec.DEFLATE, new byte[]{1, 2, 3, 4}));
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class RecordImplTest {
+
+    @Test
+    public void testCopySemantics() throws Exception {
+        RecordImpl record = new RecordImpl(new RecordId("a", 870970));
+        byte[] content = "abc".getBytes();
+        record.setContent(content);
+        content[0] = 'x';
+        assertThat(new String(record.getContent()), is("abc"));
+        record.getContent()[0] = 'x';
+        assertThat(new String(record.getContent()), is("abc"));
+    }
+
+    @Test
+    public void testViews() throws Exception {
+        RecordImpl record = new RecordImpl(new RecordId("a", 870970));
+        record.takeContent("abc".getBytes());
+
+        ByteBuffer buffer = record.getContentBuffer();
+        assertThat(buffer.remaining(), is(3));
+        assertThat(buffer.get(0), is((byte) 'a'));
+        assertThrows(ReadOnlyBufferException.class, () -> buffer.put(0, (byte) 'x'));
+
+        try (InputStream is = record.getContentStream()) {
+            assertThat(new String(is.readAllBytes()), is("abc"));
+        }
+    }
+
+    @Test
+    public void testTakeContent() throws Exception {
+        RecordImpl record = new RecordImpl(new RecordId("a", 870970));
+        byte[] content = "abc".getBytes();
+        record.takeContent(content);
+        assertThat(RecordImpl.sharedContent(record), sameInstance(content));
+    }
+}
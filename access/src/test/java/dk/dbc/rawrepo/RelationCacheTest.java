@@ -0,0 +1,105 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class RelationCacheTest {
+
+    private static final RecordId A = new RecordId("a", 870970);
+    private static final RecordId B = new RecordId("b", 870970);
+    private static final RecordId C = new RecordId("c", 870970);
+
+    private static class CountingLoader implements RelationCache.Loader<Set<RecordId>> {
+
+        private final AtomicInteger calls = new AtomicInteger();
+
+        @Override
+        public Set<RecordId> load(RecordId recordId) {
+            calls.incrementAndGet();
+            return Collections.singleton(new RecordId(recordId.getBibliographicRecordId(), 191919));
+        }
+    }
+
+    @Test
+    public void testNotUsedWhenNotListening() throws Exception {
+        RelationCache cache = new RelationCache(null, 10, 100000);
+        CountingLoader loader = new CountingLoader();
+        cache.get(RelationCache.Kind.PARENTS, A, loader);
+        cache.get(RelationCache.Kind.PARENTS, A, loader);
+        assertThat(loader.calls.get(), is(2));
+        assertThat(cache.getSize(), is(0));
+    }
+
+    @Test
+    public void testCachedAndInvalidated() throws Exception {
+        RelationCache cache = new RelationCache(null, 10, 100000);
+        cache.enable();
+        CountingLoader loader = new CountingLoader();
+        cache.get(RelationCache.Kind.PARENTS, A, loader);
+        cache.get(RelationCache.Kind.PARENTS, A, loader);
+        assertThat(loader.calls.get(), is(1));
+        cache.get(RelationCache.Kind.CHILDREN, A, loader);
+        assertThat("kinds are cached separately", loader.calls.get(), is(2));
+
+        cache.invalidate(A);
+        cache.get(RelationCache.Kind.PARENTS, A, loader);
+        assertThat(loader.calls.get(), is(3));
+
+        cache.disable();
+        assertThat(cache.getSize(), is(0));
+        assertThat(cache.getBytes(), is(0L));
+    }
+
+    @Test
+    public void testInvalidatedWhileLoading() throws Exception {
+        RelationCache cache = new RelationCache(null, 10, 100000);
+        cache.enable();
+        CountingLoader loader = new CountingLoader();
+        cache.get(RelationCache.Kind.PARENTS, A, recordId -> {
+            cache.invalidate(recordId);
+            return loader.load(recordId);
+        });
+        cache.get(RelationCache.Kind.PARENTS, A, loader);
+        assertThat("value loaded before invalidation isn't cached", loader.calls.get(), is(2));
+    }
+
+    @Test
+    public void testBoundedByEntries() throws Exception {
+        RelationCache cache = new RelationCache(null, 2, 100000);
+        cache.enable();
+        CountingLoader loader = new CountingLoader();
+        cache.get(RelationCache.Kind.PARENTS, A, loader);
+        cache.get(RelationCache.Kind.PARENTS, B, loader);
+        cache.get(RelationCache.Kind.PARENTS, A, loader);
+        cache.get(RelationCache.Kind.PARENTS, C, loader);
+        assertThat(cache.getSize(), is(2));
+        cache.get(RelationCache.Kind.PARENTS, A, loader);
+        assertThat("least recently used is evicted", loader.calls.get(), is(3));
+        cache.get(RelationCache.Kind.PARENTS, B, loader);
+        assertThat(loader.calls.get(), is(4));
+    }
+
+    @Test
+    public void testBoundedByBytes() throws Exception {
+        RelationCache cache = new RelationCache(null, 1000, 1000);
+        cache.enable();
+        CountingLoader loader = new CountingLoader();
+        for (int i = 0; i < 100; i++) {
+            cache.get(RelationCache.Kind.PARENTS, new RecordId("id-" + i, 870970), loader);
+            assertThat(cache.getBytes(), lessThanOrEqualTo(1000L));
+        }
+        assertThat(cache.getSize() < 100, is(true));
+    }
+}
@@ -40,6 +40,7 @@ import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
@@ -230,6 +231,7 @@ class AgencyDelete {
         for (String id : ids) {
             dao.deleteRelationsFrom(new RecordId(id, agencyid));
         }
+        List<Record> records = new ArrayList<>(ids.size());
         for (String id : ids) {
             Record record = dao.fetchMergedRecord(id, agencyid, marcXMerger, true);
             if (record.getId().getAgencyId() != agencyid) {
@@ -242,8 +244,9 @@ class AgencyDelete {
             final byte[] content = markMarcContentDeleted(record.getContent());
             record.setContent(content);
             record.setDeleted(true);
-            dao.saveRecord(record);
+            records.add(record);
         }
+        dao.saveRecords(records);
     }
 
     byte[] markMarcContentDeleted(byte[] content) throws SAXException, TransformerException, DOMException, IOException {
@@ -5,6 +5,7 @@ import dk.dbc.marcxmerge.MarcXMergerException;
 import dk.dbc.rawrepo.RawRepoDAO;
 import dk.dbc.rawrepo.RawRepoException;
 import dk.dbc.rawrepo.Record;
+import dk.dbc.rawrepo.RecordId;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.charset.StandardCharsets;
@@ -15,9 +16,11 @@ import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import dk.dbc.rawrepo.RelationHintsVipCore;
 import dk.dbc.vipcore.exception.VipCoreException;
@@ -32,6 +35,9 @@ import org.slf4j.LoggerFactory;
 public class AgencyDump implements AutoCloseable {
 
     private static final Logger log = LoggerFactory.getLogger(AgencyDump.class);
+
+    private static final int FETCH_CHUNK_SIZE = 1000;
+
     private final int agencyid;
     private final Connection connection;
     final RawRepoDAO dao;
@@ -60,20 +66,29 @@ public class AgencyDump implements AutoCloseable {
         out.write("<marcx:collection xmlns:marcx=\"info:lc/xmlns/marcxchange-v1\">\n".getBytes(StandardCharsets.UTF_8));
         MarcXMerger marcXMerger = new MarcXMerger();
         int cnt = 0;
-        for (String bibliographicRecordId : bibliographicRecordIds) {
-            Record record;
-            if (merged) {
-                record = dao.fetchMergedRecord(bibliographicRecordId, agencyid, marcXMerger, false);
-            } else {
-                record = dao.fetchRecord(bibliographicRecordId, agencyid);
+        for (int index = 0; index < bibliographicRecordIds.size(); index += FETCH_CHUNK_SIZE) {
+            List<String> chunk = bibliographicRecordIds.subList(index, Math.min(index + FETCH_CHUNK_SIZE, bibliographicRecordIds.size()));
+            Map<RecordId, Record> records = null;
+            if (!merged) {
+                records = dao.fetchRecords(chunk.stream()
+                        .map(bibliographicRecordId -> new RecordId(bibliographicRecordId, agencyid))
+                        .collect(Collectors.toList()));
             }
-            byte[] content = record.getContent();
-            content = stripXML(content);
-            out.write(content);
-            out.write('\n');
-            cnt++;
-            if (cnt % 1000 == 0) {
-                log.debug("Dumped {} records", cnt);
+            for (String bibliographicRecordId : chunk) {
+                Record record;
+                if (merged) {
+                    record = dao.fetchMergedRecord(bibliographicRecordId, agencyid, marcXMerger, false);
+                } else {
+                    record = records.get(new RecordId(bibliographicRecordId, agencyid));
+                }
+                byte[] content = record.getContent();
+                content = stripXML(content);
+                out.write(content);
+                out.write('\n');
+                cnt++;
+                if (cnt % 1000 == 0) {
+                    log.debug("Dumped {} records", cnt);
+                }
             }
         }
         out.write("</marcx:collection>\n".getBytes(StandardCharsets.UTF_8));
@@ -20,6 +20,7 @@ import java.io.InputStream;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.util.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -31,14 +32,21 @@ import java.util.regex.Pattern;
 public class AgencyLoad implements AutoCloseable {
 
     private static final Logger log = LoggerFactory.getLogger(AgencyLoad.class);
+    private static final int QUEUE_CHUNK_SIZE = 1000;
+    private static final int RELATIONS_CHUNK_SIZE = 1000;
 
     private final Connection connection;
     private final RawRepoDAO dao;
     private final List<Integer> agencies;
     private final Integer commonAgency;
     private final String role;
+    private final boolean skipUnchanged;
+    private final boolean queueUnchanged;
     private final Set<RecordId> bibliographicRecordIds;
+    private final Set<RecordId> writtenRecordIds;
     private final Map<RecordId, String> parentRelations;
+    // Relations before the load, of records with unchanged content waiting for their parent relation
+    private final Map<RecordId, Set<RecordId>> unchangedParentRelations;
 
     private MetricRegistry metrics;
     private JmxReporter reporter;
@@ -48,6 +56,7 @@ public class AgencyLoad implements AutoCloseable {
     private Counter enrichmentRecords;
     private Counter parentRelationRecords;
     private Counter deletedRecords;
+    private Counter unchangedRecords;
     private Counter errorRecords;
     private Counter relationErrors;
     private Counter queueErrors;
@@ -64,7 +73,7 @@ public class AgencyLoad implements AutoCloseable {
         reporter.stop();
     }
 
-    AgencyLoad(String db, List<Integer> agencies, Integer commonAgency, String role, boolean useTransaction) throws RawRepoException, SQLException {
+    AgencyLoad(String db, List<Integer> agencies, Integer commonAgency, String role, boolean useTransaction, boolean skipUnchanged, boolean queueUnchanged) throws RawRepoException, SQLException {
         this.connection = getConnection(db);
         if (useTransaction) {
             this.connection.setAutoCommit(false);
@@ -73,8 +82,12 @@ public class AgencyLoad implements AutoCloseable {
         this.agencies = agencies;
         this.commonAgency = commonAgency;
         this.role = role;
+        this.skipUnchanged = skipUnchanged;
+        this.queueUnchanged = queueUnchanged;
         this.bibliographicRecordIds = new HashSet<>();
+        this.writtenRecordIds = new HashSet<>();
         this.parentRelations = new HashMap<>();
+        this.unchangedParentRelations = new HashMap<>();
 
         createMetrics();
 
@@ -93,6 +106,7 @@ public class AgencyLoad implements AutoCloseable {
         this.enrichmentRecords = metrics.counter("enrichmentRecords");
         this.parentRelationRecords = metrics.counter("parentRelationRecords");
         this.deletedRecords = metrics.counter("deletedRecords");
+        this.unchangedRecords = metrics.counter("unchangedRecords");
         this.errorRecords = metrics.counter("errorRecords");
         this.relationErrors = metrics.counter("relationErrors");
         this.queueErrors = metrics.counter("queueErrors");
@@ -130,10 +144,9 @@ public class AgencyLoad implements AutoCloseable {
 
                 bibliographicRecordIds.add(recordId);
                 HashSet<RecordId> relations = new HashSet<>();
+                Set<RecordId> oldRelations = Collections.emptySet();
                 if (!record.isOriginal()) {
-                    try (Timer.Context time1 = setRelations.time()) {
-                        dao.setRelationsFrom(recordId, relations);
-                    }
+                    oldRelations = dao.getRelationsFrom(recordId);
                 }
 
                 record.setContent(xml);
@@ -142,9 +155,9 @@ public class AgencyLoad implements AutoCloseable {
 
                 if (isDeleted) {
                     deletedRecords.inc();
-                    try (Timer.Context time1 = saveRecord.time()) {
-                        dao.saveRecord(record);
-                    }
+                    boolean written = save(record);
+                    setRelations(recordId, oldRelations, relations);
+                    updated(recordId, written, oldRelations, relations);
                     return;
                 }
 
@@ -157,23 +170,28 @@ public class AgencyLoad implements AutoCloseable {
                         enrichmentRecords.inc();
                         log.debug("agencyId = " + agencyId + "; bibliographicRecordId = " + bibliographicRecordId + "; siblingAgency = " + sibling);
                         record.setMimeType(MarcXChangeMimeType.ENRICHMENT);
-                        try (Timer.Context time1 = saveRecord.time()) {
-                            dao.saveRecord(record);
-                        }
+                        boolean written = save(record);
                         relations.add(new RecordId(bibliographicRecordId, sibling));
-                        try (Timer.Context time1 = setRelations.time()) {
-                            dao.setRelationsFrom(recordId, relations);
-                        }
+                        setRelations(recordId, oldRelations, relations);
+                        updated(recordId, written, oldRelations, relations);
                         return;
                     }
                 }
                 record.setMimeType(MarcXChangeMimeType.MARCXCHANGE);
-                try (Timer.Context time1 = saveRecord.time()) {
-                    dao.saveRecord(record);
-                }
+                boolean written = save(record);
                 if (parentBibliographicRecordId != null && !parentBibliographicRecordId.isEmpty()) {
                     parentRelationRecords.inc();
+                    // The relations are set when the parent relation is known
                     parentRelations.put(recordId, parentBibliographicRecordId);
+                    if (skipUnchanged && !written) {
+                        // Decided when the parent relation is known
+                        unchangedParentRelations.putIfAbsent(recordId, oldRelations);
+                    } else {
+                        updated(recordId, written, oldRelations, relations);
+                    }
+                } else {
+                    setRelations(recordId, oldRelations, relations);
+                    updated(recordId, written, oldRelations, relations);
                 }
             } catch (RawRepoException ex) {
                 log.error("Error processing record: " + bibliographicRecordId +
@@ -183,6 +201,73 @@ public class AgencyLoad implements AutoCloseable {
         }
     }
 
+    /**
+     * Set the relations from a record, if they differ from what they are
+     * <p>
+     * A later version of the record in the input, that is not a child
+     * record, replaces a parent relation of an earlier version
+     *
+     * @param recordId     the record
+     * @param oldRelations relations from the record in the database
+     * @param relations    relations from the record now
+     * @throws RawRepoException if the relations cannot be set
+     */
+    private void setRelations(RecordId recordId, Set<RecordId> oldRelations, Set<RecordId> relations) throws RawRepoException {
+        if (parentRelations.remove(recordId) != null) {
+            unchangedParentRelations.remove(recordId);
+        }
+        if (!oldRelations.equals(relations)) {
+            try (Timer.Context time = setRelations.time()) {
+                dao.setRelationsFrom(recordId, relations);
+            }
+        }
+    }
+
+    /**
+     * Save a record, with skipUnchanged only if it differs from the database
+     *
+     * @param record the record
+     * @return if the record has been written
+     * @throws RawRepoException if the record cannot be saved
+     */
+    private boolean save(Record record) throws RawRepoException {
+        try (Timer.Context time = saveRecord.time()) {
+            if (!skipUnchanged) {
+                dao.saveRecord(record);
+                return true;
+            } else if (dao.saveRecordIfChanged(record)) {
+                return true;
+            } else {
+                log.debug("Unchanged: " + record.getId());
+                unchangedRecords.inc();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * With skipUnchanged, keep track of records that are changed by the load
+     * <p>
+     * A record is unchanged when neither its content nor its relations are.
+     * Unchanged records aren't queued, unless queueUnchanged or an earlier
+     * version of them in the input has changed them
+     *
+     * @param recordId     the record
+     * @param written      if the content has been written
+     * @param oldRelations relations from the record before the load
+     * @param relations    relations from the record now
+     */
+    private void updated(RecordId recordId, boolean written, Set<RecordId> oldRelations, Set<RecordId> relations) {
+        if (!skipUnchanged) {
+            return;
+        }
+        if (written || !oldRelations.equals(relations)) {
+            writtenRecordIds.add(recordId);
+        } else if (!queueUnchanged && !writtenRecordIds.contains(recordId)) {
+            bibliographicRecordIds.remove(recordId);
+        }
+    }
+
     boolean load(InputStream is) throws ParserConfigurationException, SAXException, IOException {
         MarcXProcessor marcXProcessor = new MarcXProcessor() {
 
@@ -246,6 +331,7 @@ public class AgencyLoad implements AutoCloseable {
             log.info("Building parent relations (" + parentRelations.size() + ")");
             boolean success = true;
             int cnt = 0;
+            Map<RecordId, Set<RecordId>> chunk = new HashMap<>();
             for (Map.Entry<RecordId, String> entry : parentRelations.entrySet()) {
                 if (++cnt % 1000 == 0) {
                     log.info("Processing relation: " + cnt);
@@ -254,13 +340,12 @@ public class AgencyLoad implements AutoCloseable {
                 String parentBibliographicRecordId = entry.getValue();
                 log.debug("relating: " + recordId + " to: " + parentBibliographicRecordId);
                 try {
-                    Set<RecordId> relations = dao.getRelationsFrom(recordId);
+                    Set<RecordId> oldRelations = dao.getRelationsFrom(recordId);
+                    Set<RecordId> relations = new HashSet<>();
                     if (commonAgency != null && dao.recordExists(parentBibliographicRecordId, commonAgency)) {
                         relations.add(new RecordId(parentBibliographicRecordId, commonAgency));
-                        dao.setRelationsFrom(recordId, relations);
                     } else if (dao.recordExists(parentBibliographicRecordId, recordId.getAgencyId())) {
                         relations.add(new RecordId(parentBibliographicRecordId, recordId.getAgencyId()));
-                        dao.setRelationsFrom(recordId, relations);
                     } else {
                         log.error("Cannot create parent relation to: " + parentBibliographicRecordId +
                                   " from " + recordId.getBibliographicRecordId() +
@@ -269,6 +354,10 @@ public class AgencyLoad implements AutoCloseable {
                         success = false;
                         relationErrors.inc();
                     }
+                    if (!oldRelations.equals(relations)) {
+                        chunk.put(recordId, relations);
+                    }
+                    unchangedParentRelation(recordId, relations);
                 } catch (RawRepoException ex) {
                     log.error("Error relating record: " + parentBibliographicRecordId +
                               " from " + recordId.getAgencyId() +
@@ -277,30 +366,122 @@ public class AgencyLoad implements AutoCloseable {
                     success = false;
                     relationErrors.inc();
                 }
+                if (chunk.size() >= RELATIONS_CHUNK_SIZE) {
+                    success = setRelations(chunk) && success;
+                    chunk = new HashMap<>();
+                }
             }
+            success = setRelations(chunk) && success;
             return success;
         }
 
     }
 
+    /**
+     * Decide if a record with unchanged content should be queued, now that
+     * its relations are known
+     *
+     * @param recordId  the record
+     * @param relations relations from the record
+     */
+    private void unchangedParentRelation(RecordId recordId, Set<RecordId> relations) {
+        Set<RecordId> oldRelations = unchangedParentRelations.remove(recordId);
+        if (oldRelations != null) {
+            updated(recordId, false, oldRelations, relations);
+        }
+    }
+
+    private boolean setRelations(Map<RecordId, Set<RecordId>> chunk) {
+        try (Timer.Context time = setRelations.time()) {
+            undoable(() -> dao.setRelationsFrom(chunk));
+            return true;
+        } catch (RawRepoException | VipCoreException ex) {
+            log.warn("Error setting relations, retrying one by one: " + ex.getMessage());
+        }
+        boolean success = true;
+        for (Map.Entry<RecordId, Set<RecordId>> entry : chunk.entrySet()) {
+            RecordId recordId = entry.getKey();
+            try {
+                undoable(() -> dao.setRelationsFrom(recordId, entry.getValue()));
+            } catch (RawRepoException | VipCoreException ex) {
+                log.error("Error relating record: " + recordId.getBibliographicRecordId() +
+                          " from " + recordId.getAgencyId() +
+                          " to: " + entry.getValue() +
+                          " got: " + ex.getMessage());
+                success = false;
+                relationErrors.inc();
+                // The relations aren't what they were before the load either
+                bibliographicRecordIds.add(recordId);
+            }
+        }
+        return success;
+    }
+
+    @FunctionalInterface
+    private interface DaoCall {
+
+        void call() throws RawRepoException, VipCoreException;
+    }
+
+    /**
+     * Call the dao, and undo what the call did if it fails
+     * <p>
+     * With useTransaction a failed statement aborts the transaction, so a
+     * savepoint is rolled back to, before anything else can be done
+     *
+     * @param call the dao call
+     * @throws RawRepoException if the call fails, or the savepoint cannot be
+     *                          made
+     * @throws VipCoreException if the call fails
+     */
+    private void undoable(DaoCall call) throws RawRepoException, VipCoreException {
+        Savepoint savepoint;
+        try {
+            savepoint = connection.getAutoCommit() ? null : connection.setSavepoint();
+        } catch (SQLException ex) {
+            throw new RawRepoException("Cannot make savepoint", ex);
+        }
+        try {
+            call.call();
+        } catch (RawRepoException | VipCoreException | RuntimeException ex) {
+            if (savepoint != null) {
+                try {
+                    connection.rollback(savepoint);
+                } catch (SQLException rollbackException) {
+                    ex.addSuppressed(rollbackException);
+                }
+            }
+            throw ex;
+        }
+        if (savepoint != null) {
+            try {
+                connection.releaseSavepoint(savepoint);
+            } catch (SQLException ex) {
+                throw new RawRepoException("Cannot release savepoint", ex);
+            }
+        }
+    }
+
     boolean queue() {
         boolean success = true;
         if (role != null) {
             try (Timer.Context time = recordsQueued.time()) {
                 log.info("Queueing");
                 int cnt = 0;
-                for (RecordId recordId : bibliographicRecordIds) {
-                    if (++cnt % 1000 == 0) {
-                        log.info("Queueing: " + cnt);
+                Iterator<RecordId> iterator = bibliographicRecordIds.iterator();
+                while (iterator.hasNext()) {
+                    List<RecordId> recordIds = new ArrayList<>(QUEUE_CHUNK_SIZE);
+                    while (iterator.hasNext() && recordIds.size() < QUEUE_CHUNK_SIZE) {
+                        recordIds.add(iterator.next());
                     }
                     try {
-                        dao.changedRecord(role, recordId);
+                        undoable(() -> dao.changedRecords(role, recordIds));
                     } catch (VipCoreException | RawRepoException ex) {
-                        log.error("Error queueing record: " + recordId.getBibliographicRecordId() +
-                                  " from " + recordId.getAgencyId() + " got: " + ex.getMessage());
-                        success = false;
-                        queueErrors.inc();
+                        log.warn("Error queueing records, retrying one by one: " + ex.getMessage());
+                        success = queueOneByOne(recordIds) && success;
                     }
+                    cnt += recordIds.size();
+                    log.info("Queueing: " + cnt);
                 }
                 log.info("Queued " + cnt);
             }
@@ -308,9 +489,25 @@ public class AgencyLoad implements AutoCloseable {
         return success;
     }
 
+    private boolean queueOneByOne(List<RecordId> recordIds) {
+        boolean success = true;
+        for (RecordId recordId : recordIds) {
+            try {
+                undoable(() -> dao.changedRecord(role, recordId));
+            } catch (VipCoreException | RawRepoException ex) {
+                log.error("Error queueing record: " + recordId.getBibliographicRecordId() +
+                          " from " + recordId.getAgencyId() + " got: " + ex.getMessage());
+                success = false;
+                queueErrors.inc();
+            }
+        }
+        return success;
+    }
+
     void status() {
         log.info("Processed Records: " + recordsProcessed.getCount());
         log.info("Deleted records: " + deletedRecords.getCount());
+        log.info("Unchanged records (not written): " + unchangedRecords.getCount());
         log.info("Enrichment records: " + enrichmentRecords.getCount());
         log.info("Parent relations: " + parentRelationRecords.getCount());
         log.info("Relation errors: " + relationErrors.getCount());
@@ -79,6 +79,9 @@ public class AgencyLoadMain {
             if (commandLine.hasOption("role")) {
                 role = (String) commandLine.getOption("role");
             }
+            if (commandLine.hasOption("queue-unchanged") && !commandLine.hasOption("skip-unchanged")) {
+                throw new IllegalStateException("Option queue-unchanged requires skip-unchanged");
+            }
 
             if (commandLine.hasOption("debug")) {
                 setLogLevel("logback-debug.xml");
@@ -99,7 +102,8 @@ public class AgencyLoadMain {
 
         boolean useTransaction = !commandLine.hasOption("allow-fail");
         try (AgencyLoad agencyLoad = new AgencyLoad((String) commandLine.getOption("db"),
-                                                    list, commonAgency, role, useTransaction)) {
+                                                    list, commonAgency, role, useTransaction,
+                                                    commandLine.hasOption("skip-unchanged"), commandLine.hasOption("queue-unchanged"))) {
             agencyLoad.timingStart();
             boolean success;
             success = agencyLoad.load(in);
@@ -141,6 +145,8 @@ public class AgencyLoadMain {
             addOption("role", "who to put on queue as (could be agency-maintain)", false, false, string, null);
             addOption("debug", "turn on debug logging", false, false, null, yes);
             addOption("allow-fail", "commit even if something fails", false, false, null, yes);
+            addOption("skip-unchanged", "don't write (or archive or queue) records that are the same as in the database", false, false, null, yes);
+            addOption("queue-unchanged", "with skip-unchanged: queue records that aren't written anyway", false, false, null, yes);
         }
 
         @Override
@@ -0,0 +1,569 @@
+/*
+ * dbc-rawrepo-archive-maintain
+ * Copyright (C) 2015 Dansk Bibliotekscenter a/s, Tempovej 7-11, DK-2750 Ballerup,
+ * Denmark. CVR: 15149043
+ *
+ * This file is part of dbc-rawrepo-archive-maintain.
+ *
+ * dbc-rawrepo-archive-maintain is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-rawrepo-archive-maintain is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dbc-rawrepo-archive-maintain.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.rawrepo.archivemaintain;
+
+import dk.dbc.rawrepo.ContentDictionaries;
+import dk.dbc.rawrepo.MarcDeltaCodec;
+import dk.dbc.rawrepo.RawRepoException;
+import dk.dbc.rawrepo.RecordContentCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Maintenance of the partitions of records_archive (schema V36)
+ * <p>
+ * Partitions are named records_archive_YYYYMM by the month (UTC) they cover,
+ * apart from records_archive_legacy (everything before the schema upgrade)
+ * and records_archive_default (whatever isn't covered by any partition).
+ * <p>
+ * Retention removes versions, that have been replaced for longer than the
+ * retention of their agency, so the history as of the retention time is
+ * still intact. It walks each partition in primary key order, in batches,
+ * each batch in its own transaction.
+ * <p>
+ * Delta encoding (schema V37) stores archived versions as the difference
+ * from the next newer version, see {@link MarcDeltaCodec}.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+class ArchiveMaintain implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(ArchiveMaintain.class);
+
+    private static final Pattern MONTHLY = Pattern.compile("^records_archive_(\\d{4})(\\d{2})$");
+
+    private static final String SELECT_PARTITIONS = "SELECT c.relname FROM pg_inherits i JOIN pg_class c ON c.oid = i.inhrelid" +
+            " WHERE i.inhparent = 'records_archive'::regclass" +
+            " ORDER BY c.relname = 'records_archive_legacy' DESC, c.relname = 'records_archive_default' DESC, c.relname";
+    private static final String ADD_MONTH = "SELECT records_archive_add_month(?)";
+    private static final String DEFAULT_HAS_ROWS = "SELECT EXISTS (SELECT 1 FROM records_archive_default)";
+    private static final String SELECT_RETENTION = "SELECT agencyid, now() - keep FROM records_archive_retention ORDER BY agencyid";
+    private static final String SELECT_DEFAULT_RETENTION = "SELECT now() - value::INTERVAL FROM configurations WHERE key = 'records_archive_retention'";
+    // A version is removed when a newer version (archived or current) is at or before the cutoff
+    private static final String DELETE_REPLACED = "WITH doomed AS (" +
+            "SELECT a.bibliographicrecordid, a.agencyid, a.modified FROM %1$s a" +
+            " WHERE (a.bibliographicrecordid, a.agencyid, a.modified) > (?, ?, ?) AND %2$s AND a.modified < ?" +
+            " AND (EXISTS (SELECT 1 FROM records_archive b WHERE b.bibliographicrecordid = a.bibliographicrecordid" +
+            " AND b.agencyid = a.agencyid AND b.modified > a.modified AND b.modified <= ?)" +
+            " OR EXISTS (SELECT 1 FROM records r WHERE r.bibliographicrecordid = a.bibliographicrecordid" +
+            " AND r.agencyid = a.agencyid AND r.modified > a.modified AND r.modified <= ?))" +
+            " ORDER BY a.bibliographicrecordid, a.agencyid, a.modified LIMIT ?)," +
+            " gone AS (DELETE FROM %1$s p USING doomed d WHERE p.bibliographicrecordid = d.bibliographicrecordid" +
+            " AND p.agencyid = d.agencyid AND p.modified = d.modified RETURNING 1)" +
+            " SELECT (SELECT COUNT(*) FROM gone), d.bibliographicrecordid, d.agencyid, d.modified FROM doomed d" +
+            " ORDER BY d.bibliographicrecordid DESC, d.agencyid DESC, d.modified DESC LIMIT 1";
+
+    private static final String SELECT_DELTA_CANDIDATES = "SELECT bibliographicrecordid, agencyid FROM records_archive" +
+            " WHERE (bibliographicrecordid, agencyid) > (?, ?) AND content_codec IS DISTINCT FROM '" + RecordContentCodec.MARC_DELTA + "'" +
+            " GROUP BY bibliographicrecordid, agencyid ORDER BY bibliographicrecordid, agencyid LIMIT ?";
+    private static final String SELECT_VERSIONS = "SELECT modified, TRUE, content, content_bytes, content_codec FROM records" +
+            " WHERE bibliographicrecordid = ? AND agencyid = ?" +
+            " UNION ALL SELECT modified, FALSE, content, content_bytes, content_codec FROM records_archive" +
+            " WHERE bibliographicrecordid = ? AND agencyid = ?" +
+            " ORDER BY modified DESC";
+    private static final String UPDATE_DELTA = "UPDATE records_archive SET content = NULL, content_bytes = ?, content_codec = ?" +
+            " WHERE bibliographicrecordid = ? AND agencyid = ? AND modified = ? AND content_codec IS NOT DISTINCT FROM ?";
+
+    private final Connection connection;
+    private final int batchSize;
+    private final long sleep;
+    private final boolean dryRun;
+
+    private final Set<String> shrunk;
+
+    ArchiveMaintain(String db, int batchSize, long sleep, boolean dryRun) throws SQLException {
+        this.connection = getConnection(db);
+        this.connection.setAutoCommit(false);
+        this.batchSize = batchSize;
+        this.sleep = sleep;
+        this.dryRun = dryRun;
+        this.shrunk = new HashSet<>();
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+            }
+            connection.close();
+        } catch (SQLException ex) {
+            log.warn("Cannot close db connection");
+        }
+    }
+
+    /**
+     * Make sure there are partitions from this month and some months ahead
+     * <p>
+     * Months covered by another partition are skipped, like this month is
+     * by records_archive_legacy, right after the V36 upgrade
+     *
+     * @param monthsAhead number of months after this
+     * @return number of partitions made
+     * @throws SQLException if the database fails
+     */
+    int addPartitions(int monthsAhead) throws SQLException {
+        int added = 0;
+        YearMonth now = YearMonth.now(ZoneOffset.UTC);
+        try (PreparedStatement stmt = connection.prepareStatement(ADD_MONTH)) {
+            for (int i = 0; i <= monthsAhead; i++) {
+                YearMonth month = now.plusMonths(i);
+                stmt.setTimestamp(1, Timestamp.from(month.atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant()));
+                try (ResultSet resultSet = stmt.executeQuery()) {
+                    if (resultSet.next() && resultSet.getBoolean(1)) {
+                        log.info("Added partition for {}", month);
+                        added++;
+                    }
+                }
+                commit();
+            }
+        } catch (SQLException ex) {
+            connection.rollback();
+            throw ex;
+        }
+        try (Statement stmt = connection.createStatement();
+             ResultSet resultSet = stmt.executeQuery(DEFAULT_HAS_ROWS)) {
+            if (resultSet.next() && resultSet.getBoolean(1)) {
+                log.warn("records_archive_default has rows - versions outside the range of the partitions");
+            }
+        }
+        connection.rollback();
+        return added;
+    }
+
+    /**
+     * Remove versions according to records_archive_retention
+     *
+     * @return number of versions removed
+     * @throws SQLException         if the database fails
+     * @throws InterruptedException if interrupted while throttling
+     */
+    long applyRetention() throws SQLException, InterruptedException {
+        List<Integer> agencies = new ArrayList<>();
+        List<Timestamp> cutoffs = new ArrayList<>();
+        Timestamp defaultCutoff = null;
+        try (Statement stmt = connection.createStatement()) {
+            try (ResultSet resultSet = stmt.executeQuery(SELECT_RETENTION)) {
+                while (resultSet.next()) {
+                    agencies.add(resultSet.getInt(1));
+                    cutoffs.add(resultSet.getTimestamp(2));
+                }
+            }
+            try (ResultSet resultSet = stmt.executeQuery(SELECT_DEFAULT_RETENTION)) {
+                if (resultSet.next()) {
+                    defaultCutoff = resultSet.getTimestamp(1);
+                }
+            }
+        } finally {
+            connection.rollback();
+        }
+        List<String> partitions = partitions();
+        long removed = 0;
+        for (int i = 0; i < agencies.size(); i++) {
+            for (String partition : partitions) {
+                removed += applyRetention(partition, agencies.get(i), agencies, cutoffs.get(i));
+            }
+        }
+        if (defaultCutoff != null) {
+            for (String partition : partitions) {
+                removed += applyRetention(partition, null, agencies, defaultCutoff);
+            }
+        }
+        log.info("Removed {} versions{}", removed, dryRun ? " (dry run)" : "");
+        return removed;
+    }
+
+    /**
+     * Remove versions of an agency, or of all agencies without a retention
+     * of their own
+     *
+     * @param partition name of partition
+     * @param agency    the agency or null for the default retention
+     * @param agencies  agencies with a retention of their own
+     * @param cutoff    remove versions replaced at or before this
+     * @return number of versions removed
+     */
+    private long applyRetention(String partition, Integer agency, List<Integer> agencies, Timestamp cutoff) throws SQLException, InterruptedException {
+        YearMonth month = month(partition);
+        if (month != null && !month.atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant().isBefore(cutoff.toInstant())) {
+            return 0;
+        }
+        long removed = 0;
+        String bibliographicRecordId = "";
+        int agencyId = -1;
+        Timestamp modified = new Timestamp(0);
+        String name = agency == null ? "default" : String.valueOf(agency);
+        String sql = String.format(DELETE_REPLACED, quote(partition), agency == null ? "a.agencyid <> ALL(?::NUMERIC[])" : "a.agencyid = ?");
+        try (PreparedStatement stmt = connection.prepareStatement(sql)) {
+            for (;;) {
+                int pos = 1;
+                stmt.setString(pos++, bibliographicRecordId);
+                stmt.setInt(pos++, agencyId);
+                stmt.setTimestamp(pos++, modified);
+                if (agency == null) {
+                    stmt.setArray(pos++, connection.createArrayOf("int4", agencies.toArray()));
+                } else {
+                    stmt.setInt(pos++, agency);
+                }
+                stmt.setTimestamp(pos++, cutoff);
+                stmt.setTimestamp(pos++, cutoff);
+                stmt.setTimestamp(pos++, cutoff);
+                stmt.setInt(pos, batchSize);
+                try (ResultSet resultSet = stmt.executeQuery()) {
+                    if (!resultSet.next()) {
+                        commit();
+                        break;
+                    }
+                    removed += resultSet.getLong(1);
+                    bibliographicRecordId = resultSet.getString(2);
+                    agencyId = resultSet.getInt(3);
+                    modified = resultSet.getTimestamp(4);
+                }
+                commit();
+                log.debug("{}/{}: removed {} versions, up to {}:{}", partition, name, removed, agencyId, bibliographicRecordId);
+                if (sleep > 0) {
+                    Thread.sleep(sleep);
+                }
+            }
+        } catch (SQLException | InterruptedException ex) {
+            connection.rollback();
+            throw ex;
+        }
+        if (removed > 0) {
+            log.info("{}/{}: removed {} versions replaced before {}", partition, name, removed, cutoff.toInstant());
+            shrunk.add(partition);
+        }
+        return removed;
+    }
+
+    /**
+     * Store archived versions as deltas of the next newer version
+     * <p>
+     * A version is only stored as a delta if no chain of deltas becomes
+     * longer than snapshotInterval - 1, so at least every snapshotInterval'th
+     * version is stored in full, and if the delta is at most half the size.
+     * Versions are never turned back into full versions, so a new version
+     * on top of a full chain is kept in full.
+     *
+     * @param snapshotInterval max distance between full versions
+     * @return number of versions stored as deltas
+     * @throws SQLException         if the database fails
+     * @throws RawRepoException     if content cannot be decoded
+     * @throws InterruptedException if interrupted while throttling
+     */
+    long deltaEncode(int snapshotInterval) throws SQLException, RawRepoException, InterruptedException {
+        ContentDictionaries contentDictionaries = new ContentDictionaries(connection);
+        long encoded = 0;
+        long before = 0;
+        long after = 0;
+        String bibliographicRecordId = "";
+        int agencyId = -1;
+        try (PreparedStatement candidates = connection.prepareStatement(SELECT_DELTA_CANDIDATES);
+             PreparedStatement select = connection.prepareStatement(SELECT_VERSIONS);
+             PreparedStatement update = connection.prepareStatement(UPDATE_DELTA)) {
+            for (;;) {
+                List<String> bibliographicRecordIds = new ArrayList<>();
+                List<Integer> agencyIds = new ArrayList<>();
+                candidates.setString(1, bibliographicRecordId);
+                candidates.setInt(2, agencyId);
+                candidates.setInt(3, batchSize);
+                try (ResultSet resultSet = candidates.executeQuery()) {
+                    while (resultSet.next()) {
+                        bibliographicRecordIds.add(resultSet.getString(1));
+                        agencyIds.add(resultSet.getInt(2));
+                    }
+                }
+                if (bibliographicRecordIds.isEmpty()) {
+                    commit();
+                    break;
+                }
+                for (int i = 0; i < bibliographicRecordIds.size(); i++) {
+                    bibliographicRecordId = bibliographicRecordIds.get(i);
+                    agencyId = agencyIds.get(i);
+                    List<Version> versions = new ArrayList<>();
+                    int pos = 1;
+                    select.setString(pos++, bibliographicRecordId);
+                    select.setInt(pos++, agencyId);
+                    select.setString(pos++, bibliographicRecordId);
+                    select.setInt(pos, agencyId);
+                    try (ResultSet resultSet = select.executeQuery()) {
+                        while (resultSet.next()) {
+                            versions.add(new Version(resultSet.getTimestamp(1), resultSet.getBoolean(2),
+                                                     resultSet.getString(3), resultSet.getBytes(4), resultSet.getString(5)));
+                        }
+                    }
+                    for (int v = 1; v < versions.size(); v++) {
+                        Version version = versions.get(v);
+                        if (version.current || version.isDelta()) {
+                            continue;
+                        }
+                        int chain = 1;
+                        for (int n = v - 1; n >= 0 && versions.get(n).isDelta(); n--) {
+                            chain++;
+                        }
+                        for (int n = v + 1; n < versions.size() && versions.get(n).isDelta(); n++) {
+                            chain++;
+                        }
+                        if (chain >= snapshotInterval) {
+                            continue;
+                        }
+                        Version base = versions.get(v - 1);
+                        byte[] content = version.content(versions, contentDictionaries);
+                        byte[] delta = MarcDeltaCodec.encode(content, base.content(versions, contentDictionaries), base.modified.toInstant());
+                        if (delta.length * 2 > version.size()) {
+                            continue;
+                        }
+                        pos = 1;
+                        update.setBytes(pos++, delta);
+                        update.setString(pos++, RecordContentCodec.MARC_DELTA);
+                        update.setString(pos++, bibliographicRecordId);
+                        update.setInt(pos++, agencyId);
+                        update.setTimestamp(pos++, version.modified);
+                        update.setString(pos, version.codec);
+                        if (update.executeUpdate() == 1) {
+                            encoded++;
+                            before += version.size();
+                            after += delta.length;
+                            version.codec = RecordContentCodec.MARC_DELTA;
+                            version.data = delta;
+                        }
+                    }
+                }
+                commit();
+                log.debug("Stored {} versions as deltas, up to {}:{}", encoded, agencyId, bibliographicRecordId);
+                if (bibliographicRecordIds.size() < batchSize) {
+                    break;
+                }
+                if (sleep > 0) {
+                    Thread.sleep(sleep);
+                }
+            }
+        } catch (SQLException | RawRepoException | InterruptedException ex) {
+            connection.rollback();
+            throw ex;
+        }
+        log.info("Stored {} versions as deltas, {} bytes -> {} bytes{}", encoded, before, after, dryRun ? " (dry run)" : "");
+        return encoded;
+    }
+
+    /**
+     * A version of a record, newest first in a list of versions
+     */
+    private static final class Version {
+
+        private final Timestamp modified;
+        private final boolean current;
+        private final String base64Content;
+        private byte[] data;
+        private String codec;
+        private byte[] content;
+
+        private Version(Timestamp modified, boolean current, String base64Content, byte[] data, String codec) {
+            this.modified = modified;
+            this.current = current;
+            this.base64Content = base64Content;
+            this.data = data;
+            this.codec = codec;
+        }
+
+        private boolean isDelta() {
+            return RecordContentCodec.MARC_DELTA.equals(codec);
+        }
+
+        private int size() {
+            return data != null ? data.length : base64Content == null ? 0 : base64Content.length() * 3 / 4;
+        }
+
+        private byte[] content(List<Version> versions, ContentDictionaries contentDictionaries) throws RawRepoException {
+            if (content == null) {
+                if (isDelta()) {
+                    Instant baseModified = MarcDeltaCodec.baseModified(data);
+                    Version base = null;
+                    for (Version version : versions) {
+                        if (version.modified.toInstant().equals(baseModified)) {
+                            base = version;
+                        }
+                    }
+                    if (base == null || base == this) {
+                        throw new RawRepoException("Version " + baseModified + " is missing, a content delta is relative to it");
+                    }
+                    content = MarcDeltaCodec.decode(data, base.content(versions, contentDictionaries));
+                } else {
+                    content = contentDictionaries.decode(base64Content, data, codec);
+                }
+            }
+            return content;
+        }
+    }
+
+    /**
+     * Vacuum and freeze partitions that are no longer current
+     * <p>
+     * Frozen pages are skipped by later (auto)vacuums, so these partitions
+     * cost next to nothing to vacuum until they change again.
+     *
+     * @param full rewrite partitions, that retention has removed rows from,
+     *             to give the space back to the operating system. This locks
+     *             the partition, blocking updates of records archived into
+     *             it
+     * @throws SQLException if the database fails
+     */
+    void compact(boolean full) throws SQLException {
+        YearMonth now = YearMonth.now(ZoneOffset.UTC);
+        List<String> partitions = partitions();
+        if (dryRun) {
+            log.info("Would vacuum partitions before {} (dry run)", now);
+            return;
+        }
+        connection.setAutoCommit(true);
+        try (Statement stmt = connection.createStatement()) {
+            for (String partition : partitions) {
+                YearMonth month = month(partition);
+                if (month != null && !month.isBefore(now)) {
+                    continue;
+                }
+                boolean rewrite = full && shrunk.contains(partition);
+                log.info("Vacuuming {}{}", partition, rewrite ? " (full)" : "");
+                stmt.execute("VACUUM (" + ( rewrite ? "FULL, " : "" ) + "FREEZE, ANALYZE) " + quote(partition));
+            }
+        } finally {
+            connection.setAutoCommit(false);
+        }
+    }
+
+    /**
+     * Detach monthly partitions before a month
+     * <p>
+     * The partitions are kept as tables of their own, to be dumped or
+     * dropped. Versions from those months, that are archived later, go to
+     * the default partition.
+     *
+     * @param before first month to keep
+     * @return number of partitions detached
+     * @throws SQLException if the database fails
+     */
+    int detachBefore(YearMonth before) throws SQLException {
+        int detached = 0;
+        try (Statement stmt = connection.createStatement()) {
+            for (String partition : partitions()) {
+                YearMonth month = month(partition);
+                if (month == null || !month.isBefore(before)) {
+                    continue;
+                }
+                stmt.executeUpdate("ALTER TABLE records_archive DETACH PARTITION " + quote(partition));
+                commit();
+                log.info("Detached {}{}", partition, dryRun ? " (dry run)" : "");
+                detached++;
+            }
+        } catch (SQLException ex) {
+            connection.rollback();
+            throw ex;
+        }
+        return detached;
+    }
+
+    private List<String> partitions() throws SQLException {
+        List<String> partitions = new ArrayList<>();
+        try (Statement stmt = connection.createStatement();
+             ResultSet resultSet = stmt.executeQuery(SELECT_PARTITIONS)) {
+            while (resultSet.next()) {
+                partitions.add(resultSet.getString(1));
+            }
+        } finally {
+            connection.rollback();
+        }
+        return partitions;
+    }
+
+    private void commit() throws SQLException {
+        if (dryRun) {
+            connection.rollback();
+        } else {
+            connection.commit();
+        }
+    }
+
+    /**
+     * The month of a monthly partition
+     *
+     * @param partition name of partition
+     * @return month or null if not a monthly partition
+     */
+    static YearMonth month(String partition) {
+        Matcher matcher = MONTHLY.matcher(partition);
+        if (!matcher.matches()) {
+            return null;
+        }
+        return YearMonth.of(Integer.parseInt(matcher.group(1)), Integer.parseInt(matcher.group(2)));
+    }
+
+    private static String quote(String identifier) {
+        return '"' + identifier.replace("\"", "\"\"") + '"';
+    }
+
+    private static final Pattern urlPattern = Pattern.compile("^(jdbc:[^:]*://)?(?:([^:@]*)(?::([^@]*))?@)?((?:([^:/]*)(?::(\\d+))?)(?:/(.*))?)$");
+    private static final String JDBC_DEFAULT = "jdbc:postgresql://";
+    private static final int URL_PATTERN_PREFIX = 1;
+    private static final int URL_PATTERN_USER = 2;
+    private static final int URL_PATTERN_PASSWORD = 3;
+    private static final int URL_PATTERN_HOST_PORT_DB = 4;
+
+    private static Connection getConnection(String url) throws SQLException {
+        Matcher matcher = urlPattern.matcher(url);
+        if (!matcher.find()) {
+            throw new IllegalArgumentException(url + " Is not a valid jdbc uri");
+        }
+        Properties properties = new Properties();
+        String jdbc = matcher.group(URL_PATTERN_PREFIX);
+        if (jdbc == null) {
+            jdbc = JDBC_DEFAULT;
+        }
+        if (matcher.group(URL_PATTERN_USER) != null) {
+            properties.setProperty("user", matcher.group(URL_PATTERN_USER));
+        }
+        if (matcher.group(URL_PATTERN_PASSWORD) != null) {
+            properties.setProperty("password", matcher.group(URL_PATTERN_PASSWORD));
+        }
+
+        log.debug("Connecting");
+        Connection connection = DriverManager.getConnection(jdbc + matcher.group(URL_PATTERN_HOST_PORT_DB), properties);
+        log.debug("Connected");
+        return connection;
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * dbc-rawrepo-archive-maintain
+ * Copyright (C) 2015 Dansk Bibliotekscenter a/s, Tempovej 7-11, DK-2750 Ballerup,
+ * Denmark. CVR: 15149043
+ *
+ * This file is part of dbc-rawrepo-archive-maintain.
+ *
+ * dbc-rawrepo-archive-maintain is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-rawrepo-archive-maintain is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dbc-rawrepo-archive-maintain.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.rawrepo.archivemaintain;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.joran.JoranConfigurator;
+import ch.qos.logback.core.joran.spi.JoranException;
+import ch.qos.logback.core.util.StatusPrinter;
+import dk.dbc.rawrepo.RawRepoException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.sql.SQLException;
+import java.time.YearMonth;
+import java.time.format.DateTimeParseException;
+
+/**
+ * Maintain the partitioned records_archive (schema V36)
+ * <p>
+ * Meant to be run regularly, like nightly. It adds partitions ahead of time,
+ * removes versions according to records_archive_retention and optionally
+ * stores versions as deltas, vacuums (freezes) partitions of past months and
+ * detaches old partitions.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class ArchiveMaintainMain {
+
+    private static final Logger log = LoggerFactory.getLogger(ArchiveMaintainMain.class);
+
+    public static void main(String[] args) {
+        CommandLine commandLine = new ArchiveMaintainCommandLine();
+        int monthsAhead;
+        int batchSize;
+        int sleep;
+        int snapshotInterval = 0;
+        YearMonth detachBefore = null;
+        try {
+            commandLine.parse(args);
+            if (!commandLine.getExtraArguments().isEmpty()) {
+                throw new IllegalStateException("No arguments expected");
+            }
+            monthsAhead = commandLine.hasOption("months-ahead") ? (int) commandLine.getOption("months-ahead") : 3;
+            batchSize = commandLine.hasOption("batch-size") ? (int) commandLine.getOption("batch-size") : 1000;
+            sleep = commandLine.hasOption("sleep") ? (int) commandLine.getOption("sleep") : 0;
+            if (monthsAhead < 0 || batchSize <= 0 || sleep < 0) {
+                throw new IllegalStateException("Positive integer expected");
+            }
+            if (commandLine.hasOption("delta")) {
+                snapshotInterval = (int) commandLine.getOption("delta");
+                if (snapshotInterval < 2) {
+                    throw new IllegalStateException("Option delta should be at least 2");
+                }
+            }
+            if (commandLine.hasOption("full") && !commandLine.hasOption("compact")) {
+                throw new IllegalStateException("Option full requires compact");
+            }
+            if (commandLine.hasOption("detach-before")) {
+                try {
+                    detachBefore = YearMonth.parse((String) commandLine.getOption("detach-before"));
+                } catch (DateTimeParseException ex) {
+                    throw new IllegalStateException("Option detach-before should be YYYY-MM");
+                }
+            }
+            if (commandLine.hasOption("debug")) {
+                setLogLevel("logback-debug.xml");
+            } else {
+                setLogLevel("logback-info.xml");
+            }
+        } catch (IllegalStateException | IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(commandLine.usage());
+            System.exit(1);
+            return;
+        } catch (JoranException ex) {
+            log.error("Exception", ex);
+            System.exit(1);
+            return;
+        }
+
+        try (ArchiveMaintain archiveMaintain = new ArchiveMaintain((String) commandLine.getOption("db"), batchSize, sleep, commandLine.hasOption("dry-run"))) {
+            archiveMaintain.addPartitions(monthsAhead);
+            if (!commandLine.hasOption("no-retention")) {
+                archiveMaintain.applyRetention();
+            }
+            if (snapshotInterval > 0) {
+                archiveMaintain.deltaEncode(snapshotInterval);
+            }
+            if (detachBefore != null) {
+                archiveMaintain.detachBefore(detachBefore);
+            }
+            if (commandLine.hasOption("compact")) {
+                archiveMaintain.compact(commandLine.hasOption("full"));
+            }
+            log.info("Done");
+        } catch (SQLException | RawRepoException ex) {
+            log.error(ex.getMessage());
+            System.exit(1);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted");
+            System.exit(1);
+        }
+    }
+
+    private static void setLogLevel(String file) throws JoranException {
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        context.reset();
+        ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        InputStream stream = contextClassLoader.getResourceAsStream(file);
+        JoranConfigurator configurator = new JoranConfigurator();
+        configurator.setContext(context);
+        configurator.doConfigure(stream); // loads logback file
+        StatusPrinter.printInCaseOfErrorsOrWarnings(context); // Internal status data is printed in case of warnings or errors.
+    }
+
+    private static class ArchiveMaintainCommandLine extends CommandLine {
+
+        @Override
+        void setOptions() {
+            addOption("db", "connectstring for database", true, false, string, null);
+            addOption("months-ahead", "number of monthly partitions to make after this month (default: 3)", false, false, integer, null);
+            addOption("batch-size", "number of versions removed per transaction (default: 1000)", false, false, integer, null);
+            addOption("sleep", "milliseconds to pause between transactions (default: 0)", false, false, integer, null);
+            addOption("no-retention", "don't remove versions", false, false, null, yes);
+            addOption("compact", "vacuum and freeze partitions of past months", false, false, null, yes);
+            addOption("full", "with compact: rewrite partitions that versions have been removed from\n" +
+                              "this locks them, blocking updates of records archived into them", false, false, null, yes);
+            addOption("delta", "store archived versions as deltas of the next newer version\n" +
+                               "with a full version at least every argument versions (schema V37)", false, false, integer, null);
+            addOption("detach-before", "detach monthly partitions before this month (YYYY-MM)", false, false, string, null);
+            addOption("dry-run", "roll back all changes", false, false, null, yes);
+
+            addOption("debug", "turn on debug logging", false, false, null, yes);
+        }
+
+        @Override
+        String usageCommandLine() {
+            return "prog [ options ]";
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.archivemaintain;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Properties;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+/**
+ * The database is made from the V35 schema and the V36 upgrade, which
+ * attaches the existing archive as records_archive_legacy, covering this
+ * month
+ */
+public class ArchiveMaintainIT {
+
+    private String db;
+    private Connection connection;
+
+    @BeforeEach
+    public void setup() throws SQLException {
+        db = "localhost:" + System.getProperty("postgresql.port") + "/rawrepo";
+        connection = DriverManager.getConnection("jdbc:postgresql://" + db, new Properties());
+        connection.prepareStatement("DELETE FROM records_archive").execute();
+    }
+
+    @AfterEach
+    public void teardown() throws SQLException {
+        connection.close();
+    }
+
+    @Test
+    public void testAddPartitionsAfterUpgrade() throws Exception {
+        try (PreparedStatement stmt = connection.prepareStatement("INSERT INTO records_archive (bibliographicrecordid, agencyid, created, modified) VALUES('a', 870970, ?, ?)")) {
+            Timestamp now = Timestamp.from(Instant.now());
+            stmt.setTimestamp(1, now);
+            stmt.setTimestamp(2, now);
+            stmt.executeUpdate();
+        }
+
+        YearMonth month = YearMonth.now(ZoneOffset.UTC);
+        try (ArchiveMaintain archiveMaintain = new ArchiveMaintain(db, 1000, 0, false)) {
+            assertThat("the upgrade made the next 3 months", archiveMaintain.addPartitions(3), is(0));
+            assertThat(archiveMaintain.addPartitions(4), is(1));
+            assertThat(archiveMaintain.addPartitions(4), is(0));
+        }
+
+        assertThat("this month is in the legacy partition", exists("records_archive_" + month.format(DateTimeFormatter.ofPattern("yyyyMM"))), is(false));
+        assertThat(exists("records_archive_" + month.plusMonths(4).format(DateTimeFormatter.ofPattern("yyyyMM"))), is(true));
+        assertThat(count("records_archive_legacy"), is(1));
+        assertThat(count("records_archive_default"), is(0));
+    }
+
+    private boolean exists(String table) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT to_regclass(?) IS NOT NULL")) {
+            stmt.setString(1, table);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                resultSet.next();
+                return resultSet.getBoolean(1);
+            }
+        }
+    }
+
+    private int count(String table) throws SQLException {
+        try (PreparedStatement stmt = connection.prepareStatement("SELECT COUNT(*) FROM " + table);
+             ResultSet resultSet = stmt.executeQuery()) {
+            resultSet.next();
+            return resultSet.getInt(1);
+        }
+    }
+}
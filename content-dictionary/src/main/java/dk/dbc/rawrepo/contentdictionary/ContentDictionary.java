@@ -0,0 +1,177 @@
+/*
+ * dbc-rawrepo-content-dictionary
+ * Copyright (C) 2015 Dansk Bibliotekscenter a/s, Tempovej 7-11, DK-2750 Ballerup,
+ * Denmark. CVR: 15149043
+ *
+ * This file is part of dbc-rawrepo-content-dictionary.
+ *
+ * dbc-rawrepo-content-dictionary is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-rawrepo-content-dictionary is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dbc-rawrepo-content-dictionary.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.rawrepo.contentdictionary;
+
+import dk.dbc.rawrepo.ContentCodec;
+import dk.dbc.rawrepo.ContentDictionaries;
+import dk.dbc.rawrepo.RawRepoException;
+import dk.dbc.rawrepo.RecordContentCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Database side of training and rotating content dictionaries
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+class ContentDictionary implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(ContentDictionary.class);
+
+    private static final String SELECT_SAMPLE = "SELECT content, content_bytes, content_codec FROM records TABLESAMPLE SYSTEM (?)" +
+            " WHERE mimetype=? AND NOT deleted LIMIT ?";
+
+    private final Connection connection;
+    private final ContentDictionaries contentDictionaries;
+
+    ContentDictionary(String db) throws SQLException {
+        this.connection = getConnection(db);
+        this.connection.setAutoCommit(false);
+        this.contentDictionaries = new ContentDictionaries(connection);
+    }
+
+    @Override
+    public void close() {
+        try {
+            connection.rollback();
+            connection.close();
+        } catch (SQLException ex) {
+            log.warn("Cannot close db connection");
+        }
+    }
+
+    void commit() throws SQLException {
+        connection.commit();
+    }
+
+    /**
+     * Fetch content of a random sample of (live) records
+     *
+     * @param mimeType mimetype to sample
+     * @param percent  percentage of table pages to sample
+     * @param limit    max number of records
+     * @return list of record content
+     * @throws SQLException     if the database fails
+     * @throws RawRepoException if content cannot be decoded
+     */
+    List<byte[]> sample(String mimeType, double percent, int limit) throws SQLException, RawRepoException {
+        ArrayList<byte[]> ret = new ArrayList<>();
+        try (PreparedStatement stmt = connection.prepareStatement(SELECT_SAMPLE)) {
+            int pos = 1;
+            stmt.setDouble(pos++, percent);
+            stmt.setString(pos++, mimeType);
+            stmt.setInt(pos, limit);
+            try (ResultSet resultSet = stmt.executeQuery()) {
+                while (resultSet.next()) {
+                    byte[] content = contentDictionaries.decode(resultSet.getString(1), resultSet.getBytes(2), resultSet.getString(3));
+                    if (content != null) {
+                        ret.add(content);
+                    }
+                }
+            }
+        }
+        log.debug("Sampled {} records of {}", ret.size(), mimeType);
+        return ret;
+    }
+
+    /**
+     * Size of content when stored with a given codec
+     *
+     * @param contents list of record content
+     * @param codec    codec to compress with
+     * @return total size in bytes
+     */
+    static long storedSize(List<byte[]> contents, ContentCodec codec) {
+        long size = 0;
+        for (byte[] content : contents) {
+            size += RecordContentCodec.encode(content, codec).getData().length;
+        }
+        return size;
+    }
+
+    /**
+     * Active codec of a mimetype
+     *
+     * @param mimeType mimetype
+     * @return codec or null if there's no active dictionary
+     * @throws RawRepoException if the database fails
+     */
+    ContentCodec activeCodec(String mimeType) throws RawRepoException {
+        return contentDictionaries.activeCodec(mimeType);
+    }
+
+    int store(String mimeType, byte[] dictionary) throws RawRepoException {
+        return contentDictionaries.addDictionary(mimeType, dictionary);
+    }
+
+    void activate(int dictionaryId) throws RawRepoException {
+        contentDictionaries.activate(dictionaryId);
+    }
+
+    void deactivate(String mimeType) throws RawRepoException {
+        contentDictionaries.deactivate(mimeType);
+    }
+
+    List<ContentDictionaries.Entry> list() throws RawRepoException {
+        return contentDictionaries.list();
+    }
+
+    private static final Pattern urlPattern = Pattern.compile("^(jdbc:[^:]*://)?(?:([^:@]*)(?::([^@]*))?@)?((?:([^:/]*)(?::(\\d+))?)(?:/(.*))?)$");
+    private static final String JDBC_DEFAULT = "jdbc:postgresql://";
+    private static final int URL_PATTERN_PREFIX = 1;
+    private static final int URL_PATTERN_USER = 2;
+    private static final int URL_PATTERN_PASSWORD = 3;
+    private static final int URL_PATTERN_HOST_PORT_DB = 4;
+
+    private static Connection getConnection(String url) throws SQLException {
+        Matcher matcher = urlPattern.matcher(url);
+        if (!matcher.find()) {
+            throw new IllegalArgumentException(url + " Is not a valid jdbc uri");
+        }
+        Properties properties = new Properties();
+        String jdbc = matcher.group(URL_PATTERN_PREFIX);
+        if (jdbc == null) {
+            jdbc = JDBC_DEFAULT;
+        }
+        if (matcher.group(URL_PATTERN_USER) != null) {
+            properties.setProperty("user", matcher.group(URL_PATTERN_USER));
+        }
+        if (matcher.group(URL_PATTERN_PASSWORD) != null) {
+            properties.setProperty("password", matcher.group(URL_PATTERN_PASSWORD));
+        }
+
+        log.debug("Connecting");
+        Connection connection = DriverManager.getConnection(jdbc + matcher.group(URL_PATTERN_HOST_PORT_DB), properties);
+        log.debug("Connected");
+        return connection;
+    }
+}
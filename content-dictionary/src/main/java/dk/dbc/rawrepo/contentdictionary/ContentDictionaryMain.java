@@ -0,0 +1,214 @@
+/*
+ * dbc-rawrepo-content-dictionary
+ * Copyright (C) 2015 Dansk Bibliotekscenter a/s, Tempovej 7-11, DK-2750 Ballerup,
+ * Denmark. CVR: 15149043
+ *
+ * This file is part of dbc-rawrepo-content-dictionary.
+ *
+ * dbc-rawrepo-content-dictionary is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-rawrepo-content-dictionary is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dbc-rawrepo-content-dictionary.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.rawrepo.contentdictionary;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.joran.JoranConfigurator;
+import ch.qos.logback.core.joran.spi.JoranException;
+import ch.qos.logback.core.util.StatusPrinter;
+import dk.dbc.rawrepo.ContentCodec;
+import dk.dbc.rawrepo.ContentDictionaries;
+import dk.dbc.rawrepo.DeflateContentCodec;
+import dk.dbc.rawrepo.RawRepoException;
+import dk.dbc.rawrepo.RecordContentCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Train, list and rotate content compression dictionaries (schema V34)
+ * <p>
+ * Commands:
+ * <ul>
+ * <li>list - list all dictionaries</li>
+ * <li>train mimetype - train a dictionary from a sample of live records,
+ * and report the compression with the current and the new dictionary</li>
+ * <li>activate id - use a dictionary for new content of its mimetype</li>
+ * <li>deactivate mimetype - stop using dictionaries for a mimetype</li>
+ * </ul>
+ * Rows already written keep referring to the dictionary they were encoded
+ * with, so dictionaries are never deleted.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class ContentDictionaryMain {
+
+    private static final Logger log = LoggerFactory.getLogger(ContentDictionaryMain.class);
+
+    public static void main(String[] args) {
+        CommandLine commandLine = new ContentDictionaryCommandLine();
+        List<String> arguments;
+        double samplePercent;
+        int samples;
+        int size;
+        try {
+            commandLine.parse(args);
+            arguments = commandLine.getExtraArguments();
+            if (arguments.isEmpty()) {
+                throw new IllegalStateException("Command expected");
+            }
+            switch (arguments.get(0)) {
+                case "list":
+                    if (arguments.size() != 1) {
+                        throw new IllegalStateException("list takes no arguments");
+                    }
+                    break;
+                case "train":
+                case "deactivate":
+                    if (arguments.size() != 2) {
+                        throw new IllegalStateException(arguments.get(0) + " takes a mimetype");
+                    }
+                    break;
+                case "activate":
+                    if (arguments.size() != 2) {
+                        throw new IllegalStateException("activate takes a dictionary id");
+                    }
+                    Integer.parseInt(arguments.get(1), 10);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown command: " + arguments.get(0));
+            }
+            samplePercent = commandLine.hasOption("sample-percent") ? Double.parseDouble((String) commandLine.getOption("sample-percent")) : 1.0;
+            samples = commandLine.hasOption("samples") ? (int) commandLine.getOption("samples") : 5000;
+            size = commandLine.hasOption("size") ? (int) commandLine.getOption("size") : DeflateContentCodec.MAX_DICTIONARY_SIZE;
+            if (samplePercent <= 0 || samplePercent > 100 || samples < 10 || size <= 0 || size > DeflateContentCodec.MAX_DICTIONARY_SIZE) {
+                throw new IllegalStateException("Option out of range");
+            }
+            if (commandLine.hasOption("debug")) {
+                setLogLevel("logback-debug.xml");
+            } else {
+                setLogLevel("logback-info.xml");
+            }
+        } catch (IllegalStateException | IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(commandLine.usage());
+            System.exit(1);
+            return;
+        } catch (JoranException ex) {
+            log.error("Exception", ex);
+            System.exit(1);
+            return;
+        }
+
+        try (ContentDictionary contentDictionary = new ContentDictionary((String) commandLine.getOption("db"))) {
+            switch (arguments.get(0)) {
+                case "list":
+                    for (ContentDictionaries.Entry entry : contentDictionary.list()) {
+                        System.out.println(entry);
+                    }
+                    break;
+                case "train":
+                    train(contentDictionary, arguments.get(1), samplePercent, samples, size,
+                          commandLine.hasOption("dry-run"), commandLine.hasOption("activate"));
+                    break;
+                case "activate":
+                    contentDictionary.activate(Integer.parseInt(arguments.get(1), 10));
+                    break;
+                case "deactivate":
+                    contentDictionary.deactivate(arguments.get(1));
+                    break;
+                default:
+                    break;
+            }
+            contentDictionary.commit();
+        } catch (SQLException | RawRepoException ex) {
+            log.error(ex.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static void train(ContentDictionary contentDictionary, String mimeType, double samplePercent, int samples, int size, boolean dryRun, boolean activate) throws SQLException, RawRepoException {
+        List<byte[]> sample = contentDictionary.sample(mimeType, samplePercent, samples);
+        if (sample.size() < 10) {
+            throw new RawRepoException("Too few records sampled (" + sample.size() + "), try a larger --sample-percent");
+        }
+        // Train on 4/5 of the sample, evaluate on the rest
+        ContentDictionaryTrainer trainer = new ContentDictionaryTrainer(size);
+        List<byte[]> evaluation = new ArrayList<>();
+        long raw = 0;
+        for (int i = 0; i < sample.size(); i++) {
+            if (i % 5 == 4) {
+                evaluation.add(sample.get(i));
+                raw += sample.get(i).length;
+            } else {
+                trainer.add(sample.get(i));
+            }
+        }
+        byte[] dictionary = trainer.build();
+        log.info("Trained {} bytes dictionary from {} records", dictionary.length, trainer.getDocuments());
+
+        long deflated = ContentDictionary.storedSize(evaluation, new DeflateContentCodec(RecordContentCodec.DEFLATE));
+        long trained = ContentDictionary.storedSize(evaluation, new DeflateContentCodec("new", dictionary));
+        log.info("Evaluated on {} records: {} bytes raw, {} bytes deflated, {} bytes with new dictionary", evaluation.size(), raw, deflated, trained);
+        ContentCodec current = contentDictionary.activeCodec(mimeType);
+        if (current != null) {
+            long active = ContentDictionary.storedSize(evaluation, current);
+            log.info("{} bytes with active dictionary ({})", active, current.getId());
+            if (active <= trained) {
+                log.warn("New dictionary is not better than the active one");
+            }
+        }
+        if (dryRun) {
+            return;
+        }
+        int id = contentDictionary.store(mimeType, dictionary);
+        log.info("Stored dictionary {}", id);
+        if (activate) {
+            contentDictionary.activate(id);
+            log.info("Activated dictionary {} for {}", id, mimeType);
+        }
+    }
+
+    private static void setLogLevel(String file) throws JoranException {
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        context.reset();
+        ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        InputStream stream = contextClassLoader.getResourceAsStream(file);
+        JoranConfigurator configurator = new JoranConfigurator();
+        configurator.setContext(context);
+        configurator.doConfigure(stream); // loads logback file
+        StatusPrinter.printInCaseOfErrorsOrWarnings(context); // Internal status data is printed in case of warnings or errors.
+    }
+
+    private static class ContentDictionaryCommandLine extends CommandLine {
+
+        @Override
+        void setOptions() {
+            addOption("db", "connectstring for database", true, false, string, null);
+            addOption("sample-percent", "percentage of records table to sample (default: 1)", false, false, string, null);
+            addOption("samples", "max number of records to train from (default: 5000)", false, false, integer, null);
+            addOption("size", "max size of dictionary (default: 32768)", false, false, integer, null);
+            addOption("dry-run", "train and evaluate, but don't store the dictionary", false, false, null, yes);
+            addOption("activate", "activate the trained dictionary", false, false, null, yes);
+
+            addOption("debug", "turn on debug logging", false, false, null, yes);
+        }
+
+        @Override
+        String usageCommandLine() {
+            return "prog [ options ] list | train mimetype | activate id | deactivate mimetype";
+        }
+    }
+}
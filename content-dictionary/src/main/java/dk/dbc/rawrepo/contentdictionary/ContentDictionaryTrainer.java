@@ -0,0 +1,147 @@
+/*
+ * dbc-rawrepo-content-dictionary
+ * Copyright (C) 2015 Dansk Bibliotekscenter a/s, Tempovej 7-11, DK-2750 Ballerup,
+ * Denmark. CVR: 15149043
+ *
+ * This file is part of dbc-rawrepo-content-dictionary.
+ *
+ * dbc-rawrepo-content-dictionary is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-rawrepo-content-dictionary is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dbc-rawrepo-content-dictionary.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.rawrepo.contentdictionary;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Build a preset dictionary from sample records
+ * <p>
+ * The dictionary is made of the xml markup that occurs in most records:
+ * single tags (with attributes) and runs of adjacent tags. Only the first
+ * occurrence in a record benefits from the dictionary (later ones match
+ * within the record), so segments are scored by the number of records they
+ * occur in times their length. The best segments are placed at the end of
+ * the dictionary, where matches are cheapest.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+class ContentDictionaryTrainer {
+
+    private static final Pattern TAG = Pattern.compile("<[^<>]{1,200}>");
+    private static final int MIN_SEGMENT_LENGTH = 4;
+    private static final int MAX_RUN = 4;
+
+    private final int size;
+    private final Map<String, Integer> documentCounts;
+    private int documents;
+
+    /**
+     * @param size max size of the dictionary
+     */
+    ContentDictionaryTrainer(int size) {
+        this.size = size;
+        this.documentCounts = new HashMap<>();
+        this.documents = 0;
+    }
+
+    /**
+     * Add a sample record
+     *
+     * @param content record content
+     */
+    void add(byte[] content) {
+        String text = new String(content, StandardCharsets.UTF_8);
+        Set<String> seen = new HashSet<>();
+        Matcher matcher = TAG.matcher(text);
+        ArrayList<String> run = new ArrayList<>();
+        int runEnd = -1;
+        while (matcher.find()) {
+            if (matcher.start() != runEnd) {
+                run.clear();
+            }
+            run.add(matcher.group());
+            runEnd = matcher.end();
+            if (run.size() > MAX_RUN) {
+                run.remove(0);
+            }
+            // All runs of adjacent tags ending at this tag
+            StringBuilder segment = new StringBuilder();
+            for (int i = run.size() - 1; i >= 0; i--) {
+                segment.insert(0, run.get(i));
+                if (segment.length() >= MIN_SEGMENT_LENGTH) {
+                    seen.add(segment.toString());
+                }
+            }
+        }
+        for (String segment : seen) {
+            documentCounts.merge(segment, 1, Integer::sum);
+        }
+        documents++;
+    }
+
+    int getDocuments() {
+        return documents;
+    }
+
+    /**
+     * Build the dictionary from the samples added
+     *
+     * @return dictionary (possibly empty)
+     */
+    byte[] build() {
+        List<Map.Entry<String, Integer>> candidates = new ArrayList<>(documentCounts.entrySet());
+        // Segments that occur in a single record don't help
+        candidates.removeIf(e -> e.getValue() < 2);
+        candidates.sort((l, r) -> {
+            long lScore = (long) l.getValue() * l.getKey().length();
+            long rScore = (long) r.getValue() * r.getKey().length();
+            if (lScore != rScore) {
+                return Long.compare(rScore, lScore);
+            }
+            return l.getKey().compareTo(r.getKey());
+        });
+        ArrayList<byte[]> chosen = new ArrayList<>();
+        StringBuilder all = new StringBuilder();
+        int length = 0;
+        for (Map.Entry<String, Integer> candidate : candidates) {
+            if (length > size - MIN_SEGMENT_LENGTH) {
+                break;
+            }
+            String segment = candidate.getKey();
+            if (all.indexOf(segment) >= 0) {
+                continue;
+            }
+            byte[] bytes = segment.getBytes(StandardCharsets.UTF_8);
+            if (length + bytes.length > size) {
+                continue;
+            }
+            chosen.add(bytes);
+            all.append(segment);
+            length += bytes.length;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length);
+        for (int i = chosen.size() - 1; i >= 0; i--) {
+            byte[] bytes = chosen.get(i);
+            out.write(bytes, 0, bytes.length);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright Dansk Bibliotekscenter a/s. Licensed under GNU GPL v3
+ *  See license text at https://opensource.dbc.dk/licenses/gpl-3.0
+ */
+
+package dk.dbc.rawrepo.contentdictionary;
+
+import dk.dbc.rawrepo.DeflateContentCodec;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThan;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class ContentDictionaryTrainerTest {
+
+    private static byte[] record(int n) {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" +
+                                             "<marcx:record xmlns:marcx=\"info:lc/xmlns/marcxchange-v1\" format=\"danMARC2\" type=\"Bibliographic\">" +
+                                             "<marcx:leader>00000n    2200000   4500</marcx:leader>");
+        for (String tag : new String[] {"001", "004", "008", "245", "260", "300", "996"}) {
+            sb.append("<marcx:datafield ind1=\"0\" ind2=\"0\" tag=\"").append(tag).append("\">")
+                    .append("<marcx:subfield code=\"a\">").append(tag).append('-').append(n).append("</marcx:subfield>")
+                    .append("</marcx:datafield>");
+        }
+        return sb.append("</marcx:record>").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Test
+    public void testDictionaryContainsCommonMarkup() {
+        ContentDictionaryTrainer trainer = new ContentDictionaryTrainer(4096);
+        for (int i = 0; i < 50; i++) {
+            trainer.add(record(i));
+        }
+        assertThat(trainer.getDocuments(), is(50));
+        byte[] dictionary = trainer.build();
+        assertThat(dictionary.length, lessThanOrEqualTo(4096));
+        String text = new String(dictionary, StandardCharsets.UTF_8);
+        assertThat(text, containsString("<marcx:datafield ind1=\"0\" ind2=\"0\" tag=\"245\">"));
+        assertThat(text, containsString("<marcx:subfield code=\"a\">"));
+    }
+
+    @Test
+    public void testDictionaryImprovesCompression() throws Exception {
+        ContentDictionaryTrainer trainer = new ContentDictionaryTrainer(DeflateContentCodec.MAX_DICTIONARY_SIZE);
+        for (int i = 0; i < 100; i++) {
+            trainer.add(record(i));
+        }
+        List<byte[]> evaluation = new ArrayList<>();
+        for (int i = 100; i < 120; i++) {
+            evaluation.add(record(i));
+        }
+        DeflateContentCodec trained = new DeflateContentCodec("test", trainer.build());
+        long plain = ContentDictionary.storedSize(evaluation, new DeflateContentCodec("deflate"));
+        assertThat(ContentDictionary.storedSize(evaluation, trained), lessThan(plain));
+        for (byte[] content : evaluation) {
+            assertThat(trained.decode(trained.encode(content)), is(content));
+        }
+    }
+
+    @Test
+    public void testEmptyWhenNothingIsCommon() {
+        ContentDictionaryTrainer trainer = new ContentDictionaryTrainer(4096);
+        trainer.add("<a>".getBytes(StandardCharsets.UTF_8));
+        assertThat(trainer.build().length, is(0));
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * dbc-rawrepo-content-migrate
+ * Copyright (C) 2015 Dansk Bibliotekscenter a/s, Tempovej 7-11, DK-2750 Ballerup,
+ * Denmark. CVR: 15149043
+ *
+ * This file is part of dbc-rawrepo-content-migrate.
+ *
+ * dbc-rawrepo-content-migrate is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-rawrepo-content-migrate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dbc-rawrepo-content-migrate.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.rawrepo.contentmigrate;
+
+import dk.dbc.rawrepo.ContentDictionaries;
+import dk.dbc.rawrepo.RawRepoException;
+import dk.dbc.rawrepo.RecordContentCodec;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Moves record content from the legacy base64 column to content_bytes
+ * <p>
+ * Content is encoded with the active dictionary of its mimetype, if any.
+ * <p>
+ * Rows are converted in batches, each batch in its own transaction, walking
+ * the table in primary key order. Rows locked by other transactions are
+ * skipped; they're either being saved (which writes content_bytes) or will be
+ * picked up by running the tool again.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+class ContentMigrate implements AutoCloseable {
+
+    private static final Logger log = LoggerFactory.getLogger(ContentMigrate.class);
+
+    private static final String SELECT_RECORDS = "SELECT bibliographicrecordid, agencyid, modified, mimetype, content FROM records" +
+            " WHERE (bibliographicrecordid, agencyid) > (?, ?) AND content IS NOT NULL AND content_bytes IS NULL" +
+            " ORDER BY bibliographicrecordid, agencyid LIMIT ? FOR UPDATE SKIP LOCKED";
+    private static final String UPDATE_RECORDS = "UPDATE records SET content=NULL, content_bytes=?, content_codec=?" +
+            " WHERE bibliographicrecordid=? AND agencyid=? AND content_bytes IS NULL";
+    private static final String SELECT_ARCHIVE = "SELECT bibliographicrecordid, agencyid, modified, mimetype, content FROM records_archive" +
+            " WHERE (bibliographicrecordid, agencyid, modified) > (?, ?, ?) AND content IS NOT NULL AND content_bytes IS NULL" +
+            " ORDER BY bibliographicrecordid, agencyid, modified LIMIT ? FOR UPDATE SKIP LOCKED";
+    private static final String UPDATE_ARCHIVE = "UPDATE records_archive SET content=NULL, content_bytes=?, content_codec=?" +
+            " WHERE bibliographicrecordid=? AND agencyid=? AND modified=? AND content_bytes IS NULL";
+
+    private final Connection connection;
+    private final ContentDictionaries contentDictionaries;
+    private final int batchSize;
+    private final long sleep;
+
+    private long rows;
+    private long legacyBytes;
+    private long bytes;
+
+    ContentMigrate(String db, int batchSize, long sleep) throws SQLException {
+        this.connection = getConnection(db);
+        this.connection.setAutoCommit(false);
+        this.contentDictionaries = new ContentDictionaries(connection);
+        this.batchSize = batchSize;
+        this.sleep = sleep;
+    }
+
+    @Override
+    public void close() {
+        try {
+            connection.rollback();
+            connection.close();
+        } catch (SQLException ex) {
+            log.warn("Cannot close db connection");
+        }
+    }
+
+    /**
+     * Migrate all rows in records
+     *
+     * @return number of rows migrated
+     * @throws SQLException         if the database fails
+     * @throws RawRepoException     if content cannot be encoded
+     * @throws InterruptedException if interrupted while throttling
+     */
+    long migrateRecords() throws SQLException, RawRepoException, InterruptedException {
+        return migrate("records", false);
+    }
+
+    /**
+     * Migrate all rows in records_archive
+     *
+     * @return number of rows migrated
+     * @throws SQLException         if the database fails
+     * @throws RawRepoException     if content cannot be encoded
+     * @throws InterruptedException if interrupted while throttling
+     */
+    long migrateArchive() throws SQLException, RawRepoException, InterruptedException {
+        return migrate("records_archive", true);
+    }
+
+    long getLegacyBytes() {
+        return legacyBytes;
+    }
+
+    long getBytes() {
+        return bytes;
+    }
+
+    private long migrate(String table, boolean archive) throws SQLException, RawRepoException, InterruptedException {
+        long before = rows;
+        String bibliographicRecordId = "";
+        int agencyId = -1;
+        Timestamp modified = new Timestamp(0);
+        try (PreparedStatement select = connection.prepareStatement(archive ? SELECT_ARCHIVE : SELECT_RECORDS);
+             PreparedStatement update = connection.prepareStatement(archive ? UPDATE_ARCHIVE : UPDATE_RECORDS)) {
+            for (;;) {
+                int pos = 1;
+                select.setString(pos++, bibliographicRecordId);
+                select.setInt(pos++, agencyId);
+                if (archive) {
+                    select.setTimestamp(pos++, modified);
+                }
+                select.setInt(pos, batchSize);
+                int count = 0;
+                try (ResultSet resultSet = select.executeQuery()) {
+                    while (resultSet.next()) {
+                        bibliographicRecordId = resultSet.getString(1);
+                        agencyId = resultSet.getInt(2);
+                        modified = resultSet.getTimestamp(3);
+                        String mimeType = resultSet.getString(4);
+                        String base64Content = resultSet.getString(5);
+                        byte[] content = contentDictionaries.decode(base64Content, null, null);
+                        RecordContentCodec.Encoded encoded = contentDictionaries.encode(content, mimeType);
+                        pos = 1;
+                        update.setBytes(pos++, encoded.getData());
+                        update.setString(pos++, encoded.getCodec());
+                        update.setString(pos++, bibliographicRecordId);
+                        update.setInt(pos++, agencyId);
+                        if (archive) {
+                            update.setTimestamp(pos, modified);
+                        }
+                        update.addBatch();
+                        legacyBytes += base64Content.length();
+                        bytes += encoded.getData().length;
+                        count++;
+                    }
+                }
+                if (count == 0) {
+                    connection.commit();
+                    break;
+                }
+                update.executeBatch();
+                connection.commit();
+                rows += count;
+                log.debug("{}: migrated {} rows, up to {}:{}", table, count, agencyId, bibliographicRecordId);
+                if (count < batchSize) {
+                    break;
+                }
+                if (sleep > 0) {
+                    Thread.sleep(sleep);
+                }
+            }
+        } catch (SQLException | RawRepoException | InterruptedException ex) {
+            connection.rollback();
+            throw ex;
+        }
+        log.info("{}: migrated {} rows", table, rows - before);
+        return rows - before;
+    }
+
+    private static final Pattern urlPattern = Pattern.compile("^(jdbc:[^:]*://)?(?:([^:@]*)(?::([^@]*))?@)?((?:([^:/]*)(?::(\\d+))?)(?:/(.*))?)$");
+    private static final String JDBC_DEFAULT = "jdbc:postgresql://";
+    private static final int URL_PATTERN_PREFIX = 1;
+    private static final int URL_PATTERN_USER = 2;
+    private static final int URL_PATTERN_PASSWORD = 3;
+    private static final int URL_PATTERN_HOST_PORT_DB = 4;
+
+    private static Connection getConnection(String url) throws SQLException {
+        Matcher matcher = urlPattern.matcher(url);
+        if (!matcher.find()) {
+            throw new IllegalArgumentException(url + " Is not a valid jdbc uri");
+        }
+        Properties properties = new Properties();
+        String jdbc = matcher.group(URL_PATTERN_PREFIX);
+        if (jdbc == null) {
+            jdbc = JDBC_DEFAULT;
+        }
+        if (matcher.group(URL_PATTERN_USER) != null) {
+            properties.setProperty("user", matcher.group(URL_PATTERN_USER));
+        }
+        if (matcher.group(URL_PATTERN_PASSWORD) != null) {
+            properties.setProperty("password", matcher.group(URL_PATTERN_PASSWORD));
+        }
+
+        log.debug("Connecting");
+        Connection connection = DriverManager.getConnection(jdbc + matcher.group(URL_PATTERN_HOST_PORT_DB), properties);
+        log.debug("Connected");
+        return connection;
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * dbc-rawrepo-content-migrate
+ * Copyright (C) 2015 Dansk Bibliotekscenter a/s, Tempovej 7-11, DK-2750 Ballerup,
+ * Denmark. CVR: 15149043
+ *
+ * This file is part of dbc-rawrepo-content-migrate.
+ *
+ * dbc-rawrepo-content-migrate is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * dbc-rawrepo-content-migrate is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with dbc-rawrepo-content-migrate.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package dk.dbc.rawrepo.contentmigrate;
+
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.joran.JoranConfigurator;
+import ch.qos.logback.core.joran.spi.JoranException;
+import ch.qos.logback.core.util.StatusPrinter;
+import dk.dbc.rawrepo.RawRepoException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.InputStream;
+import java.sql.SQLException;
+
+/**
+ * Migrate record content from base64 text to (compressed) bytea (schema V33)
+ * <p>
+ * Can be run while the system is online, and can be interrupted and rerun.
+ *
+ * @author DBC {@literal <dbc.dk>}
+ */
+public class ContentMigrateMain {
+
+    private static final Logger log = LoggerFactory.getLogger(ContentMigrateMain.class);
+
+    public static void main(String[] args) {
+        CommandLine commandLine = new ContentMigrateCommandLine();
+        int batchSize;
+        int sleep;
+        try {
+            commandLine.parse(args);
+            if (!commandLine.getExtraArguments().isEmpty()) {
+                throw new IllegalStateException("No arguments expected");
+            }
+            batchSize = commandLine.hasOption("batch-size") ? (int) commandLine.getOption("batch-size") : 1000;
+            sleep = commandLine.hasOption("sleep") ? (int) commandLine.getOption("sleep") : 0;
+            if (batchSize <= 0 || sleep < 0) {
+                throw new IllegalStateException("Positive integer expected");
+            }
+            if (commandLine.hasOption("records-only") && commandLine.hasOption("archive-only")) {
+                throw new IllegalStateException("Options records-only, archive-only are mutually exclusive");
+            }
+            if (commandLine.hasOption("debug")) {
+                setLogLevel("logback-debug.xml");
+            } else {
+                setLogLevel("logback-info.xml");
+            }
+        } catch (IllegalStateException | IllegalArgumentException ex) {
+            System.err.println(ex.getMessage());
+            System.err.println(commandLine.usage());
+            System.exit(1);
+            return;
+        } catch (JoranException ex) {
+            log.error("Exception", ex);
+            System.exit(1);
+            return;
+        }
+
+        try (ContentMigrate contentMigrate = new ContentMigrate((String) commandLine.getOption("db"), batchSize, sleep)) {
+            if (!commandLine.hasOption("archive-only")) {
+                contentMigrate.migrateRecords();
+            }
+            if (!commandLine.hasOption("records-only")) {
+                contentMigrate.migrateArchive();
+            }
+            log.info("Done - content size {} bytes (base64) -> {} bytes", contentMigrate.getLegacyBytes(), contentMigrate.getBytes());
+        } catch (SQLException | RawRepoException ex) {
+            log.error(ex.getMessage());
+            System.exit(1);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted");
+            System.exit(1);
+        }
+    }
+
+    private static void setLogLevel(String file) throws JoranException {
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        context.reset();
+        ClassLoader contextClassLoader = Thread.currentThread().getContextClassLoader();
+        InputStream stream = contextClassLoader.getResourceAsStream(file);
+        JoranConfigurator configurator = new JoranConfigurator();
+        configurator.setContext(context);
+        configurator.doConfigure(stream); // loads logback file
+        StatusPrinter.printInCaseOfErrorsOrWarnings(context); // Internal status data is printed in case of warnings or errors.
+    }
+
+    private static class ContentMigrateCommandLine extends CommandLine {
+
+        @Override
+        void setOptions() {
+            addOption("db", "connectstring for database", true, false, string, null);
+            addOption("batch-size", "number of rows per transaction (default: 1000)", false, false, integer, null);
+            addOption("sleep", "milliseconds to pause between transactions (default: 0)", false, false, integer, null);
+            addOption("records-only", "only migrate records", false, false, null, yes);
+            addOption("archive-only", "only migrate records_archive", false, false, null, yes);
+
+            addOption("debug", "turn on debug logging", false, false, null, yes);
+        }
+
+        @Override
+        String usageCommandLine() {
+            return "prog [ options ]";
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package dk.dbc.rawrepo.content.service;
+
+import dk.dbc.rawrepo.AuthorityCache;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.inject.Inject;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process wide authority record cache, enabled by setting
+ * AUTHORITY_CACHE_ENTRIES
+ */
+@Singleton
+@Startup
+public class AuthorityCacheEJB {
+
+    private static final Logger log = LoggerFactory.getLogger(AuthorityCacheEJB.class);
+
+    private static final long DEFAULT_MEGABYTES = 64;
+
+    @Resource(lookup = "jdbc/rawrepo")
+    private DataSource dataSource;
+
+    @Inject
+    MetricsRegistry metricsRegistry;
+
+    private AuthorityCache authorityCache;
+
+    @PostConstruct
+    public void init() {
+        String entries = System.getenv("AUTHORITY_CACHE_ENTRIES");
+        if (entries == null || entries.isEmpty()) {
+            log.info("Authority cache is disabled");
+            return;
+        }
+        String megabytes = System.getenv("AUTHORITY_CACHE_MB");
+        long maxBytes = (megabytes == null || megabytes.isEmpty() ? DEFAULT_MEGABYTES : Long.parseLong(megabytes)) * 1024 * 1024;
+        authorityCache = new AuthorityCache(dataSource, Integer.parseInt(entries), maxBytes).start();
+        metricsRegistry.gauge(AuthorityCacheEJB.class, "hits", authorityCache::getHits);
+        metricsRegistry.gauge(AuthorityCacheEJB.class, "misses", authorityCache::getMisses);
+        metricsRegistry.gauge(AuthorityCacheEJB.class, "invalidations", authorityCache::getInvalidations);
+        metricsRegistry.gauge(AuthorityCacheEJB.class, "size", authorityCache::getSize);
+        metricsRegistry.gauge(AuthorityCacheEJB.class, "bytes", authorityCache::getBytes);
+        log.info("Authority cache of {} entries / {} bytes", entries, maxBytes);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (authorityCache != null) {
+            authorityCache.close();
+        }
+    }
+
+    /**
+     * Get the cache
+     *
+     * @return authority cache or null if disabled
+     */
+    public AuthorityCache getAuthorityCache() {
+        return authorityCache;
+    }
+}
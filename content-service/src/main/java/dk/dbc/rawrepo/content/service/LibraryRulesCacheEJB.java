@@ -0,0 +1,64 @@
+package dk.dbc.rawrepo.content.service;
+
+import dk.dbc.rawrepo.LibraryRulesCache;
+import java.time.Duration;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.inject.Inject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process wide cache of vipcore library rules, enabled by setting
+ * VIPCORE_RULES_CACHE_TTL (seconds)
+ */
+@Singleton
+@Startup
+public class LibraryRulesCacheEJB {
+
+    private static final Logger log = LoggerFactory.getLogger(LibraryRulesCacheEJB.class);
+
+    private static final long DEFAULT_STALE_SECONDS = 3600;
+
+    @Inject
+    MetricsRegistry metricsRegistry;
+
+    private LibraryRulesCache libraryRulesCache;
+
+    @PostConstruct
+    public void init() {
+        String ttl = System.getenv("VIPCORE_RULES_CACHE_TTL");
+        if (ttl == null || ttl.isEmpty()) {
+            log.info("Library rules cache is disabled");
+            return;
+        }
+        String stale = System.getenv("VIPCORE_RULES_CACHE_STALE");
+        long staleSeconds = stale == null || stale.isEmpty() ? DEFAULT_STALE_SECONDS : Long.parseLong(stale);
+        libraryRulesCache = new LibraryRulesCache(Duration.ofSeconds(Long.parseLong(ttl)), Duration.ofSeconds(staleSeconds));
+        metricsRegistry.gauge(LibraryRulesCacheEJB.class, "hits", libraryRulesCache::getHits);
+        metricsRegistry.gauge(LibraryRulesCacheEJB.class, "staleHits", libraryRulesCache::getStaleHits);
+        metricsRegistry.gauge(LibraryRulesCacheEJB.class, "misses", libraryRulesCache::getMisses);
+        metricsRegistry.gauge(LibraryRulesCacheEJB.class, "refreshes", libraryRulesCache::getRefreshes);
+        metricsRegistry.gauge(LibraryRulesCacheEJB.class, "failures", libraryRulesCache::getFailures);
+        metricsRegistry.gauge(LibraryRulesCacheEJB.class, "fallbacks", libraryRulesCache::getFallbacks);
+        log.info("Library rules cache with ttl {}s / stale {}s", ttl, staleSeconds);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (libraryRulesCache != null) {
+            libraryRulesCache.close();
+        }
+    }
+
+    /**
+     * Get the cache
+     *
+     * @return library rules cache or null if disabled
+     */
+    public LibraryRulesCache getLibraryRulesCache() {
+        return libraryRulesCache;
+    }
+}
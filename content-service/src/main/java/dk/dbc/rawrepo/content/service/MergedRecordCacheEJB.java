@@ -0,0 +1,44 @@
+package dk.dbc.rawrepo.content.service;
+
+import dk.dbc.rawrepo.MergedRecordCache;
+import javax.annotation.PostConstruct;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process wide merged record cache, enabled by setting MERGED_CACHE_ENTRIES
+ */
+@Singleton
+@Startup
+public class MergedRecordCacheEJB {
+
+    private static final Logger log = LoggerFactory.getLogger(MergedRecordCacheEJB.class);
+
+    private static final long DEFAULT_MEGABYTES = 256;
+
+    private MergedRecordCache mergedRecordCache;
+
+    @PostConstruct
+    public void init() {
+        String entries = System.getenv("MERGED_CACHE_ENTRIES");
+        if (entries == null || entries.isEmpty()) {
+            log.info("Merged record cache is disabled");
+            return;
+        }
+        String megabytes = System.getenv("MERGED_CACHE_MB");
+        long maxBytes = (megabytes == null || megabytes.isEmpty() ? DEFAULT_MEGABYTES : Long.parseLong(megabytes)) * 1024 * 1024;
+        mergedRecordCache = new MergedRecordCache(Integer.parseInt(entries), maxBytes);
+        log.info("Merged record cache of {} entries / {} bytes", entries, maxBytes);
+    }
+
+    /**
+     * Get the cache
+     *
+     * @return merged record cache or null if disabled
+     */
+    public MergedRecordCache getMergedRecordCache() {
+        return mergedRecordCache;
+    }
+}
@@ -1,9 +1,12 @@
 package dk.dbc.rawrepo.content.service;
 
 import com.codahale.metrics.Counter;
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.JmxReporter;
 import com.codahale.metrics.MetricRegistry;
 import com.codahale.metrics.Timer;
+import dk.dbc.rawrepo.RawRepoMetrics;
+import dk.dbc.rawrepo.metrics.DropwizardRawRepoMetrics;
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
 import javax.ejb.Singleton;
@@ -21,6 +24,8 @@ public class MetricsRegistry {
 
     private final MetricRegistry metrics = new MetricRegistry();
 
+    private final RawRepoMetrics rawRepoMetrics = new DropwizardRawRepoMetrics(metrics, "rawrepo.query");
+
     private JmxReporter reporter;
 
     @PostConstruct
@@ -36,6 +41,10 @@ public class MetricsRegistry {
         }
     }
 
+    public RawRepoMetrics getRawRepoMetrics() {
+        return rawRepoMetrics;
+    }
+
     @Produces
     public Timer makeTimer(InjectionPoint ip) {
         Class<?> clazz = ip.getMember().getDeclaringClass();
@@ -56,4 +65,8 @@ public class MetricsRegistry {
         return metrics.counter(MetricRegistry.name(clazz, name));
     }
 
+    public <T> void gauge(Class<?> clazz, String name, Gauge<T> gauge) {
+        metrics.register(MetricRegistry.name(clazz, name), gauge);
+    }
+
 }
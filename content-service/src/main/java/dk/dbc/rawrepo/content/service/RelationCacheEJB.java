@@ -0,0 +1,57 @@
+package dk.dbc.rawrepo.content.service;
+
+import dk.dbc.rawrepo.RelationCache;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.annotation.Resource;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.sql.DataSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Process wide relation cache, enabled by setting RELATION_CACHE_ENTRIES
+ */
+@Singleton
+@Startup
+public class RelationCacheEJB {
+
+    private static final Logger log = LoggerFactory.getLogger(RelationCacheEJB.class);
+
+    private static final long DEFAULT_MEGABYTES = 64;
+
+    @Resource(lookup = "jdbc/rawrepo")
+    private DataSource dataSource;
+
+    private RelationCache relationCache;
+
+    @PostConstruct
+    public void init() {
+        String entries = System.getenv("RELATION_CACHE_ENTRIES");
+        if (entries == null || entries.isEmpty()) {
+            log.info("Relation cache is disabled");
+            return;
+        }
+        String megabytes = System.getenv("RELATION_CACHE_MB");
+        long maxBytes = (megabytes == null || megabytes.isEmpty() ? DEFAULT_MEGABYTES : Long.parseLong(megabytes)) * 1024 * 1024;
+        relationCache = new RelationCache(dataSource, Integer.parseInt(entries), maxBytes).start();
+        log.info("Relation cache of {} entries / {} bytes", entries, maxBytes);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (relationCache != null) {
+            relationCache.close();
+        }
+    }
+
+    /**
+     * Get the cache
+     *
+     * @return relation cache or null if disabled
+     */
+    public RelationCache getRelationCache() {
+        return relationCache;
+    }
+}
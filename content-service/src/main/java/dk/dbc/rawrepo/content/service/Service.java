@@ -10,6 +10,7 @@ import dk.dbc.rawrepo.RawRepoDAO;
 import dk.dbc.rawrepo.RawRepoException;
 import dk.dbc.rawrepo.RawRepoExceptionRecordNotFound;
 import dk.dbc.rawrepo.Record;
+import dk.dbc.rawrepo.RecordId;
 import dk.dbc.rawrepo.RelationHintsVipCore;
 import dk.dbc.rawrepo.content.service.transport.FetchRequestAuthentication;
 import dk.dbc.rawrepo.content.service.transport.FetchRequestRecord;
@@ -34,11 +35,13 @@ import javax.xml.ws.RequestWrapper;
 import javax.xml.ws.ResponseWrapper;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.stream.Collectors;
 
 /**
  * @author DBC {@literal <dbc.dk>}
@@ -58,6 +61,21 @@ public abstract class Service {
     @Inject
     XmlToolsEJB xmlTools;
 
+    @Inject
+    RelationCacheEJB relationCache;
+
+    @Inject
+    MergedRecordCacheEJB mergedRecordCache;
+
+    @Inject
+    LibraryRulesCacheEJB libraryRulesCache;
+
+    @Inject
+    AuthorityCacheEJB authorityCache;
+
+    @Inject
+    MetricsRegistry metricsRegistry;
+
     @Inject
     Timer requests;
 
@@ -102,10 +120,23 @@ public abstract class Service {
             }
 
             try (Connection connection = dataSource.getConnection()) {
-                RawRepoDAO dao = RawRepoDAO.builder(connection).relationHints(new RelationHintsVipCore(vipCoreLibraryRulesConnector)).build();
+                RawRepoDAO.Builder builder = RawRepoDAO.builder(connection).relationHints(new RelationHintsVipCore(vipCoreLibraryRulesConnector, libraryRulesCache.getLibraryRulesCache()))
+                        .metrics(metricsRegistry.getRawRepoMetrics());
+                if (relationCache.getRelationCache() != null) {
+                    builder.relationCache(relationCache.getRelationCache());
+                }
+                if (mergedRecordCache.getMergedRecordCache() != null) {
+                    builder.mergedRecordCache(mergedRecordCache.getMergedRecordCache());
+                }
+                if (authorityCache.getAuthorityCache() != null) {
+                    builder.authorityCache(authorityCache.getAuthorityCache());
+                }
+                RawRepoDAO dao = builder.build();
 
                 FetchResponseRecords fetchResponseRecords = new FetchResponseRecords();
 
+                Map<RecordId, Record> rawRecords = fetchRawRecords(dao, requestRecords);
+
                 for (FetchRequestRecord requestRecord : requestRecords) {
                     boolean allowDeleted = requestRecord.allowDeleted != null && requestRecord.allowDeleted;
 
@@ -115,12 +146,7 @@ public abstract class Service {
                     try {
                         switch (requestRecord.mode) {
                             case RAW:
-                                if (allowDeleted ?
-                                        !dao.recordExistsMaybeDeleted(requestRecord.bibliographicRecordId, requestRecord.agencyId) :
-                                        !dao.recordExists(requestRecord.bibliographicRecordId, requestRecord.agencyId)) {
-                                    throw new RawRepoExceptionRecordNotFound();
-                                }
-                                record.content = fetchRaw(dao, requestRecord);
+                                record.content = fetchRaw(rawRecords.get(new RecordId(requestRecord.bibliographicRecordId, requestRecord.agencyId)), requestRecord);
                                 break;
                             case MERGED:
                                 record.content = fetchMerged(dao, requestRecord);
@@ -186,17 +212,33 @@ public abstract class Service {
      *  /_/    \___/\__/\___/_/ /_/\___/_/  /____/
      *
      */
-    private FetchResponseRecordContent fetchRaw(RawRepoDAO dao, FetchRequestRecord requestRecord) throws RawRepoException {
-        Record rawRecord;
+    /**
+     * Fetch all records requested in raw mode in one go
+     *
+     * @param dao            the rawrepo
+     * @param requestRecords the records requested
+     * @return map of id to record, records not in the database are original
+     * @throws RawRepoException if the database fails
+     */
+    private Map<RecordId, Record> fetchRawRecords(RawRepoDAO dao, List<FetchRequestRecord> requestRecords) throws RawRepoException {
+        List<RecordId> recordIds = requestRecords.stream()
+                .filter(requestRecord -> requestRecord.mode == FetchRequestRecord.Mode.RAW)
+                .map(requestRecord -> new RecordId(requestRecord.bibliographicRecordId, requestRecord.agencyId))
+                .collect(Collectors.toList());
+        if (recordIds.isEmpty()) {
+            return Collections.emptyMap();
+        }
         try (Timer.Context time = fetchRaw.time()) {
-            rawRecord = dao.fetchRecord(requestRecord.bibliographicRecordId, requestRecord.agencyId);
+            return dao.fetchRecords(recordIds);
         }
-        byte[] content = rawRecord.getContent();
-        if (isMarcXChange(rawRecord.getMimeType()) &&
-                (requestRecord.includeAgencyPrivate == null || !requestRecord.includeAgencyPrivate)) {
-            content = filterContent(content);
+    }
+
+    private FetchResponseRecordContent fetchRaw(Record rawRecord, FetchRequestRecord requestRecord) throws RawRepoException {
+        boolean allowDeleted = requestRecord.allowDeleted != null && requestRecord.allowDeleted;
+        if (rawRecord.isOriginal() || rawRecord.isDeleted() && !allowDeleted) {
+            throw new RawRepoExceptionRecordNotFound();
         }
-        return new FetchResponseRecordContent(rawRecord.getMimeType(), content);
+        return new FetchResponseRecordContent(rawRecord.getMimeType(), responseContent(rawRecord, requestRecord));
     }
 
     private FetchResponseRecordContent fetchMerged(RawRepoDAO dao, FetchRequestRecord requestRecord) throws RawRepoException, MarcXMergerException {
@@ -210,12 +252,7 @@ public abstract class Service {
         } catch (Exception ex) {
             throw new RuntimeException(ex);
         }
-        byte[] content = rawRecord.getContent();
-        if (isMarcXChange(rawRecord.getMimeType()) &&
-                (requestRecord.includeAgencyPrivate == null || !requestRecord.includeAgencyPrivate)) {
-            content = filterContent(content);
-        }
-        return new FetchResponseRecordContent(rawRecord.getMimeType(), content);
+        return new FetchResponseRecordContent(rawRecord.getMimeType(), responseContent(rawRecord, requestRecord));
     }
 
     private FetchResponseRecordContent fetchMergedDBCKat(RawRepoDAO dao, FetchRequestRecord requestRecord) throws RawRepoException, MarcXMergerException {
@@ -236,12 +273,7 @@ public abstract class Service {
         } catch (Exception ex) {
             throw new RuntimeException(ex);
         }
-        byte[] content = rawRecord.getContent();
-        if (isMarcXChange(rawRecord.getMimeType()) &&
-                (requestRecord.includeAgencyPrivate == null || !requestRecord.includeAgencyPrivate)) {
-            content = filterContent(content);
-        }
-        return new FetchResponseRecordContent(rawRecord.getMimeType(), content);
+        return new FetchResponseRecordContent(rawRecord.getMimeType(), responseContent(rawRecord, requestRecord));
     }
 
     private Object fetchCollection(RawRepoDAO dao, FetchRequestRecord requestRecord) throws RawRepoException, MarcXMergerException {
@@ -271,12 +303,11 @@ public abstract class Service {
                 if (!isMarcXChange(rawRecord.getMimeType())) {
                     return "Cannot make marcx:collection from mimetype: " + rawRecord.getMimeType();
                 }
-                byte[] content = rawRecord.getContent();
-                if (isMarcXChange(rawRecord.getMimeType()) &&
-                        (requestRecord.includeAgencyPrivate == null || !requestRecord.includeAgencyPrivate)) {
-                    content = filterContent(content);
+                if (includeAgencyPrivate(requestRecord)) {
+                    combined.add(rawRecord.getContentStream());
+                } else {
+                    combined.add(filterContent(rawRecord));
                 }
-                combined.add(content);
             }
             byte[] combinedData = combined.build();
             return new FetchResponseRecordContent(MarcXChangeMimeType.MARCXCHANGE, combinedData);
@@ -287,9 +318,27 @@ public abstract class Service {
         }
     }
 
-    private byte[] filterContent(byte[] content) {
+    /**
+     * Content for the response, filtered unless private fields are requested
+     *
+     * @param rawRecord     the record to respond with
+     * @param requestRecord the request
+     * @return content that is not shared with the record
+     */
+    private byte[] responseContent(Record rawRecord, FetchRequestRecord requestRecord) {
+        if (isMarcXChange(rawRecord.getMimeType()) && !includeAgencyPrivate(requestRecord)) {
+            return filterContent(rawRecord);
+        }
+        return rawRecord.getContent();
+    }
+
+    private static boolean includeAgencyPrivate(FetchRequestRecord requestRecord) {
+        return requestRecord.includeAgencyPrivate != null && requestRecord.includeAgencyPrivate;
+    }
+
+    private byte[] filterContent(Record rawRecord) {
         try (Pool.Element<XmlTools> toolsElement = xmlTools.take()) {
-            return toolsElement.getElement().filterPrivateOut(content);
+            return toolsElement.getElement().filterPrivateOut(rawRecord);
         } catch (Exception ex) {
             throw new RuntimeException(ex);
         }
@@ -1,9 +1,11 @@
 package dk.dbc.rawrepo.content.service;
 
 import dk.dbc.marcxmerge.MarcXMergerException;
+import dk.dbc.rawrepo.Record;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStreamWriter;
 import java.io.UnsupportedEncodingException;
 import java.util.Iterator;
@@ -64,8 +66,25 @@ public class XmlTools {
     }
 
     public byte[] filterPrivateOut(byte[] src) {
+        byte[] filtered = filterPrivateOut(new ByteArrayInputStream(src));
+        return filtered == null ? src : filtered;
+    }
+
+    /**
+     * Filter private fields out of the content of a record, without copying
+     * the content first
+     *
+     * @param record marcxchange record
+     * @return filtered content, or the content if it couldn't be filtered
+     */
+    public byte[] filterPrivateOut(Record record) {
+        byte[] filtered = filterPrivateOut(record.getContentStream());
+        return filtered == null ? record.getContent() : filtered;
+    }
+
+    private byte[] filterPrivateOut(InputStream src) {
         try {
-            Document dom = documentBuilder.parse(new ByteArrayInputStream(src));
+            Document dom = documentBuilder.parse(src);
             XPath xPath = xpathFactory.newXPath();
             xPath.setNamespaceContext(MARCX_NAMESPACE_CONTEXT);
             XPathExpression expression = xPath.compile("//marcx:datafield[@tag]");
@@ -85,7 +104,7 @@ public class XmlTools {
             return documentToBytes(dom);
         } catch (XPathExpressionException | SAXException | IOException | TransformerException ex) {
             log.error("Exception " + ex.getClass().getName(), ex);
-            return src;
+            return null;
         }
     }
 
@@ -107,8 +126,12 @@ public class XmlTools {
         }
 
         public MarcXCollection add(byte[] doc) {
+            return add(new ByteArrayInputStream(doc));
+        }
+
+        public MarcXCollection add(InputStream doc) {
             try {
-                Document docDom = documentBuilder.parse(new ByteArrayInputStream(doc));
+                Document docDom = documentBuilder.parse(doc);
                 Element element = docDom.getDocumentElement();
                 if (element.getNamespaceURI().equals(MARCX_NS)
                     && element.getLocalName().equals("record")) {
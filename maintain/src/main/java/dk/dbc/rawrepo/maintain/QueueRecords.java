@@ -44,32 +44,13 @@ public class QueueRecords extends RawRepoWorker {
                 "; provider = " + provider +
                 "; trackingId = " + trackingId);
         final ArrayList<StandardResponse.Result.Diag> diags = new ArrayList<>();
-        int success = 0;
-        int failed = 0;
         try {
             final Connection connection = getConnection();
-            for (String id : ids) {
-                connection.setAutoCommit(false);
-                try {
-                    queueRecord(agencyId, id, provider);
-                    connection.commit();
-                    success++;
-                } catch (RawRepoException | VipCoreException ex) {
-                    failed++;
-                    diags.add(new StandardResponse.Result.Diag("Record: " + id, ex.getMessage()));
-                    final Throwable cause = ex.getCause();
-                    if (cause != null) {
-                        log.warn("Record remove error: " + ex.getMessage());
-                    }
-                    if (!connection.getAutoCommit()) {
-                        try {
-                            connection.rollback();
-                        } catch (SQLException ex1) {
-                            log.warn("Cannot roll back " + ex1.getMessage());
-                        }
-                    }
-                }
+            int success = queueAll(connection, agencyId, ids, provider);
+            if (success < 0) {
+                success = queueOneByOne(connection, agencyId, ids, provider, diags);
             }
+            final int failed = ids.size() - success;
             StandardResponse.Result.Status status = StandardResponse.Result.Status.SUCCESS;
             final StringBuilder message = new StringBuilder();
             message.append("Done!");
@@ -86,6 +67,62 @@ public class QueueRecords extends RawRepoWorker {
         }
     }
 
+    /**
+     * Queue all the records in one transaction
+     * <p>
+     * The relations are traversed and the jobs enqueued in one go
+     *
+     * @return number of records queued, or -1 if any of them failed
+     * @throws SQLException if the transaction cannot be handled
+     */
+    private int queueAll(Connection connection, Integer agencyId, List<String> ids, String provider) throws SQLException {
+        connection.setAutoCommit(false);
+        try {
+            final RawRepoDAO dao = getDao();
+            final List<RecordId> recordIds = new ArrayList<>(ids.size());
+            for (String id : ids) {
+                if (!dao.recordExistsMaybeDeleted(id, agencyId)) {
+                    connection.rollback();
+                    return -1;
+                }
+                recordIds.add(new RecordId(id, agencyId));
+            }
+            dao.changedRecords(provider, recordIds);
+            connection.commit();
+            return recordIds.size();
+        } catch (RawRepoException | VipCoreException ex) {
+            log.info("Cannot queue all records, retrying one by one: " + ex.getMessage());
+            connection.rollback();
+            return -1;
+        }
+    }
+
+    private int queueOneByOne(Connection connection, Integer agencyId, List<String> ids, String provider, List<StandardResponse.Result.Diag> diags) throws SQLException {
+        int success = 0;
+        for (String id : ids) {
+            connection.setAutoCommit(false);
+            try {
+                queueRecord(agencyId, id, provider);
+                connection.commit();
+                success++;
+            } catch (RawRepoException | VipCoreException ex) {
+                diags.add(new StandardResponse.Result.Diag("Record: " + id, ex.getMessage()));
+                final Throwable cause = ex.getCause();
+                if (cause != null) {
+                    log.warn("Record remove error: " + ex.getMessage());
+                }
+                if (!connection.getAutoCommit()) {
+                    try {
+                        connection.rollback();
+                    } catch (SQLException ex1) {
+                        log.warn("Cannot roll back " + ex1.getMessage());
+                    }
+                }
+            }
+        }
+        return success;
+    }
+
     void queueRecord(Integer agencyId, String bibliographicRecordId, String provider) throws RawRepoException, VipCoreException {
         final RawRepoDAO dao = getDao();
 
@@ -113,7 +113,8 @@ public class RevertRecords extends RawRepoWorker {
         if (currentTime <= millis) {
             throw new RawRepoException("Record is already older");
         }
-        final List<RecordMetaDataHistory> history = dao.getRecordHistory(bibliographicRecordId, agencyId);
+        // Newest version within the millisecond (the database has microseconds)
+        final List<RecordMetaDataHistory> history = dao.getRecordHistory(bibliographicRecordId, agencyId, Instant.ofEpochMilli(millis).plusNanos(999_000), 1);
         for (RecordMetaDataHistory oldRecord : history) {
             final long oldTime = oldRecord.getModified().toEpochMilli();
             log.trace("oldTime = " + oldTime);
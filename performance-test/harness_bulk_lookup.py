@@ -0,0 +1,119 @@
+import psycopg2
+import random
+import sys
+import time
+
+# Compares the bulk lookups used by RawRepoDAO.prepareCache, before and
+# after they took the ids as arrays.
+#
+# The JDBC driver keeps (by default) the 256 most recent statement texts
+# prepared on the server. The old lookups built an IN-list for every number
+# of ids, so most calls parsed and planned a new statement. This harness
+# simulates that cache, and reports hit rate and time for both variants.
+
+CACHE_SIZE = 256
+SLICE_SIZE = 1000
+
+OLD_QUERIES = {
+    'mimetype': "SELECT bibliographicrecordid, agencyid, mimetype FROM records WHERE (bibliographicrecordid, agencyid) IN (%s)",
+    'deleted': "SELECT bibliographicrecordid, agencyid, deleted FROM records where (bibliographicrecordid, agencyid) in (%s)",
+}
+NEW_QUERIES = {
+    'mimetype': "SELECT bibliographicrecordid, agencyid, mimetype" +
+                " FROM records JOIN unnest($1::VARCHAR[], $2::NUMERIC[]) AS ids(bibliographicrecordid, agencyid) USING (bibliographicrecordid, agencyid)",
+    'deleted': "SELECT bibliographicrecordid, agencyid, deleted" +
+               " FROM records JOIN unnest($1::VARCHAR[], $2::NUMERIC[]) AS ids(bibliographicrecordid, agencyid) USING (bibliographicrecordid, agencyid)",
+}
+
+
+class StatementCache:
+
+    def __init__(self, cur):
+        self.cur = cur
+        self.names = {}
+        self.order = []
+        self.hits = 0
+        self.misses = 0
+
+    def execute(self, sql, args):
+        name = self.names.get(sql)
+        if name is None:
+            self.misses = self.misses + 1
+            if len(self.order) >= CACHE_SIZE:
+                self.cur.execute("DEALLOCATE " + self.names.pop(self.order.pop(0)))
+            name = "s%d" % self.misses
+            self.cur.execute("PREPARE %s AS %s" % (name, sql))
+            self.names[sql] = name
+        else:
+            self.hits = self.hits + 1
+            self.order.remove(sql)
+        self.order.append(sql)
+        self.cur.execute("EXECUTE %s (%s)" % (name, ", ".join(["%s"] * len(args))), args)
+        return self.cur.fetchall()
+
+    def reset(self):
+        self.cur.execute("DEALLOCATE ALL")
+        self.names = {}
+        self.order = []
+        self.hits = 0
+        self.misses = 0
+
+
+def old_lookup(cache, kind, ids):
+    for start in range(0, len(ids), SLICE_SIZE):
+        chunk = ids[start:start + SLICE_SIZE]
+        n = 0
+        placeholders = []
+        for _ in chunk:
+            placeholders.append("($%d, $%d)" % (n + 1, n + 2))
+            n = n + 2
+        args = []
+        for (bibliographicrecordid, agencyid) in chunk:
+            args.append(bibliographicrecordid)
+            args.append(agencyid)
+        cache.execute(OLD_QUERIES[kind] % ", ".join(placeholders), args)
+
+
+def new_lookup(cache, kind, ids):
+    for start in range(0, len(ids), SLICE_SIZE):
+        chunk = ids[start:start + SLICE_SIZE]
+        cache.execute(NEW_QUERIES[kind], [[i[0] for i in chunk], [i[1] for i in chunk]])
+
+
+def run(cur, name, lookup, calls):
+    cache = StatementCache(cur)
+    cache.reset()
+    before = time.time()
+    for ids in calls:
+        lookup(cache, 'mimetype', ids)
+        lookup(cache, 'deleted', ids)
+    elapsed = time.time() - before
+    total = cache.hits + cache.misses
+    print("%s: %d statements, %d parsed, hit rate %.1f%%, %.3fs (%.2fms per lookup)" %
+          (name, total, cache.misses, 100.0 * cache.hits / total, elapsed, 1000.0 * elapsed / (2 * len(calls))))
+    sys.stdout.flush()
+
+
+conn = None
+try:
+    conn = psycopg2.connect("dbname=db_database")
+    cur = conn.cursor()
+    cur.execute("SELECT bibliographicrecordid, agencyid::INT FROM relations WHERE refer_bibliographicrecordid='head' AND refer_agencyid=870970")
+    subtree = [(r[0], r[1]) for r in cur.fetchall()]
+    print("subtree of %d records" % len(subtree))
+
+    random.seed(42)
+    # prepareCache of subtrees of varying size, and then the whole subtree
+    calls = [random.sample(subtree, random.randint(1, 2 * SLICE_SIZE)) for _ in range(int(sys.argv[1]) if len(sys.argv) > 1 else 500)]
+    calls.append(subtree)
+
+    for _ in range(2):
+        run(cur, "IN-list", old_lookup, calls)
+        run(cur, "unnest ", new_lookup, calls)
+    conn.rollback()
+    cur.close()
+except (Exception, psycopg2.DatabaseError) as error:
+    print(error)
+finally:
+    if conn is not None:
+        conn.close()
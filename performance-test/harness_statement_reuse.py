@@ -0,0 +1,68 @@
+import psycopg2
+import random
+import sys
+import time
+
+# Compares preparing the point lookups of RawRepoDAOPostgreSQLImpl for
+# every call (prepare, execute, close), with preparing them once per
+# connection and executing them again and again.
+#
+# Server side, a JDBC statement that is closed right away is parsed and
+# planned on every call. The dao now keeps its statements for as long as it
+# lives, so only the first call of each statement pays for that.
+
+QUERIES = {
+    'SELECT_RECORD': "SELECT deleted, mimetype, content, content_bytes, content_codec, created, modified, trackingId FROM records WHERE bibliographicrecordid=$1 AND agencyid=$2",
+    'SELECT_DELETED': "SELECT deleted FROM records WHERE bibliographicrecordid=$1 AND agencyid=$2",
+    'SELECT_RELATIONS_CHILDREN': "SELECT bibliographicrecordid, agencyid FROM relations WHERE refer_bibliographicrecordid=$1 AND refer_agencyid=$2 AND refer_bibliographicrecordid <> bibliographicrecordid",
+    'SELECT_RELATIONS_SIBLINGS_TO_ME': "SELECT bibliographicrecordid, agencyid FROM relations WHERE refer_bibliographicrecordid=$1 AND refer_agencyid=$2 AND refer_bibliographicrecordid = bibliographicrecordid",
+}
+
+
+def per_call(cur, name, args):
+    cur.execute("PREPARE q AS " + QUERIES[name])
+    cur.execute("EXECUTE q (%s, %s)", args)
+    rows = cur.fetchall()
+    cur.execute("DEALLOCATE q")
+    return rows
+
+
+def reused(cur, name, args):
+    cur.execute("EXECUTE " + name.lower() + " (%s, %s)", args)
+    return cur.fetchall()
+
+
+def run(cur, label, lookup, ids):
+    before = time.time()
+    for args in ids:
+        for name in QUERIES:
+            lookup(cur, name, args)
+    elapsed = time.time() - before
+    calls = len(ids) * len(QUERIES)
+    print("%s: %d calls, %.3fs (%.3fms per call)" % (label, calls, elapsed, 1000.0 * elapsed / calls))
+    sys.stdout.flush()
+
+
+conn = None
+try:
+    conn = psycopg2.connect("dbname=db_database")
+    cur = conn.cursor()
+    cur.execute("SELECT bibliographicrecordid, agencyid::INT FROM records")
+    records = [(r[0], r[1]) for r in cur.fetchall()]
+    print("%d records" % len(records))
+
+    random.seed(42)
+    ids = [random.choice(records) for _ in range(int(sys.argv[1]) if len(sys.argv) > 1 else 10000)]
+
+    for name in QUERIES:
+        cur.execute("PREPARE " + name.lower() + " AS " + QUERIES[name])
+    for _ in range(2):
+        run(cur, "prepare per call", per_call, ids)
+        run(cur, "prepared once   ", reused, ids)
+    conn.rollback()
+    cur.close()
+except (Exception, psycopg2.DatabaseError) as error:
+    print(error)
+finally:
+    if conn is not None:
+        conn.close()
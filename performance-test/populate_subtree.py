@@ -0,0 +1,16 @@
+import sys
+
+size = int(sys.argv[1]) if len(sys.argv) > 1 else 100000
+
+# One head record with <size> volumes below it
+print("COPY records (bibliographicrecordid, agencyid, mimetype, content_bytes, created, modified) FROM STDIN;")
+print("head\t870970\ttext/marcxchange\t\\\\x00\tnow\tnow")
+for n in range(size):
+    print("volume-{}\t870970\ttext/marcxchange\t\\\\x00\tnow\tnow".format(n))
+print('\\.')
+print("COPY relations (bibliographicrecordid, agencyid, refer_bibliographicrecordid, refer_agencyid) FROM STDIN;")
+for n in range(size):
+    print("volume-{}\t870970\thead\t870970".format(n))
+print('\\.')
+print('ANALYZE records;')
+print('ANALYZE relations;')
@@ -4,3 +4,4 @@
 psql --db db_database < /scripts/rawrepo.sql
 psql --db db_database < /scripts/queuerules.sql
 printf "$(python /scripts/populate_db.py)" | psql --db db_database
+printf "$(python /scripts/populate_subtree.py 100000)" | psql --db db_database
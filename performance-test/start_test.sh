@@ -14,12 +14,24 @@ poll-queue() {
     echo "Done test"
 }
 
+bulk-lookup() {
+    echo "Running test 'bulk lookups of a 100k subtree'..."
+    docker exec rr_speedtest python /scripts/harness_bulk_lookup.py 500
+    echo "Done test"
+}
+
+statement-reuse() {
+    echo "Running test 'reuse of prepared point lookups'..."
+    docker exec rr_speedtest python /scripts/harness_statement_reuse.py 10000
+    echo "Done test"
+}
+
 cp ../access/schema/${RAWREPO_SQL} rawrepo.sql
 cp ../access/schema/queuerules.sql .
 
 docker stop rr_speedtest || true
 docker rm rr_speedtest || true
-docker run -d --name rr_speedtest -v $(pwd):/scripts docker.dbc.dk/dbc-postgres:9.5
+docker run -d --name rr_speedtest -v $(pwd):/scripts docker.dbc.dk/dbc-postgres:12
 docker exec -u 0 rr_speedtest bash -c 'apt-get update && apt-get -qy install python python-psycopg2'
 echo "Waiting for postgresql to be ready..."
 sleep 10s
@@ -27,6 +39,8 @@ docker logs rr_speedtest
 docker exec rr_speedtest /scripts/prepare_db.sh
 
 poll-queue
+bulk-lookup
+statement-reuse
 
 rm queuerules.sql rawrepo.sql
 docker stop rr_speedtest
@@ -27,7 +27,9 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Properties;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -55,20 +57,21 @@ class BulkQueue {
 
     void runWithQueueRules(Iterator<RecordId> iterator) {
         try {
-            int row = 0;
             connection.setAutoCommit(false);
+            // Each commit batch is traversed and enqueued in one go
+            List<RecordId> ids = new ArrayList<>();
             while (iterator.hasNext()) {
-                if (row == commit) {
+                RecordId id = iterator.next();
+                log.debug("id = " + id);
+                ids.add(id);
+                if (ids.size() == commit) {
+                    dao.changedRecords(role, ids);
                     log.debug("commit");
                     connection.commit();
-                    connection.setAutoCommit(false);
-                    row = 0;
+                    ids.clear();
                 }
-                row++;
-                RecordId id = iterator.next();
-                log.debug("id = " + id);
-                dao.changedRecord(role, id);
             }
+            dao.changedRecords(role, ids);
             connection.commit();
         } catch (Exception ex) {
             log.error("Caught exception:", ex);
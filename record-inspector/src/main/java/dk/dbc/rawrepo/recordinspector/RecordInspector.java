@@ -4,15 +4,16 @@ import dk.dbc.marcxmerge.MarcXMerger;
 import dk.dbc.marcxmerge.MarcXMergerException;
 import dk.dbc.rawrepo.RawRepoDAO;
 import dk.dbc.rawrepo.RawRepoException;
+import dk.dbc.rawrepo.RawRepoExceptionRecordNotFound;
 import dk.dbc.rawrepo.Record;
 import dk.dbc.rawrepo.RecordId;
+import dk.dbc.rawrepo.RecordMetaDataHistory;
 import dk.dbc.rawrepo.RelationHintsVipCore;
 import dk.dbc.vipcore.exception.VipCoreException;
 import dk.dbc.vipcore.libraryrules.VipCoreLibraryRulesConnector;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.xml.bind.DatatypeConverter;
 import java.io.Closeable;
 import java.io.IOException;
 import java.sql.Connection;
@@ -103,24 +104,14 @@ public class RecordInspector implements Closeable {
         return dao.fetchMergedRecord(bibliographicRecordId, agencyId, new MarcXMerger(), true);
     }
 
-    public byte[] get(int agencyId, String bibliographicRecordId, Timestamp timestamp) throws SQLException {
-        byte[] content = null;
-        try (PreparedStatement stmt = connection.prepareStatement("SELECT content FROM records WHERE agencyid=? AND bibliographicrecordid=? AND modified=?"
-                + " UNION SELECT content FROM records_archive WHERE agencyid=? AND bibliographicrecordid=? AND modified=?")) {
-            stmt.setInt(1, agencyId);
-            stmt.setString(2, bibliographicRecordId);
-            stmt.setTimestamp(3, timestamp);
-            stmt.setInt(4, agencyId);
-            stmt.setString(5, bibliographicRecordId);
-            stmt.setTimestamp(6, timestamp);
-            try (ResultSet resultSet = stmt.executeQuery()) {
-                while (resultSet.next()) {
-                    final String base64Content = resultSet.getString(1);
-                    content = base64Content == null ? null : DatatypeConverter.parseBase64Binary(base64Content);
-                }
-            }
+    public byte[] get(int agencyId, String bibliographicRecordId, Timestamp timestamp) throws RawRepoException {
+        // Through the dao, archived versions may be deltas of newer versions
+        RecordMetaDataHistory version = new RecordMetaDataHistory(new RecordId(bibliographicRecordId, agencyId), false, null, null, timestamp.toInstant(), null);
+        try {
+            return dao.getHistoricRecords(Collections.singletonList(version)).get(0).getContent();
+        } catch (RawRepoExceptionRecordNotFound ex) {
+            return null;
         }
-        return content;
     }
 
     public ArrayList<String> outboundRelations(int agencyId, String bibliographicRecordId) throws RawRepoException {
@@ -50,7 +50,7 @@ public class RecordLoad implements Closeable {
         }
     }
 
-    void save(int agencyId, String bibliographicRecordId, String mimeType, byte[] content) throws RawRepoException {
+    boolean save(int agencyId, String bibliographicRecordId, String mimeType, byte[] content, boolean skipUnchanged) throws RawRepoException {
         Record record = dao.fetchRecord(bibliographicRecordId, agencyId);
         boolean original = record.isOriginal();
         if (original) {
@@ -59,7 +59,15 @@ public class RecordLoad implements Closeable {
         record.setDeleted(false);
         record.setMimeType(mimeType);
         record.setContent(content);
-        dao.saveRecord(record);
+        if (!skipUnchanged) {
+            dao.saveRecord(record);
+            return true;
+        }
+        boolean written = dao.saveRecordIfChanged(record);
+        if (!written) {
+            log.info("Record is unchanged, not written");
+        }
+        return written;
     }
 
     void enqueue(int agencyId, String bibliographicRecordId, String role) throws RawRepoException, VipCoreException {
@@ -71,8 +71,8 @@ public class RecordLoadMain {
                     List<String> relations = arguments.subList(2, arguments.size());
                     recordLoad.relations(agencyId, bibliographicRecordId, add, relations);
                 } else {
-                    recordLoad.save(agencyId, bibliographicRecordId, mimeType, content);
-                    if (commandLine.hasOption("role")) {
+                    boolean written = recordLoad.save(agencyId, bibliographicRecordId, mimeType, content, commandLine.hasOption("skip-unchanged"));
+                    if (commandLine.hasOption("role") && (written || commandLine.hasOption("queue-unchanged"))) {
                         String role = (String) commandLine.getOption("role");
                         if (role != null) {
                             recordLoad.enqueue(agencyId, bibliographicRecordId, role);
@@ -120,6 +120,8 @@ public class RecordLoadMain {
             addOption("mimetype", "record mimetype", false, false, string, null);
             addOption("set", "set relations", false, false, null, yes);
             addOption("add", "add relations", false, false, null, yes);
+            addOption("skip-unchanged", "don't write (or archive or queue) the record if it is the same as in the database", false, false, null, yes);
+            addOption("queue-unchanged", "with skip-unchanged: queue the record if it isn't written anyway", false, false, null, yes);
             addOption("debug", "turn on debug logging", false, false, null, yes);
         }
 
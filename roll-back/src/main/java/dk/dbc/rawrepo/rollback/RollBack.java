@@ -12,13 +12,18 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Savepoint;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
 import java.time.format.FormatStyle;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
 
 /**
@@ -27,6 +32,9 @@ import java.util.Set;
 class RollBack {
     private static final org.slf4j.Logger log = LoggerFactory.getLogger(RollBack.class);
 
+    private static final int FETCH_CHUNK_SIZE = 1000;
+    private static final int QUEUE_CHUNK_SIZE = 1000;
+
     private final static DateTimeFormatter dateFormat =
             DateTimeFormatter.ofLocalizedDateTime(FormatStyle.SHORT)
                     .withLocale(Locale.UK)
@@ -82,6 +90,26 @@ class RollBack {
         return matching;
     }
 
+    /**
+     * Only fetch the part of the history findMatching can match
+     * <p>
+     * Looking backwards the answer is among the newest versions at or before
+     * matchDate, so only those are fetched, regardless of the length of the
+     * history
+     */
+    private static List<RecordMetaDataHistory> fetchCandidates(RawRepoDAO dao, RecordId id, Instant matchDate, DateMatch.Match matchType) throws RawRepoException {
+        switch (matchType) {
+            case Equal:
+            case BeforeOrEqual:
+                return dao.getRecordHistory(id.getBibliographicRecordId(), id.getAgencyId(), matchDate, 1);
+            case Before:
+                // The newest may be at matchDate exactly
+                return dao.getRecordHistory(id.getBibliographicRecordId(), id.getAgencyId(), matchDate, 2);
+            default:
+                return dao.getRecordHistory(id.getBibliographicRecordId(), id.getAgencyId());
+        }
+    }
+
     static boolean getNewDeleted(State state, Record currentRecord, Record historicRecord) {
         boolean deleted;
         switch (state) {
@@ -121,13 +149,20 @@ class RollBack {
     }
 
     private static boolean rollbackRecord(RawRepoDAO dao, RecordId id, Instant matchDate, DateMatch.Match matchType, State state) throws RawRepoException {
-        List<RecordMetaDataHistory> recordHistory = dao.getRecordHistory(id.getBibliographicRecordId(), id.getAgencyId());
+        return rollbackRecord(dao, id, null, matchDate, matchType, state);
+    }
+
+    // currentRecord is null if it hasn't been fetched in advance
+    private static boolean rollbackRecord(RawRepoDAO dao, RecordId id, Record currentRecord, Instant matchDate, DateMatch.Match matchType, State state) throws RawRepoException {
+        List<RecordMetaDataHistory> recordHistory = fetchCandidates(dao, id, matchDate, matchType);
 
         RecordMetaDataHistory matching = findMatching(matchDate, matchType, recordHistory);
         if (matching != null) {
             log.debug("Rolling record {} back to {}", id, dateFormat.format(matchDate));
 
-            Record currentRecord = dao.fetchRecord(id.getBibliographicRecordId(), id.getAgencyId());
+            if (currentRecord == null) {
+                currentRecord = dao.fetchRecord(id.getBibliographicRecordId(), id.getAgencyId());
+            }
             Record historicRecord = dao.getHistoricRecord(matching);
 
             log.debug("Comparing found record date {} to current record date {}",
@@ -178,25 +213,51 @@ class RollBack {
         return set;
     }
 
-    static void rollbackRecords(int agencyId, Iterable<String> ids, RawRepoDAO dao, Instant matchDate, DateMatch.Match matchType, State state) {
+    static void rollbackRecords(Connection connection, int agencyId, Iterable<String> ids, RawRepoDAO dao, Instant matchDate, DateMatch.Match matchType, State state) {
         int success = 0;
         int skipped = 0;
         int failed = 0;
 
-        for (String id : ids) {
-            RecordId recordId = new RecordId(id, agencyId);
+        Iterator<String> iterator = ids.iterator();
+        while (iterator.hasNext()) {
+            List<RecordId> recordIds = new ArrayList<>(FETCH_CHUNK_SIZE);
+            while (iterator.hasNext() && recordIds.size() < FETCH_CHUNK_SIZE) {
+                recordIds.add(new RecordId(iterator.next(), agencyId));
+            }
+            Map<RecordId, Record> currentRecords;
+            Savepoint savepoint = null;
             try {
-                if (rollbackRecord(dao, recordId, matchDate, matchType, state)) {
-                    success++;
-                } else {
-                    skipped++;
+                // A failed statement aborts the transaction, the records are fetched again after rolling back to this
+                savepoint = connection.getAutoCommit() ? null : connection.setSavepoint();
+                currentRecords = dao.fetchRecords(recordIds);
+                if (savepoint != null) {
+                    connection.releaseSavepoint(savepoint);
                 }
-            } catch (RawRepoException ex) {
-                failed++;
-                log.error("Failed to rollback record " + recordId, ex);
+            } catch (RawRepoException | SQLException ex) {
+                log.error("Failed to fetch records, retrying one by one", ex);
+                if (savepoint != null) {
+                    try {
+                        connection.rollback(savepoint);
+                    } catch (SQLException rollbackException) {
+                        log.error("Failed to roll back to savepoint", rollbackException);
+                    }
+                }
+                currentRecords = Collections.emptyMap();
             }
-            if ((success + skipped + failed) % 1000 == 0) {
-                log.info("Rolled back {}, skipped {}, failed {}", success, skipped, failed);
+            for (RecordId recordId : recordIds) {
+                try {
+                    if (rollbackRecord(dao, recordId, currentRecords.get(recordId), matchDate, matchType, state)) {
+                        success++;
+                    } else {
+                        skipped++;
+                    }
+                } catch (RawRepoException ex) {
+                    failed++;
+                    log.error("Failed to rollback record " + recordId, ex);
+                }
+                if ((success + skipped + failed) % 1000 == 0) {
+                    log.info("Rolled back {}, skipped {}, failed {}", success, skipped, failed);
+                }
             }
         }
         log.info("Rolled back {}, skipped {}, failed {}. Done.", success, skipped, failed);
@@ -206,11 +267,15 @@ class RollBack {
         int no = 0;
         log.info("Queueing {} ids", ids.size());
 
-        for (String id : ids) {
-            queueRecord(dao, new RecordId(id, agencyId), role);
-            if (++no % 1000 == 0) {
-                log.info("Queued {}", no);
+        Iterator<String> iterator = ids.iterator();
+        while (iterator.hasNext()) {
+            List<RecordId> recordIds = new ArrayList<>(QUEUE_CHUNK_SIZE);
+            while (iterator.hasNext() && recordIds.size() < QUEUE_CHUNK_SIZE) {
+                recordIds.add(new RecordId(iterator.next(), agencyId));
             }
+            dao.changedRecords(role, recordIds);
+            no += recordIds.size();
+            log.info("Queued {}", no);
         }
         log.info("Queued {}", no);
     }
@@ -224,7 +289,7 @@ class RollBack {
             log.info("Rolling back {} records for agency {}. Matching {} as '{}'",
                     ids.size(), agencyId, matchDate, matchType);
 
-            rollbackRecords(agencyId, ids, dao, matchDate, matchType, state);
+            rollbackRecords(connection, agencyId, ids, dao, matchDate, matchType, state);
             if (queueRole != null) {
                 queueRecords(dao, agencyId, ids, queueRole);
             }
@@ -162,7 +162,7 @@ public class RollBackMain {
                 log.debug("Rolling back up to {} records to '{}', time matching rule: '{}', library {}, state modification option '{}', queue role '{}'",
                         records.length, timestamp, match, library, state, role);
 
-                RollBack.rollbackRecords(library, Arrays.asList(records), dao, date, matchCriteria, stateHandling);
+                RollBack.rollbackRecords(connection, library, Arrays.asList(records), dao, date, matchCriteria, stateHandling);
             } else {
                 log.debug("Rolling back all records to '{}', time matching rule '{}', library {}, state modification option '{}', queue role '{}'",
                         timestamp, match, library, state, role);